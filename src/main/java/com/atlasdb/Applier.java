@@ -0,0 +1,121 @@
+package com.atlasdb;
+
+import com.atlasdb.log.Operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Applies a follower's replicated entries to its store off the replication path.
+ *
+ * Batches run one after another on a single apply thread, in the order they were
+ * submitted. Within a large batch, entries are split by key over several lanes that apply
+ * in parallel: entries for the same key land in the same lane and keep their order, and
+ * the batch only counts as applied once every lane is done.
+ */
+final class Applier {
+
+    /** Batches smaller than this are applied on the apply thread alone. */
+    static final int PARALLEL_THRESHOLD = 256;
+
+    private final int lanes;
+    private final ExecutorService sequencer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atlasdb-apply");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService lanePool;
+
+    Applier(int lanes) {
+        this.lanes = Math.max(1, lanes);
+        // The apply thread works the first lane itself.
+        this.lanePool = Executors.newFixedThreadPool(Math.max(1, this.lanes - 1), r -> {
+            Thread t = new Thread(r, "atlasdb-apply-lane");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Runs {@code batch} on the apply thread after every batch submitted before it. */
+    void submit(Runnable batch) {
+        sequencer.execute(() -> {
+            try {
+                batch.run();
+            } catch (RuntimeException e) {
+                System.err.println("Apply failed: " + e);
+            }
+        });
+    }
+
+    /** Waits until every batch submitted so far has run. */
+    void drain() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            sequencer.execute(() -> done.complete(null));
+        } catch (RejectedExecutionException e) {
+            return; // shut down; nothing left to run
+        }
+        done.join();
+    }
+
+    /** Applies {@code ops} to {@code store}, in parallel by key when there are enough of them. */
+    void applyAll(List<Operation> ops, KVStore store) {
+        if (ops.size() < PARALLEL_THRESHOLD || lanes == 1) {
+            for (Operation op : ops) apply(op, store);
+            return;
+        }
+        List<List<Operation>> byLane = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) byLane.add(new ArrayList<>(ops.size() / lanes + 1));
+        for (Operation op : ops) {
+            if (op.getType() == Operation.Type.TERM) continue; // leaves the store untouched
+            if (op.getType() == Operation.Type.BATCH) {
+                for (Operation part : op.getOps()) laneOf(byLane, part).add(part);
+            } else {
+                laneOf(byLane, op).add(op);
+            }
+        }
+
+        List<CompletableFuture<Void>> running = new ArrayList<>(lanes - 1);
+        for (int i = 1; i < lanes; i++) {
+            List<Operation> lane = byLane.get(i);
+            if (!lane.isEmpty()) running.add(CompletableFuture.runAsync(() -> {
+                for (Operation op : lane) apply(op, store);
+            }, lanePool));
+        }
+        for (Operation op : byLane.get(0)) apply(op, store);
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /** A key's expiry entry goes to the key's own lane, since EXPIRE reads both. */
+    private List<Operation> laneOf(List<List<Operation>> byLane, Operation op) {
+        return byLane.get((KVStore.ownerKey(op.getKey()).hashCode() & Integer.MAX_VALUE) % lanes);
+    }
+
+    void shutdown() {
+        sequencer.shutdown();
+        lanePool.shutdown();
+    }
+
+    static void apply(Operation op, KVStore store) {
+        switch (op.getType()) {
+            case PUT:
+                store.put(op.getKey(), op.getValue());
+                break;
+            case DELETE:
+                store.delete(op.getKey());
+                break;
+            case BATCH:
+                for (Operation part : op.getOps()) apply(part, store);
+                break;
+            case EXPIRE:
+                store.expire(op.getKey(), op.getExpiresAt());
+                break;
+            case TERM:
+                break;
+        }
+    }
+}
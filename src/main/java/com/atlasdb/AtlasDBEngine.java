@@ -1,42 +1,296 @@
 package com.atlasdb;
 
+import com.atlasdb.cache.HotKeyCache;
+import com.atlasdb.log.Condition;
 import com.atlasdb.log.Operation;
 import com.atlasdb.log.WriteAheadLog;
+import com.atlasdb.net.HttpReplicationTransport;
+import com.atlasdb.replication.AckLevel;
+import com.atlasdb.replication.ElectionManager;
+import com.atlasdb.replication.FollowerReplicator;
+import com.atlasdb.replication.LogTailer;
+import com.atlasdb.replication.Membership;
+import com.atlasdb.replication.OutOfSyncException;
+import com.atlasdb.replication.ReadConsistency;
 import com.atlasdb.replication.ReplicationManager;
+import com.atlasdb.replication.ReplicationSource;
+import com.atlasdb.replication.ReplicationTransport;
 import com.atlasdb.replication.Role;
+import com.atlasdb.replication.StaleTermException;
+import com.atlasdb.replication.TermStore;
 
 import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.snapshot.Snapshot;
+import com.atlasdb.snapshot.SnapshotStore;
+import com.atlasdb.storage.StorageEngine;
+import com.atlasdb.watch.ChangeFeed;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.function.UnaryOperator;
 
 /**
  * AtlasDB state machine with WAL durability.
+ *
+ * Every {@link #setSnapshotInterval snapshot interval} applied entries, a background thread
+ * serializes the store (copy-on-write, writers keep going) tagged with the last applied
+ * index. Recovery then loads the newest snapshot and replays only the WAL after it, and WAL
+ * segments / in-memory replication entries covered by the snapshot are dropped.
+ *
+ * A node built with its peers instead of a fixed role elects its leader with an
+ * {@link ElectionManager}. The leader opens each term with a TERM entry; a follower checks
+ * that each packet continues its log in the leader's term and rolls back a suffix written
+ * by a deposed leader.
+ *
+ * Reads take a {@link ReadConsistency}. Linearizable reads use ReadIndex: the leader
+ * confirms it is still leader (for free while its lease holds, otherwise with one
+ * heartbeat round) and hands out its last applied index, which the serving node waits to
+ * apply. Nothing is written to the log for a read, so any follower can serve one. The
+ * store also holds entries that are not committed yet, so the result is only returned
+ * once the commit index covers what the read could have seen.
+ *
+ * A follower acknowledges a packet once it is durable and applies it to the store on a
+ * separate {@link Applier} thread, so {@link #getLastAppliedIndex()} can trail the log
+ * ({@link #getLastLogIndex()}) and its durable prefix ({@link #getDurableIndex()}).
+ *
+ * A persistent store (an LSM store, kept next to the WAL) is flushed in the background
+ * whenever its memtable fills; recovery then starts from its {@link #getPersistedIndex()
+ * persisted index} and replays only the WAL after it. The WAL is kept from the older of
+ * that index and the newest snapshot, which lagging followers may still need.
+ *
+ * A key written with a TTL gets an expiry time by the leader's clock, logged with it. Every
+ * node tracks expiry times in its store; only the leader logs an EXPIRE entry for each key
+ * that is due, so replicas remove exactly the same keys at the same point in the log.
+ *
+ * The engine of a shard whose partitions can move refuses writes to the partitions listed
+ * under {@link #MOVED_KEY}. That entry is replicated like any other, so once it is applied
+ * no replica takes a write for those keys, and the shard they moved to can take over.
+ *
+ * The group's {@link Membership} is replicated the same way, under {@link #MEMBERS_KEY},
+ * and changes one node at a time: a node is added as a learner, which the leader ships the
+ * log to (a snapshot first, if it is far behind) without counting its acknowledgements,
+ * and promoted to voter once it has caught up. Every node uses the newest membership it
+ * has applied; the leader takes the next change only once the last one is committed.
+ *
+ * A read replica ({@link Role#REPLICA}) is in no membership: a {@link LogTailer} pulls the
+ * committed log from the leader or any other node, so the group never waits for it. It
+ * serves reads, forwards writes to the leader its upstream knows of, and reports how far it
+ * trails the newest commit it has heard of ({@link #getLag()}).
+ *
+ * Any node, replicas included, streams its committed entries to watchers through one
+ * {@link ChangeFeed}, created by the first watch.
  */
 public class AtlasDBEngine {
 
-    private final KVStore store;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 100_000;
+    public static final long DEFAULT_ACK_TIMEOUT_MS = 5000;
+    /** EXPIRE entries logged per expiry tick; the rest wait for the next one. */
+    static final int MAX_EXPIRIES_PER_TICK = 10_000;
+    private static final int SNAPSHOTS_RETAINED = 2;
+    /** How long a follower holds a packet that arrived ahead of its predecessor. */
+    private static final long REORDER_WAIT_MS = 500;
+    /**
+     * A majority that answered the leader within this time will not vote for anyone else
+     * yet: followers refuse votes for the minimum election timeout after hearing from a
+     * leader. The 10% margin covers clock rate differences between nodes.
+     */
+    static final long LEASE_MS = ElectionManager.DEFAULT_MIN_TIMEOUT_MS * 9 / 10;
+    /** Partitions of this shard's keys that moved away, as {@link ShardMap#encodePartitions ranges}. */
+    public static final String MOVED_KEY = KVStore.RESERVED + "moved";
+    /** The group's {@link Membership#encode membership}; absent until it first changes. */
+    public static final String MEMBERS_KEY = KVStore.RESERVED + "members";
+    /** A learner is only promoted once it is at most this many entries behind the leader's log. */
+    public static final long MAX_PROMOTE_LAG = 1000;
+
+    private volatile KVStore store; // replaced wholesale when an in-memory store is rebuilt
     private final WriteAheadLog wal;
     private final ReplicationManager replicationManager;
-    private int lastAppliedIndex = 0;
-    private int commitIndex = 0;
-    private String leaderUrl;   // null if this node is leader
+    private volatile long lastLogIndex = 0;     // entries in the log, durable or not
+    private volatile long durableIndex = 0;     // entries the WAL has acknowledged
+    private volatile long lastAppliedIndex = 0; // entries applied to the store
+    private volatile long commitIndex = 0;
+    private volatile long storeResets = 0;      // odd while the store is rolled back or replaced; guarded by writeLock
+    private volatile String leaderUrl;   // null if this node is leader or none is known
+    private final String selfUrl;
+    private final TermStore termStore;
+    private final ReplicationSource source;
+    private ElectionManager election;    // null for a statically configured role
+    private long roleTerm;               // term of the last role change applied; guarded by writeLock
+    private volatile long leaderCommitSeen;          // newest commit index the leader reported (followers)
+    private volatile long caughtUpNanos = Long.MIN_VALUE; // when this follower last held everything the leader had committed
+
+    // Orders WAL enqueue, replication log and apply so all three see writes in the same order.
+    private final Object writeLock = new Object();
+    private CompletableFuture<Void> lastWalAck = CompletableFuture.completedFuture(null); // guarded by writeLock
+    // Held by the apply thread while it applies a batch and while a snapshot view is opened;
+    // notified when lastAppliedIndex moves. Taken after writeLock, never before.
+    private final Object applyLock = new Object();
+    private final Applier applier = new Applier(Runtime.getRuntime().availableProcessors());
+
+    private final SnapshotStore snapshots;
+    private final Object snapshotLock = new Object();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atlasdb-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile long snapshotIndex = 0;
+    // Taken before snapshotLock: flushes must not wait for a long snapshot to be written.
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atlasdb-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "atlasdb-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private volatile long ackTimeoutMillis = DEFAULT_ACK_TIMEOUT_MS;
+    private volatile HotKeyCache cache; // null when disabled
+    private volatile ToIntFunction<String> partitioner; // null when the keyspace is not partitioned
+    private volatile BitSet moved = new BitSet();       // partitions under MOVED_KEY; never modified
+    private final Membership initialMembers;            // until MEMBERS_KEY is written
+    private volatile Membership members;
+    private volatile long membersIndex;                 // log index of the newest MEMBERS_KEY entry applied
+    private final Object membersLock = new Object();    // one membership change at a time
+    private LogTailer tailer;                           // null unless a read replica
+    private ChangeFeed changeFeed;                      // created by the first watch; guarded by this
 
     // Leader node
     public AtlasDBEngine(String walPath, List<String> followers) {
-        this.store = new KVStore();
-        this.wal = new WriteAheadLog(walPath);
-        this.replicationManager = new ReplicationManager(Role.LEADER, followers);
-        this.leaderUrl = null;
-        recover();
+        this(new WriteAheadLog(walPath), followers);
+    }
+
+    public AtlasDBEngine(WriteAheadLog wal, List<String> followers) {
+        this(wal, new ReplicationManager(Role.LEADER, followers), null, null, Membership.of(null, followers));
+    }
+
+    public AtlasDBEngine(WriteAheadLog wal, List<String> followers, ReplicationTransport transport) {
+        this(wal, new ReplicationManager(Role.LEADER, followers, transport), null, null, Membership.of(null, followers));
     }
 
     // Follower node
     public AtlasDBEngine(String walPath, String leaderUrl) {
-        this.store = new KVStore();
-        this.wal = new WriteAheadLog(walPath);
-        this.replicationManager = new ReplicationManager(Role.FOLLOWER);
+        this(new WriteAheadLog(walPath), leaderUrl);
+    }
+
+    public AtlasDBEngine(WriteAheadLog wal, String leaderUrl) {
+        this(wal, new ReplicationManager(Role.FOLLOWER), leaderUrl, null, Membership.of(null, List.of()));
+    }
+
+    /**
+     * Read replica: tails the committed log of the first of {@code upstreams} that answers,
+     * the leader or any other node of the group.
+     */
+    public AtlasDBEngine(WriteAheadLog wal, List<String> upstreams, LogTailer.Upstream upstream) {
+        this(wal, new ReplicationManager(Role.REPLICA), null, null, Membership.of(null, List.of()));
+        this.tailer = new LogTailer(upstreams, upstream, new LogTailer.Replica() {
+            @Override public long lastLogIndex() { return lastLogIndex; }
+            @Override public CompletableFuture<Void> append(ReplicationPacket packet) {
+                leaderUrl = packet.getLeaderId();
+                return receiveReplicationAsync(packet);
+            }
+            @Override public Path snapshotFile(long index) { return snapshotIncomingFile(index); }
+            @Override public void installSnapshot(long index) { AtlasDBEngine.this.installSnapshot(index); }
+        });
+        tailer.start();
+    }
+
+    // Elected node: starts as a follower and takes part in leader elections with its peers
+    public AtlasDBEngine(WriteAheadLog wal, String selfUrl, List<String> peers) {
+        this(wal, selfUrl, peers, new HttpReplicationTransport());
+    }
+
+    public AtlasDBEngine(WriteAheadLog wal, String selfUrl, List<String> peers, ReplicationTransport transport) {
+        this(wal, selfUrl, peers, transport, ElectionManager.DEFAULT_MIN_TIMEOUT_MS, ElectionManager.DEFAULT_MAX_TIMEOUT_MS);
+    }
+
+    /**
+     * Election timeouts are drawn from [min, max) ms; a node with shorter ones tends to win
+     * elections. The minimum must not be below {@link ElectionManager#DEFAULT_MIN_TIMEOUT_MS},
+     * which leader leases rely on.
+     */
+    public AtlasDBEngine(WriteAheadLog wal, String selfUrl, List<String> peers, ReplicationTransport transport,
+                         long minElectionTimeoutMs, long maxElectionTimeoutMs) {
+        this(wal, selfUrl, Membership.of(selfUrl, peers), transport, minElectionTimeoutMs, maxElectionTimeoutMs);
+    }
+
+    /**
+     * Elected node of a group whose membership is {@code members} until its log says
+     * otherwise. A node joining a running group lists itself as a learner, so it does not
+     * stand for election before the leader promotes it.
+     */
+    public AtlasDBEngine(WriteAheadLog wal, String selfUrl, Membership members, ReplicationTransport transport,
+                         long minElectionTimeoutMs, long maxElectionTimeoutMs) {
+        this(wal, new ReplicationManager(Role.FOLLOWER, Membership.others(members.voters(), selfUrl), transport),
+                null, selfUrl, members);
+        if (minElectionTimeoutMs < ElectionManager.DEFAULT_MIN_TIMEOUT_MS) {
+            throw new IllegalArgumentException("election timeout below " + ElectionManager.DEFAULT_MIN_TIMEOUT_MS + " ms");
+        }
+        this.election = new ElectionManager(selfUrl, Membership.others(members.voters(), selfUrl), termStore, transport,
+                new ElectionManager.Node() {
+            @Override public long lastLogIndex() { return lastLogIndex; }
+            @Override public long lastLogTerm() { return termStore.termAt(lastLogIndex); }
+            @Override public void becomeLeader(long term) { onElected(term); }
+            @Override public void becomeFollower(long term, String leader) { onFollowing(term, leader); }
+        }, minElectionTimeoutMs, maxElectionTimeoutMs);
+        refreshMembers(); // the recovered log may have changed the membership
+        election.start();
+    }
+
+    private AtlasDBEngine(WriteAheadLog wal, ReplicationManager replicationManager, String leaderUrl, String selfUrl,
+                          Membership initialMembers) {
+        this.wal = wal;
+        this.initialMembers = initialMembers;
+        this.members = initialMembers;
+        this.store = KVStore.open(wal.getDirectory().resolve("store"));
+        this.replicationManager = replicationManager;
         this.leaderUrl = leaderUrl;
+        this.selfUrl = selfUrl;
+        this.snapshots = new SnapshotStore(wal.getDirectory().resolve("snapshots"));
+        this.termStore = new TermStore(wal.getDirectory().resolve("raft.state"));
+        this.source = new ReplicationSource() {
+            @Override public long size() { return replicationManager.size(); }
+            @Override public long startIndex() { return getLogStartIndex(); }
+            @Override public List<Operation> read(long from, int max) { return readLog(from, max); }
+            @Override public long termAt(long index) { return termStore.termAt(index); }
+            @Override public long commitIndex() { return commitIndex; }
+            @Override public Snapshot latestSnapshot() { return getLatestSnapshot(); }
+        };
+        snapshots.cleanTempFiles();
         recover();
+        // Term history written just before a crash may be ahead of what reached the WAL.
+        termStore.truncateAfter(lastLogIndex);
+        replicationManager.startSenders(source, this::advanceCommitIndex);
+        maybeScheduleFlush(); // the replayed WAL may already fill the memtable
+        expiryExecutor.scheduleWithFixedDelay(this::reapExpired,
+                KVStore.EXPIRY_TICK_MS, KVStore.EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
     }
 
     public boolean isLeader() {
@@ -46,79 +300,1228 @@ public class AtlasDBEngine {
     public String get(String key) {
         return store.get(key);
     }
-    public int getLastAppliedIndex() {
+
+    /**
+     * Reads {@code key} at the given consistency. A bounded-staleness read that this
+     * follower cannot serve within its bound is served as a linearizable one.
+     *
+     * @throws IllegalStateException if no leader is known, leadership cannot be confirmed,
+     *         or this node does not catch up with the read index in time
+     */
+    public String get(String key, ReadConsistency consistency) {
+        return read(consistency, () -> {
+            HotKeyCache c = cache;
+            if (c == null) return store.get(key);
+            ByteBuffer value = readThrough(c, key);
+            return value == null ? null : StandardCharsets.UTF_8.decode(value).toString();
+        });
+    }
+
+    /**
+     * {@link #get(String, ReadConsistency)} as the value's UTF-8 bytes, read-only; an
+     * off-heap store hands them out without decoding.
+     */
+    public ByteBuffer getBytes(String key, ReadConsistency consistency) {
+        return read(consistency, () -> {
+            HotKeyCache c = cache;
+            return c == null ? store.getBytes(key) : readThrough(c, key);
+        });
+    }
+
+    /**
+     * Serves {@code key} from the cache, or reads it from the store and offers it to the
+     * cache tagged with the applied index of the read. The cache drops keys as their writes
+     * are applied, so a hit is as fresh as the store: it satisfies any consistency level
+     * the store does.
+     */
+    private ByteBuffer readThrough(HotKeyCache c, String key) {
+        byte[] cached = c.get(key);
+        if (cached != null) return cached == HotKeyCache.ABSENT ? null : ByteBuffer.wrap(cached).asReadOnlyBuffer();
+        long generation = c.generation();
+        long readIndex = lastAppliedIndex;
+        ByteBuffer value = store.getBytes(key);
+        byte[] copy = null;
+        if (value != null) {
+            copy = new byte[value.remaining()];
+            value.duplicate().get(copy);
+        }
+        c.fill(key, copy, readIndex, generation);
+        return value;
+    }
+
+    /**
+     * {@link KVStore#scan} at the given consistency, checked once before the scan starts.
+     * A linearizable scan passes its entries on only once they are known to be committed,
+     * so its page is gathered first instead of streamed.
+     *
+     * @throws IllegalStateException as for {@link #get(String, ReadConsistency)}
+     * @throws UnsupportedOperationException if the store is not ordered
+     */
+    public int scan(String from, boolean fromInclusive, String to, String prefix, int limit,
+                    ReadConsistency consistency, BiConsumer<String, String> sink) {
+        if (!awaitConsistency(consistency)) return store.scan(from, fromInclusive, to, prefix, limit, sink);
+        List<Map.Entry<String, String>> page = committed(() -> {
+            List<Map.Entry<String, String>> entries = new ArrayList<>();
+            store.scan(from, fromInclusive, to, prefix, limit, (key, value) -> entries.add(Map.entry(key, value)));
+            return entries;
+        });
+        for (Map.Entry<String, String> e : page) sink.accept(e.getKey(), e.getValue());
+        return page.size();
+    }
+
+    /** Runs {@code read} against the store once it may serve a read at {@code consistency}. */
+    private <T> T read(ReadConsistency consistency, Supplier<T> read) {
+        return awaitConsistency(consistency) ? committed(read) : read.get();
+    }
+
+    /**
+     * Runs a linearizable read. The store can hold entries that are not committed yet: the
+     * leader applies its writes as it logs them, followers as they receive them, and a new
+     * leader may discard them. So the result is only returned once the commit index covers
+     * every entry the store could have held, and the read is repeated if the store was
+     * rolled back or replaced meanwhile.
+     */
+    private <T> T committed(Supplier<T> read) {
+        while (true) {
+            long resets = storeResets;
+            if ((resets & 1) != 0) {
+                synchronized (writeLock) {
+                    continue; // until the store is rebuilt
+                }
+            }
+            T result = read.get();
+            // Entries are logged before they are applied, so the log covers what the read saw.
+            awaitCommitted(lastLogIndex);
+            if (storeResets == resets) return result;
+        }
+    }
+
+    /**
+     * Returns once this node's store may serve a read at {@code consistency}.
+     *
+     * @return whether the read has to be linearizable
+     */
+    private boolean awaitConsistency(ReadConsistency consistency) {
+        switch (consistency.getLevel()) {
+            case STALE:
+                return false;
+            case BOUNDED_STALENESS:
+                if (replicationManager.isLeader() || withinBound(consistency)) return false;
+                break;
+            default:
+                break;
+        }
+        long index = replicationManager.isLeader() ? readIndex() : leaderReadIndex();
+        awaitApplied(index);
+        return true;
+    }
+
+    /**
+     * ReadIndex on the leader: confirms leadership and returns the index a linearizable
+     * read has to see, which covers every write acknowledged so far.
+     *
+     * @throws IllegalStateException if this node is not the leader or cannot confirm it
+     */
+    public long readIndex() {
+        long index = lastAppliedIndex;
+        if (!replicationManager.isLeader()) throw new IllegalStateException("not the leader");
+        // A statically configured leader is never replaced, so there is nothing to confirm.
+        if (election != null && !replicationManager.confirmLeadership(LEASE_MS, ackTimeoutMillis)) {
+            throw new IllegalStateException("leadership not confirmed within " + ackTimeoutMillis + " ms");
+        }
+        return index;
+    }
+
+    private long leaderReadIndex() {
+        String leader = leaderUrl;
+        if (leader == null) throw new IllegalStateException("no leader known");
+        try {
+            return replicationManager.getTransport().readIndex(leader);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("read index from " + leader + " failed", e);
+        }
+    }
+
+    private boolean withinBound(ReadConsistency bound) {
+        if (bound.getMaxLagEntries() >= 0) {
+            return leaderCommitSeen - lastAppliedIndex <= bound.getMaxLagEntries();
+        }
+        long caughtUp = caughtUpNanos;
+        return caughtUp != Long.MIN_VALUE
+                && System.nanoTime() - caughtUp <= TimeUnit.MILLISECONDS.toNanos(bound.getMaxLagMillis());
+    }
+
+    private void awaitApplied(long index) {
+        long deadline = System.currentTimeMillis() + ackTimeoutMillis;
+        synchronized (applyLock) {
+            while (lastAppliedIndex < index) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IllegalStateException("read index " + index + " not applied within "
+                            + ackTimeoutMillis + " ms (at " + lastAppliedIndex + ")");
+                }
+                try {
+                    applyLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted waiting for read index " + index, e);
+                }
+            }
+        }
+    }
+    private void awaitCommitted(long index) {
+        long deadline = System.currentTimeMillis() + ackTimeoutMillis;
+        synchronized (this) {
+            while (commitIndex < index) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IllegalStateException("read at index " + index + " not committed within "
+                            + ackTimeoutMillis + " ms (at " + commitIndex + ")");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted waiting for commit index " + index, e);
+                }
+            }
+        }
+    }
+    public long getLastAppliedIndex() {
         return lastAppliedIndex;
     }
-    public int getCommitIndex() {
+    /** Entries in the local log; a follower applies them to the store after logging them. */
+    public long getLastLogIndex() {
+        return lastLogIndex;
+    }
+    /** Entries the local WAL has made durable. */
+    public long getDurableIndex() {
+        return durableIndex;
+    }
+    private synchronized void advanceDurableIndex(long idx) {
+        this.durableIndex = Math.max(durableIndex, idx);
+        notifyAll(); // readers of the committed log
+    }
+    public long getCommitIndex() {
         return commitIndex;
     }
-    public void advanceCommitIndex(int idx) {
+    public synchronized void advanceCommitIndex(long idx) {
         this.commitIndex = Math.max(commitIndex, idx);
+        notifyAll();
+    }
+    /** The newest commit index this node knows of: its own, or the one its leader or upstream last reported. */
+    public long getLeaderCommitIndex() {
+        return replicationManager.isLeader() ? commitIndex : Math.max(commitIndex, leaderCommitSeen);
+    }
+    /** Committed entries, by {@link #getLeaderCommitIndex()}, not applied here yet; 0 on the leader. */
+    public long getLag() {
+        return Math.max(0, getLeaderCommitIndex() - lastAppliedIndex);
+    }
+    /** Committed changes of this group, for watchers; any node can serve them. */
+    public synchronized ChangeFeed getChangeFeed() {
+        if (changeFeed == null) {
+            changeFeed = new ChangeFeed(new ChangeFeed.Source() {
+                @Override public List<Operation> readCommitted(long afterIndex, int max, long waitMs)
+                        throws InterruptedException {
+                    return AtlasDBEngine.this.readCommitted(afterIndex, max, waitMs);
+                }
+                @Override public long commitIndex() { return Math.min(commitIndex, durableIndex); }
+            });
+        }
+        return changeFeed;
+    }
+    /** Open watches; 0 if nothing was ever watched. */
+    public synchronized int getWatchers() {
+        return changeFeed == null ? 0 : changeFeed.watchers();
+    }
+    /** The node a read replica tails, or null if this is not one. */
+    public String getUpstream() {
+        return tailer == null ? null : tailer.getUpstream();
     }
     public String getLeaderUrl() {
         return leaderUrl;
     }
-    public List<Operation> getReplicationDelta(int fromIndexInclusive) {
+    public Role getRole() {
+        return replicationManager.getRole();
+    }
+    /** Current election term; 0 for a statically configured role. */
+    public long getCurrentTerm() {
+        return termStore.getCurrentTerm();
+    }
+    /** Last log index the store has persisted; 0 for an in-memory store. */
+    public long getPersistedIndex() {
+        return store.persistedIndex();
+    }
+    /** Keys with an expiry time, expired or not yet. */
+    public int getExpiringKeys() {
+        return store.expiringKeys();
+    }
+    /** Last log index covered by the newest snapshot, 0 if none. */
+    public long getSnapshotIndex() {
+        return snapshotIndex;
+    }
+    /** Leader only: follower URL to the number of entries it is known to hold. */
+    public Map<String, Long> getReplicationStatus() {
+        Map<String, Long> status = new LinkedHashMap<>();
+        for (FollowerReplicator sender : replicationManager.getSenders()) {
+            status.put(sender.getFollower(), sender.getMatchIndex());
+        }
+        return status;
+    }
+    /** Newest local snapshot, or null if none has been taken or installed yet. */
+    public Snapshot getLatestSnapshot() {
+        return snapshots.latest();
+    }
+    /** The retained snapshot at {@code index}, or null if there is none (any more). */
+    public Snapshot getSnapshot(long index) {
+        for (Snapshot s : snapshots.list()) {
+            if (s.getIndex() == index) return s;
+        }
+        return null;
+    }
+    /**
+     * Oldest 0-based log position still available for {@link #getReplicationDelta}; a follower
+     * that holds fewer entries needs the latest snapshot instead.
+     */
+    public long getLogStartIndex() {
+        return wal.firstIndex() - 1;
+    }
+    /** Applied entries between automatic snapshots; 0 disables them. */
+    public void setSnapshotInterval(long entries) {
+        this.snapshotInterval = entries;
+    }
+
+    /** Byte budget of the hot-key read cache; 0 disables it. */
+    public void setReadCacheBytes(long bytes) {
+        this.cache = bytes > 0 ? new HotKeyCache(bytes) : null;
+    }
+
+    /**
+     * Sets how keys map to partitions, which {@link #MOVED_KEY} refers to. Writes to
+     * partitions listed there are refused from then on.
+     */
+    public void setPartitioner(ToIntFunction<String> partitioner) {
+        this.partitioner = partitioner;
+        refreshMoved();
+    }
+
+    /** Whether {@code key} (or the key an expiry entry belongs to) is in a partition that moved away. */
+    public boolean isMoved(String key) {
+        BitSet m = moved;
+        if (m.isEmpty()) return false;
+        String owner = KVStore.ownerKey(key);
+        return !KVStore.isReserved(owner) && m.get(partitioner.applyAsInt(owner));
+    }
+
+    /** The hot-key read cache, or null if it is disabled. */
+    public HotKeyCache getReadCache() {
+        return cache;
+    }
+    /**
+     * Operations a follower that already holds {@code fromIndexInclusive} entries is missing.
+     * Entries written before the last restart are not kept in memory; those are read from
+     * the WAL, which seeks straight to the right segment and offset.
+     */
+    public List<Operation> getReplicationDelta(long fromIndexInclusive) {
         if (!replicationManager.isLeader()) {
             throw new IllegalStateException("Only leader can serve replication delta");
         }
-        return replicationManager.getFromIndex(fromIndexInclusive);
+        return readLog(fromIndexInclusive, Integer.MAX_VALUE);
+    }
+
+    private List<Operation> readLog(long fromIndexInclusive, int maxEntries) {
+        if (fromIndexInclusive < replicationManager.getBaseIndex()) {
+            return wal.read(Math.max(fromIndexInclusive, 0) + 1, maxEntries);
+        }
+        return replicationManager.getFromIndex(fromIndexInclusive, maxEntries);
     }
 
     public void put(String key, String value) {
-        Operation op = Operation.put(key, value);
-        wal.append(op);
-        replicationManager.append(op);
-        apply(op);
-        lastAppliedIndex++;
+        put(key, value, AckLevel.LEADER);
+    }
+
+    public void put(String key, String value, AckLevel ack) {
+        write(Operation.put(key, value), ack);
+    }
+
+    /**
+     * Writes {@code key} to expire {@code ttlMillis} from now by this leader's clock. The
+     * value and its expiry time are logged as one BATCH entry.
+     */
+    public void put(String key, String value, long ttlMillis, AckLevel ack) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        write(Operation.batch(List.of(Operation.put(key, value),
+                Operation.put(KVStore.expiryKey(key), Long.toString(expiresAt)))), ack);
     }
 
     public void delete(String key) {
-        Operation op = Operation.delete(key);
-        wal.append(op);
+        delete(key, AckLevel.LEADER);
+    }
+
+    public void delete(String key, AckLevel ack) {
+        write(Operation.delete(key), ack);
+    }
+
+    /**
+     * Writes {@code ops} as one BATCH entry if every condition holds on the leader: one WAL
+     * record, one fsync and one replication round, and no other write lands between the
+     * check and the entry.
+     *
+     * @throws ConditionFailedException if a condition does not hold; nothing is written
+     * @throws IllegalStateException if this node is not the leader, or the followers do not
+     *         acknowledge in time (the batch stays in the log and will still replicate)
+     */
+    public void batch(List<Operation> ops, List<Condition> conditions, AckLevel ack) {
+        write(Operation.batch(ops), conditions, ack, false);
+    }
+
+    /**
+     * {@link #batch} for data moved in from another shard: ops are logged exactly as given,
+     * without the expiry bookkeeping of client writes, and moved partitions are not refused.
+     * Reserved keys may be written and tested.
+     */
+    public void ingest(List<Operation> ops, List<Condition> conditions, AckLevel ack) {
+        write(Operation.batch(ops), conditions, ack, true);
+    }
+
+    /** The newest membership this node has applied. */
+    public Membership getMembers() {
+        return members;
+    }
+
+    /**
+     * Adds {@code node} as a learner: the leader starts shipping it the log, but its
+     * acknowledgements do not count until it is {@link #promote promoted}.
+     *
+     * @return the new membership, committed by a quorum
+     * @throws IllegalArgumentException if {@code node} is already a member
+     * @throws IllegalStateException if this node is not the leader or another change is not committed yet
+     */
+    public Membership addLearner(String node) {
+        return changeMembers(m -> m.withLearner(node));
+    }
+
+    /**
+     * Makes learner {@code node} a voter.
+     *
+     * @throws IllegalStateException also if the learner is more than {@link #MAX_PROMOTE_LAG}
+     *         entries behind the leader's log
+     */
+    public Membership promote(String node) {
+        return changeMembers(m -> {
+            if (!m.learners().contains(node)) throw new IllegalArgumentException(node + " is not a learner");
+            Long match = getReplicationStatus().get(node);
+            if (match == null || lastLogIndex - match > MAX_PROMOTE_LAG) {
+                throw new IllegalStateException(node + " is still catching up: holds " + (match == null ? 0 : match)
+                        + " of " + lastLogIndex + " entries");
+            }
+            return m.promoted(node);
+        });
+    }
+
+    /** Removes voter or learner {@code node}; the leader cannot remove itself. */
+    public Membership removeMember(String node) {
+        if (node.equals(selfUrl)) throw new IllegalArgumentException("the leader cannot remove itself");
+        return changeMembers(m -> m.without(node));
+    }
+
+    /**
+     * Logs the membership {@code change} makes of the current one, once the previous change
+     * is committed and, under elections, once this leader has committed an entry of its own
+     * term (which commits any change a former leader left behind).
+     */
+    private Membership changeMembers(UnaryOperator<Membership> change) {
+        synchronized (membersLock) {
+            if (!replicationManager.isLeader()) throw new IllegalStateException("not the leader");
+            if (commitIndex < membersIndex) throw new IllegalStateException("previous membership change not committed yet");
+            if (election != null && termStore.termAt(commitIndex) != election.getCurrentTerm()) {
+                throw new IllegalStateException("leader has not committed an entry of its term yet");
+            }
+            String current = store.get(MEMBERS_KEY);
+            Membership next = change.apply(members);
+            write(Operation.put(MEMBERS_KEY, next.encode()),
+                    List.of(current == null ? Condition.absent(MEMBERS_KEY) : Condition.equalTo(MEMBERS_KEY, current)),
+                    AckLevel.QUORUM, true);
+            return next;
+        }
+    }
+
+    /** How long a QUORUM/ALL write waits for followers, and a linearizable read for its read index, before failing. */
+    public void setAckTimeoutMillis(long ackTimeoutMillis) {
+        this.ackTimeoutMillis = ackTimeoutMillis;
+    }
+
+    /**
+     * Concurrent writers only serialize on queueing the record; the WAL writer batches them
+     * into a shared write/fsync, and each caller returns once its own batch is acknowledged
+     * and, for QUORUM/ALL, once enough followers hold it.
+     *
+     * @throws IllegalStateException if the followers do not acknowledge in time; the write
+     *         stays in the log and will still replicate
+     */
+    private void write(Operation op, AckLevel ack) {
+        write(op, List.of(), ack, false);
+    }
+
+    /** @throws KeyMovedException unless {@code ingest}, if a key is in a moved partition */
+    private void write(Operation op, List<Condition> conditions, AckLevel ack, boolean ingest) {
+        CompletableFuture<Void> durable;
+        long index;
+        synchronized (writeLock) {
+            if ((election != null || tailer != null) && !replicationManager.isLeader()) {
+                throw new IllegalStateException("not the leader");
+            }
+            if (!ingest && !moved.isEmpty()) checkNotMoved(op, conditions);
+            for (Condition c : conditions) {
+                String current = store.get(c.getKey());
+                if (!c.test(current)) throw new ConditionFailedException(c, current);
+            }
+            durable = logAndApply(ingest ? op : clearingExpiries(op));
+            index = lastLogIndex;
+            maybeScheduleSnapshot();
+            maybeScheduleFlush();
+        }
+        // Register before waiting on our own WAL so follower acks arriving meanwhile are not missed.
+        CompletableFuture<Void> replicated = replicationManager.awaitAck(index, ack);
+        WriteAheadLog.await(durable);
+        advanceDurableIndex(index);
+        replicationManager.localDurable(index);
+        if (ack == AckLevel.LEADER) return;
+        try {
+            replicated.get(ackTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            replicationManager.cancelAck(index, ack);
+            throw new IllegalStateException("write " + index + " not acknowledged at level " + ack
+                    + " within " + ackTimeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            replicationManager.cancelAck(index, ack);
+            throw new IllegalStateException("interrupted waiting for " + ack + " ack", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("replication ack failed", e.getCause());
+        }
+    }
+
+    private void checkNotMoved(Operation op, List<Condition> conditions) {
+        for (Operation part : op.getType() == Operation.Type.BATCH ? op.getOps() : List.of(op)) {
+            if (isMoved(part.getKey())) throw new KeyMovedException(part.getKey());
+        }
+        for (Condition c : conditions) {
+            if (isMoved(c.getKey())) throw new KeyMovedException(c.getKey());
+        }
+    }
+
+    /** Logs, replicates and applies {@code op}; the future completes once it is durable. Caller holds writeLock. */
+    private CompletableFuture<Void> logAndApply(Operation op) {
+        CompletableFuture<Void> durable = wal.appendAsync(op);
         replicationManager.append(op);
         apply(op);
-        lastAppliedIndex++;
+        lastWalAck = durable;
+        return durable;
+    }
+
+    /**
+     * Adds the removal of the expiry time of every key that {@code op} writes without a new
+     * one, so an overwritten or deleted key does not expire later. Caller holds writeLock.
+     */
+    private Operation clearingExpiries(Operation op) {
+        List<Operation> parts = switch (op.getType()) {
+            case PUT, DELETE -> List.of(op);
+            case BATCH -> op.getOps();
+            default -> List.of();
+        };
+        Set<String> renewed = new HashSet<>();
+        Set<String> cleared = new HashSet<>();
+        for (Operation part : parts) {
+            String key = part.getKey();
+            if (KVStore.isReserved(key)) renewed.add(KVStore.ownerKey(key));
+            else if (store.hasExpiry(key)) cleared.add(key);
+        }
+        cleared.removeAll(renewed);
+        if (cleared.isEmpty()) return op;
+        List<Operation> ops = new ArrayList<>(parts);
+        for (String key : cleared) ops.add(Operation.delete(KVStore.expiryKey(key)));
+        return Operation.batch(ops);
+    }
+
+    /**
+     * Expiry thread: moves the store's expiry wheel to the current time and, on the leader,
+     * logs an EXPIRE entry for every key that is due, up to {@link #MAX_EXPIRIES_PER_TICK}
+     * at a time. The entries share one WAL flush.
+     */
+    private void reapExpired() {
+        try {
+            Map<String, Long> due = store.dueExpiries(System.currentTimeMillis(), MAX_EXPIRIES_PER_TICK);
+            if (due.isEmpty() || !replicationManager.isLeader()) return;
+            CompletableFuture<Void> durable = null;
+            long index = 0;
+            synchronized (writeLock) {
+                if (!replicationManager.isLeader()) return;
+                for (Map.Entry<String, Long> e : due.entrySet()) {
+                    durable = logAndApply(Operation.expire(e.getKey(), e.getValue()));
+                }
+                index = lastLogIndex;
+                maybeScheduleSnapshot();
+                maybeScheduleFlush();
+            }
+            WriteAheadLog.await(durable);
+            advanceDurableIndex(index);
+            replicationManager.localDurable(index);
+        } catch (RuntimeException e) {
+            System.err.println("Expiry failed: " + e);
+        }
+    }
+
+    /**
+     * Ends watches, stops elections, log tailing, replication senders, background snapshots and flushes,
+     * then flushes and closes the WAL and closes the store.
+     */
+    public void close() {
+        synchronized (this) {
+            if (changeFeed != null) changeFeed.close();
+        }
+        if (election != null) election.stop();
+        if (tailer != null) tailer.stop();
+        replicationManager.stopSenders();
+        applier.drain();
+        applier.shutdown();
+        snapshotExecutor.shutdown();
+        flushExecutor.shutdown();
+        expiryExecutor.shutdownNow();
+        synchronized (flushLock) {
+            synchronized (snapshotLock) {
+                wal.close();
+                store.close();
+            }
+        }
     }
 
+    /** Logs and applies in one step: the leader's writes and recovery. Caller holds writeLock. */
     private void apply(Operation op) {
+        appended(op);
+        Applier.apply(op, store);
+        invalidateCached(op, lastAppliedIndex + 1);
+        if (writes(op, MOVED_KEY)) refreshMoved();
+        if (writes(op, MEMBERS_KEY)) {
+            membersIndex = lastAppliedIndex + 1;
+            refreshMembers();
+        }
+        lastAppliedIndex++;
+    }
+
+    private static boolean writes(Operation op, String key) {
+        return switch (op.getType()) {
+            case PUT, DELETE -> op.getKey().equals(key);
+            case BATCH -> op.getOps().stream().anyMatch(part -> part.getKey().equals(key));
+            default -> false;
+        };
+    }
+
+    /** Rereads the moved partitions from the store, after {@link #MOVED_KEY} may have changed. */
+    private void refreshMoved() {
+        ToIntFunction<String> p = partitioner;
+        String value = p == null ? null : store.get(MOVED_KEY);
+        moved = value == null ? new BitSet() : ShardMap.decodePartitions(value);
+    }
+
+    /**
+     * Rereads the membership from the store, after {@link #MEMBERS_KEY} may have changed, and
+     * hands it to replication and elections.
+     */
+    private void refreshMembers() {
+        String value = store.get(MEMBERS_KEY);
+        Membership next = initialMembers;
+        if (value != null) {
+            try {
+                next = Membership.decode(value);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring " + e.getMessage());
+            }
+        }
+        members = next;
+        List<String> voters = Membership.others(next.voters(), selfUrl);
+        replicationManager.setMembers(voters, Membership.others(next.learners(), selfUrl));
+        ElectionManager e = election;
+        if (e != null) e.setPeers(voters, next.isVoter(selfUrl));
+    }
+
+    /** Drops the keys {@code op} changed from the read cache; {@code index} is its log index. */
+    private void invalidateCached(Operation op, long index) {
+        HotKeyCache c = cache;
+        if (c == null) return;
         switch (op.getType()) {
             case PUT:
-                store.put(op.getKey(), op.getValue());
-                break;
             case DELETE:
-                store.delete(op.getKey());
+            case EXPIRE:
+                c.invalidate(op.getKey(), index);
+                break;
+            case BATCH:
+                for (Operation part : op.getOps()) c.invalidate(part.getKey(), index);
+                break;
+            default:
                 break;
         }
-        lastAppliedIndex++;
+    }
+
+    /** Empties the read cache after the store was replaced or rolled back. */
+    private void clearCache() {
+        HotKeyCache c = cache;
+        if (c != null) c.clear();
+    }
+
+    /** Records that {@code op} was added to the log. Caller holds writeLock. */
+    private void appended(Operation op) {
+        if (op.getType() == Operation.Type.TERM) termStore.startTerm(op.getTerm(), lastLogIndex + 1);
+        lastLogIndex++;
+    }
+
+    // ---------------- elections ----------------
+
+    /**
+     * Won the election for {@code term}: opens the term with a TERM entry and starts shipping
+     * the log. An entry only counts as committed once one from the current term is stored on
+     * a majority, as older entries can still be overwritten by a later leader.
+     */
+    private void onElected(long term) {
+        synchronized (writeLock) {
+            if (term < roleTerm) return;
+            roleTerm = term;
+            leaderUrl = null;
+            // The leader applies its writes as it logs them, behind whatever it received as follower.
+            applier.drain();
+            replicationManager.resetLog(lastLogIndex);
+            replicationManager.becomeLeader();
+            Operation marker = Operation.termStart(term);
+            CompletableFuture<Void> durable = wal.appendAsync(marker);
+            replicationManager.append(marker);
+            apply(marker);
+            long index = lastLogIndex;
+            lastWalAck = durable;
+            durable.thenRun(() -> {
+                advanceDurableIndex(index);
+                replicationManager.localDurable(index);
+            });
+            replicationManager.startSenders(source, q -> {
+                if (termStore.termAt(q) == term) advanceCommitIndex(q);
+            }, term, selfUrl, ElectionManager.DEFAULT_HEARTBEAT_MS, election::observeTerm);
+        }
+    }
+
+    private void onFollowing(long term, String leader) {
+        synchronized (writeLock) {
+            if (term < roleTerm) return;
+            roleTerm = term;
+            leaderUrl = leader;
+            if (replicationManager.isLeader()) replicationManager.becomeFollower();
+        }
+    }
+
+    /**
+     * Discards every entry after {@code keep} because it conflicts with the leader's log,
+     * then rebuilds the state from the newest snapshot and the remaining WAL. When the
+     * conflict reaches into a snapshot, everything is dropped and the leader resends it.
+     */
+    private void rollbackTo(long keep) {
+        synchronized (flushLock) {
+            synchronized (snapshotLock) {
+                synchronized (writeLock) {
+                    if (keep >= lastLogIndex) return;
+                    applier.drain();
+                    storeResets++;
+                    try {
+                        // A persistent store cannot take back entries it already flushed.
+                        if (keep < snapshotIndex || keep < store.persistedIndex()) {
+                            snapshots.retain(0);
+                            wal.resetTo(1);
+                            termStore.resetTo(0);
+                            store = store.reset();
+                        } else {
+                            wal.truncateAfter(keep);
+                            termStore.truncateAfter(keep);
+                            store = store.reopen();
+                        }
+                        lastLogIndex = 0;
+                        lastAppliedIndex = 0;
+                        snapshotIndex = 0;
+                        membersIndex = 0;
+                        clearCache();
+                        recover();
+                        synchronized (this) {
+                            commitIndex = Math.min(commitIndex, lastLogIndex);
+                        }
+                    } finally {
+                        storeResets++;
+                    }
+                    lastWalAck = CompletableFuture.completedFuture(null);
+                    writeLock.notifyAll();
+                    synchronized (applyLock) {
+                        applyLock.notifyAll();
+                    }
+                }
+            }
+        }
     }
 
     private void recover() {
-        List<Operation> ops = wal.readAll();
-        for (Operation op : ops) {
-            apply(op);
-            lastAppliedIndex++;
+        long persisted = store.persistedIndex();
+        if (store.isPersistent() && persisted > 0 && persisted >= wal.firstIndex() - 1) {
+            // Everything up to the last flush is already in the store.
+            lastLogIndex = persisted;
+            lastAppliedIndex = persisted;
+            Snapshot latest = snapshots.latest();
+            snapshotIndex = latest == null ? 0 : latest.getIndex();
+        } else {
+            if (store.isPersistent()) store.clear(); // flushed before the WAL's start, or never
+            for (Snapshot s : snapshots.list()) {
+                try {
+                    snapshots.load(s, loader(store));
+                    if (store.isPersistent()) store.flush(s.getIndex()).write();
+                    lastLogIndex = s.getIndex();
+                    lastAppliedIndex = s.getIndex();
+                    snapshotIndex = s.getIndex();
+                    break;
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable snapshot " + s.getPath() + ": " + e.getMessage());
+                    store.clear();
+                }
+            }
+        }
+
+        long first = wal.firstIndex();
+        if (first > lastAppliedIndex + 1) {
+            throw new IllegalStateException("WAL starts at index " + first
+                    + " which does not continue snapshot index " + lastAppliedIndex);
+        }
+        if (wal.lastIndex() < lastAppliedIndex) {
+            // Crashed between publishing an installed snapshot and resetting the WAL behind it.
+            wal.resetTo(lastAppliedIndex + 1);
+        }
+        wal.replayFrom(lastAppliedIndex + 1, this::apply);
+        refreshMoved();
+        refreshMembers();
+        durableIndex = lastLogIndex;
+        replicationManager.resetLog(lastLogIndex);
+    }
+
+    // ---------------- snapshots ----------------
+
+    private void maybeScheduleSnapshot() {
+        long interval = snapshotInterval;
+        if (interval <= 0 || lastAppliedIndex - snapshotIndex < interval) return;
+        if (!snapshotPending.compareAndSet(false, true)) return;
+        snapshotExecutor.execute(() -> {
+            try {
+                takeSnapshot();
+            } catch (RuntimeException e) {
+                System.err.println("Background snapshot failed: " + e);
+            } finally {
+                snapshotPending.set(false);
+            }
+            // Writes that arrived while this one ran did not schedule another.
+            if (!snapshotExecutor.isShutdown()) maybeScheduleSnapshot();
+        });
+    }
+
+    // ---------------- store flushes ----------------
+
+    private void maybeScheduleFlush() {
+        if (!store.needsFlush() || !flushPending.compareAndSet(false, true)) return;
+        flushExecutor.execute(() -> {
+            try {
+                flushStore();
+            } catch (RuntimeException e) {
+                System.err.println("Background store flush failed: " + e);
+            } finally {
+                flushPending.set(false);
+            }
+        });
+    }
+
+    /**
+     * Persists everything applied so far in the store and truncates the WAL up to it, as far
+     * as snapshots allow. Writes continue while the flush is written; only capturing it
+     * takes the write lock.
+     *
+     * @return the store's persisted index; 0 for an in-memory store
+     */
+    public long flushStore() {
+        synchronized (flushLock) {
+            KVStore target = store;
+            if (!target.isPersistent()) return 0;
+            StorageEngine.Flush flush;
+            long index;
+            CompletableFuture<Void> logged;
+            synchronized (writeLock) {
+                synchronized (applyLock) {
+                    index = lastAppliedIndex;
+                    flush = target.flush(index);
+                }
+                logged = lastWalAck;
+            }
+            try {
+                // Recovery replays the WAL after the persisted index, so the store must not get ahead of it.
+                WriteAheadLog.await(logged);
+                flush.write();
+            } catch (IOException e) {
+                throw new RuntimeException("store flush failed", e);
+            }
+            wal.truncatePrefix(Math.min(index, snapshotIndex));
+            return target.persistedIndex();
+        }
+    }
+
+    /** Loads snapshot entries into an empty store, flushing a persistent one as its memtable fills. */
+    private static BiConsumer<String, String> loader(KVStore target) {
+        return (k, v) -> {
+            target.put(k, v);
+            if (target.needsFlush()) {
+                try {
+                    // Not at any log index yet: the persisted index stays 0 until the load is done.
+                    target.flush(0).write();
+                } catch (IOException e) {
+                    throw new RuntimeException("store flush failed", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes a snapshot of the current state and truncates the log behind it. Writes continue
+     * while the snapshot is serialized; only capturing the view takes the write lock.
+     *
+     * @return the snapshot's last included index
+     */
+    public long takeSnapshot() {
+        synchronized (snapshotLock) {
+            KVStore.SnapshotView view;
+            long index;
+            CompletableFuture<Void> logged;
+            synchronized (writeLock) {
+                synchronized (applyLock) {
+                    index = lastAppliedIndex;
+                    if (index == snapshotIndex) return index;
+                    view = store.beginSnapshot();
+                }
+                logged = lastWalAck;
+            }
+            try {
+                // Applied entries may still be queued in the WAL; a snapshot must never get ahead of it.
+                WriteAheadLog.await(logged);
+                snapshots.write(index, view::forEach);
+            } catch (IOException e) {
+                throw new RuntimeException("snapshot failed", e);
+            } finally {
+                store.endSnapshot(view);
+            }
+            snapshotIndex = index;
+            snapshots.retain(SNAPSHOTS_RETAINED);
+            // A persistent store recovers from its last flush, so the WAL after it must stay.
+            wal.truncatePrefix(store.isPersistent() ? Math.min(index, store.persistedIndex()) : index);
+            replicationManager.compact(index);
+            return index;
+        }
+    }
+
+    /**
+     * Visits every entry of the store, reserved ones included, as of one applied index,
+     * which it returns. Writes continue meanwhile; snapshots wait until the walk is done.
+     */
+    public long forEachEntry(BiConsumer<String, String> sink) {
+        synchronized (snapshotLock) {
+            KVStore.SnapshotView view;
+            long index;
+            synchronized (writeLock) {
+                synchronized (applyLock) {
+                    index = lastAppliedIndex;
+                    view = store.beginSnapshot();
+                }
+            }
+            try {
+                view.forEach(sink);
+            } finally {
+                store.endSnapshot(view);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Up to {@code max} committed entries after {@code afterIndex} that are durable here, for
+     * the leader to pass on to another shard or for a read replica to tail.
+     *
+     * @throws IllegalStateException if the entries after {@code afterIndex} were already
+     *         compacted into a snapshot
+     */
+    public List<Operation> readCommitted(long afterIndex, int max) {
+        long end = Math.min(commitIndex, durableIndex);
+        if (afterIndex >= end) return List.of();
+        if (afterIndex < getLogStartIndex()) {
+            throw new IllegalStateException("log before index " + getLogStartIndex() + " was compacted");
         }
+        int n = (int) Math.min(max, end - afterIndex);
+        // Only a leader keeps its recent entries in memory; elsewhere they are read back from the WAL.
+        List<Operation> ops = replicationManager.isLeader() ? readLog(afterIndex, n) : wal.read(afterIndex + 1, n);
+        return ops.size() > end - afterIndex ? ops.subList(0, (int) (end - afterIndex)) : ops;
     }
 
+    /** {@link #readCommitted(long, int)}, waiting up to {@code waitMs} for an entry after {@code afterIndex}. */
+    public List<Operation> readCommitted(long afterIndex, int max, long waitMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMs;
+        synchronized (this) {
+            while (Math.min(commitIndex, durableIndex) <= afterIndex) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return List.of();
+                wait(wait);
+            }
+        }
+        return readCommitted(afterIndex, max);
+    }
+
+    /** Where the chunks of a snapshot being installed by the leader are written. */
+    public Path snapshotIncomingFile(long index) {
+        try {
+            return snapshots.incomingFile(index);
+        } catch (IOException e) {
+            throw new RuntimeException("snapshot install failed", e);
+        }
+    }
+
+    /**
+     * Follower side of InstallSnapshot: replaces the whole state with the fully received
+     * snapshot file for {@code index}, discards the local log and continues from index + 1.
+     */
+    public void installSnapshot(long index) {
+        installSnapshot(new ReplicationPacket(index, List.of()));
+    }
+
+    /**
+     * InstallSnapshot from an elected leader; {@code header} carries the snapshot's index as
+     * {@code fromIndexInclusive} and the term of its last entry as {@code prevLogTerm}. A
+     * snapshot that ends inside the local log replaces it only if that log disagrees there.
+     */
+    public void installSnapshot(ReplicationPacket header) {
+        checkLeaderTerm(header);
+        if (replicationManager.isLeader()) {
+            throw new IllegalStateException("Leader should not install snapshots");
+        }
+        long index = header.getFromIndexInclusive();
+        boolean elected = header.getTerm() > 0;
+        synchronized (flushLock) {
+            synchronized (snapshotLock) {
+                synchronized (writeLock) {
+                    applier.drain();
+                    if (index <= lastLogIndex) {
+                        if (elected && termStore.termAt(index) == header.getPrevLogTerm()) {
+                            snapshots.discardIncoming(index); // already holds everything in it
+                            return;
+                        }
+                        if (!elected) {
+                            throw new IllegalStateException("Snapshot index " + index
+                                    + " is not ahead of lastLogIndex=" + lastLogIndex);
+                        }
+                    }
+                    storeResets++;
+                    try {
+                        KVStore fresh = store.reset();
+                        try {
+                            snapshots.publishIncoming(index, loader(fresh));
+                            if (fresh.isPersistent()) fresh.flush(index).write();
+                        } catch (IOException e) {
+                            if (fresh == store) {
+                                // The persistent store was cleared for the snapshot; rebuild it from what is still here.
+                                lastLogIndex = 0;
+                                lastAppliedIndex = 0;
+                                snapshotIndex = 0;
+                                recover();
+                            }
+                            clearCache();
+                            throw new RuntimeException("snapshot install failed", e);
+                        }
+                        store = fresh;
+                        wal.resetTo(index + 1);
+                        replicationManager.resetLog(index);
+                        if (elected) termStore.resetTo(header.getPrevLogTerm());
+                        lastLogIndex = index;
+                        durableIndex = index;
+                        lastAppliedIndex = index;
+                        snapshotIndex = index;
+                        clearCache();
+                    } finally {
+                        storeResets++;
+                    }
+                    refreshMoved();
+                    membersIndex = 0; // the snapshot is committed, and any change in it
+                    refreshMembers();
+                    lastWalAck = CompletableFuture.completedFuture(null);
+                    advanceCommitIndex(index);
+                    writeLock.notifyAll();
+                    synchronized (applyLock) {
+                        applyLock.notifyAll();
+                    }
+                }
+                snapshots.retain(SNAPSHOTS_RETAINED);
+            }
+        }
+    }
+
+    /**
+     * Adopts the term of a packet from an elected leader and resets the election timeout.
+     *
+     * @throws StaleTermException if the sender is a deposed leader
+     */
+    public void checkLeaderTerm(ReplicationPacket packet) {
+        ElectionManager e = election;
+        if (e == null || packet.getTerm() == 0) return;
+        if (!e.onLeaderContact(packet.getTerm(), packet.getLeaderId())) {
+            throw new StaleTermException(e.getCurrentTerm());
+        }
+    }
+
+    /**
+     * RequestVote from a candidate.
+     *
+     * @throws StaleTermException if the candidate's term is older than ours
+     */
+    public boolean handleVote(long term, String candidate, long lastLogIndex, long lastLogTerm) {
+        if (election == null) throw new IllegalStateException("node does not take part in elections");
+        return election.handleVote(term, candidate, lastLogIndex, lastLogTerm);
+    }
+
+    /**
+     * Appends a packet from the leader. A packet from an elected leader must start at an
+     * entry this node holds in the same term; entries already held are skipped, and the
+     * first one that disagrees rolls the log back to just before it. A rejected packet
+     * throws an {@link OutOfSyncException} naming where the leader should continue.
+     */
     public void receiveReplication(ReplicationPacket packet) {
+        WriteAheadLog.await(receiveReplicationAsync(packet));
+        applier.drain();
+    }
+
+    /**
+     * {@link #receiveReplication} that returns once the packet is in the log; the future
+     * completes when its entries are durable here, which is when the leader may count them.
+     * The entries reach the store afterwards, on the apply thread. Packets handed over in
+     * order may be awaited together, so they share WAL batches. Rejections are thrown right
+     * away.
+     */
+    public CompletableFuture<Void> receiveReplicationAsync(ReplicationPacket packet) {
+        checkLeaderTerm(packet);
         // Followers only
         if (replicationManager.isLeader()) {
             throw new IllegalStateException("Leader should not receive replication packets");
         }
-    
-        // Simple safety: only accept the next expected index
-        if (packet.getFromIndexInclusive() != lastAppliedIndex) {
-            throw new IllegalStateException(
-                    "Out of sync: expected fromIndex=" + lastAppliedIndex +
-                    " but got " + packet.getFromIndexInclusive()
-            );
+
+        long receivedAt = System.nanoTime();
+        long from = packet.getFromIndexInclusive();
+        long end = from + packet.getOps().size();
+        CompletableFuture<Void> durable = null;
+        long conflict = -1;
+        synchronized (writeLock) {
+            // Pipelined packets can overtake each other; give the ones ahead a moment to land.
+            // An empty probe carries nothing to keep, so it is answered right away. Under
+            // elections the wait stays at a heartbeat: while it lasts the leader sends nothing
+            // else, and the election timeout only restarts when a packet arrives.
+            long reorderWait = packet.getTerm() == 0 ? REORDER_WAIT_MS : ElectionManager.DEFAULT_HEARTBEAT_MS;
+            long deadline = System.currentTimeMillis() + reorderWait;
+            long wait;
+            while (!packet.getOps().isEmpty() && from > lastLogIndex && (wait = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    writeLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            int skip = 0;
+            if (packet.getTerm() == 0) {
+                // Statically configured leader: only accept the next expected index
+                if (from != lastLogIndex) throw new OutOfSyncException(lastLogIndex, from);
+            } else {
+                if (from > lastLogIndex) throw new OutOfSyncException(lastLogIndex, from);
+                if (termStore.termAt(from) != packet.getPrevLogTerm()) {
+                    // Skip back over the whole term that disagrees instead of one entry per round trip.
+                    throw new OutOfSyncException(termStore.termStartIndex(from) - 1, from);
+                }
+                long index = from;
+                long term = packet.getPrevLogTerm();
+                for (Operation op : packet.getOps()) {
+                    index++;
+                    if (op.getType() == Operation.Type.TERM) term = op.getTerm();
+                    if (index > lastLogIndex) break;
+                    if (termStore.termAt(index) != term) {
+                        conflict = index;
+                        break;
+                    }
+                    skip++;
+                }
+            }
+
+            if (conflict < 0) {
+                // The whole packet shares one WAL batch; the last record's ack covers the rest.
+                // Records received in WAL form are logged as they are, not encoded again.
+                List<Operation> ops = packet.getOps();
+                List<ByteBuffer> records = packet.getRecords();
+                for (int i = skip; i < ops.size(); i++) {
+                    durable = records != null
+                            ? wal.appendRecordAsync(records.get(i).duplicate())
+                            : wal.appendAsync(ops.get(i));  // durable on follower
+                    appended(ops.get(i));
+                }
+                if (durable != null) {
+                    lastWalAck = durable;
+                    writeLock.notifyAll();
+                }
+                leaderCommitSeen = Math.max(leaderCommitSeen, packet.getLeaderCommit());
+                boolean caughtUp = lastLogIndex >= packet.getLeaderCommit();
+                List<Operation> toApply = ops.subList(skip, ops.size());
+                if (!toApply.isEmpty() || caughtUp) {
+                    applier.submit(() -> applyReceived(toApply, caughtUp ? receivedAt : Long.MIN_VALUE));
+                }
+            }
+        }
+        if (conflict >= 0) {
+            rollbackTo(conflict - 1);
+            throw new OutOfSyncException(lastLogIndex, from);
         }
-    
-        for (Operation op : packet.getOps()) {
-            wal.append(op);   // durable on follower
-            apply(op);        // apply to follower state machine
+        // The fsync is awaited outside the lock so the next packet can already be applied.
+        // Entries past the packet were not checked against the leader's log and cannot count as committed.
+        long committed = packet.getTerm() == 0 ? end : Math.min(packet.getLeaderCommit(), end);
+        if (durable == null) {
+            advanceCommitIndex(committed);
+            return CompletableFuture.completedFuture(null);
+        }
+        return durable.thenRun(() -> {
+            advanceDurableIndex(end);
+            advanceCommitIndex(committed);
+        });
+    }
+
+    /**
+     * Apply thread: applies received entries to the store and publishes the new applied
+     * index. {@code caughtUpAt} is when the packet that brought this node level with the
+     * leader's commit index arrived, or {@code Long.MIN_VALUE}.
+     */
+    private void applyReceived(List<Operation> ops, long caughtUpAt) {
+        synchronized (applyLock) {
+            applier.applyAll(ops, store);
+            long index = lastAppliedIndex + ops.size();
+            for (Operation op : ops) invalidateCached(op, index);
+            if (ops.stream().anyMatch(op -> writes(op, MOVED_KEY))) refreshMoved();
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                if (writes(ops.get(i), MEMBERS_KEY)) {
+                    membersIndex = lastAppliedIndex + i + 1;
+                    refreshMembers();
+                    break;
+                }
+            }
+            lastAppliedIndex = index;
+            if (caughtUpAt != Long.MIN_VALUE) caughtUpNanos = caughtUpAt;
+            applyLock.notifyAll();
         }
-        advanceCommitIndex(lastAppliedIndex);
+        maybeScheduleSnapshot();
+        maybeScheduleFlush();
     }
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+package com.atlasdb;
+
+import com.atlasdb.log.Condition;
+
+/**
+ * A batch was not written because one of its conditions did not hold.
+ */
+public class ConditionFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Condition condition;
+
+    public ConditionFailedException(Condition condition, String actual) {
+        super("condition failed: " + condition + " (current " + (actual == null ? "absent" : "value " + actual) + ")");
+        this.condition = condition;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+}
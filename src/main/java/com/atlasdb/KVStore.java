@@ -1,29 +1,291 @@
 package com.atlasdb;
 
-import java.util.concurrent.ConcurrentHashMap;
+import com.atlasdb.storage.LsmEngine;
+import com.atlasdb.storage.MemoryEngine;
+import com.atlasdb.storage.OffHeapEngine;
+import com.atlasdb.storage.StorageEngine;
 
-public class KVStore {
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
-    private final ConcurrentHashMap<String, String> store = new ConcurrentHashMap<>();
+/**
+ * The state machine, on top of a {@link StorageEngine}. An {@link StoreType#ORDERED} store
+ * keeps keys in String order and supports {@link #scan}; a {@link StoreType#HASH} store
+ * only point operations, as does an {@link StoreType#OFFHEAP} store, which keeps its
+ * entries outside the heap. An {@link StoreType#LSM} store is ordered and keeps its entries
+ * on disk, so it survives restarts up to its {@link #persistedIndex()}.
+ *
+ * A key's expiry time is kept as an entry of its own under a reserved {@link #expiryKey},
+ * so it is logged, snapshotted and persisted like any other entry. The store tracks those
+ * deadlines in a {@link TimingWheel}; an {@link #expire} entry removes a key whose
+ * deadline has passed.
+ */
+public class KVStore implements Closeable {
+
+    private static volatile StoreType defaultType = StoreType.ORDERED;
+    private static volatile long memtableBytes = LsmEngine.DEFAULT_MEMTABLE_BYTES;
+
+    /** Keys starting with this character are internal and never shown to clients. */
+    public static final char RESERVED = '\u0000';
+    private static final String EXPIRY_PREFIX = RESERVED + "ttl" + RESERVED;
+    private static final String FIRST_CLIENT_KEY = "\u0001";
+    static final long EXPIRY_TICK_MS = 100;
+
+    private final StorageEngine engine;
+    private final StoreType type;
+    private volatile SnapshotView activeView;
+    private final TimingWheel expiries = new TimingWheel(EXPIRY_TICK_MS, System.currentTimeMillis());
+
+    /** Sets the type of stores created with {@link #open} and {@link #KVStore()}. */
+    public static void setDefaultType(StoreType type) {
+        defaultType = type;
+    }
+
+    /** Sets how much an LSM store buffers in memory before it asks for a flush. */
+    public static void setMemtableBytes(long bytes) {
+        memtableBytes = bytes;
+    }
+
+    /** Opens a store of the default type; an LSM store keeps its files in {@code dir}. */
+    public static KVStore open(Path dir) {
+        return defaultType == StoreType.LSM
+                ? new KVStore(new LsmEngine(dir, memtableBytes), StoreType.LSM)
+                : new KVStore(defaultType);
+    }
+
+    /** An in-memory store of the default type, ordered if that type is persistent. */
+    public KVStore() {
+        this(defaultType == StoreType.LSM ? StoreType.ORDERED : defaultType);
+    }
+
+    /** An in-memory store; an LSM store needs a directory, see {@link #open}. */
+    public KVStore(StoreType type) {
+        this(inMemory(type), type);
+    }
+
+    public KVStore(StorageEngine engine, StoreType type) {
+        this.engine = engine;
+        this.type = type;
+        loadExpiries();
+    }
+
+    /** Whether {@code key} is internal to the store. */
+    public static boolean isReserved(String key) {
+        return !key.isEmpty() && key.charAt(0) == RESERVED;
+    }
+
+    /** The entry holding {@code key}'s expiry time, in epoch milliseconds. */
+    public static String expiryKey(String key) {
+        return EXPIRY_PREFIX + key;
+    }
+
+    /** The key an entry belongs to: the key itself, or the key whose expiry it holds. */
+    public static String ownerKey(String key) {
+        return key.startsWith(EXPIRY_PREFIX) ? key.substring(EXPIRY_PREFIX.length()) : key;
+    }
+
+    /** Picks up the expiry entries a persistent engine already holds. */
+    private void loadExpiries() {
+        if (!engine.isPersistent()) return;
+        expiries.clear();
+        engine.scan(EXPIRY_PREFIX, true, null, EXPIRY_PREFIX, Integer.MAX_VALUE,
+                (k, v) -> expiries.schedule(ownerKey(k), Long.parseLong(v)));
+    }
+
+    private static StorageEngine inMemory(StoreType type) {
+        return switch (type) {
+            case ORDERED -> new MemoryEngine(true);
+            case HASH -> new MemoryEngine(false);
+            case OFFHEAP -> new OffHeapEngine();
+            case LSM -> throw new IllegalArgumentException("an LSM store needs a directory");
+        };
+    }
 
     public void put(String key, String value) {
         if (key == null) throw new IllegalArgumentException("key cannot be null");
-        store.put(key, value);
+        engine.put(key, value);
+        if (key.startsWith(EXPIRY_PREFIX)) expiries.schedule(ownerKey(key), Long.parseLong(value));
     }
 
     public String get(String key) {
-        return key == null ? null : store.get(key);
+        return key == null ? null : engine.get(key);
+    }
+
+    /** {@link #get} as UTF-8 bytes, which an off-heap store returns without decoding. Read-only. */
+    public ByteBuffer getBytes(String key) {
+        return key == null ? null : engine.getBytes(key);
     }
 
     public void delete(String key) {
-        if (key != null) store.remove(key);
+        if (key == null) return;
+        engine.delete(key);
+        if (key.startsWith(EXPIRY_PREFIX)) expiries.cancel(ownerKey(key));
+    }
+
+    /** Whether {@code key} has an expiry time. */
+    public boolean hasExpiry(String key) {
+        return expiries.contains(key);
+    }
+
+    /**
+     * Removes {@code key} and its expiry entry if its expiry time is still
+     * {@code expiresAt}; a key written again since keeps its new value.
+     *
+     * @return whether the key was removed
+     */
+    public boolean expire(String key, long expiresAt) {
+        String current = engine.get(expiryKey(key));
+        if (current == null || Long.parseLong(current) != expiresAt) return false;
+        engine.delete(key);
+        delete(expiryKey(key));
+        return true;
+    }
+
+    /**
+     * Up to {@code max} keys whose expiry time is before {@code nowMillis}, with that time,
+     * oldest first. Found in time proportional to their number; they stay listed until they
+     * are expired or written again.
+     */
+    public Map<String, Long> dueExpiries(long nowMillis, int max) {
+        expiries.advance(nowMillis);
+        return expiries.due(max);
+    }
+
+    /** Number of keys with an expiry time. */
+    public int expiringKeys() {
+        return expiries.size();
+    }
+
+    /**
+     * Visits, in key order, up to {@code limit} entries from {@code from} up to {@code to}
+     * (exclusive) whose keys start with {@code prefix}. Readers take no locks, so entries
+     * written during the scan may or may not be seen.
+     *
+     * @param from          first key, or null to start at the beginning (of the prefix)
+     * @param fromInclusive whether an entry at exactly {@code from} is included
+     * @param to            end key, or null for no end
+     * @param prefix        required key prefix, or null for any
+     * @return the number of entries visited
+     * @throws UnsupportedOperationException for a {@link StoreType#HASH} store
+     */
+    public int scan(String from, boolean fromInclusive, String to, String prefix, int limit,
+                    BiConsumer<String, String> sink) {
+        if (!engine.isOrdered()) throw new UnsupportedOperationException("range scans need an ordered store");
+        if (prefix != null && !prefix.isEmpty() && (from == null || from.compareTo(prefix) < 0)) {
+            from = prefix;
+            fromInclusive = true;
+        }
+        if (from == null || from.compareTo(FIRST_CLIENT_KEY) < 0) {
+            // Reserved keys sort first; start after them.
+            from = FIRST_CLIENT_KEY;
+            fromInclusive = true;
+        }
+        if (to != null && from.compareTo(to) >= 0) return 0;
+        return engine.scan(from, fromInclusive, to, prefix, limit, sink);
+    }
+
+    public boolean isOrdered() {
+        return engine.isOrdered();
+    }
+
+    public StoreType getType() {
+        return type;
     }
 
+    /** Number of entries, not counting expiry entries; an LSM store walks all of them to count. */
     public int size() {
-        return store.size();
+        return engine.size() - expiries.size();
     }
 
+    /** Removes every entry, on disk too. */
     public void clear() {
-        store.clear();
+        engine.clear();
+        expiries.clear();
+    }
+
+    /** Whether the entries up to {@link #persistedIndex()} survive a restart. */
+    public boolean isPersistent() {
+        return engine.isPersistent();
+    }
+
+    /** Last log index whose effects are all on disk; 0 for an in-memory store. */
+    public long persistedIndex() {
+        return engine.persistedIndex();
+    }
+
+    /** Whether enough has been written since the last flush that the next one is due. */
+    public boolean needsFlush() {
+        return engine.needsFlush();
+    }
+
+    /**
+     * Captures everything written so far for a flush that will record it as persisted up to
+     * {@code index}. Callers must not run mutations concurrently with this call; the
+     * returned flush may be written while they continue.
+     */
+    public StorageEngine.Flush flush(long index) {
+        return engine.flush(index);
+    }
+
+    /**
+     * A store in the state recovery finds it in: a new empty one for an in-memory store; a
+     * persistent store drops what it did not flush yet and returns itself.
+     */
+    public KVStore reopen() {
+        if (!engine.isPersistent()) return new KVStore(type);
+        engine.discardUnpersisted();
+        loadExpiries();
+        return this;
+    }
+
+    /** An empty store of the same kind; a persistent store clears itself and returns itself. */
+    public KVStore reset() {
+        if (!engine.isPersistent()) return new KVStore(type);
+        clear();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        engine.close();
+    }
+
+    /**
+     * Freezes the current contents for a snapshot without copying them. Callers must not
+     * run mutations concurrently with this call; mutations afterwards are fine.
+     */
+    public SnapshotView beginSnapshot() {
+        if (activeView != null) throw new IllegalStateException("snapshot already in progress");
+        SnapshotView view = new SnapshotView(engine.openView());
+        activeView = view;
+        return view;
+    }
+
+    public void endSnapshot(SnapshotView view) {
+        view.view.close();
+        if (activeView == view) activeView = null;
+    }
+
+    /**
+     * Point-in-time view of the store as of {@link #beginSnapshot()}.
+     */
+    public static final class SnapshotView {
+
+        private final StorageEngine.View view;
+
+        private SnapshotView(StorageEngine.View view) {
+            this.view = view;
+        }
+
+        /**
+         * Visits every entry as of the snapshot point. A key may be visited twice with the
+         * same value if it is overwritten while the walk is in progress.
+         */
+        public void forEach(BiConsumer<String, String> sink) {
+            view.forEach(sink);
+        }
     }
 }
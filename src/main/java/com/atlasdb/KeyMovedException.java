@@ -0,0 +1,21 @@
+package com.atlasdb;
+
+/**
+ * A write was refused because its key belongs to a partition that has moved, or is being
+ * moved, to another shard. The client should look the key's shard up again and retry.
+ */
+public class KeyMovedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public KeyMovedException(String key) {
+        super("key moved to another shard: " + key);
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
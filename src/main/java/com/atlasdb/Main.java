@@ -1,10 +1,28 @@
 package com.atlasdb;
 
+import com.atlasdb.cluster.Rebalancer;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.cluster.ShardRegistry;
+import com.atlasdb.log.FsyncPolicy;
+import com.atlasdb.log.SharedWalWriter;
+import com.atlasdb.log.WriteAheadLog;
+import com.atlasdb.net.BinaryReplicationServer;
+import com.atlasdb.net.BinaryReplicationTransport;
+import com.atlasdb.net.HttpLogUpstream;
+import com.atlasdb.net.HttpReplicationTransport;
 import com.atlasdb.net.NodeServer;
-import com.atlasdb.replication.Role;
+import com.atlasdb.net.PeerClient;
+import com.atlasdb.net.ServerMode;
+import com.atlasdb.replication.ElectionManager;
+import com.atlasdb.replication.Membership;
+import com.atlasdb.replication.ReplicationTransport;
+import com.atlasdb.storage.LsmEngine;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.IntFunction;
 
 public class Main {
 
@@ -12,18 +30,84 @@ public class Main {
         if (args.length < 3) {
             System.out.println("""
                 Usage:
-                leader   <port> <walPath> <followerUrl...>
-                follower <port> <walPath> <leaderUrl>
+                leader   <port> <walDir> <followerUrl...>
+                follower <port> <walDir> <leaderUrl>
+                node     <port> <walDir> <selfUrl> <peerUrl...>   (leader elected automatically)
+                replica  <port> <walDir> <upstreamUrl...>          (read replica; tails the first upstream
+                                                                   that answers: the leader or any node)
                 Examples:
                 leader   8080 ./data/leader.wal http://localhost:8081 http://localhost:8082
                 follower 8081 ./data/f1.wal     http://localhost:8080
+                node     8080 ./data/n1.wal     http://localhost:8080 http://localhost:8081 http://localhost:8082
+                replica  8090 ./data/r1.wal     http://localhost:8081 http://localhost:8082
+                Options (system properties):
+                -Datlasdb.wal.fsync=always|group|interval|none   (default group)
+                -Datlasdb.wal.syncWindowMs=<ms>                   (default 2)
+                -Datlasdb.wal.segmentBytes=<bytes>                (default 64 MiB)
+                -Datlasdb.snapshot.interval=<entries>             (default 100000, 0 = off)
+                -Datlasdb.replication.ackTimeoutMs=<ms>           (default 5000, for ?ack=quorum|all)
+                -Datlasdb.store=ordered|hash|lsm|offheap          (default ordered; hash and offheap have no
+                                                                   range scans, lsm keeps the data on disk,
+                                                                   offheap keeps it outside the heap)
+                -Datlasdb.store.memtableMb=<mb>                   (default 64, lsm memtable flush size)
+                -Datlasdb.cache.mb=<mb>                           (default 0 = off, hot-key read cache)
+                -Datlasdb.server=nio|blocking                     (default nio)
+                -Datlasdb.server.workers=<threads>                (default 64, nio handler threads)
+                -Datlasdb.peer.connectTimeoutMs=<ms>              (default 1000)
+                -Datlasdb.peer.readTimeoutMs=<ms>                 (default 30000)
+                -Datlasdb.peer.maxConnections=<n>                 (default 8 per peer)
+                -Datlasdb.replication.protocol=binary|http        (default binary)
+                -Datlasdb.replication.portOffset=<n>              (default 1000, binary port = port + n)
+                -Datlasdb.shards=<n>                              (default 1; each shard is its own
+                                                                   replication group, with its WAL in
+                                                                   <walDir>/shard-<k>; same on every node)
+                -Datlasdb.rebalance.mbPerSec=<MiB/s>             (default 32, 0 = unlimited; transfer
+                                                                   rate of shard split/merge/move jobs)
+                -Datlasdb.join=true                               (node mode: join a running cluster as a
+                                                                   learner; add it with POST /members/add)
+                -Datlasdb.replica.maxLag=<entries>                (default 0 = off; replica /health answers
+                                                                   503 while further behind)
             """);
             return;
         }
 
+        KVStore.setDefaultType(StoreType.parse(System.getProperty("atlasdb.store")));
+        KVStore.setMemtableBytes(Long.getLong("atlasdb.store.memtableMb", LsmEngine.DEFAULT_MEMTABLE_BYTES >> 20) << 20);
+
         String mode = args[0];
         int port = Integer.parseInt(args[1]);
-        String wal = args[2];
+        String walDir = args[2];
+        ShardMap shardMap = new ShardMap(Integer.getInteger("atlasdb.shards", 1));
+        FsyncPolicy fsync = FsyncPolicy.parse(System.getProperty("atlasdb.wal.fsync"));
+        long syncWindowMs = Long.getLong("atlasdb.wal.syncWindowMs", 2);
+        long segmentBytes = Long.getLong("atlasdb.wal.segmentBytes", WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        // The shards' logs share one writer thread and their fsyncs. A cluster started with one
+        // shard keeps its WAL in walDir itself; shards added by splitting it go next to it.
+        SharedWalWriter walWriter = new SharedWalWriter(fsync, syncWindowMs);
+        IntFunction<WriteAheadLog> wals = k -> shardMap.size() == 1 && k == 0
+                ? new WriteAheadLog(walDir, fsync, syncWindowMs, segmentBytes)
+                : new WriteAheadLog(Path.of(walDir, "shard-" + k).toString(), walWriter, segmentBytes);
+        long snapshotInterval = Long.getLong("atlasdb.snapshot.interval", AtlasDBEngine.DEFAULT_SNAPSHOT_INTERVAL);
+        long ackTimeoutMs = Long.getLong("atlasdb.replication.ackTimeoutMs", AtlasDBEngine.DEFAULT_ACK_TIMEOUT_MS);
+        long readCacheBytes = Long.getLong("atlasdb.cache.mb", 0) << 20;
+        ServerMode serverMode = ServerMode.parse(System.getProperty("atlasdb.server"));
+        int serverWorkers = Integer.getInteger("atlasdb.server.workers", NodeServer.DEFAULT_WORKERS);
+        PeerClient.configure(
+                Integer.getInteger("atlasdb.peer.connectTimeoutMs", PeerClient.DEFAULT_CONNECT_TIMEOUT_MS),
+                Integer.getInteger("atlasdb.peer.readTimeoutMs", PeerClient.DEFAULT_READ_TIMEOUT_MS),
+                Integer.getInteger("atlasdb.peer.maxConnections", PeerClient.DEFAULT_MAX_CONNECTIONS_PER_PEER));
+        long rebalanceBytesPerSecond = Long.getLong("atlasdb.rebalance.mbPerSec",
+                Rebalancer.DEFAULT_BYTES_PER_SECOND >> 20) << 20;
+        int replicationPortOffset = Integer.getInteger("atlasdb.replication.portOffset",
+                BinaryReplicationTransport.DEFAULT_PORT_OFFSET);
+        ReplicationTransport transport = switch (System.getProperty("atlasdb.replication.protocol", "binary").toLowerCase()) {
+            case "binary" -> new BinaryReplicationTransport(replicationPortOffset,
+                    Integer.getInteger("atlasdb.peer.connectTimeoutMs", PeerClient.DEFAULT_CONNECT_TIMEOUT_MS),
+                    Integer.getInteger("atlasdb.peer.readTimeoutMs", PeerClient.DEFAULT_READ_TIMEOUT_MS));
+            case "http" -> new HttpReplicationTransport();
+            default -> throw new IllegalArgumentException("unknown replication protocol: "
+                    + System.getProperty("atlasdb.replication.protocol"));
+        };
 
         if (mode.equalsIgnoreCase("leader")) {
             List<String> followers = new ArrayList<>();
@@ -31,27 +115,125 @@ public class Main {
                 followers.add(args[i]);
             }
 
-            AtlasDBEngine engine = new AtlasDBEngine(wal, List.copyOf(followers));
-            NodeServer server = new NodeServer(engine, Role.LEADER, port);
+            ShardRegistry registry = new ShardRegistry(shardMap, k -> {
+                List<String> shardFollowers = new ArrayList<>();
+                for (String follower : followers) shardFollowers.add(shardMap.url(follower, k));
+                AtlasDBEngine engine = new AtlasDBEngine(wals.apply(k), List.copyOf(shardFollowers), transport);
+                engine.setSnapshotInterval(snapshotInterval);
+                engine.setReadCacheBytes(readCacheBytes);
+                engine.setAckTimeoutMillis(ackTimeoutMs);
+                return engine;
+            });
+            NodeServer server = new NodeServer(registry, port, serverMode, serverWorkers);
+            server.setRebalanceBytesPerSecond(rebalanceBytesPerSecond);
 
-            System.out.println("Leader started on port " + port + " followers=" + followers);
+            System.out.println("Leader started on port " + port + " followers=" + followers + " shards=" + registry.size());
+            new BinaryReplicationServer(registry, port + replicationPortOffset).start();
             server.start();
+            registry.start();
             return;
         }
 
         if (mode.equalsIgnoreCase("follower")) {
             if (args.length < 4) {
-                System.out.println("Follower requires leaderUrl: follower <port> <walPath> <leaderUrl>");
+                System.out.println("Follower requires leaderUrl: follower <port> <walDir> <leaderUrl>");
                 return;
             }
 
             String leaderUrl = args[3];
 
-            AtlasDBEngine engine = new AtlasDBEngine(wal, leaderUrl);
-            NodeServer server = new NodeServer(engine, Role.FOLLOWER, port);
+            ShardRegistry registry = new ShardRegistry(shardMap, k -> {
+                AtlasDBEngine engine = new AtlasDBEngine(wals.apply(k), shardMap.url(leaderUrl, k));
+                engine.setSnapshotInterval(snapshotInterval);
+                engine.setReadCacheBytes(readCacheBytes);
+                return engine;
+            });
+            NodeServer server = new NodeServer(registry, port, serverMode, serverWorkers);
+            server.setRebalanceBytesPerSecond(rebalanceBytesPerSecond);
+
+            System.out.println("Follower started on port " + port + " leader=" + leaderUrl + " shards=" + registry.size());
+            new BinaryReplicationServer(registry, port + replicationPortOffset).start();
+            server.start();
+            registry.start();
+            return;
+        }
+
+        if (mode.equalsIgnoreCase("node")) {
+            if (args.length < 4) {
+                System.out.println("Node requires its own URL: node <port> <walDir> <selfUrl> <peerUrl...>");
+                return;
+            }
+
+            String selfUrl = args[3];
+            List<String> peers = new ArrayList<>();
+            for (int i = 4; i < args.length; i++) {
+                peers.add(args[i]);
+            }
+            // A joining node knows the cluster's nodes but is none of its voters yet.
+            boolean join = Boolean.getBoolean("atlasdb.join");
+
+            // Spread shard leadership: shard k prefers the k-th node (in URL order), which gets
+            // the lower half of the election timeout range while the others wait longer.
+            List<String> nodes = new ArrayList<>(peers);
+            nodes.add(selfUrl);
+            Collections.sort(nodes);
+            long min = ElectionManager.DEFAULT_MIN_TIMEOUT_MS, max = ElectionManager.DEFAULT_MAX_TIMEOUT_MS;
+            ShardRegistry registry = new ShardRegistry(shardMap, k -> {
+                List<String> shardPeers = new ArrayList<>();
+                for (String peer : peers) shardPeers.add(shardMap.url(peer, k));
+                String shardSelf = shardMap.url(selfUrl, k);
+                Membership members = join
+                        ? new Membership(shardPeers, List.of(shardSelf))
+                        : Membership.of(shardSelf, shardPeers);
+                boolean preferred = nodes.get(k % nodes.size()).equals(selfUrl);
+                AtlasDBEngine engine = shardMap.size() == 1 && k == 0
+                        ? new AtlasDBEngine(wals.apply(k), selfUrl, members, transport,
+                                ElectionManager.DEFAULT_MIN_TIMEOUT_MS, ElectionManager.DEFAULT_MAX_TIMEOUT_MS)
+                        : new AtlasDBEngine(wals.apply(k), shardSelf, members, transport,
+                                preferred ? min : (min + max) / 2, preferred ? (min + max) / 2 : max + (max - min));
+                engine.setSnapshotInterval(snapshotInterval);
+                engine.setReadCacheBytes(readCacheBytes);
+                engine.setAckTimeoutMillis(ackTimeoutMs);
+                return engine;
+            });
+            NodeServer server = new NodeServer(registry, port, serverMode, serverWorkers);
+            server.setRebalanceBytesPerSecond(rebalanceBytesPerSecond);
+
+            System.out.println("Node " + selfUrl + " started on port " + port + " peers=" + peers + " shards=" + registry.size()
+                    + (join ? " (joining as learner)" : ""));
+            new BinaryReplicationServer(registry, port + replicationPortOffset).start();
+            server.start();
+            registry.start();
+            return;
+        }
+
+        if (mode.equalsIgnoreCase("replica")) {
+            if (args.length < 4) {
+                System.out.println("Replica requires an upstream: replica <port> <walDir> <upstreamUrl...>");
+                return;
+            }
+
+            List<String> upstreams = new ArrayList<>();
+            for (int i = 3; i < args.length; i++) {
+                upstreams.add(args[i]);
+            }
+
+            HttpLogUpstream upstream = new HttpLogUpstream();
+            ShardRegistry registry = new ShardRegistry(shardMap, k -> {
+                List<String> shardUpstreams = new ArrayList<>();
+                for (String url : upstreams) shardUpstreams.add(shardMap.url(url, k));
+                AtlasDBEngine engine = new AtlasDBEngine(wals.apply(k), shardUpstreams, upstream);
+                engine.setSnapshotInterval(snapshotInterval);
+                engine.setReadCacheBytes(readCacheBytes);
+                engine.setAckTimeoutMillis(ackTimeoutMs);
+                return engine;
+            });
+            NodeServer server = new NodeServer(registry, port, serverMode, serverWorkers);
+            server.setMaxReplicaLag(Long.getLong("atlasdb.replica.maxLag", 0));
 
-            System.out.println("Follower started on port " + port + " leader=" + leaderUrl);
+            System.out.println("Replica started on port " + port + " upstreams=" + upstreams + " shards=" + registry.size());
             server.start();
+            registry.start();
             return;
         }
 
@@ -0,0 +1,30 @@
+package com.atlasdb;
+
+import java.util.Locale;
+
+/**
+ * How {@link KVStore} organizes its entries.
+ */
+public enum StoreType {
+
+    /** concurrent skip list: keys kept in order, lock-free reads, range and prefix scans. */
+    ORDERED,
+
+    /** concurrent hash map: cheapest point reads and writes, no scans. */
+    HASH,
+
+    /** LSM tree on disk: data set bounded by disk instead of heap, ordered like ORDERED. */
+    LSM,
+
+    /** UTF-8 bytes in off-heap arenas behind a primitive hash index: least heap and GC work, no scans. */
+    OFFHEAP;
+
+    public static StoreType parse(String s) {
+        if (s == null || s.isBlank()) return ORDERED;
+        try {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown store type: " + s + " (ordered|hash|lsm|offheap)");
+        }
+    }
+}
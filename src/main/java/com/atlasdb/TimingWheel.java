@@ -0,0 +1,153 @@
+package com.atlasdb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel of key deadlines, so finding the keys that are due costs
+ * O(due keys) rather than a walk over all of them.
+ *
+ * Time moves in ticks of {@code tickMillis}. Level 0 has one slot per tick for the next 64
+ * ticks; each level above has 64 slots that each span 64 slots of the level below. When
+ * time enters a slot of a higher level, its timers are cascaded down to where they now
+ * belong, so every timer is moved at most once per level. Six levels span 2^36 ticks.
+ *
+ * Keys whose deadline has passed stay {@link #due} until they are {@link #cancel cancelled},
+ * so a node that is not the one acting on them still knows them when it becomes that node.
+ * All methods are synchronized.
+ */
+final class TimingWheel {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 6;
+
+    private final long tickMillis;
+    private final Timer[][] wheel = new Timer[LEVELS][SLOTS]; // circular lists behind sentinels
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final Map<String, Long> due = new LinkedHashMap<>();
+    private long currentTick; // next tick to process
+
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (Timer[] level : wheel) {
+            for (int s = 0; s < SLOTS; s++) {
+                Timer head = new Timer(null, 0, 0);
+                head.prev = head.next = head;
+                level[s] = head;
+            }
+        }
+    }
+
+    /** Sets {@code key}'s deadline, replacing any earlier one. */
+    synchronized void schedule(String key, long deadlineMillis) {
+        cancel(key);
+        Timer t = new Timer(key, deadlineMillis, Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis));
+        timers.put(key, t);
+        insert(t);
+    }
+
+    /** Forgets {@code key}'s deadline, due or not. */
+    synchronized void cancel(String key) {
+        Timer t = timers.remove(key);
+        if (t == null) return;
+        if (t.prev != null) unlink(t);
+        else due.remove(key);
+    }
+
+    /** Moves time forward to {@code nowMillis}; keys whose deadline passed become {@link #due}. */
+    synchronized void advance(long nowMillis) {
+        long nowTick = Math.floorDiv(nowMillis, tickMillis);
+        if (timers.size() == due.size()) {
+            // Nothing waiting in the wheel: no slot to visit on the way.
+            currentTick = Math.max(currentTick, nowTick + 1);
+            return;
+        }
+        while (currentTick <= nowTick) {
+            // Entering a new span of a level: cascade that level's slot, higher levels first.
+            int level = 0;
+            while (level < LEVELS - 1 && ((currentTick >>> (BITS * (level + 1))) << (BITS * (level + 1))) == currentTick) {
+                level++;
+            }
+            for (int l = level; l >= 1; l--) cascade(l, (int) (currentTick >>> (BITS * l)) & (SLOTS - 1));
+            Timer head = wheel[0][(int) currentTick & (SLOTS - 1)];
+            while (head.next != head) {
+                Timer t = head.next;
+                unlink(t);
+                due.put(t.key, t.deadline);
+            }
+            currentTick++;
+        }
+    }
+
+    /** Up to {@code max} keys whose deadline has passed, with that deadline, oldest first. */
+    synchronized Map<String, Long> due(int max) {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e : due.entrySet()) {
+            if (out.size() == max) break;
+            out.put(e.getKey(), e.getValue());
+        }
+        return out;
+    }
+
+    /** Whether {@code key} has a deadline, due or not. */
+    synchronized boolean contains(String key) {
+        return timers.containsKey(key);
+    }
+
+    /** Number of keys with a deadline, due or not. */
+    synchronized int size() {
+        return timers.size();
+    }
+
+    synchronized void clear() {
+        for (String key : timers.keySet().toArray(new String[0])) cancel(key);
+    }
+
+    private void cascade(int level, int slot) {
+        Timer head = wheel[level][slot];
+        while (head.next != head) {
+            Timer t = head.next;
+            unlink(t);
+            insert(t);
+        }
+    }
+
+    private void insert(Timer t) {
+        long delta = t.tick - currentTick;
+        if (delta < 0) {
+            due.put(t.key, t.deadline);
+            return;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        // Beyond the wheel's span: park in the last slot and go round again from there.
+        long tick = Math.min(t.tick, currentTick + (1L << (BITS * LEVELS)) - 1);
+        Timer head = wheel[level][(int) (tick >>> (BITS * level)) & (SLOTS - 1)];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+    }
+
+    private static void unlink(Timer t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+    }
+
+    private static final class Timer {
+        final String key;
+        final long deadline;
+        final long tick;
+        Timer prev, next; // null once due
+
+        Timer(String key, long deadline, long tick) {
+            this.key = key;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+    }
+}
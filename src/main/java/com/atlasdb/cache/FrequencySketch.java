@@ -0,0 +1,65 @@
+package com.atlasdb.cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often each key was seen recently. All
+ * counters are halved after every {@code 10 * width} additions, so old popularity fades.
+ *
+ * Updates are not synchronized: a racing increment may be lost, which only makes the
+ * estimate a little less exact.
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {0x97cb3127L, 0xe3b3e9e5L, 0x2f2ad1c9L, 0xc8a3f5ebL};
+    private static final long HALF_MASK = 0x7777777777777777L;
+
+    private final long[] table; // 16 counters per long
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(long expectedEntries) {
+        int width = Integer.highestOneBit((int) Math.max(64, Math.min(1 << 24, expectedEntries)) - 1) << 1;
+        this.table = new long[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /** Estimated number of recent occurrences of {@code key}, at most 15. */
+    int frequency(String key) {
+        int h = key.hashCode();
+        int min = 15;
+        for (int i = 0; i < DEPTH; i++) {
+            int slot = slot(h, i);
+            min = Math.min(min, (int) ((table[slot >>> 4] >>> ((slot & 15) << 2)) & 15));
+        }
+        return min;
+    }
+
+    void increment(String key) {
+        int h = key.hashCode();
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int slot = slot(h, i);
+            int index = slot >>> 4;
+            int shift = (slot & 15) << 2;
+            if (((table[index] >>> shift) & 15) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) halve();
+    }
+
+    private void halve() {
+        additions = 0;
+        for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & HALF_MASK;
+    }
+
+    /** Counter number (16 per long) for {@code h} in row {@code i}. */
+    private int slot(int h, int i) {
+        long x = (h + SEEDS[i]) * SEEDS[i];
+        x ^= x >>> 29;
+        return (int) (x & ((long) mask << 4 | 15));
+    }
+}
@@ -0,0 +1,264 @@
+package com.atlasdb.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded read cache for values of hot keys, with W-TinyLFU admission and eviction.
+ *
+ * New entries go to a small LRU window. Entries pushed out of it compete with the least
+ * recently used entry of the main space, and the one a {@link FrequencySketch} has seen less
+ * often lately is evicted, so a burst of one-off reads cannot flush out the hot set. The
+ * main space is a segmented LRU: entries hit again while on probation move to the protected
+ * segment. Entries are weighed by their key and value sizes against a byte budget.
+ *
+ * The cache is kept coherent with the store by log index. Whoever applies a write calls
+ * {@link #invalidate} with its index after the store has it; a reader passes
+ * {@link #fill} the applied index it read the store at, and the fill is dropped if a write
+ * after that index touched the key meanwhile. A cached entry is therefore never older than
+ * the store it stands in for.
+ *
+ * Lookups take no lock. Recording a hit in the LRU order is skipped when the policy lock is
+ * busy, which only makes the recency order a little less exact.
+ */
+public final class HotKeyCache {
+
+    /** Cached marker for a key that has no value. */
+    public static final byte[] ABSENT = new byte[0];
+
+    private static final int STRIPES = 4096;
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    // Highest index of an invalidating write per key stripe.
+    private final AtomicLongArray lastWrite = new AtomicLongArray(STRIPES);
+    private volatile long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final ReentrantLock policyLock = new ReentrantLock();
+    // Guarded by policyLock. Each queue is a circular list; its head's next is the LRU entry.
+    private final Node[] queues = {new Node(null, null, 0), new Node(null, null, 0), new Node(null, null, 0)};
+    private final long[] queueBytes = new long[3];
+
+    public HotKeyCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (maxBytes - windowMax) * 4 / 5;
+        this.sketch = new FrequencySketch(maxBytes / 256);
+        for (Node head : queues) head.prev = head.next = head;
+    }
+
+    /**
+     * The cached value bytes, {@link #ABSENT} if the key is cached as missing, or null if it
+     * is not cached. The array must not be modified.
+     */
+    public byte[] get(String key) {
+        sketch.increment(key);
+        Node node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (policyLock.tryLock()) {
+            try {
+                if (node.queue >= 0) onHit(node);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /** Current token to pass to {@link #fill}; taken before reading the store. */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches {@code value} (null if the key has none) as read from the store with every
+     * write up to {@code readIndex} applied, unless a later write or a {@link #clear} since
+     * {@code generation} got in between.
+     */
+    public void fill(String key, byte[] value, long readIndex, long generation) {
+        int stripe = stripe(key);
+        if (stale(stripe, readIndex, generation)) return;
+        Node node = new Node(key, value == null ? ABSENT : value, weigh(key, value));
+        if (node.weight > maxBytes / 8) return;
+        policyLock.lock();
+        try {
+            if (data.putIfAbsent(key, node) != null) return;
+            link(node, WINDOW);
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+        // A write may have invalidated the key between the first check and the insert.
+        if (stale(stripe, readIndex, generation)) discard(node);
+    }
+
+    /** Drops {@code key}, which the write at log index {@code index} has just changed. */
+    public void invalidate(String key, long index) {
+        lastWrite.accumulateAndGet(stripe(key), index, Math::max);
+        Node node = data.get(key);
+        if (node != null) discard(node);
+    }
+
+    /** Drops everything, e.g. when the store is replaced by a snapshot or rolled back. */
+    public void clear() {
+        policyLock.lock();
+        try {
+            generation++;
+            data.clear();
+            for (int i = 0; i < STRIPES; i++) lastWrite.set(i, 0);
+            for (int q = 0; q < queues.length; q++) {
+                queues[q].prev = queues[q].next = queues[q];
+                queueBytes[q] = 0;
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int entries() {
+        return data.size();
+    }
+
+    /** Weighed size of the cached entries. */
+    public long bytes() {
+        policyLock.lock();
+        try {
+            return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private boolean stale(int stripe, long readIndex, long generation) {
+        return lastWrite.get(stripe) > readIndex || this.generation != generation;
+    }
+
+    private void discard(Node node) {
+        policyLock.lock();
+        try {
+            if (data.remove(node.key, node)) unlink(node);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    // ---- policy, under policyLock ----
+
+    private void onHit(Node node) {
+        int queue = node.queue;
+        unlink(node);
+        if (queue == PROBATION) {
+            link(node, PROTECTED);
+            while (queueBytes[PROTECTED] > protectedMax) {
+                Node demoted = queues[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            link(node, queue);
+        }
+    }
+
+    private void evict() {
+        // Entries leaving the window become candidates at the MRU end of probation.
+        while (queueBytes[WINDOW] > windowMax) {
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            link(candidate, PROBATION);
+            while (total() > maxBytes) {
+                Node victim = queues[PROBATION].next;
+                if (victim == candidate || sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    remove(victim);
+                    if (victim == candidate) break;
+                } else {
+                    remove(candidate);
+                    break;
+                }
+            }
+        }
+        // Protected and window entries alone may still be over budget.
+        for (int q : new int[] {PROBATION, PROTECTED, WINDOW}) {
+            while (total() > maxBytes && queues[q].next != queues[q]) remove(queues[q].next);
+        }
+    }
+
+    private void remove(Node node) {
+        unlink(node);
+        data.remove(node.key, node);
+        evictions.increment();
+    }
+
+    private long total() {
+        return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+    }
+
+    /** Appends at the MRU end of {@code queue}. */
+    private void link(Node node, int queue) {
+        Node head = queues[queue];
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.queue = queue;
+        queueBytes[queue] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        if (node.queue < 0) return;
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        queueBytes[node.queue] -= node.weight;
+        node.queue = -1;
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private static int weigh(String key, byte[] value) {
+        return ENTRY_OVERHEAD + 2 * key.length() + (value == null ? 0 : value.length);
+    }
+
+    private static final class Node {
+        final String key;
+        final byte[] value;
+        final int weight;
+        Node prev, next;  // guarded by policyLock
+        int queue = -1;
+
+        Node(String key, byte[] value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
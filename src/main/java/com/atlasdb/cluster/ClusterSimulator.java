@@ -2,7 +2,11 @@ package com.atlasdb.cluster;
 
 import com.atlasdb.AtlasDBEngine;
 import com.atlasdb.log.Operation;
+import com.atlasdb.snapshot.Snapshot;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,7 +14,7 @@ public class ClusterSimulator {
 
     private final AtlasDBEngine leader;
     private final List<AtlasDBEngine> followers = new ArrayList<>();
-    private int nextFromIndex = 0;
+    private long nextFromIndex = 0;
 
     public ClusterSimulator(AtlasDBEngine leader) {
         this.leader = leader;
@@ -21,6 +25,21 @@ public class ClusterSimulator {
     }
 
     public void replicateOnce() {
+        if (nextFromIndex < leader.getLogStartIndex()) {
+            // Entries the followers still need were compacted away: ship the snapshot instead.
+            Snapshot snapshot = leader.getLatestSnapshot();
+            for (AtlasDBEngine f : followers) {
+                try {
+                    Files.copy(snapshot.getPath(), f.snapshotIncomingFile(snapshot.getIndex()),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    throw new RuntimeException("snapshot install failed", e);
+                }
+                f.installSnapshot(snapshot.getIndex());
+            }
+            nextFromIndex = snapshot.getIndex();
+        }
+
         List<Operation> delta = leader.getReplicationDelta(nextFromIndex);
         if (delta.isEmpty()) return;
 
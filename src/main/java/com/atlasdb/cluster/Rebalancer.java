@@ -0,0 +1,305 @@
+package com.atlasdb.cluster;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.KVStore;
+import com.atlasdb.log.Condition;
+import com.atlasdb.log.Operation;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves partitions between shards while they keep serving, one job at a time, on the
+ * leader of the shard they leave. A job
+ * <ol>
+ * <li>copies the partitions' entries from a point-in-time view of that shard to the
+ *     target shard's leader, throttled to {@link #setBytesPerSecond the transfer rate};</li>
+ * <li>tails the source shard's committed log from the view's index and passes on every
+ *     write to those partitions, until it has caught up;</li>
+ * <li>fences the partitions in the source shard ({@link AtlasDBEngine#MOVED_KEY}), which
+ *     stops writes to them, and passes on what was written before the fence;</li>
+ * <li>commits a shard map in which the target owns them, with a compare-and-set on the
+ *     map entry, and after {@link #GRACE_MS} deletes them from the source.</li>
+ * </ol>
+ * Writes to the partitions fail with a retryable error only between the fence and the new
+ * map. Every step can be repeated, so a job that failed halfway is resumed by running it
+ * again with the same source and target.
+ */
+public final class Rebalancer {
+
+    /** Writes to a shard through its leader, wherever that is; reserved keys allowed. */
+    public interface Sink {
+        /** @throws RuntimeException if the write or a condition fails */
+        void ingest(int shard, List<Operation> ops, List<Condition> conditions);
+    }
+
+    public static final long DEFAULT_BYTES_PER_SECOND = 32L << 20;
+    /** How long the source keeps moved entries after the new map, for nodes still routing by the old one. */
+    static final long GRACE_MS = 2000;
+    private static final int BATCH_OPS = 512;
+    private static final int BATCH_BYTES = 256 * 1024;
+    private static final long WAIT_MS = 10_000;
+
+    private final ShardRegistry registry;
+    private final Sink sink;
+    private volatile long bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private volatile Job job; // the running or last job
+
+    public Rebalancer(ShardRegistry registry, Sink sink) {
+        this.registry = registry;
+        this.sink = sink;
+    }
+
+    /** Transfer rate of a job's copy, tail and cleanup; 0 for no limit. */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Moves half of {@code shard}'s partitions to {@code into}, or to a new shard if it is -1.
+     *
+     * @throws IllegalArgumentException if a shard does not exist or {@code shard} owns too little to split
+     * @throws IllegalStateException if a job is running or this node does not lead {@code shard}
+     */
+    public String split(int shard, int into) {
+        BitSet owned = owned(shard);
+        if (owned.cardinality() < 2) throw new IllegalArgumentException("shard " + shard + " has too few partitions to split");
+        BitSet half = new BitSet();
+        int keep = owned.cardinality() / 2;
+        for (int p = owned.nextSetBit(0), i = 0; p >= 0; p = owned.nextSetBit(p + 1), i++) {
+            if (i >= keep) half.set(p);
+        }
+        return start("split", shard, into, half);
+    }
+
+    /** Moves all of {@code from}'s partitions to {@code into}, which must exist. */
+    public String merge(int from, int into) {
+        if (into < 0) throw new IllegalArgumentException("merge needs a target shard");
+        return start("merge", from, into, owned(from));
+    }
+
+    /** Moves all of {@code shard}'s partitions to {@code into}, or to a new shard if it is -1. */
+    public String move(int shard, int into) {
+        return start("move", shard, into, owned(shard));
+    }
+
+    /** The map and the state of the last job. */
+    public String status() {
+        ShardMap map = registry.map();
+        StringBuilder out = new StringBuilder("version=" + map.version() + "\nshards=" + map.size() + "\n");
+        for (int s = 0; s < map.size(); s++) {
+            BitSet owned = map.partitionsOf(s);
+            out.append("partitions[").append(s).append("]=").append(owned.cardinality())
+               .append(' ').append(ShardMap.encodePartitions(owned)).append('\n');
+        }
+        Job j = job;
+        if (j != null) out.append("job=").append(j).append('\n');
+        return out.toString();
+    }
+
+    private BitSet owned(int shard) {
+        if (registry.engine(shard) == null) throw new IllegalArgumentException("no shard " + shard);
+        BitSet owned = registry.map().partitionsOf(shard);
+        if (owned.isEmpty()) throw new IllegalArgumentException("shard " + shard + " owns no partitions");
+        return owned;
+    }
+
+    private synchronized String start(String kind, int from, int into, BitSet partitions) {
+        Job running = job;
+        if (running != null && running.state.equals("running")) throw new IllegalStateException("busy: " + running);
+        if (into >= 0 && registry.engine(into) == null) throw new IllegalArgumentException("no shard " + into);
+        if (into == from) throw new IllegalArgumentException("source and target are the same shard");
+        if (!registry.engine(from).isLeader()) throw new IllegalStateException("not the leader of shard " + from);
+        Job j = new Job(kind, from, into, partitions);
+        job = j;
+        Thread t = new Thread(j::run, "atlasdb-rebalance");
+        t.setDaemon(true);
+        t.start();
+        return "started " + j;
+    }
+
+    private final class Job {
+        final String kind;
+        final int from;
+        final BitSet partitions;
+        volatile int into;
+        volatile String phase = "starting";
+        volatile String state = "running";
+        volatile long entries, bytes;
+        private int target; // shard the pending ops go to
+        private final List<Operation> pending = new ArrayList<>();
+        private int pendingBytes;
+        private long nextSendNanos = System.nanoTime();
+
+        Job(String kind, int from, int into, BitSet partitions) {
+            this.kind = kind;
+            this.from = from;
+            this.into = into;
+            this.partitions = partitions;
+        }
+
+        void run() {
+            try {
+                if (into < 0) {
+                    phase = "add-shard";
+                    into = addShard();
+                }
+                AtlasDBEngine source = registry.engine(from);
+                // The partitions may have left the target before; it has to take writes for them again.
+                phase = "unfence";
+                setMoved(into, false);
+                phase = "copy";
+                target = into;
+                long tailed = source.forEachEntry((key, value) -> {
+                    if (inPartitions(key)) add(Operation.put(key, value), key.length() + value.length());
+                });
+                flush();
+                phase = "tail";
+                tailed = tail(source, tailed, -1);
+                phase = "fence";
+                setMoved(from, true);
+                tail(source, tailed, source.getLastLogIndex());
+                phase = "switch";
+                ShardMap current = registry.map();
+                commitMap(current, current.withOwner(partitions, into));
+                phase = "cleanup";
+                Thread.sleep(GRACE_MS);
+                target = from;
+                source.forEachEntry((key, value) -> {
+                    if (inPartitions(key)) add(Operation.delete(key), key.length());
+                });
+                flush();
+                phase = "done";
+                state = "done";
+            } catch (InterruptedException e) {
+                state = "failed in " + phase + ": interrupted";
+            } catch (RuntimeException e) {
+                state = "failed in " + phase + ": " + e.getMessage();
+            }
+        }
+
+        /** Commits a map with one more shard and waits for the shard's group to elect a leader. */
+        int addShard() throws InterruptedException {
+            ShardMap current = registry.map();
+            ShardMap next = current.withShard();
+            commitMap(current, next);
+            int shard = next.size() - 1;
+            AtlasDBEngine engine = registry.engine(shard);
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (!engine.isLeader() && engine.getLeaderUrl() == null) {
+                if (System.currentTimeMillis() > deadline) throw new IllegalStateException("shard " + shard + " has no leader");
+                Thread.sleep(50);
+            }
+            return shard;
+        }
+
+        /** Replaces {@code current} by {@code next} unless the map changed meanwhile; returns once this node uses it. */
+        void commitMap(ShardMap current, ShardMap next) throws InterruptedException {
+            Condition expected = current.version() == 0
+                    ? Condition.absent(ShardRegistry.MAP_KEY)
+                    : Condition.equalTo(ShardRegistry.MAP_KEY, current.encode());
+            sink.ingest(0, List.of(Operation.put(ShardRegistry.MAP_KEY, next.encode())), List.of(expected));
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (registry.map().version() < next.version()) {
+                if (System.currentTimeMillis() > deadline) throw new IllegalStateException("shard map " + next.version() + " not applied here");
+                registry.refresh();
+                Thread.sleep(10);
+            }
+        }
+
+        /** Adds the moving partitions to, or removes them from, {@code shard}'s moved partitions. */
+        void setMoved(int shard, boolean moved) {
+            String current = registry.engine(shard).get(AtlasDBEngine.MOVED_KEY);
+            BitSet next = ShardMap.decodePartitions(current);
+            if (moved) next.or(partitions);
+            else next.andNot(partitions);
+            // Written even when it looks unchanged: a follower's copy may be behind, and the condition catches that.
+            Operation op = next.isEmpty()
+                    ? Operation.delete(AtlasDBEngine.MOVED_KEY)
+                    : Operation.put(AtlasDBEngine.MOVED_KEY, ShardMap.encodePartitions(next));
+            sink.ingest(shard, List.of(op), List.of(current == null
+                    ? Condition.absent(AtlasDBEngine.MOVED_KEY)
+                    : Condition.equalTo(AtlasDBEngine.MOVED_KEY, current)));
+        }
+
+        /** Whether {@code key} is a client entry, or a client key's expiry entry, of a moving partition. */
+        boolean inPartitions(String key) {
+            String owner = KVStore.ownerKey(key);
+            return !KVStore.isReserved(owner) && partitions.get(registry.map().partitionOf(owner));
+        }
+
+        /**
+         * Passes on the source's committed writes to the moving partitions after
+         * {@code afterIndex}: until it reaches the end of the committed log if {@code until}
+         * is -1, otherwise until it has passed on entry {@code until}.
+         *
+         * @return the last entry passed on
+         */
+        long tail(AtlasDBEngine source, long afterIndex, long until) throws InterruptedException {
+            target = into;
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (until < 0 || afterIndex < until) {
+                if (!source.isLeader()) throw new IllegalStateException("no longer the leader of shard " + from);
+                List<Operation> ops = source.readCommitted(afterIndex, BATCH_OPS);
+                if (ops.isEmpty()) {
+                    if (until < 0) break;
+                    if (System.currentTimeMillis() > deadline) throw new IllegalStateException("shard " + from + " did not commit " + until);
+                    Thread.sleep(1);
+                    continue;
+                }
+                for (Operation op : ops) {
+                    for (Operation part : op.getType() == Operation.Type.BATCH ? op.getOps() : List.of(op)) {
+                        if (part.getType() == Operation.Type.TERM || !inPartitions(part.getKey())) continue;
+                        add(part, part.getKey().length() + (part.getValue() == null ? 0 : part.getValue().length()));
+                    }
+                }
+                afterIndex += ops.size();
+                flush();
+                deadline = System.currentTimeMillis() + WAIT_MS;
+                if (until < 0 && ops.size() < BATCH_OPS) break; // reached the end, near enough under load
+            }
+            return afterIndex;
+        }
+
+        void add(Operation op, int size) {
+            pending.add(op);
+            pendingBytes += size;
+            entries++;
+            if (pending.size() >= BATCH_OPS || pendingBytes >= BATCH_BYTES) flush();
+        }
+
+        void flush() {
+            if (pending.isEmpty()) return;
+            throttle(pendingBytes);
+            sink.ingest(target, List.copyOf(pending), List.of());
+            bytes += pendingBytes;
+            pending.clear();
+            pendingBytes = 0;
+        }
+
+        /** Waits until sending {@code size} more bytes keeps within the transfer rate. */
+        void throttle(int size) {
+            long rate = bytesPerSecond;
+            if (rate <= 0) return;
+            long now = System.nanoTime();
+            nextSendNanos = Math.max(nextSendNanos, now) + size * 1_000_000_000L / rate;
+            long wait = nextSendNanos - now - TimeUnit.MILLISECONDS.toNanos(100); // allows a 100 ms burst
+            if (wait <= 0) return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + from + "->" + (into < 0 ? "new" : String.valueOf(into))
+                    + " partitions=" + partitions.cardinality() + " phase=" + phase
+                    + " entries=" + entries + " bytes=" + bytes + " state=" + state;
+        }
+    }
+}
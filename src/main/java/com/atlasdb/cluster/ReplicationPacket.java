@@ -1,27 +1,84 @@
 package com.atlasdb.cluster;
 
 import com.atlasdb.log.Operation;
+
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
- * Simple payload the leader sends to followers.
- * In real systems this would include term, prevLogIndex, etc.
+ * Simple payload the leader sends to followers (Raft's AppendEntries).
+ *
+ * Packets built without a term (term 0) come from a statically configured leader and are
+ * only checked for position; with a term, the follower also checks the leader's term and
+ * that its own entry at {@code fromIndexInclusive} was written in {@code prevLogTerm}.
+ *
+ * A packet that arrived in binary form also carries each entry's encoded WAL record, which
+ * the follower appends to its log as is.
  */
 public class ReplicationPacket {
 
-    private final int fromIndexInclusive;
+    private final long fromIndexInclusive;
     private final List<Operation> ops;
+    private final long term;
+    private final String leaderId;
+    private final long prevLogTerm;
+    private final long leaderCommit;
+    private final List<ByteBuffer> records;
+
+    public ReplicationPacket(long fromIndexInclusive, List<Operation> ops) {
+        this(fromIndexInclusive, ops, 0, null, 0, 0);
+    }
+
+    public ReplicationPacket(long fromIndexInclusive, List<Operation> ops,
+                             long term, String leaderId, long prevLogTerm, long leaderCommit) {
+        this(fromIndexInclusive, ops, term, leaderId, prevLogTerm, leaderCommit, null);
+    }
 
-    public ReplicationPacket(int fromIndexInclusive, List<Operation> ops) {
+    /** @param records the encoded WAL record of each op, in the same order (see {@link com.atlasdb.log.WalCodec}) */
+    public ReplicationPacket(long fromIndexInclusive, List<Operation> ops,
+                             long term, String leaderId, long prevLogTerm, long leaderCommit,
+                             List<ByteBuffer> records) {
+        if (records != null && records.size() != ops.size()) {
+            throw new IllegalArgumentException(records.size() + " records for " + ops.size() + " ops");
+        }
+        this.records = records;
         this.fromIndexInclusive = fromIndexInclusive;
         this.ops = ops;
+        this.term = term;
+        this.leaderId = leaderId;
+        this.prevLogTerm = prevLogTerm;
+        this.leaderCommit = leaderCommit;
     }
 
-    public int getFromIndexInclusive() {
+    public long getFromIndexInclusive() {
         return fromIndexInclusive;
     }
 
     public List<Operation> getOps() {
         return ops;
     }
-}
\ No newline at end of file
+
+    /** Leader's term, 0 if the cluster runs without elections. */
+    public long getTerm() {
+        return term;
+    }
+
+    /** Leader's base URL; followers forward client writes there. */
+    public String getLeaderId() {
+        return leaderId;
+    }
+
+    /** Term of the entry just before this packet (the one at position {@code fromIndexInclusive}). */
+    public long getPrevLogTerm() {
+        return prevLogTerm;
+    }
+
+    public long getLeaderCommit() {
+        return leaderCommit;
+    }
+
+    /** Encoded WAL records parallel to {@link #getOps()}, or null if the packet has none. */
+    public List<ByteBuffer> getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,198 @@
+package com.atlasdb.cluster;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Splits the keyspace into shards by consistent hashing. The ring is laid out once, for the
+ * number of shards the cluster started with: each of them gets {@link #VIRTUAL_NODES} points
+ * on a 64-bit hash ring, and a key belongs to the partition of the first point at or after
+ * its hash. Every partition is owned by one shard; rebalancing moves partitions between
+ * shards and adds shards, and each such change makes a new map with a higher version.
+ *
+ * Every shard is a replication group of its own: its engine on each node is reached at the
+ * node's base URL plus {@code /shard/<n>}. In a cluster started with a single shard, shard 0
+ * keeps the base URL as is, so it looks exactly like an unsharded one.
+ */
+public final class ShardMap {
+
+    public static final int VIRTUAL_NODES = 128;
+    private static final String PATH = "/shard/";
+
+    private final int ringShards; // shards the ring was laid out for
+    private final long[] points;  // sorted; a point's position is its partition
+    private final int[] owners;   // shard owning each partition
+    private final int shards;     // shards in use, some possibly owning nothing
+    private final long version;
+
+    public ShardMap(int shards) {
+        if (shards < 1) throw new IllegalArgumentException("need at least one shard");
+        long[][] ring = new long[shards * VIRTUAL_NODES][];
+        for (int s = 0; s < shards; s++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) ring[s * VIRTUAL_NODES + v] = new long[] {hash("shard-" + s + "-" + v), s};
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.ringShards = shards;
+        this.points = new long[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+        this.shards = shards;
+        this.version = 0;
+    }
+
+    private ShardMap(ShardMap base, int[] owners, int shards, long version) {
+        this.ringShards = base.ringShards;
+        this.points = base.points;
+        this.owners = owners;
+        this.shards = shards;
+        this.version = version;
+    }
+
+    /** Number of shards, including any that own no partition. */
+    public int size() {
+        return shards;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int partitions() {
+        return points.length;
+    }
+
+    /** The partition {@code key} falls in; the same in every version of the map. */
+    public int partitionOf(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) i = -i - 1;
+        return i == points.length ? 0 : i;
+    }
+
+    public int ownerOf(int partition) {
+        return owners[partition];
+    }
+
+    /** The shard {@code key} belongs to. */
+    public int shardOf(String key) {
+        if (shards == 1) return 0;
+        return owners[partitionOf(key)];
+    }
+
+    /** The partitions {@code shard} owns. */
+    public BitSet partitionsOf(int shard) {
+        BitSet owned = new BitSet(owners.length);
+        for (int p = 0; p < owners.length; p++) {
+            if (owners[p] == shard) owned.set(p);
+        }
+        return owned;
+    }
+
+    /** This map with one more shard, which owns nothing yet. */
+    public ShardMap withShard() {
+        return new ShardMap(this, owners, shards + 1, version + 1);
+    }
+
+    /** This map with {@code partitions} owned by {@code shard}. */
+    public ShardMap withOwner(BitSet partitions, int shard) {
+        if (shard < 0 || shard >= shards) throw new IllegalArgumentException("no shard " + shard);
+        int[] moved = owners.clone();
+        for (int p = partitions.nextSetBit(0); p >= 0; p = partitions.nextSetBit(p + 1)) moved[p] = shard;
+        return new ShardMap(this, moved, shards, version + 1);
+    }
+
+    /** Where {@code shard}'s engine of the node at {@code baseUrl} is reached. */
+    public String url(String baseUrl, int shard) {
+        return shard == 0 && ringShards == 1 ? baseUrl : baseUrl + PATH + shard;
+    }
+
+    /** The shard a URL from {@link #url} points to; 0 for a plain base URL. */
+    public static int shardOfUrl(String url) {
+        String path = URI.create(url).getPath();
+        int at = path == null ? -1 : path.lastIndexOf(PATH);
+        return at < 0 ? 0 : Integer.parseInt(path.substring(at + PATH.length()));
+    }
+
+    /**
+     * Text form: {@code <version>;<shards>;<ringShards>;<owner of each partition>}, the
+     * owners as {@link #encodePartitions ranges} per shard separated by {@code /}.
+     */
+    public String encode() {
+        StringBuilder out = new StringBuilder().append(version).append(';').append(shards).append(';')
+                .append(ringShards).append(';');
+        for (int s = 0; s < shards; s++) {
+            if (s > 0) out.append('/');
+            out.append(encodePartitions(partitionsOf(s)));
+        }
+        return out.toString();
+    }
+
+    /** @throws IllegalArgumentException if {@code text} is not a map from {@link #encode} */
+    public static ShardMap decode(String text) {
+        String[] parts = text.split(";", -1);
+        if (parts.length != 4) throw new IllegalArgumentException("invalid shard map: " + text);
+        try {
+            long version = Long.parseLong(parts[0]);
+            int shards = Integer.parseInt(parts[1]);
+            ShardMap base = new ShardMap(Integer.parseInt(parts[2]));
+            String[] owned = parts[3].split("/", -1);
+            if (owned.length != shards) throw new IllegalArgumentException("invalid shard map: " + text);
+            int[] owners = new int[base.points.length];
+            Arrays.fill(owners, -1);
+            for (int s = 0; s < shards; s++) {
+                BitSet ps = decodePartitions(owned[s]);
+                for (int p = ps.nextSetBit(0); p >= 0; p = ps.nextSetBit(p + 1)) owners[p] = s;
+            }
+            for (int owner : owners) {
+                if (owner < 0) throw new IllegalArgumentException("shard map leaves partitions unowned: " + text);
+            }
+            return new ShardMap(base, owners, shards, version);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("invalid shard map: " + text);
+        }
+    }
+
+    /** Partition numbers as comma-separated ranges, such as {@code 0-9,12}; empty for none. */
+    public static String encodePartitions(BitSet partitions) {
+        StringBuilder out = new StringBuilder();
+        for (int p = partitions.nextSetBit(0); p >= 0; ) {
+            int end = partitions.nextClearBit(p) - 1;
+            if (out.length() > 0) out.append(',');
+            out.append(p);
+            if (end > p) out.append('-').append(end);
+            p = partitions.nextSetBit(end + 1);
+        }
+        return out.toString();
+    }
+
+    public static BitSet decodePartitions(String text) {
+        BitSet partitions = new BitSet();
+        if (text == null || text.isEmpty()) return partitions;
+        for (String range : text.split(",")) {
+            int dash = range.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(range.substring(dash + 1));
+            partitions.set(from, to + 1);
+        }
+        return partitions;
+    }
+
+    /** 64-bit FNV-1a over the UTF-8 bytes, finished with a murmur3 mix. */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,131 @@
+package com.atlasdb.cluster;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.KVStore;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * A node's engines, one per shard, and the shard map that routes keys to them.
+ *
+ * The current map is kept by shard 0's replication group under {@link #MAP_KEY}, so every
+ * node learns about a change the way it learns about any write. Each node polls its own
+ * replica of that entry and adopts a newer map, first starting an engine for every shard it
+ * does not run yet. A registry built with {@link #of} has a fixed set of engines and map.
+ */
+public final class ShardRegistry {
+
+    public static final String MAP_KEY = KVStore.RESERVED + "shards";
+    public static final long POLL_MS = 100;
+
+    private final ShardMap initial;
+    private final IntFunction<AtlasDBEngine> factory; // null: fixed
+    private final List<AtlasDBEngine> engines = new CopyOnWriteArrayList<>();
+    private volatile ShardMap map;
+    private ScheduledExecutorService poller;
+
+    /**
+     * Starts the engines of {@code initial}'s shards, and of any shards a map stored by an
+     * earlier run added.
+     *
+     * @param factory starts the engine of a shard on this node
+     */
+    public ShardRegistry(ShardMap initial, IntFunction<AtlasDBEngine> factory) {
+        this.initial = initial;
+        this.factory = factory;
+        this.map = initial;
+        for (int k = 0; k < initial.size(); k++) add(factory.apply(k));
+        refresh();
+    }
+
+    private ShardRegistry(List<AtlasDBEngine> engines, ShardMap map) {
+        if (engines.size() != map.size()) throw new IllegalArgumentException("one engine per shard needed");
+        this.initial = map;
+        this.factory = null;
+        this.map = map;
+        for (AtlasDBEngine engine : engines) add(engine);
+    }
+
+    /** A registry of the given engines, in shard order, that never changes. */
+    public static ShardRegistry of(List<AtlasDBEngine> engines, ShardMap map) {
+        return new ShardRegistry(engines, map);
+    }
+
+    private void add(AtlasDBEngine engine) {
+        engine.setPartitioner(initial::partitionOf);
+        engines.add(engine);
+    }
+
+    public ShardMap map() {
+        return map;
+    }
+
+    /** Number of shards with an engine here. */
+    public int size() {
+        return engines.size();
+    }
+
+    /** @return the shard's engine, or null if this node runs none for it (yet) */
+    public AtlasDBEngine engine(int shard) {
+        return shard >= 0 && shard < engines.size() ? engines.get(shard) : null;
+    }
+
+    public List<AtlasDBEngine> engines() {
+        return engines;
+    }
+
+    /** The engine of the shard {@code key} belongs to by the current map. */
+    public AtlasDBEngine engineFor(String key) {
+        return engines.get(map.shardOf(key));
+    }
+
+    /**
+     * Adopts the map in this node's replica of shard 0 if it is newer.
+     *
+     * @return whether the map changed
+     */
+    public synchronized boolean refresh() {
+        String stored = engines.get(0).get(MAP_KEY);
+        if (stored == null) return false;
+        ShardMap latest;
+        try {
+            latest = ShardMap.decode(stored);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring " + e.getMessage());
+            return false;
+        }
+        if (latest.version() <= map.version()) return false;
+        if (latest.size() > engines.size() && factory == null) return false;
+        // Engines first: the map may route keys to them as soon as it is published.
+        while (engines.size() < latest.size()) add(factory.apply(engines.size()));
+        map = latest;
+        return true;
+    }
+
+    /** Polls for map changes every {@link #POLL_MS} ms. */
+    public synchronized void start() {
+        if (poller != null || factory == null) return;
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atlasdb-shard-map");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                System.err.println("Shard map refresh failed: " + e);
+            }
+        }, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (poller != null) poller.shutdownNow();
+        poller = null;
+    }
+}
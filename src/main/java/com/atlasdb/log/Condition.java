@@ -0,0 +1,67 @@
+package com.atlasdb.log;
+
+import java.util.Objects;
+
+/**
+ * A precondition on one key that a batch checks against the leader's current state before
+ * it is logged. Conditions are not logged themselves: only a batch whose conditions all
+ * hold is written, so followers apply it without checking again.
+ */
+public final class Condition {
+
+    private final String key;
+    private final String expected; // null: the key must be absent
+
+    private Condition(String key, String expected) {
+        this.key = Objects.requireNonNull(key);
+        this.expected = expected;
+    }
+
+    /** The key currently holds {@code value}. */
+    public static Condition equalTo(String key, String value) {
+        return new Condition(key, Objects.requireNonNull(value));
+    }
+
+    /** The key is currently absent. */
+    public static Condition absent(String key) {
+        return new Condition(key, null);
+    }
+
+    public String getKey() { return key; }
+
+    /** @return the required value, or null if the key must be absent */
+    public String getExpected() { return expected; }
+
+    public boolean test(String current) {
+        return Objects.equals(expected, current);
+    }
+
+    /**
+     * Line format, escaped like {@link Operation#toWalLine()}:
+     * IF|<escapedKey>|<escapedValue>
+     * IFABSENT|<escapedKey>
+     */
+    public String toLine() {
+        return expected == null
+                ? "IFABSENT|" + Operation.escape(key)
+                : "IF|" + Operation.escape(key) + "|" + Operation.escape(expected);
+    }
+
+    /** @return the condition, or null if {@code line} is not one */
+    public static Condition fromLine(String line) {
+        if (line == null) return null;
+        String[] parts = line.trim().split("\\|", -1);
+        if (parts.length == 3 && parts[0].equals("IF")) {
+            return equalTo(Operation.unescape(parts[1]), Operation.unescape(parts[2]));
+        }
+        if (parts.length == 2 && parts[0].equals("IFABSENT")) {
+            return absent(Operation.unescape(parts[1]));
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return toLine();
+    }
+}
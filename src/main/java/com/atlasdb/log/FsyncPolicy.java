@@ -0,0 +1,35 @@
+package com.atlasdb.log;
+
+import java.util.Locale;
+
+/**
+ * When the WAL writer forces appended records to stable storage.
+ */
+public enum FsyncPolicy {
+
+    /** fsync every batch before acknowledging it; batches form only from already-waiting callers. */
+    ALWAYS,
+
+    /** wait up to the sync window for more callers to join, then one write + one fsync per batch. */
+    GROUP,
+
+    /** acknowledge after the write; fsync in the background once per sync window. */
+    INTERVAL,
+
+    /** acknowledge after the write; never fsync (OS page cache decides). */
+    NONE;
+
+    /** Acknowledgement implies the record reached the disk. */
+    public boolean syncsBeforeAck() {
+        return this == ALWAYS || this == GROUP;
+    }
+
+    public static FsyncPolicy parse(String s) {
+        if (s == null || s.isBlank()) return GROUP;
+        try {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown fsync policy: " + s + " (always|group|interval|none)");
+        }
+    }
+}
@@ -1,19 +1,32 @@
 package com.atlasdb.log;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 public final class Operation {
 
-    public enum Type { PUT, DELETE }
+    /**
+     * TERM marks the first entry a leader writes in a new term; it leaves the data untouched.
+     * BATCH is a group of PUTs and DELETEs that is logged, replicated and applied as one entry.
+     * EXPIRE removes a key whose expiry time has passed, as decided by the leader.
+     */
+    public enum Type { PUT, DELETE, TERM, BATCH, EXPIRE }
 
     private final Type type;
     private final String key;
     private final String value;
+    private final List<Operation> ops; // BATCH only
 
     private Operation(Type type, String key, String value) {
+        this(type, key, value, null);
+    }
+
+    private Operation(Type type, String key, String value, List<Operation> ops) {
         this.type = Objects.requireNonNull(type);
         this.key = Objects.requireNonNull(key);
         this.value = value; // null allowed for DELETE
+        this.ops = ops;
     }
 
     public static Operation put(String key, String value) {
@@ -24,20 +37,72 @@ public final class Operation {
         return new Operation(Type.DELETE, key, null);
     }
 
+    /** Removes {@code key} if its expiry time, in epoch milliseconds, is still {@code expiresAt}. */
+    public static Operation expire(String key, long expiresAt) {
+        return new Operation(Type.EXPIRE, key, Long.toString(expiresAt));
+    }
+
+    public static Operation termStart(long term) {
+        return new Operation(Type.TERM, Long.toString(term), null);
+    }
+
+    /** @throws IllegalArgumentException if {@code ops} is empty or holds anything but PUTs, DELETEs and EXPIREs */
+    public static Operation batch(List<Operation> ops) {
+        if (ops.isEmpty()) throw new IllegalArgumentException("empty batch");
+        for (Operation op : ops) {
+            if (op.type == Type.TERM || op.type == Type.BATCH) {
+                throw new IllegalArgumentException(op.type + " entry in a batch");
+            }
+        }
+        return new Operation(Type.BATCH, "", null, List.copyOf(ops));
+    }
+
     public Type getType() { return type; }
     public String getKey() { return key; }
     public String getValue() { return value; }
 
+    /** The PUTs and DELETEs of a BATCH entry, in order. */
+    public List<Operation> getOps() {
+        if (type != Type.BATCH) throw new IllegalStateException(type + " entry is not a batch");
+        return ops;
+    }
+
+    /** The expiry time an EXPIRE entry removes its key at. */
+    public long getExpiresAt() {
+        if (type != Type.EXPIRE) throw new IllegalStateException(type + " entry carries no expiry time");
+        return Long.parseLong(value);
+    }
+
+    /** The term started by a TERM entry. */
+    public long getTerm() {
+        if (type != Type.TERM) throw new IllegalStateException(type + " entry carries no term");
+        return Long.parseLong(key);
+    }
+
     /**
      * WAL line format (V1):
      * PUT|<escapedKey>|<escapedValue>
      * DEL|<escapedKey>
+     * TERM|<term>
+     * EXP|<escapedKey>|<expiresAt>
+     * BATCH|<escapedLine>|<escapedLine>...
      */
     public String toWalLine() {
         if (type == Type.PUT) {
-            return "PUT|" + esc(key) + "|" + esc(value == null ? "" : value);
+            return "PUT|" + escape(key) + "|" + escape(value == null ? "" : value);
+        }
+        if (type == Type.TERM) {
+            return "TERM|" + key;
+        }
+        if (type == Type.EXPIRE) {
+            return "EXP|" + escape(key) + "|" + value;
+        }
+        if (type == Type.BATCH) {
+            StringBuilder line = new StringBuilder("BATCH");
+            for (Operation op : ops) line.append('|').append(escape(op.toWalLine()));
+            return line.toString();
         }
-        return "DEL|" + esc(key);
+        return "DEL|" + escape(key);
     }
 
     public static Operation fromWalLine(String line) {
@@ -51,16 +116,40 @@ public final class Operation {
         String kind = parts[0];
         if ("PUT".equals(kind)) {
             if (parts.length < 3) return null;
-            return put(unesc(parts[1]), unesc(parts[2]));
+            return put(unescape(parts[1]), unescape(parts[2]));
         }
         if ("DEL".equals(kind)) {
-            return delete(unesc(parts[1]));
+            return delete(unescape(parts[1]));
+        }
+        if ("TERM".equals(kind)) {
+            try {
+                return termStart(Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if ("EXP".equals(kind)) {
+            if (parts.length < 3) return null;
+            try {
+                return expire(unescape(parts[1]), Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if ("BATCH".equals(kind)) {
+            List<Operation> ops = new ArrayList<>(parts.length - 1);
+            for (int i = 1; i < parts.length; i++) {
+                Operation op = fromWalLine(unescape(parts[i]));
+                if (op == null || op.type == Type.TERM || op.type == Type.BATCH) return null;
+                ops.add(op);
+            }
+            return batch(ops);
         }
         return null;
     }
 
-    // Escape \, \n, \r, and |
-    private static String esc(String s) {
+    /** Escapes \\, \n, \r, | and NUL so a string fits in one field of a line. */
+    public static String escape(String s) {
         if (s == null) return "";
         StringBuilder out = new StringBuilder(s.length());
         for (int i = 0; i < s.length(); i++) {
@@ -70,13 +159,14 @@ public final class Operation {
                 case '\n': out.append("\\n"); break;
                 case '\r': out.append("\\r"); break;
                 case '|':  out.append("\\p"); break;
+                case '\0': out.append("\\0"); break;
                 default:   out.append(c);
             }
         }
         return out.toString();
     }
 
-    private static String unesc(String s) {
+    public static String unescape(String s) {
         if (s == null) return "";
         StringBuilder out = new StringBuilder(s.length());
         for (int i = 0; i < s.length(); i++) {
@@ -92,6 +182,7 @@ public final class Operation {
                 case 'n':  out.append('\n'); break;
                 case 'r':  out.append('\r'); break;
                 case 'p':  out.append('|'); break;
+                case '0':  out.append('\0'); break;
                 default:   out.append(n);
             }
         }
@@ -0,0 +1,194 @@
+package com.atlasdb.log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One writer thread for the {@link WriteAheadLog}s of every replication group on a node,
+ * in place of a thread per log.
+ *
+ * Each pass takes whatever all the logs have queued, writes each log's records with one
+ * gathering write and then forces every log it wrote at once, on a small pool. Groups
+ * therefore share one group-commit window and their fsyncs reach the device together
+ * instead of one after another, which lets the filesystem fold them into one journal
+ * commit. A failed write or fsync fails only the log it belongs to.
+ */
+public final class SharedWalWriter {
+
+    /** Logs forced concurrently. */
+    public static final int SYNC_THREADS = 8;
+
+    private final FsyncPolicy policy;
+    private final long syncWindowMillis;
+    private final long syncWindowNanos;
+    private final ExecutorService syncers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readyAvailable = lock.newCondition();
+    // guarded by lock
+    private Set<WriteAheadLog> ready = new LinkedHashSet<>();
+    private long readySince;
+    private int readyBytes;
+    private Thread thread;
+
+    /**
+     * @param syncWindowMillis GROUP: max time a record waits for others, from any log, to
+     *                         join its batch; INTERVAL: period of the background fsync
+     */
+    public SharedWalWriter(FsyncPolicy policy, long syncWindowMillis) {
+        this.policy = policy;
+        this.syncWindowMillis = syncWindowMillis;
+        this.syncWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, syncWindowMillis));
+        this.syncers = Executors.newFixedThreadPool(SYNC_THREADS, r -> {
+            Thread t = new Thread(r, "atlasdb-wal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getSyncWindowMillis() {
+        return syncWindowMillis;
+    }
+
+    /** The writer thread, started on first use. */
+    Thread thread() {
+        lock.lock();
+        try {
+            if (thread == null) {
+                thread = new Thread(this::run, "atlasdb-wal-writer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return thread;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@code log} queued {@code bytes} more (0 for a marker). Called under the log's lock. */
+    void ready(WriteAheadLog log, int bytes) {
+        lock.lock();
+        try {
+            if (ready.isEmpty()) readySince = System.nanoTime();
+            ready.add(log);
+            readyBytes += bytes;
+            readyAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        long lastSync = System.nanoTime();
+        Set<WriteAheadLog> dirty = new LinkedHashSet<>(); // written, not forced yet
+
+        while (true) {
+            Set<WriteAheadLog> logs;
+            lock.lock();
+            try {
+                while (ready.isEmpty()) {
+                    if (policy == FsyncPolicy.INTERVAL && !dirty.isEmpty()) {
+                        long wait = syncWindowNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) break;
+                        readyAvailable.awaitNanos(wait);
+                    } else {
+                        readyAvailable.await();
+                    }
+                }
+                if (policy == FsyncPolicy.GROUP && !ready.isEmpty()) {
+                    // Hold the batch open for late joiners, bounded by the window and batch size.
+                    long deadline = readySince + syncWindowNanos;
+                    long wait;
+                    while (readyBytes < WriteAheadLog.MAX_BATCH_BYTES && (wait = deadline - System.nanoTime()) > 0) {
+                        readyAvailable.awaitNanos(wait);
+                    }
+                }
+                logs = ready;
+                ready = new LinkedHashSet<>();
+                readyBytes = 0;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            Map<WriteAheadLog, List<WriteAheadLog.PendingWrite>> written = new LinkedHashMap<>();
+            for (WriteAheadLog log : logs) {
+                List<WriteAheadLog.PendingWrite> batch = log.drain();
+                try {
+                    if (log.write(batch)) dirty.add(log);
+                    written.put(log, batch);
+                } catch (IOException e) {
+                    dirty.remove(log);
+                    log.fail(batch, e);
+                }
+            }
+            if (policy.syncsBeforeAck()
+                    || (policy == FsyncPolicy.INTERVAL && !dirty.isEmpty()
+                        && System.nanoTime() - lastSync >= syncWindowNanos)) {
+                if (!forceAll(dirty, written)) return;
+                lastSync = System.nanoTime();
+                dirty.clear();
+            } else if (policy == FsyncPolicy.NONE) {
+                dirty.clear();
+            }
+            for (List<WriteAheadLog.PendingWrite> batch : written.values()) WriteAheadLog.complete(batch);
+        }
+    }
+
+    /**
+     * Forces every log in {@code dirty} concurrently. A log whose fsync fails is failed with
+     * its batch, which is then no longer in {@code written}.
+     *
+     * @return false if interrupted
+     */
+    private boolean forceAll(Set<WriteAheadLog> dirty, Map<WriteAheadLog, List<WriteAheadLog.PendingWrite>> written) {
+        List<WriteAheadLog> logs = new ArrayList<>(dirty);
+        if (logs.isEmpty()) return true;
+        // The first log is forced on this thread, the others on the pool meanwhile.
+        List<Future<?>> forces = new ArrayList<>(logs.size());
+        forces.add(null);
+        for (WriteAheadLog log : logs.subList(1, logs.size())) {
+            forces.add(syncers.submit(() -> {
+                log.force();
+                return null;
+            }));
+        }
+        for (int i = 0; i < logs.size(); i++) {
+            try {
+                if (i == 0) logs.get(0).force();
+                else forces.get(i).get();
+            } catch (IOException e) {
+                failed(logs.get(i), written, e);
+            } catch (ExecutionException e) {
+                failed(logs.get(i), written, e.getCause() instanceof IOException io
+                        ? io : new IOException("WAL fsync failed", e.getCause()));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void failed(WriteAheadLog log, Map<WriteAheadLog, List<WriteAheadLog.PendingWrite>> written,
+                               IOException e) {
+        List<WriteAheadLog.PendingWrite> batch = written.remove(log);
+        log.fail(batch == null ? List.of() : batch, e);
+    }
+}
@@ -0,0 +1,208 @@
+package com.atlasdb.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary record layout of the V2 WAL:
+ *
+ * <pre>
+ * int32   length      bytes from opcode to the end of the record
+ * int32   crc32c      over those same bytes
+ * byte    opcode      1=PUT 2=DEL 3=TERM 4=BATCH 5=EXPIRE
+ * varint  keyLength
+ * bytes   key         UTF-8 (TERM: the term in decimal)
+ * varint  valueLength (PUT and EXPIRE only)
+ * bytes   value       UTF-8 (EXPIRE: the expiry time in decimal)
+ * </pre>
+ *
+ * A BATCH body is its opcode, a varint count and that many PUT/DEL/EXPIRE bodies (opcode,
+ * key, value), so the whole group shares one length and one checksum.
+ *
+ * Replication ships records in this same layout, so a follower can write what it received
+ * to its own log without re-encoding it.
+ */
+public final class WalCodec {
+
+    public static final byte[] MAGIC_V2 = "ATLASDB_WAL_V2\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** length + crc */
+    public static final int RECORD_HEADER_BYTES = 8;
+
+    /** Anything bigger is treated as a corrupt length prefix rather than allocated. */
+    public static final int MAX_RECORD_BYTES = 64 << 20;
+
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_TERM = 3;
+    static final byte OP_BATCH = 4;
+    static final byte OP_EXPIRE = 5;
+
+    private WalCodec() {}
+
+    /** Encodes a full record (header included), ready to be written. */
+    public static ByteBuffer encode(Operation op) {
+        List<Operation> parts = op.getType() == Operation.Type.BATCH ? op.getOps() : List.of(op);
+        byte[][] keys = new byte[parts.size()][];
+        byte[][] values = new byte[parts.size()][];
+        int bodyLen = op.getType() == Operation.Type.BATCH ? 1 + varintSize(parts.size()) : 0;
+        for (int i = 0; i < parts.size(); i++) {
+            Operation part = parts.get(i);
+            keys[i] = part.getKey().getBytes(StandardCharsets.UTF_8);
+            bodyLen += 1 + varintSize(keys[i].length) + keys[i].length;
+            if (part.getType() == Operation.Type.PUT || part.getType() == Operation.Type.EXPIRE) {
+                values[i] = part.getValue().getBytes(StandardCharsets.UTF_8);
+                bodyLen += varintSize(values[i].length) + values[i].length;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_BYTES + bodyLen);
+        buf.putInt(bodyLen);
+        buf.putInt(0); // crc, patched below
+        if (op.getType() == Operation.Type.BATCH) {
+            buf.put(OP_BATCH);
+            putVarint(buf, parts.size());
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            buf.put(switch (parts.get(i).getType()) {
+                case PUT -> OP_PUT;
+                case DELETE -> OP_DELETE;
+                case TERM -> OP_TERM;
+                case EXPIRE -> OP_EXPIRE;
+                case BATCH -> throw new IllegalArgumentException("nested batch");
+            });
+            putVarint(buf, keys[i].length);
+            buf.put(keys[i]);
+            if (values[i] != null) {
+                putVarint(buf, values[i].length);
+                buf.put(values[i]);
+            }
+        }
+        buf.putInt(4, crc(buf.array(), RECORD_HEADER_BYTES, bodyLen));
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes a record body (opcode onwards). The buffer's remaining bytes must be exactly
+     * one body whose checksum has already been verified.
+     */
+    public static Operation decode(ByteBuffer body) {
+        if (body.get(body.position()) == OP_BATCH) {
+            body.get();
+            int count = getVarint(body);
+            if (count <= 0 || count > body.remaining()) throw new IllegalArgumentException("bad batch size " + count);
+            List<Operation> ops = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Operation op = decodeOne(body);
+                if (op.getType() == Operation.Type.TERM) {
+                    throw new IllegalArgumentException(op.getType() + " entry in a batch");
+                }
+                ops.add(op);
+            }
+            return Operation.batch(ops);
+        }
+        return decodeOne(body);
+    }
+
+    private static Operation decodeOne(ByteBuffer body) {
+        byte opcode = body.get();
+        String key = readString(body);
+        switch (opcode) {
+            case OP_PUT:
+                return Operation.put(key, readString(body));
+            case OP_DELETE:
+                return Operation.delete(key);
+            case OP_TERM:
+                return Operation.termStart(Long.parseLong(key));
+            case OP_EXPIRE:
+                return Operation.expire(key, Long.parseLong(readString(body)));
+            default:
+                throw new IllegalArgumentException("unknown WAL opcode " + opcode);
+        }
+    }
+
+    /**
+     * Verifies the complete record starting at the buffer's position and steps over it.
+     *
+     * @return the record, header included, as a slice of {@code buf}
+     * @throws IllegalArgumentException if the record is truncated, oversized or fails its checksum
+     */
+    public static ByteBuffer readRecord(ByteBuffer buf) {
+        int p = buf.position();
+        if (buf.remaining() < RECORD_HEADER_BYTES) throw new IllegalArgumentException("truncated record header");
+        int len = buf.getInt(p);
+        if (len <= 0 || len > MAX_RECORD_BYTES || len > buf.remaining() - RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("bad record length " + len);
+        }
+        if (crc(buf.slice(p + RECORD_HEADER_BYTES, len)) != buf.getInt(p + 4)) {
+            throw new IllegalArgumentException("record checksum mismatch");
+        }
+        buf.position(p + RECORD_HEADER_BYTES + len);
+        return buf.slice(p, RECORD_HEADER_BYTES + len);
+    }
+
+    /** Decodes a whole record (header included) returned by {@link #encode} or {@link #readRecord}. */
+    public static Operation decodeRecord(ByteBuffer record) {
+        return decode(record.slice(record.position() + RECORD_HEADER_BYTES, record.remaining() - RECORD_HEADER_BYTES));
+    }
+
+    public static int crc(ByteBuffer body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+
+    static int crc(byte[] bytes, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, off, len);
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = getVarint(buf);
+        if (len < 0 || len > buf.remaining()) {
+            throw new IllegalArgumentException("string length " + len + " exceeds record");
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] tmp = new byte[len];
+            buf.duplicate().get(tmp);
+            s = new String(tmp, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    static int varintSize(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static void putVarint(ByteBuffer buf, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    static int getVarint(ByteBuffer buf) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+}
@@ -0,0 +1,99 @@
+package com.atlasdb.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams V2 records off a channel through a reusable buffer. Stops at the first record
+ * that is short, oversized or fails its checksum; {@link #validEnd()} is then the offset
+ * the file can be truncated to.
+ */
+final class WalReader {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel ch;
+    private ByteBuffer buf = ByteBuffer.allocate(BUFFER_BYTES);
+    private long validEnd;
+    private boolean torn;
+
+    WalReader(FileChannel ch, long start) throws IOException {
+        this.ch = ch;
+        this.validEnd = start;
+        ch.position(start);
+        buf.flip();
+    }
+
+    /** @return the next record, or null once the valid part of the log is exhausted */
+    Operation next() throws IOException {
+        ByteBuffer body = nextBody();
+        if (body == null) return null;
+        try {
+            return WalCodec.decode(body);
+        } catch (RuntimeException e) {
+            // checksum matched but the body is not a record we understand
+            validEnd -= WalCodec.RECORD_HEADER_BYTES + body.capacity();
+            buf.position(buf.position() - WalCodec.RECORD_HEADER_BYTES - body.capacity());
+            torn = true;
+            return null;
+        }
+    }
+
+    /** Steps over the next record after verifying its checksum, without decoding it. */
+    boolean skip() throws IOException {
+        return nextBody() != null;
+    }
+
+    /** Checksum-verified body of the next record; the reader is already positioned past it. */
+    private ByteBuffer nextBody() throws IOException {
+        if (!fill(WalCodec.RECORD_HEADER_BYTES)) {
+            torn = buf.hasRemaining();
+            return null;
+        }
+        int p = buf.position();
+        int len = buf.getInt(p);
+        int crc = buf.getInt(p + 4);
+        if (len <= 0 || len > WalCodec.MAX_RECORD_BYTES
+                || !fill(WalCodec.RECORD_HEADER_BYTES + len)) {
+            torn = true;
+            return null;
+        }
+
+        p = buf.position();
+        ByteBuffer body = buf.slice(p + WalCodec.RECORD_HEADER_BYTES, len);
+        if (WalCodec.crc(body) != crc) {
+            torn = true;
+            return null;
+        }
+        buf.position(p + WalCodec.RECORD_HEADER_BYTES + len);
+        validEnd += WalCodec.RECORD_HEADER_BYTES + len;
+        return body;
+    }
+
+    /** Offset just past the last record that decoded cleanly. */
+    long validEnd() {
+        return validEnd;
+    }
+
+    /** True if bytes follow {@link #validEnd()} that do not form a valid record. */
+    boolean torn() {
+        return torn;
+    }
+
+    private boolean fill(int n) throws IOException {
+        if (buf.remaining() >= n) return true;
+        if (buf.capacity() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(n, buf.capacity() * 2));
+            bigger.put(buf);
+            buf = bigger;
+        } else {
+            buf.compact();
+        }
+        while (buf.position() < n && ch.read(buf) >= 0) {
+            // keep reading until the record is complete or the file ends
+        }
+        buf.flip();
+        return buf.remaining() >= n;
+    }
+}
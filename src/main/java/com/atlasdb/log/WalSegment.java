@@ -0,0 +1,232 @@
+package com.atlasdb.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One rolling WAL file, named after the log index of its first record, plus a sparse
+ * index ({@code .idx}) of (logIndex, byteOffset) pairs written every few KiB of records.
+ *
+ * The sparse index is only a seek hint: it is never fsynced, and entries that point past
+ * the valid end of the log are dropped on open.
+ */
+final class WalSegment {
+
+    static final String PREFIX = "wal-";
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    /** Bytes of records between two sparse index entries. */
+    static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_ENTRY_BYTES = 16;
+
+    final long baseIndex;
+    final Path logPath;
+    final Path indexPath;
+
+    private long[] hintIndexes = new long[16];
+    private long[] hintOffsets = new long[16];
+    private int hints = 0;
+
+    // Written by the WAL writer thread, read by catch-up readers.
+    private volatile long entryCount;
+    private volatile long writtenEnd;
+    private long bytesSinceHint;
+
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+
+    private WalSegment(Path dir, long baseIndex) {
+        this.baseIndex = baseIndex;
+        this.logPath = dir.resolve(fileName(baseIndex, LOG_SUFFIX));
+        this.indexPath = dir.resolve(fileName(baseIndex, INDEX_SUFFIX));
+    }
+
+    static String fileName(long baseIndex, String suffix) {
+        return String.format("%s%020d%s", PREFIX, baseIndex, suffix);
+    }
+
+    /** @return the base index encoded in a segment file name, or -1 if it isn't one */
+    static long parseBaseIndex(String fileName) {
+        if (!fileName.startsWith(PREFIX) || !fileName.endsWith(LOG_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(fileName.substring(PREFIX.length(), fileName.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static WalSegment create(Path dir, long baseIndex) throws IOException {
+        WalSegment s = new WalSegment(dir, baseIndex);
+        Files.write(s.logPath, WalCodec.MAGIC_V2,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        Files.deleteIfExists(s.indexPath);
+        s.writtenEnd = WalCodec.MAGIC_V2.length;
+        return s;
+    }
+
+    /** Opens an existing segment and loads its sparse index; the entry count is unknown until scanned. */
+    static WalSegment open(Path dir, long baseIndex) throws IOException {
+        WalSegment s = new WalSegment(dir, baseIndex);
+        s.writtenEnd = Files.size(s.logPath);
+        s.loadHints();
+        return s;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    /** Index of the last record, or {@code baseIndex - 1} if the segment is empty. */
+    long lastIndex() {
+        return baseIndex + entryCount - 1;
+    }
+
+    long sizeBytes() {
+        return writtenEnd;
+    }
+
+    /** Sets the outcome of a recovery scan: record count and end of the last valid record. */
+    synchronized void recovered(long entryCount, long validEnd) throws IOException {
+        this.entryCount = entryCount;
+        this.writtenEnd = validEnd;
+        int keep = hints;
+        while (keep > 0 && (hintOffsets[keep - 1] >= validEnd || hintIndexes[keep - 1] >= baseIndex + entryCount)) {
+            keep--;
+        }
+        if (keep != hints) {
+            hints = keep;
+            rewriteHints();
+        }
+    }
+
+    // ---------------- sparse index ----------------
+
+    /**
+     * @return {index, offset} of the closest known record at or before {@code index};
+     *         falls back to the first record of the segment
+     */
+    synchronized long[] seek(long index) {
+        int lo = 0, hi = hints - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (hintIndexes[mid] <= index) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0) return new long[]{baseIndex, WalCodec.MAGIC_V2.length};
+        return new long[]{hintIndexes[found], hintOffsets[found]};
+    }
+
+    private synchronized void addHint(long index, long offset) {
+        if (hints == hintIndexes.length) {
+            hintIndexes = Arrays.copyOf(hintIndexes, hints * 2);
+            hintOffsets = Arrays.copyOf(hintOffsets, hints * 2);
+        }
+        hintIndexes[hints] = index;
+        hintOffsets[hints] = offset;
+        hints++;
+    }
+
+    private void loadHints() throws IOException {
+        if (!Files.exists(indexPath)) return;
+        byte[] raw = Files.readAllBytes(indexPath);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        long prevIndex = baseIndex - 1, prevOffset = 0;
+        while (buf.remaining() >= INDEX_ENTRY_BYTES) {
+            long idx = buf.getLong();
+            long off = buf.getLong();
+            // A torn or stale hint file just loses its tail; hints must be strictly increasing.
+            if (idx <= prevIndex || off <= prevOffset || off >= writtenEnd) break;
+            addHint(idx, off);
+            prevIndex = idx;
+            prevOffset = off;
+        }
+    }
+
+    private void rewriteHints() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(hints * INDEX_ENTRY_BYTES);
+        for (int i = 0; i < hints; i++) {
+            buf.putLong(hintIndexes[i]).putLong(hintOffsets[i]);
+        }
+        Files.write(indexPath, buf.array(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // ---------------- writing (WAL writer thread only) ----------------
+
+    void openForAppend() throws IOException {
+        logChannel = FileChannel.open(logPath, StandardOpenOption.WRITE);
+        logChannel.truncate(writtenEnd);
+        logChannel.position(writtenEnd);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        indexChannel.truncate((long) hints * INDEX_ENTRY_BYTES);
+        indexChannel.position((long) hints * INDEX_ENTRY_BYTES);
+        bytesSinceHint = hints == 0 ? 0 : writtenEnd - hintOffsets[hints - 1];
+    }
+
+    /**
+     * Writes consecutive records starting at log index {@code firstIndex} with one gathering
+     * write, then records sparse index hints for them.
+     */
+    void append(long firstIndex, ByteBuffer[] records) throws IOException {
+        long total = 0;
+        int[] sizes = new int[records.length];
+        for (int i = 0; i < records.length; i++) {
+            sizes[i] = records[i].remaining();
+            total += sizes[i];
+        }
+        long remaining = total;
+        while (remaining > 0) {
+            remaining -= logChannel.write(records);
+        }
+
+        ByteBuffer hintBuf = null;
+        long offset = writtenEnd;
+        for (int i = 0; i < sizes.length; i++) {
+            if (bytesSinceHint >= INDEX_INTERVAL_BYTES) {
+                if (hintBuf == null) hintBuf = ByteBuffer.allocate(sizes.length * INDEX_ENTRY_BYTES);
+                hintBuf.putLong(firstIndex + i).putLong(offset);
+                addHint(firstIndex + i, offset);
+                bytesSinceHint = 0;
+            }
+            offset += sizes[i];
+            bytesSinceHint += sizes[i];
+        }
+        if (hintBuf != null) {
+            hintBuf.flip();
+            while (hintBuf.hasRemaining()) indexChannel.write(hintBuf);
+        }
+
+        writtenEnd = offset;
+        entryCount += records.length;
+    }
+
+    void force() throws IOException {
+        logChannel.force(false);
+    }
+
+    /** Forces and closes the write channels; the segment stays readable. */
+    void seal() throws IOException {
+        if (logChannel == null) return;
+        logChannel.force(false);
+        logChannel.close();
+        indexChannel.close();
+        logChannel = null;
+        indexChannel = null;
+    }
+
+    void delete() throws IOException {
+        seal();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+}
@@ -1,83 +1,898 @@
 package com.atlasdb.log;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-public class WriteAheadLog {
+/**
+ * Append-only operation log, stored as a directory of rolling segments.
+ *
+ * Appends are handed to a single writer thread that owns the active segment's channel.
+ * Everything queued while the previous batch was being written goes out as one gathering
+ * write followed by (depending on the {@link FsyncPolicy}) one fsync, and every caller in the
+ * batch is acknowledged together.
+ *
+ * Records use the binary V2 layout described in {@link WalCodec}. Log indexes start at 1;
+ * each segment ({@link WalSegment}) is named after its first index and carries a sparse
+ * index so reads can seek close to any index instead of scanning from the start.
+ * A single-file WAL from older versions (V1 text or V2) found at the directory path is
+ * migrated into the first segment on recovery.
+ *
+ * Logs of many replication groups on one node can share a {@link SharedWalWriter} instead
+ * of running a writer thread each.
+ */
+public class WriteAheadLog implements Closeable {
 
-    private static final String HEADER = "ATLASDB_WAL_V1";
-    private final Path path;
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
 
-    public WriteAheadLog(String walPath) {
-        this.path = Paths.get(walPath);
+    private static final String V1_HEADER = "ATLASDB_WAL_V1";
+    private static final long DEFAULT_SYNC_WINDOW_MILLIS = 2;
+    static final int MAX_BATCH_BYTES = 1 << 20;
+    private static final long CLOSE_MARKER = -1; // index of the marker that closes a shared writer's log
+
+    private final Path dir;
+    private final FsyncPolicy policy;
+    private final long syncWindowNanos;
+    private final long segmentBytes;
+    private final SharedWalWriter shared; // null: this log runs its own writer thread
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private List<PendingWrite> pending = new ArrayList<>();
+    private int pendingBytes = 0;
+    private boolean closed = false;
+    private IOException failure;
+
+    // Guarded by lock. Only the writer thread adds segments; truncation only removes sealed ones.
+    private final ArrayList<WalSegment> segments = new ArrayList<>();
+    private boolean recovered = false;
+    private long nextIndex = 1;
+    private volatile long writtenIndex = 0;
+
+    private Thread writer;
+    private WalSegment active; // writer thread only (the shared one's, if any)
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    public WriteAheadLog(String walDir) {
+        this(walDir, FsyncPolicy.GROUP, DEFAULT_SYNC_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param syncWindowMillis GROUP: max time a caller waits for others to join its batch;
+     *                         INTERVAL: period of the background fsync. Ignored otherwise.
+     */
+    public WriteAheadLog(String walDir, FsyncPolicy policy, long syncWindowMillis) {
+        this(walDir, policy, syncWindowMillis, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes size after which the active segment is sealed and a new one started
+     */
+    public WriteAheadLog(String walDir, FsyncPolicy policy, long syncWindowMillis, long segmentBytes) {
+        this(walDir, policy, syncWindowMillis, segmentBytes, null);
+    }
+
+    /** A log written by {@code writer}, whose fsync policy and sync window apply. */
+    public WriteAheadLog(String walDir, SharedWalWriter writer, long segmentBytes) {
+        this(walDir, writer.getPolicy(), writer.getSyncWindowMillis(), segmentBytes, writer);
+    }
+
+    private WriteAheadLog(String walDir, FsyncPolicy policy, long syncWindowMillis, long segmentBytes,
+                          SharedWalWriter shared) {
+        this.dir = Paths.get(walDir);
+        this.policy = policy;
+        this.syncWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, syncWindowMillis));
+        this.segmentBytes = segmentBytes;
+        this.shared = shared;
     }
 
-    public synchronized void append(Operation op) {
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /** Index of the oldest record still on disk (equals {@code lastIndex() + 1} when empty). */
+    public long firstIndex() {
+        lock.lock();
         try {
-            ensureHeader();
-            String line = op.toWalLine() + "\n";
-            Files.write(path, line.getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            throw new RuntimeException("WAL append failed", e);
+            ensureRecovered();
+            return oldestIndex();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized List<Operation> readAll() {
-        if (!Files.exists(path)) return Collections.emptyList();
+    // Records queued before the first segment exists will start it at writtenIndex + 1.
+    private long oldestIndex() {
+        return segments.isEmpty() ? writtenIndex + 1 : segments.get(0).baseIndex;
+    }
 
+    /** Index of the newest record queued, or 0 if nothing was ever logged. */
+    public long lastIndex() {
+        lock.lock();
         try {
-            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
-            if (lines.isEmpty()) return Collections.emptyList();
+            ensureRecovered();
+            return nextIndex - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // If file isn't in our format (ex: old ObjectOutputStream WAL), rotate it away.
-            if (!HEADER.equals(lines.get(0).trim())) {
-                rotateCorruptWal("unsupported-format");
-                return Collections.emptyList();
+    /** Number of segment files currently on disk. */
+    public int segmentCount() {
+        lock.lock();
+        try {
+            ensureRecovered();
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Batches of records written so far, each with one gathering write per segment. */
+    long batches() {
+        return batches.get();
+    }
+
+    /** Fsyncs of the active segment so far. */
+    long syncs() {
+        return syncs.get();
+    }
+
+    /** Appends and blocks until the record is acknowledged under the configured policy. */
+    public void append(Operation op) {
+        await(appendAsync(op));
+    }
+
+    /**
+     * Queues a record as index {@code lastIndex() + 1}. Records are written in the order this
+     * method is called; the future completes once the batch containing it has been written
+     * (and forced, for ALWAYS/GROUP).
+     */
+    public CompletableFuture<Void> appendAsync(Operation op) {
+        return appendRecordAsync(WalCodec.encode(op));
+    }
+
+    /**
+     * {@link #appendAsync} for a record that is already encoded, such as one received from
+     * the leader; its bytes are written as they are. The record must be a complete one whose
+     * checksum was verified ({@link WalCodec#readRecord}), and must not change until the
+     * future completes.
+     */
+    public CompletableFuture<Void> appendRecordAsync(ByteBuffer record) {
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("WAL is closed");
+            if (failure != null) throw new RuntimeException("WAL append failed", failure);
+            ensureRecovered();
+            ensureWriter();
+            PendingWrite w = new PendingWrite(nextIndex++, record);
+            pending.add(w);
+            pendingBytes += record.remaining();
+            signalWriter(record.remaining());
+            return w.done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits for an {@link #appendAsync} acknowledgement, rethrowing write failures unchecked. */
+    public static void await(CompletableFuture<Void> ack) {
+        try {
+            ack.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("WAL append failed", e.getCause());
+        }
+    }
+
+    /** Convenience for small logs and tests; recovery should prefer {@link #replay}. */
+    public List<Operation> readAll() {
+        ArrayList<Operation> ops = new ArrayList<>();
+        replay(ops::add);
+        return ops;
+    }
+
+    /** Streams every record to {@code consumer} in log order; see {@link #replayFrom}. */
+    public long replay(Consumer<Operation> consumer) {
+        return replayFrom(0, consumer);
+    }
+
+    /**
+     * Streams records with index {@code >= fromIndex} to {@code consumer} in log order without
+     * materialising the log. Segments entirely before {@code fromIndex} are not read, and the
+     * starting segment is entered at its nearest sparse index entry.
+     *
+     * The first call also recovers the log: a torn or corrupt tail is truncated away so the
+     * next append continues from the last good record.
+     *
+     * @return number of records replayed
+     */
+    public long replayFrom(long fromIndex, Consumer<Operation> consumer) {
+        List<WalSegment> snapshot;
+        long upTo;
+        lock.lock();
+        try {
+            if (!recovered) {
+                try {
+                    return recover(fromIndex, consumer);
+                } catch (IOException e) {
+                    throw new RuntimeException("WAL recovery failed", e);
+                }
             }
+            snapshot = new ArrayList<>(segments);
+            upTo = writtenIndex;
+        } finally {
+            lock.unlock();
+        }
+        return scan(snapshot, Math.max(fromIndex, 1), upTo, Long.MAX_VALUE, consumer);
+    }
 
-            ArrayList<Operation> ops = new ArrayList<>();
-            for (int i = 1; i < lines.size(); i++) {
-                Operation op = Operation.fromWalLine(lines.get(i));
-                if (op != null) ops.add(op);
+    /**
+     * Reads up to {@code maxEntries} records starting at {@code fromIndex}, for replication
+     * catch-up. Only records already handed to the OS are returned.
+     *
+     * @throws IllegalStateException if {@code fromIndex} precedes the oldest segment on disk
+     */
+    public List<Operation> read(long fromIndex, int maxEntries) {
+        List<WalSegment> snapshot;
+        long upTo;
+        lock.lock();
+        try {
+            ensureRecovered();
+            long first = oldestIndex();
+            if (fromIndex < first) {
+                throw new IllegalStateException("WAL index " + fromIndex + " was truncated; log starts at " + first);
             }
-            return ops;
+            snapshot = new ArrayList<>(segments);
+            upTo = writtenIndex;
+        } finally {
+            lock.unlock();
+        }
+        ArrayList<Operation> ops = new ArrayList<>();
+        scan(snapshot, fromIndex, upTo, maxEntries, ops::add);
+        return ops;
+    }
+
+    /**
+     * Deletes sealed segments whose records all have index {@code <= upToIndex}. The active
+     * segment is never deleted, so the log may keep some records below {@code upToIndex}.
+     *
+     * @return number of segments removed
+     */
+    public int truncatePrefix(long upToIndex) {
+        lock.lock();
+        try {
+            ensureRecovered();
+            int removed = 0;
+            while (segments.size() > 1 && segments.get(1).baseIndex <= upToIndex + 1) {
+                WalSegment s = segments.remove(0);
+                try {
+                    s.delete();
+                } catch (IOException e) {
+                    System.err.println("WAL " + dir + ": could not delete " + s.logPath + ": " + e);
+                }
+                removed++;
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards every record and restarts the log so the next append gets {@code nextIndex},
+     * e.g. after installing a snapshot that covers everything before it. Records queued
+     * earlier are written (then deleted) first; blocks until the reset is on disk.
+     */
+    public void resetTo(long nextIndex) {
+        enqueueMarker(nextIndex, false);
+    }
+
+    private void enqueueMarker(long nextIndex, boolean keepPrefix) {
+        CompletableFuture<Void> done;
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("WAL is closed");
+            if (failure != null) throw new RuntimeException("WAL reset failed", failure);
+            ensureRecovered();
+            ensureWriter();
+            if (keepPrefix && (nextIndex < oldestIndex() || nextIndex > this.nextIndex)) {
+                throw new IllegalStateException("cannot truncate WAL to " + (nextIndex - 1)
+                        + "; it holds [" + oldestIndex() + ", " + (this.nextIndex - 1) + "]");
+            }
+            PendingWrite marker = new PendingWrite(nextIndex, null, keepPrefix);
+            pending.add(marker);
+            this.nextIndex = nextIndex;
+            signalWriter(0);
+            done = marker.done;
+        } finally {
+            lock.unlock();
+        }
+        await(done);
+    }
+
+    /**
+     * Discards every record after {@code lastKept}, e.g. a suffix that conflicts with a new
+     * leader's log, so the next append gets {@code lastKept + 1}. Blocks until it is on disk.
+     */
+    public void truncateAfter(long lastKept) {
+        enqueueMarker(lastKept + 1, true);
+    }
+
+    /** Flushes anything still queued, forces it to disk and releases the files. */
+    @Override
+    public void close() {
+        if (shared != null) {
+            closeShared();
+            return;
+        }
+        Thread t;
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            pendingAvailable.signalAll();
+            t = writer;
+        } finally {
+            lock.unlock();
+        }
+        if (t == null) return;
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (active != null) active.seal();
+        } catch (IOException ignored) {
+            // nothing left to acknowledge
+        }
+    }
+
+    /** The shared writer owns the active segment, so it seals it after what is queued. */
+    private void closeShared() {
+        PendingWrite marker = new PendingWrite(CLOSE_MARKER, null);
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            if (writer == null) return; // nothing was ever written
+            pending.add(marker);
+            signalWriter(0);
+        } finally {
+            lock.unlock();
+        }
+        marker.done.exceptionally(e -> null).join();
+    }
+
+    // ---------------- recovery ----------------
+
+    private void ensureRecovered() {
+        if (recovered) return;
+        try {
+            recover(Long.MAX_VALUE, op -> {});
         } catch (IOException e) {
+            throw new RuntimeException("WAL recovery failed", e);
+        }
+    }
+
+    /** Caller holds the lock. Opens every segment and scans from {@code fromIndex} to the tail. */
+    private long recover(long fromIndex, Consumer<Operation> consumer) throws IOException {
+        migrateLegacyFile();
+        Files.createDirectories(dir);
+
+        long[] bases;
+        try (Stream<Path> files = Files.list(dir)) {
+            bases = files.mapToLong(f -> WalSegment.parseBaseIndex(f.getFileName().toString()))
+                    .filter(b -> b > 0)
+                    .sorted()
+                    .toArray();
+        }
+        for (long base : bases) segments.add(WalSegment.open(dir, base));
+
+        int start = 0;
+        while (start + 1 < segments.size() && segments.get(start + 1).baseIndex <= fromIndex) start++;
+        for (int i = 0; i < start; i++) {
+            WalSegment s = segments.get(i);
+            s.recovered(segments.get(i + 1).baseIndex - s.baseIndex, s.sizeBytes());
+        }
+
+        long count = 0;
+        for (int i = start; i < segments.size(); i++) {
+            WalSegment s = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            long[] end = scanForRecovery(s, fromIndex, consumer);
+            count += end[2];
+            long entries = end[0] - s.baseIndex;
+            boolean broken = end[1] < 0 || (!last && s.baseIndex + entries != segments.get(i + 1).baseIndex);
+
+            if (end[1] < 0) {
+                // Unreadable header: nothing in this segment can be trusted.
+                quarantine(s.logPath, "bad-header");
+                segments.set(i, s = WalSegment.create(dir, s.baseIndex));
+            } else {
+                if (Files.size(s.logPath) > end[1]) {
+                    System.err.println("WAL " + s.logPath + ": dropping " + (Files.size(s.logPath) - end[1])
+                            + " torn bytes after index " + (s.baseIndex + entries - 1));
+                    try (FileChannel ch = FileChannel.open(s.logPath, StandardOpenOption.WRITE)) {
+                        ch.truncate(end[1]);
+                        ch.force(true);
+                    }
+                }
+                s.recovered(entries, end[1]);
+            }
+
+            if (broken && !last) {
+                // A hole in the middle of the log: later segments can't be applied in order.
+                for (int j = segments.size() - 1; j > i; j--) {
+                    WalSegment dropped = segments.remove(j);
+                    quarantine(dropped.logPath, "after-gap");
+                    Files.deleteIfExists(dropped.indexPath);
+                }
+                break;
+            }
+        }
+
+        nextIndex = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).lastIndex() + 1;
+        writtenIndex = nextIndex - 1;
+        recovered = true;
+        return count;
+    }
+
+    /**
+     * @return {next index after the last valid record, end offset of the last valid record
+     *         (-1 if the header is bad), records handed to the consumer}
+     */
+    private long[] scanForRecovery(WalSegment s, long fromIndex, Consumer<Operation> consumer) throws IOException {
+        try (FileChannel ch = FileChannel.open(s.logPath, StandardOpenOption.READ)) {
+            byte[] head = new byte[WalCodec.MAGIC_V2.length];
+            int headLen = readFully(ch, ByteBuffer.wrap(head));
+            if (headLen < head.length || !Arrays.equals(head, WalCodec.MAGIC_V2)) {
+                return new long[]{s.baseIndex, -1, 0};
+            }
+
+            long[] hint = s.seek(Math.max(fromIndex, s.baseIndex));
+            long index = hint[0];
+            WalReader reader = new WalReader(ch, hint[1]);
+            while (index < fromIndex && reader.skip()) index++;
+
+            long replayed = 0;
+            if (index >= fromIndex) {
+                Operation op;
+                while ((op = reader.next()) != null) {
+                    consumer.accept(op);
+                    index++;
+                    replayed++;
+                }
+            }
+            return new long[]{index, reader.validEnd(), replayed};
+        }
+    }
+
+    /** Streams records in [fromIndex, upTo] from an immutable list of segments. */
+    private long scan(List<WalSegment> segs, long fromIndex, long upTo, long max, Consumer<Operation> consumer) {
+        long count = 0;
+        if (segs.isEmpty()) return 0;
+        int i = segs.size() - 1;
+        while (i > 0 && segs.get(i).baseIndex > fromIndex) i--;
+
+        for (; i < segs.size() && count < max; i++) {
+            WalSegment s = segs.get(i);
+            if (s.baseIndex > upTo) break;
+            try (FileChannel ch = FileChannel.open(s.logPath, StandardOpenOption.READ)) {
+                long[] hint = s.seek(Math.max(fromIndex, s.baseIndex));
+                long index = hint[0];
+                WalReader reader = new WalReader(ch, hint[1]);
+                while (index < fromIndex && index <= upTo && reader.skip()) index++;
+                Operation op;
+                while (index <= upTo && count < max && (op = reader.next()) != null) {
+                    consumer.accept(op);
+                    count++;
+                    index++;
+                }
+            } catch (NoSuchFileException e) {
+                throw new IllegalStateException("WAL segment " + s.logPath + " was truncated during read", e);
+            } catch (IOException e) {
+                throw new RuntimeException("WAL read failed", e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves a pre-segmentation single-file WAL out of the way and copies its records into the
+     * first segment. Re-runs from the start if a previous attempt crashed half way.
+     */
+    private void migrateLegacyFile() throws IOException {
+        Path legacy = dir.resolveSibling(dir.getFileName() + ".legacy");
+        if (Files.isRegularFile(dir)) {
+            Files.move(dir, legacy, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (!Files.exists(legacy)) return;
+
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+        }
+
+        WalSegment seg = WalSegment.create(dir, 1);
+        seg.openForAppend();
+        List<ByteBuffer> chunk = new ArrayList<>();
+        long[] next = {1};
+        try {
+            readLegacy(legacy, op -> {
+                chunk.add(WalCodec.encode(op));
+                if (chunk.size() == 1024) flushChunk(seg, next, chunk);
+            });
+            flushChunk(seg, next, chunk);
+        } catch (IOException | RuntimeException e) {
             // If it's unreadable (ex: binary garbage), rotate it away so the node can boot.
-            rotateCorruptWal("unreadable");
-            return Collections.emptyList();
+            seg.delete();
+            quarantine(legacy, "unreadable");
+            return;
+        }
+        seg.seal();
+        syncDir();
+        Files.delete(legacy);
+    }
+
+    private static void flushChunk(WalSegment seg, long[] next, List<ByteBuffer> chunk) {
+        if (chunk.isEmpty()) return;
+        try {
+            seg.append(next[0], chunk.toArray(new ByteBuffer[0]));
+        } catch (IOException e) {
+            throw new RuntimeException("WAL migration failed", e);
+        }
+        next[0] += chunk.size();
+        chunk.clear();
+    }
+
+    /** Streams a single-file V1 (text) or V2 (binary) WAL; a torn V2 tail is ignored. */
+    private static void readLegacy(Path file, Consumer<Operation> consumer) throws IOException {
+        byte[] head = new byte[WalCodec.MAGIC_V2.length];
+        int headLen;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            headLen = readFully(ch, ByteBuffer.wrap(head));
+            if (headLen == head.length && Arrays.equals(head, WalCodec.MAGIC_V2)) {
+                WalReader reader = new WalReader(ch, head.length);
+                Operation op;
+                while ((op = reader.next()) != null) consumer.accept(op);
+                return;
+            }
+        }
+        if (headLen == 0) return;
+        if (!new String(head, 0, headLen, StandardCharsets.US_ASCII).startsWith(V1_HEADER)) {
+            // If file isn't in our format (ex: old ObjectOutputStream WAL), rotate it away.
+            throw new IOException("unsupported WAL format");
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            in.readLine(); // header
+            String line;
+            while ((line = in.readLine()) != null) {
+                Operation op = Operation.fromWalLine(line);
+                if (op != null) consumer.accept(op);
+            }
+        }
+    }
+
+    private static int readFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining() && ch.read(buf) >= 0) {
+            // short reads are legal on some filesystems
+        }
+        return buf.position();
+    }
+
+    // ---------------- writer thread ----------------
+
+    private void ensureWriter() {
+        if (writer != null) return;
+        if (shared != null) {
+            writer = shared.thread();
+            return;
+        }
+        writer = new Thread(this::runWriter, "atlasdb-wal-writer-" + dir.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Caller holds the lock. */
+    private void signalWriter(int bytes) {
+        if (shared != null) shared.ready(this, bytes);
+        else pendingAvailable.signal();
+    }
+
+    // ---- driven by a SharedWalWriter, on its thread ----
+
+    /** Takes everything queued. */
+    List<PendingWrite> drain() {
+        lock.lock();
+        try {
+            List<PendingWrite> batch = pending;
+            pending = new ArrayList<>();
+            pendingBytes = 0;
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return whether records were written (false for markers only) */
+    boolean write(List<PendingWrite> batch) throws IOException {
+        writeBatch(batch);
+        batches.incrementAndGet();
+        for (PendingWrite w : batch) {
+            if (w.data != null) return true;
+        }
+        return false;
+    }
+
+    void force() throws IOException {
+        if (active == null) return;
+        active.force();
+        syncs.incrementAndGet();
+    }
+
+    static void complete(List<PendingWrite> batch) {
+        for (PendingWrite w : batch) w.done.complete(null);
+    }
+
+    private void runWriter() {
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+
+        while (true) {
+            List<PendingWrite> batch;
+            boolean interrupted = false;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    if (policy == FsyncPolicy.INTERVAL && dirty) {
+                        long wait = syncWindowNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) break;
+                        pendingAvailable.awaitNanos(wait);
+                    } else {
+                        pendingAvailable.await();
+                    }
+                }
+                if (policy == FsyncPolicy.GROUP && !pending.isEmpty()) {
+                    // Hold the batch open for late joiners, bounded by the window and batch size.
+                    long deadline = pending.get(0).enqueuedAt + syncWindowNanos;
+                    long wait;
+                    while (!closed && pendingBytes < MAX_BATCH_BYTES
+                            && (wait = deadline - System.nanoTime()) > 0) {
+                        pendingAvailable.awaitNanos(wait);
+                    }
+                }
+                if (pending.isEmpty() && closed) return;
+                batch = pending;
+                pending = new ArrayList<>();
+                pendingBytes = 0;
+            } catch (InterruptedException e) {
+                // Nothing will write what is queued; refuse it and later appends as close() does.
+                closed = true;
+                interrupted = true;
+                batch = pending;
+                pending = new ArrayList<>();
+                pendingBytes = 0;
+            } finally {
+                lock.unlock();
+            }
+            if (interrupted) {
+                IllegalStateException e = new IllegalStateException("WAL writer was interrupted");
+                for (PendingWrite w : batch) w.done.completeExceptionally(e);
+                return;
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    writeBatch(batch);
+                    batches.incrementAndGet();
+                    dirty = true;
+                }
+                if (policy.syncsBeforeAck()
+                        || (policy == FsyncPolicy.INTERVAL && dirty
+                            && System.nanoTime() - lastSync >= syncWindowNanos)) {
+                    force();
+                    lastSync = System.nanoTime();
+                    dirty = false;
+                }
+                for (PendingWrite w : batch) w.done.complete(null);
+            } catch (IOException e) {
+                fail(batch, e);
+                return;
+            }
         }
     }
 
-    private void ensureHeader() throws IOException {
-        if (!Files.exists(path)) {
-            Files.createDirectories(path.toAbsolutePath().getParent() == null
-                    ? Paths.get(".")
-                    : path.toAbsolutePath().getParent());
-            Files.write(path, (HEADER + "\n").getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    /** Writes runs of records with one gathering write each; reset/truncate/close markers split the runs. */
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        int start = 0;
+        for (int i = 0; i <= batch.size(); i++) {
+            if (i < batch.size() && batch.get(i).data != null) continue;
+            if (i > start) writeRun(batch.subList(start, i));
+            if (i < batch.size()) {
+                PendingWrite marker = batch.get(i);
+                if (marker.index == CLOSE_MARKER) {
+                    if (active != null) active.seal();
+                    active = null;
+                } else if (marker.keepPrefix) {
+                    truncate(marker.index);
+                } else {
+                    reset(marker.index);
+                }
+            }
+            start = i + 1;
+        }
+    }
+
+    private void writeRun(List<PendingWrite> batch) throws IOException {
+        long firstIndex = batch.get(0).index;
+        if (active == null) {
+            lock.lock();
+            try {
+                if (segments.isEmpty()) segments.add(WalSegment.create(dir, firstIndex));
+                active = segments.get(segments.size() - 1);
+            } finally {
+                lock.unlock();
+            }
+            active.openForAppend();
+        } else if (active.sizeBytes() >= segmentBytes) {
+            roll(firstIndex);
+        }
+
+        ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+        for (int i = 0; i < bufs.length; i++) bufs[i] = batch.get(i).data;
+        active.append(firstIndex, bufs);
+        writtenIndex = batch.get(batch.size() - 1).index;
+    }
+
+    /** Seals the active segment and starts a new one whose first record is {@code baseIndex}. */
+    private void roll(long baseIndex) throws IOException {
+        active.seal();
+        WalSegment next = WalSegment.create(dir, baseIndex);
+        next.openForAppend();
+        syncDir();
+        lock.lock();
+        try {
+            segments.add(next);
+        } finally {
+            lock.unlock();
+        }
+        active = next;
+    }
+
+    /** Deletes every segment and starts an empty one at {@code baseIndex}. */
+    private void reset(long baseIndex) throws IOException {
+        if (active != null) active.seal();
+        WalSegment next;
+        lock.lock();
+        try {
+            for (WalSegment s : segments) s.delete();
+            segments.clear();
+            next = WalSegment.create(dir, baseIndex);
+            segments.add(next);
+        } finally {
+            lock.unlock();
+        }
+        next.openForAppend();
+        next.force();
+        syncDir();
+        active = next;
+        writtenIndex = baseIndex - 1;
+    }
+
+    /** Drops every record from {@code nextIndex} on; the segment holding the one before becomes active. */
+    private void truncate(long nextIndex) throws IOException {
+        if (active != null) active.seal();
+        active = null;
+        WalSegment keep = null;
+        lock.lock();
+        try {
+            while (!segments.isEmpty() && segments.get(segments.size() - 1).baseIndex >= nextIndex) {
+                segments.remove(segments.size() - 1).delete();
+            }
+            if (!segments.isEmpty()) keep = segments.get(segments.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+        if (keep == null) {
+            reset(nextIndex);
             return;
         }
-        if (Files.size(path) == 0) {
-            Files.write(path, (HEADER + "\n").getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long[] hint = keep.seek(nextIndex);
+        long end;
+        try (FileChannel ch = FileChannel.open(keep.logPath, StandardOpenOption.READ)) {
+            WalReader reader = new WalReader(ch, hint[1]);
+            for (long i = hint[0]; i < nextIndex; i++) {
+                if (!reader.skip()) throw new IOException("WAL segment " + keep.logPath + " ends before index " + i);
+            }
+            end = reader.validEnd();
+        }
+        keep.recovered(nextIndex - keep.baseIndex, end);
+        keep.openForAppend(); // truncates the file to the new end
+        keep.force();
+        syncDir();
+        active = keep;
+        writtenIndex = nextIndex - 1;
+    }
+
+    /**
+     * After a failed write or fsync the state of the page cache is unknown, so the log refuses
+     * every later append instead of acknowledging records that may never reach the disk.
+     */
+    void fail(List<PendingWrite> batch, IOException e) {
+        List<PendingWrite> rest;
+        lock.lock();
+        try {
+            failure = e;
+            rest = pending;
+            pending = new ArrayList<>();
+            pendingBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (PendingWrite w : batch) w.done.completeExceptionally(e);
+        for (PendingWrite w : rest) w.done.completeExceptionally(e);
+    }
+
+    static final class PendingWrite {
+        final long index;
+        final ByteBuffer data; // null for a reset/truncate/close marker
+        final boolean keepPrefix; // marker only: truncate instead of reset
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(long index, ByteBuffer data) {
+            this(index, data, false);
+        }
+
+        PendingWrite(long index, ByteBuffer data, boolean keepPrefix) {
+            this.index = index;
+            this.data = data;
+            this.keepPrefix = keepPrefix;
+        }
+    }
+
+    // ---------------- file management ----------------
+
+    /** Makes segment creation/deletion durable; best effort where directories can't be opened. */
+    private void syncDir() {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {
+            // not supported on every platform
         }
     }
 
-    private void rotateCorruptWal(String reason) {
+    private static void quarantine(Path file, String reason) {
         try {
-            if (!Files.exists(path)) return;
+            if (!Files.exists(file)) return;
             String ts = String.valueOf(Instant.now().toEpochMilli());
-            Path moved = path.resolveSibling(path.getFileName() + ".corrupt." + reason + "." + ts);
-            Files.move(path, moved, StandardCopyOption.REPLACE_EXISTING);
-            // Next append/read will recreate with a proper header.
+            Path moved = file.resolveSibling(file.getFileName() + ".corrupt." + reason + "." + ts);
+            Files.move(file, moved, StandardCopyOption.REPLACE_EXISTING);
+            System.err.println("WAL: moved unusable " + file + " to " + moved);
         } catch (IOException ignored) {
             // worst case: leave it; engine may fail later, but we tried.
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,218 @@
+package com.atlasdb.net;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.log.Operation;
+import com.atlasdb.log.WalCodec;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames of the binary replication protocol: AppendEntries over a plain TCP connection.
+ *
+ * <pre>
+ * request   int32  frameLength    bytes after this field
+ *           byte   type           1=APPEND
+ *           int16  shard          0 unless the keyspace is sharded
+ *           int64  fromIndex
+ *           int64  term           0 from a statically configured leader
+ *           int64  prevLogTerm
+ *           int64  leaderCommit
+ *           int16  leaderIdLength
+ *           bytes  leaderId       UTF-8
+ *           int32  recordCount
+ *           records               WAL V2 layout, see {@link WalCodec}
+ *
+ * request   int32  frameLength
+ *           byte   type           2=HEARTBEATS
+ *           int16  count
+ *           count times           int16 shard, then fromIndex to leaderId as in APPEND
+ *
+ * response  int32  frameLength
+ *           byte   status         0=OK 1=OUT_OF_SYNC 2=STALE_TERM 3=REJECTED
+ *           int64  value          OK: follower's log position; OUT_OF_SYNC: where the
+ *                                 leader should continue; STALE_TERM: the follower's term
+ *           bytes  message        UTF-8, REJECTED only
+ * </pre>
+ *
+ * Entries travel as the records the WAL stores, so the follower checks each record's
+ * checksum and appends the bytes to its log unchanged, without encoding them again. Each
+ * record is still decoded once, as the frame arrives, for the term checks and the apply.
+ * A connection answers requests in the order they arrived, so a sender may pipeline.
+ * A HEARTBEATS frame carries the empty packets of many shards between the same two nodes
+ * and is answered with one response per packet, in order.
+ */
+final class BinaryReplication {
+
+    static final byte TYPE_APPEND = 1;
+    static final byte TYPE_HEARTBEATS = 2;
+
+    static final byte OK = 0;
+    static final byte OUT_OF_SYNC = 1;
+    static final byte STALE_TERM = 2;
+    static final byte REJECTED = 3;
+
+    /** Anything bigger is treated as a corrupt length prefix rather than allocated. */
+    static final int MAX_FRAME_BYTES = 1 << 30;
+
+    private static final int APPEND_HEADER_BYTES = 1 + 2 + 8 * 4 + 2 + 4;
+    private static final int HEARTBEAT_BYTES = 2 + 8 * 4 + 2;
+
+    /** An empty packet for one shard. */
+    static final class Heartbeat {
+        final int shard;
+        final ReplicationPacket packet;
+
+        Heartbeat(int shard, ReplicationPacket packet) {
+            this.shard = shard;
+            this.packet = packet;
+        }
+    }
+
+    private BinaryReplication() {}
+
+    /** @return the frame, length prefix included, as buffers for one gathering write */
+    static ByteBuffer[] encodeAppend(ReplicationPacket packet, int shard) {
+        List<Operation> ops = packet.getOps();
+        List<ByteBuffer> records = packet.getRecords();
+        byte[] leaderId = leaderId(packet);
+
+        ByteBuffer[] frame = new ByteBuffer[1 + ops.size()];
+        long length = APPEND_HEADER_BYTES + leaderId.length;
+        for (int i = 0; i < ops.size(); i++) {
+            frame[i + 1] = records != null ? records.get(i).duplicate() : WalCodec.encode(ops.get(i));
+            length += frame[i + 1].remaining();
+        }
+        if (length > MAX_FRAME_BYTES) throw new IllegalArgumentException("replication frame of " + length + " bytes");
+
+        ByteBuffer head = ByteBuffer.allocate(4 + APPEND_HEADER_BYTES + leaderId.length);
+        head.putInt((int) length).put(TYPE_APPEND);
+        putHeader(head, shard, packet, leaderId).putInt(ops.size());
+        frame[0] = head.flip();
+        return frame;
+    }
+
+    /** @return the HEARTBEATS frame, length prefix included, for packets without entries */
+    static ByteBuffer encodeHeartbeats(List<Heartbeat> heartbeats) {
+        if (heartbeats.size() > 0xffff) throw new IllegalArgumentException(heartbeats.size() + " heartbeats in one frame");
+        List<byte[]> leaderIds = new ArrayList<>(heartbeats.size());
+        int length = 1 + 2;
+        for (Heartbeat h : heartbeats) {
+            if (!h.packet.getOps().isEmpty()) throw new IllegalArgumentException("heartbeat with entries");
+            byte[] leaderId = leaderId(h.packet);
+            leaderIds.add(leaderId);
+            length += HEARTBEAT_BYTES + leaderId.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + length);
+        buf.putInt(length).put(TYPE_HEARTBEATS).putShort((short) heartbeats.size());
+        for (int i = 0; i < heartbeats.size(); i++) {
+            putHeader(buf, heartbeats.get(i).shard, heartbeats.get(i).packet, leaderIds.get(i));
+        }
+        return buf.flip();
+    }
+
+    private static byte[] leaderId(ReplicationPacket packet) {
+        return packet.getLeaderId() == null ? new byte[0] : packet.getLeaderId().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer putHeader(ByteBuffer buf, int shard, ReplicationPacket packet, byte[] leaderId) {
+        return buf.putShort((short) shard)
+                .putLong(packet.getFromIndexInclusive())
+                .putLong(packet.getTerm())
+                .putLong(packet.getPrevLogTerm())
+                .putLong(packet.getLeaderCommit())
+                .putShort((short) leaderId.length)
+                .put(leaderId);
+    }
+
+    /**
+     * Decodes an APPEND frame (everything after the length prefix). The packet's records
+     * are slices of {@code frame}.
+     *
+     * @throws IllegalArgumentException if the frame is malformed or a record fails its checksum
+     */
+    static ReplicationPacket decodeAppend(ByteBuffer frame) {
+        try {
+            byte type = frame.get();
+            if (type != TYPE_APPEND) throw new IllegalArgumentException("unknown frame type " + type);
+            frame.getShort(); // see shardOf
+            long fromIndex = frame.getLong();
+            long term = frame.getLong();
+            long prevLogTerm = frame.getLong();
+            long leaderCommit = frame.getLong();
+            byte[] leaderId = new byte[frame.getShort() & 0xffff];
+            frame.get(leaderId);
+            int count = frame.getInt();
+            if (count < 0 || count > frame.remaining() / WalCodec.RECORD_HEADER_BYTES) {
+                throw new IllegalArgumentException("bad record count " + count);
+            }
+
+            List<ByteBuffer> records = new ArrayList<>(count);
+            List<Operation> ops = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer record = WalCodec.readRecord(frame);
+                records.add(record);
+                ops.add(WalCodec.decodeRecord(record));
+            }
+            if (frame.hasRemaining()) throw new IllegalArgumentException(frame.remaining() + " trailing bytes");
+            return new ReplicationPacket(fromIndex, ops, term,
+                    leaderId.length == 0 ? null : new String(leaderId, StandardCharsets.UTF_8),
+                    prevLogTerm, leaderCommit, records);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated replication frame", e);
+        }
+    }
+
+    /**
+     * Decodes a HEARTBEATS frame (everything after the length prefix).
+     *
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    static List<Heartbeat> decodeHeartbeats(ByteBuffer frame) {
+        try {
+            byte type = frame.get();
+            if (type != TYPE_HEARTBEATS) throw new IllegalArgumentException("unknown frame type " + type);
+            int count = frame.getShort() & 0xffff;
+            List<Heartbeat> heartbeats = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int shard = frame.getShort() & 0xffff;
+                long fromIndex = frame.getLong();
+                long term = frame.getLong();
+                long prevLogTerm = frame.getLong();
+                long leaderCommit = frame.getLong();
+                byte[] leaderId = new byte[frame.getShort() & 0xffff];
+                frame.get(leaderId);
+                heartbeats.add(new Heartbeat(shard, new ReplicationPacket(fromIndex, List.of(), term,
+                        leaderId.length == 0 ? null : new String(leaderId, StandardCharsets.UTF_8),
+                        prevLogTerm, leaderCommit)));
+            }
+            if (frame.hasRemaining()) throw new IllegalArgumentException(frame.remaining() + " trailing bytes");
+            return heartbeats;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated heartbeat frame", e);
+        }
+    }
+
+    /** The frame's type; frames are everything after the length prefix. */
+    static byte typeOf(ByteBuffer frame) {
+        if (!frame.hasRemaining()) throw new IllegalArgumentException("empty replication frame");
+        return frame.get(frame.position());
+    }
+
+    /** The shard an APPEND frame (everything after the length prefix) is for. */
+    static int shardOf(ByteBuffer frame) {
+        if (frame.remaining() < 3) throw new IllegalArgumentException("truncated replication frame");
+        return frame.getShort(frame.position() + 1) & 0xffff;
+    }
+
+    /** @return the response frame, length prefix included */
+    static ByteBuffer encodeResponse(byte status, long value, String message) {
+        byte[] msg = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 8 + msg.length);
+        buf.putInt(1 + 8 + msg.length).put(status).putLong(value).put(msg);
+        return buf.flip();
+    }
+}
@@ -0,0 +1,197 @@
+package com.atlasdb.net;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.cluster.ShardRegistry;
+import com.atlasdb.replication.OutOfSyncException;
+import com.atlasdb.replication.StaleTermException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Follower side of the binary replication protocol ({@link BinaryReplication}).
+ *
+ * Only leaders connect, so each connection gets two threads: one reads frames and hands
+ * them to the engine in arrival order, the other writes each response once the frame's
+ * entries are durable. A leader can therefore keep several frames in flight on one
+ * connection, and their WAL writes share fsyncs. A HEARTBEATS frame is handed to each
+ * shard it names.
+ */
+public class BinaryReplicationServer {
+
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final ShardRegistry registry;
+    private final int port;
+
+    private volatile boolean running = false;
+    private ServerSocketChannel server;
+
+    public BinaryReplicationServer(AtlasDBEngine engine, int port) {
+        this(List.of(engine), port);
+    }
+
+    /** Serves every shard's engine on one port; frames name their shard. */
+    public BinaryReplicationServer(List<AtlasDBEngine> shards, int port) {
+        this(ShardRegistry.of(shards, new ShardMap(shards.size())), port);
+    }
+
+    /** Serves the registry's shards, including those it adds later. */
+    public BinaryReplicationServer(ShardRegistry registry, int port) {
+        this.registry = registry;
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        running = true;
+
+        Thread acceptThread = new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel ch = server.accept();
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    serve(ch);
+                } catch (IOException e) {
+                    if (running) e.printStackTrace();
+                }
+            }
+        }, "atlasdb-repl-accept-" + port);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void serve(SocketChannel ch) {
+        BlockingQueue<CompletableFuture<ByteBuffer>> responses = new LinkedBlockingQueue<>();
+
+        Thread reader = new Thread(() -> {
+            try {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                while (running) {
+                    length.clear();
+                    if (!readFully(ch, length, true)) break;
+                    int len = length.getInt(0);
+                    if (len <= 0 || len > BinaryReplication.MAX_FRAME_BYTES) {
+                        throw new IOException("bad frame length " + len);
+                    }
+                    ByteBuffer frame = ByteBuffer.allocate(len);
+                    readFully(ch, frame, false);
+                    responses.put(handle(frame.flip()));
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection gone
+            } finally {
+                responses.add(CompletableFuture.completedFuture(CLOSE));
+            }
+        }, "atlasdb-repl-in-" + port);
+
+        Thread writer = new Thread(() -> {
+            try (ch) {
+                while (true) {
+                    ByteBuffer response = responses.take().join();
+                    if (response == CLOSE) return;
+                    while (response.hasRemaining()) ch.write(response);
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection gone; the reader stops on its next read
+            }
+        }, "atlasdb-repl-out-" + port);
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /** @return the response, completing once the frame's entries are durable */
+    private CompletableFuture<ByteBuffer> handle(ByteBuffer frame) {
+        try {
+            if (BinaryReplication.typeOf(frame) == BinaryReplication.TYPE_HEARTBEATS) {
+                return handleHeartbeats(BinaryReplication.decodeHeartbeats(frame));
+            }
+            AtlasDBEngine engine = shard(BinaryReplication.shardOf(frame));
+            return receive(engine, BinaryReplication.decodeAppend(frame));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(
+                    BinaryReplication.encodeResponse(BinaryReplication.REJECTED, 0, e.getMessage()));
+        }
+    }
+
+    /** One response per heartbeat, in order, written as one buffer. */
+    private CompletableFuture<ByteBuffer> handleHeartbeats(List<BinaryReplication.Heartbeat> heartbeats) {
+        List<CompletableFuture<ByteBuffer>> responses = new ArrayList<>(heartbeats.size());
+        for (BinaryReplication.Heartbeat h : heartbeats) {
+            try {
+                responses.add(receive(shard(h.shard), h.packet));
+            } catch (IllegalArgumentException e) {
+                responses.add(CompletableFuture.completedFuture(
+                        BinaryReplication.encodeResponse(BinaryReplication.REJECTED, 0, e.getMessage())));
+            }
+        }
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int length = 0;
+            for (CompletableFuture<ByteBuffer> r : responses) length += r.join().remaining();
+            ByteBuffer all = ByteBuffer.allocate(length);
+            for (CompletableFuture<ByteBuffer> r : responses) all.put(r.join());
+            return all.flip();
+        });
+    }
+
+    private AtlasDBEngine shard(int shard) {
+        AtlasDBEngine engine = registry.engine(shard);
+        if (engine == null) throw new IllegalArgumentException("no shard " + shard + " here");
+        return engine;
+    }
+
+    private static CompletableFuture<ByteBuffer> receive(AtlasDBEngine engine, ReplicationPacket packet) {
+        long end = packet.getFromIndexInclusive() + packet.getOps().size();
+        try {
+            return engine.receiveReplicationAsync(packet).handle((v, err) -> err == null
+                    ? BinaryReplication.encodeResponse(BinaryReplication.OK, end, null)
+                    : BinaryReplication.encodeResponse(BinaryReplication.REJECTED, 0, "replication failed: "
+                            + (err instanceof CompletionException && err.getCause() != null ? err.getCause() : err)));
+        } catch (StaleTermException e) {
+            return CompletableFuture.completedFuture(
+                    BinaryReplication.encodeResponse(BinaryReplication.STALE_TERM, e.getTerm(), null));
+        } catch (OutOfSyncException e) {
+            // Tells the leader where to resume from.
+            return CompletableFuture.completedFuture(
+                    BinaryReplication.encodeResponse(BinaryReplication.OUT_OF_SYNC, e.getExpectedIndex(), null));
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(
+                    BinaryReplication.encodeResponse(BinaryReplication.REJECTED, 0, String.valueOf(e.getMessage())));
+        }
+    }
+
+    /** @return false if the stream ended before the first byte and {@code eofOk} */
+    private static boolean readFully(SocketChannel ch, ByteBuffer buf, boolean eofOk) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) {
+                if (eofOk && buf.position() == 0) return false;
+                throw new EOFException("connection closed mid-frame");
+            }
+        }
+        return true;
+    }
+}
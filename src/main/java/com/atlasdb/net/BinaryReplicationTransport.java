@@ -0,0 +1,292 @@
+package com.atlasdb.net;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.replication.ReplicationTransport;
+import com.atlasdb.replication.StaleTermException;
+import com.atlasdb.snapshot.Snapshot;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link ReplicationTransport} that ships entries over the binary protocol
+ * ({@link BinaryReplication}) to each follower's {@link BinaryReplicationServer}, found at
+ * the follower's HTTP port plus {@code portOffset}. Snapshots, votes and read index stay
+ * on HTTP. A follower URL of a {@link ShardMap shard} gets its own connection, whose
+ * frames name the shard.
+ *
+ * Each follower gets one connection on which packets are pipelined: a packet is written as
+ * soon as it is sent and a reader thread completes the outstanding calls as responses come
+ * back in order. If the connection fails, every outstanding call fails with it and the
+ * next call reconnects.
+ *
+ * Empty packets to a follower with nothing in flight, i.e. heartbeats, go to the follower's
+ * node on a connection of their own that all shards share. While one HEARTBEATS frame is
+ * out, the heartbeats of other shards queue up and leave together in the next, so a node
+ * pair exchanges a few frames per heartbeat round however many shards they share.
+ */
+public class BinaryReplicationTransport implements ReplicationTransport {
+
+    public static final int DEFAULT_PORT_OFFSET = 1000;
+
+    private final int portOffset;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final HttpReplicationTransport http = new HttpReplicationTransport();
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final Map<String, HeartbeatBatcher> heartbeats = new ConcurrentHashMap<>(); // by host:port
+
+    public BinaryReplicationTransport(int portOffset) {
+        this(portOffset, PeerClient.DEFAULT_CONNECT_TIMEOUT_MS, PeerClient.DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public BinaryReplicationTransport(int portOffset, int connectTimeoutMs, int readTimeoutMs) {
+        this.portOffset = portOffset;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    @Override
+    public long replicate(String follower, ReplicationPacket packet) {
+        try {
+            return replicateAsync(follower, packet, Runnable::run).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw new RuntimeException("replication failed to " + follower, e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> replicateAsync(String follower, ReplicationPacket packet, Executor executor) {
+        try {
+            Channel channel = channels.computeIfAbsent(follower, this::open);
+            // With entries in flight an empty packet could overtake them, so it stays in line.
+            if (packet.getOps().isEmpty() && channel.idle()) {
+                return heartbeats.computeIfAbsent(channel.host + ":" + channel.port,
+                        k -> new HeartbeatBatcher(new Channel(k, channel.host, channel.port, 0)))
+                        .send(channel.shard, packet);
+            }
+            return channel.send(packet);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void installSnapshot(String follower, ReplicationPacket header, Snapshot snapshot) {
+        http.installSnapshot(follower, header, snapshot);
+    }
+
+    @Override
+    public boolean requestVote(String peer, long term, String candidate, long lastLogIndex, long lastLogTerm) {
+        return http.requestVote(peer, term, candidate, lastLogIndex, lastLogTerm);
+    }
+
+    @Override
+    public long readIndex(String leader) {
+        return http.readIndex(leader);
+    }
+
+    private Channel open(String follower) {
+        URI uri = URI.create(follower);
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        return new Channel(follower, uri.getHost(), port + portOffset, ShardMap.shardOfUrl(follower));
+    }
+
+    /** Heartbeats to one node; see the class comment. */
+    private static final class HeartbeatBatcher {
+        final Channel channel;
+
+        // guarded by this
+        List<BinaryReplication.Heartbeat> queued = new ArrayList<>();
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        boolean sending;
+
+        HeartbeatBatcher(Channel channel) {
+            this.channel = channel;
+        }
+
+        CompletableFuture<Long> send(int shard, ReplicationPacket packet) {
+            CompletableFuture<Long> result = new CompletableFuture<>();
+            synchronized (this) {
+                queued.add(new BinaryReplication.Heartbeat(shard, packet));
+                results.add(result);
+                if (sending) return result;
+                sending = true;
+            }
+            flush();
+            return result;
+        }
+
+        /** Sends everything queued as one frame; once it is answered, sends what queued meanwhile. */
+        private void flush() {
+            List<BinaryReplication.Heartbeat> batch;
+            List<CompletableFuture<Long>> waiting;
+            synchronized (this) {
+                if (queued.isEmpty()) {
+                    sending = false;
+                    return;
+                }
+                batch = queued;
+                waiting = results;
+                queued = new ArrayList<>();
+                results = new ArrayList<>();
+            }
+            List<CompletableFuture<Long>> replies = channel.send(new ByteBuffer[] {BinaryReplication.encodeHeartbeats(batch)},
+                    batch.size());
+            for (int i = 0; i < replies.size(); i++) {
+                CompletableFuture<Long> result = waiting.get(i);
+                replies.get(i).whenComplete((position, error) -> {
+                    if (error != null) result.completeExceptionally(error);
+                    else result.complete(position);
+                });
+            }
+            CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).whenComplete((v, error) -> flush());
+        }
+    }
+
+    /** The pipelined connection to one follower. */
+    private final class Channel {
+        final String follower;
+        final String host;
+        final int port;
+        final int shard;
+        final Object writeLock = new Object();
+
+        // guarded by this
+        SocketChannel socket;
+        final ArrayDeque<CompletableFuture<Long>> inFlight = new ArrayDeque<>();
+
+        Channel(String follower, String host, int port, int shard) {
+            this.follower = follower;
+            this.host = host;
+            this.port = port;
+            this.shard = shard;
+        }
+
+        CompletableFuture<Long> send(ReplicationPacket packet) {
+            return send(BinaryReplication.encodeAppend(packet, shard), 1).get(0);
+        }
+
+        /** Writes {@code frame}, which is answered with {@code responses} response frames. */
+        List<CompletableFuture<Long>> send(ByteBuffer[] frame, int responses) {
+            List<CompletableFuture<Long>> results = new ArrayList<>(responses);
+            for (int i = 0; i < responses; i++) results.add(new CompletableFuture<>());
+            SocketChannel ch = null;
+            try {
+                synchronized (writeLock) {
+                    synchronized (this) {
+                        if (socket == null) socket = connect();
+                        ch = socket;
+                        inFlight.addAll(results);
+                    }
+                    long remaining = 0;
+                    for (ByteBuffer b : frame) remaining += b.remaining();
+                    while (remaining > 0) remaining -= ch.write(frame);
+                }
+            } catch (IOException e) {
+                if (ch != null) {
+                    fail(ch, e);
+                } else {
+                    for (CompletableFuture<Long> r : results) {
+                        r.completeExceptionally(new RuntimeException("replication failed to " + follower, e));
+                    }
+                }
+            }
+            return results;
+        }
+
+        /** Whether no packet is awaiting its response. */
+        synchronized boolean idle() {
+            return inFlight.isEmpty();
+        }
+
+        /** Guarded by this. */
+        private SocketChannel connect() throws IOException {
+            SocketChannel ch = SocketChannel.open();
+            try {
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ch.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                ch.socket().connect(new InetSocketAddress(host, port), connectTimeoutMs);
+                ch.socket().setSoTimeout(readTimeoutMs);
+            } catch (IOException e) {
+                ch.close();
+                throw new IOException("connect to " + host + ":" + port + " failed", e);
+            }
+            Thread reader = new Thread(() -> read(ch), "atlasdb-repl-client-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+            return ch;
+        }
+
+        /** Completes outstanding calls from the responses on {@code ch}, in order. */
+        private void read(SocketChannel ch) {
+            try {
+                DataInputStream in = new DataInputStream(ch.socket().getInputStream());
+                while (true) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (SocketTimeoutException e) {
+                        synchronized (this) {
+                            if (inFlight.isEmpty()) continue; // idle, not late
+                        }
+                        throw e;
+                    }
+                    if (len < 9 || len > BinaryReplication.MAX_FRAME_BYTES) throw new IOException("bad response length " + len);
+                    byte status = in.readByte();
+                    long value = in.readLong();
+                    byte[] message = new byte[len - 9];
+                    in.readFully(message);
+
+                    CompletableFuture<Long> call;
+                    synchronized (this) {
+                        call = inFlight.poll();
+                    }
+                    if (call == null) throw new IOException("unsolicited response");
+                    switch (status) {
+                        case BinaryReplication.OK, BinaryReplication.OUT_OF_SYNC -> call.complete(value);
+                        case BinaryReplication.STALE_TERM -> call.completeExceptionally(new StaleTermException(value));
+                        default -> call.completeExceptionally(new RuntimeException("replication failed to " + follower
+                                + ": " + new String(message, StandardCharsets.UTF_8)));
+                    }
+                }
+            } catch (IOException e) {
+                fail(ch, e instanceof EOFException ? new IOException("connection closed by " + host + ":" + port) : e);
+            }
+        }
+
+        /** Drops {@code ch} and fails the calls outstanding on it. */
+        private void fail(SocketChannel ch, IOException cause) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {}
+            ArrayDeque<CompletableFuture<Long>> failed;
+            synchronized (this) {
+                if (socket != ch) return; // already handled
+                socket = null;
+                failed = new ArrayDeque<>(inFlight);
+                inFlight.clear();
+            }
+            RuntimeException e = new RuntimeException("replication failed to " + follower, cause);
+            for (CompletableFuture<Long> call : failed) call.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.atlasdb.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers, so connections do not allocate (and the GC does not
+ * have to free) native memory for every read. At most {@code maxPooled} idle buffers are kept.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /** @return a cleared buffer of {@link #bufferSize()} bytes */
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        return buf.clear();
+    }
+
+    /** Returns a buffer from {@link #acquire()}; anything else is ignored. */
+    void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect() || buf.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buf);
+    }
+}
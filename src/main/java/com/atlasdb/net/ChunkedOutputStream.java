@@ -0,0 +1,65 @@
+package com.atlasdb.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/1.1 chunked transfer coding over a response stream. Writes are gathered into chunks
+ * of up to {@code chunkSize} bytes; {@link #close()} sends the last chunk but leaves the
+ * underlying stream open for the next response on the connection.
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int count;
+    private boolean finished;
+
+    ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = out;
+        this.buf = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) flushChunk();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buf.length) flushChunk();
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (finished) return;
+        finished = true;
+        flushChunk();
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void flushChunk() throws IOException {
+        if (count == 0) return;
+        out.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(buf, 0, count);
+        out.write('\r');
+        out.write('\n');
+        count = 0;
+    }
+}
@@ -2,6 +2,7 @@ package com.atlasdb.net;
 
 import com.atlasdb.AtlasDBEngine;
 import com.atlasdb.log.Operation;
+import com.atlasdb.snapshot.Snapshot;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -10,7 +11,7 @@ public class HttpClusterReplicator {
 
     private final AtlasDBEngine leader;
     private final List<String> followerUrls = new ArrayList<>();
-    private int nextFromIndex = 0;
+    private long nextFromIndex = 0;
 
     public HttpClusterReplicator(AtlasDBEngine leader, List<String> followerUrls) {
         this.leader = leader;
@@ -18,11 +19,23 @@ public class HttpClusterReplicator {
     }
 
     public void replicateOnce() {
+        if (nextFromIndex < leader.getLogStartIndex()) {
+            // Entries the followers still need were compacted away: ship the snapshot instead.
+            Snapshot snapshot = leader.getLatestSnapshot();
+            for (String url : followerUrls) {
+                HttpSnapshotInstaller.install(url, snapshot);
+            }
+            nextFromIndex = snapshot.getIndex();
+        }
+
         List<Operation> delta = leader.getReplicationDelta(nextFromIndex);
         if (delta.isEmpty()) return;
 
         for (String url : followerUrls) {
-            HttpReplicator.replicate(url, nextFromIndex, delta);
+            long position = HttpReplicator.replicate(url, nextFromIndex, delta);
+            if (position != nextFromIndex + delta.size()) {
+                throw new IllegalStateException("follower " + url + " is at " + position + ", not " + nextFromIndex);
+            }
         }
 
         nextFromIndex += delta.size();
@@ -1,34 +1,24 @@
 package com.atlasdb.net;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
 public class HttpForwarder {
 
     public static String forward(String method, String urlStr, String body) throws Exception {
-        URL url = new URL(urlStr);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-        conn.setRequestMethod(method);
-        conn.setDoInput(true);
-
-        if (method.equals("PUT") || method.equals("POST")) {
-            conn.setDoOutput(true);
-            if (body != null) {
-                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-                conn.setFixedLengthStreamingMode(bytes.length);
-                try (OutputStream os = conn.getOutputStream()) {
-                    os.write(bytes);
-                }
-            }
-        }
-
-        int code = conn.getResponseCode();
+        int code = send(method, urlStr, body).code;
         if (code >= 200 && code < 300) {
             return "ok";
         }
         throw new RuntimeException("HTTP " + code);
     }
-}
\ No newline at end of file
+
+    /** Relays a request and returns the leader's response, whatever its status. */
+    public static PeerClient.Response send(String method, String urlStr, String body) throws IOException {
+        PeerClient.Body payload = null;
+        if (body != null && (method.equals("PUT") || method.equals("POST"))) {
+            payload = PeerClient.Body.of(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return PeerClient.forwarding().send(method, urlStr, payload);
+    }
+}
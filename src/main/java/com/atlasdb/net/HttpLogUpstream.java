@@ -0,0 +1,73 @@
+package com.atlasdb.net;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.log.Operation;
+import com.atlasdb.replication.LogTailer;
+import com.atlasdb.replication.OutOfSyncException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A read replica's upstream over HTTP: {@code GET /log} and {@code GET /snapshot}. */
+public class HttpLogUpstream implements LogTailer.Upstream {
+
+    private static final String SNAPSHOT_PREFIX = "snapshot index=";
+
+    @Override
+    public ReplicationPacket pull(String url, long fromIndex, int max, long waitMs) throws IOException {
+        // Held for up to waitMs by the upstream, so the read timeout has to cover that.
+        PeerClient.Response resp = PeerClient.shared().send("GET",
+                url + "/log?from=" + fromIndex + "&max=" + max + "&waitMs=" + waitMs, null,
+                (int) (waitMs + PeerClient.DEFAULT_READ_TIMEOUT_MS));
+        String body = resp.bodyUtf8();
+        if (resp.code == 409 && body.startsWith(SNAPSHOT_PREFIX)) {
+            throw new OutOfSyncException(Long.parseLong(body.substring(SNAPSHOT_PREFIX.length()).trim()), fromIndex);
+        }
+        if (resp.code != 200) throw new IOException("log from " + url + " failed code=" + resp.code + " " + body);
+
+        String[] lines = body.split("\n");
+        String[] header = lines[0].trim().split(" ");
+        if (header.length != 3 || Long.parseLong(header[0]) != fromIndex) {
+            throw new IOException("invalid log response from " + url + ": " + lines[0]);
+        }
+        long commit = Long.parseLong(header[1]);
+        String leader = switch (header[2]) {
+            case "self" -> url;
+            case "-" -> null;
+            default -> header[2];
+        };
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isBlank()) continue;
+            Operation op = Operation.fromWalLine(lines[i]);
+            if (op == null) throw new IOException("invalid log entry from " + url + ": " + lines[i]);
+            ops.add(op);
+        }
+        return new ReplicationPacket(fromIndex, ops, 0, leader, 0, commit);
+    }
+
+    @Override
+    public void fetchSnapshot(String url, long index, Path target) throws IOException {
+        try (FileChannel ch = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            while (true) {
+                PeerClient.Response resp = PeerClient.shared().send("GET",
+                        url + "/snapshot?index=" + index + "&offset=" + offset, null);
+                if (resp.code != 200) {
+                    throw new IOException("snapshot " + index + " from " + url + " failed code=" + resp.code
+                            + " " + resp.bodyUtf8());
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(resp.body);
+                while (chunk.hasRemaining()) offset += ch.write(chunk, offset);
+                if (resp.body.length < NodeServer.SNAPSHOT_CHUNK_BYTES) break;
+            }
+            ch.force(true);
+        }
+    }
+}
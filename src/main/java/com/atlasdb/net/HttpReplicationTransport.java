@@ -0,0 +1,40 @@
+package com.atlasdb.net;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.replication.ReplicationTransport;
+import com.atlasdb.snapshot.Snapshot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link ReplicationTransport} over the peers' {@code /replicate}, {@code /install-snapshot},
+ * {@code /vote} and {@code /read-index} endpoints, through the shared {@link PeerClient}.
+ */
+public class HttpReplicationTransport implements ReplicationTransport {
+
+    @Override
+    public long replicate(String follower, ReplicationPacket packet) {
+        return HttpReplicator.replicate(follower, packet);
+    }
+
+    @Override
+    public CompletableFuture<Long> replicateAsync(String follower, ReplicationPacket packet, Executor executor) {
+        return HttpReplicator.replicateAsync(follower, packet);
+    }
+
+    @Override
+    public void installSnapshot(String follower, ReplicationPacket header, Snapshot snapshot) {
+        HttpSnapshotInstaller.install(follower, header, snapshot);
+    }
+
+    @Override
+    public boolean requestVote(String peer, long term, String candidate, long lastLogIndex, long lastLogTerm) {
+        return HttpReplicator.requestVote(peer, term, candidate, lastLogIndex, lastLogTerm);
+    }
+
+    @Override
+    public long readIndex(String leader) {
+        return HttpReplicator.readIndex(leader);
+    }
+}
@@ -1,39 +1,137 @@
 package com.atlasdb.net;
 
+import com.atlasdb.cluster.ReplicationPacket;
 import com.atlasdb.log.Operation;
+import com.atlasdb.replication.StaleTermException;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class HttpReplicator {
 
-    public static void replicate(String followerBaseUrl, int fromIndex, List<Operation> ops) {
+    private static final String EXPECTED_PREFIX = "expected fromIndex=";
+    static final String STALE_TERM_PREFIX = "stale term=";
+    private static final int CONTROL_TIMEOUT_MS = 1000; // vote requests
+
+    public static long replicate(String followerBaseUrl, long fromIndex, List<Operation> ops) {
+        return replicate(followerBaseUrl, new ReplicationPacket(fromIndex, ops));
+    }
+
+    /**
+     * @return the follower's log position afterwards: {@code fromIndex + ops.size()} if the
+     *         packet was applied, otherwise the position the follower expected it to start at
+     * @throws StaleTermException if the follower has seen a newer term than the packet's
+     */
+    public static long replicate(String followerBaseUrl, ReplicationPacket packet) {
         try {
-            URL url = new URL(followerBaseUrl + "/replicate");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
-
-            // payload:
-            // fromIndex\n
-            // opLine\n
-            StringBuilder sb = new StringBuilder();
-            sb.append(fromIndex).append("\n");
-            for (Operation op : ops) {
-                sb.append(op.toWalLine()).append("\n");
-            }
+            return replicateAsync(followerBaseUrl, packet).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw new RuntimeException("replication failed to " + followerBaseUrl, e.getCause());
+        }
+    }
 
-            byte[] payload = sb.toString().getBytes(StandardCharsets.UTF_8);
-            conn.getOutputStream().write(payload);
+    /**
+     * {@link #replicate(String, ReplicationPacket)} over a pooled connection, without
+     * blocking the caller.
+     */
+    public static CompletableFuture<Long> replicateAsync(String followerBaseUrl, ReplicationPacket packet) {
+        long fromIndex = packet.getFromIndexInclusive();
+        List<Operation> ops = packet.getOps();
 
-            int code = conn.getResponseCode();
-            if (code != 200) {
-                throw new RuntimeException("replication failed to " + followerBaseUrl + " code=" + code);
+        // payload:
+        // fromIndex\n
+        // opLine\n
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + ops.size() * 48);
+        payload.writeBytes(Long.toString(fromIndex).getBytes(StandardCharsets.US_ASCII));
+        payload.write('\n');
+        for (Operation op : ops) {
+            payload.writeBytes(op.toWalLine().getBytes(StandardCharsets.UTF_8));
+            payload.write('\n');
+        }
+
+        return PeerClient.shared()
+                .sendAsync("POST", followerBaseUrl + "/replicate" + packetQuery(packet),
+                        PeerClient.Body.of(payload.toByteArray()))
+                .handle((resp, err) -> {
+                    if (err != null) {
+                        throw new CompletionException(new RuntimeException("replication failed to " + followerBaseUrl, err));
+                    }
+                    if (resp.code == 200) {
+                        return fromIndex + ops.size();
+                    }
+                    String body = resp.bodyUtf8();
+                    if (resp.code == 409 && body.startsWith(EXPECTED_PREFIX)) {
+                        return Long.parseLong(body.substring(EXPECTED_PREFIX.length()).trim());
+                    }
+                    checkStaleTerm(resp.code, body);
+                    throw new RuntimeException("replication failed to " + followerBaseUrl + " code=" + resp.code + " " + body);
+                });
+    }
+
+    /**
+     * {@code POST /vote?term=&candidate=&lastIndex=&lastTerm=}.
+     *
+     * @return whether the peer granted its vote
+     * @throws StaleTermException if the peer is in a newer term
+     */
+    public static boolean requestVote(String peerBaseUrl, long term, String candidate,
+                                      long lastLogIndex, long lastLogTerm) {
+        try {
+            String url = peerBaseUrl + "/vote?term=" + term
+                    + "&candidate=" + URLEncoder.encode(candidate, StandardCharsets.UTF_8)
+                    + "&lastIndex=" + lastLogIndex + "&lastTerm=" + lastLogTerm;
+            PeerClient.Response resp = PeerClient.shared().send("POST", url, null, CONTROL_TIMEOUT_MS);
+            if (resp.code == 200) {
+                return resp.bodyUtf8().trim().equals("granted");
             }
-        } catch (Exception e) {
-            throw new RuntimeException("replication failed to " + followerBaseUrl, e);
+            String body = resp.bodyUtf8();
+            checkStaleTerm(resp.code, body);
+            throw new RuntimeException("vote request to " + peerBaseUrl + " failed code=" + resp.code + " " + body);
+        } catch (IOException e) {
+            throw new RuntimeException("vote request to " + peerBaseUrl + " failed", e);
+        }
+    }
+
+    /**
+     * {@code GET /read-index} on the leader.
+     *
+     * @throws IllegalStateException if the node is not the leader or could not confirm it
+     */
+    public static long readIndex(String leaderBaseUrl) {
+        try {
+            PeerClient.Response resp = PeerClient.shared().send("GET", leaderBaseUrl + "/read-index", null);
+            String body = resp.bodyUtf8();
+            if (resp.code == 200) {
+                return Long.parseLong(body.trim());
+            }
+            if (resp.code == 409) throw new IllegalStateException(leaderBaseUrl + ": " + body);
+            throw new RuntimeException("read index from " + leaderBaseUrl + " failed code=" + resp.code + " " + body);
+        } catch (IOException e) {
+            throw new RuntimeException("read index from " + leaderBaseUrl + " failed", e);
+        }
+    }
+
+    /**
+     * Query string carrying a packet's commit index and, from an elected leader, its
+     * election fields.
+     */
+    static String packetQuery(ReplicationPacket packet) {
+        if (packet.getTerm() == 0) return "?commit=" + packet.getLeaderCommit();
+        return "?term=" + packet.getTerm()
+                + "&leader=" + URLEncoder.encode(packet.getLeaderId(), StandardCharsets.UTF_8)
+                + "&prevTerm=" + packet.getPrevLogTerm()
+                + "&commit=" + packet.getLeaderCommit();
+    }
+
+    static void checkStaleTerm(int code, String body) {
+        if (code == 409 && body.startsWith(STALE_TERM_PREFIX)) {
+            throw new StaleTermException(Long.parseLong(body.substring(STALE_TERM_PREFIX.length()).trim()));
         }
     }
-}
\ No newline at end of file
+}
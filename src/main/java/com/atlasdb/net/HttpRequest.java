@@ -0,0 +1,183 @@
+package com.atlasdb.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A parsed HTTP/1.x request.
+ *
+ * {@link #parse(ByteBuffer)} works directly on the bytes in the buffer: it finds the end of
+ * the head, then only materializes the method, target, header names/values and body, so a
+ * request costs a handful of small objects and no per-line copies.
+ */
+final class HttpRequest {
+
+    static final int MAX_HEAD_BYTES = 64 * 1024;
+    static final int MAX_BODY_BYTES = 64 << 20;
+
+    final String method;
+    final String path;
+    final Map<String, String> query;
+    final Map<String, String> headers;
+    final byte[] body;
+    /** Whether the client keeps the connection open for further requests. */
+    final boolean keepAlive;
+
+    private HttpRequest(String method, String path, Map<String, String> query,
+                        Map<String, String> headers, byte[] body, boolean keepAlive) {
+        this.method = method;
+        this.path = path;
+        this.query = query;
+        this.headers = headers;
+        this.body = body;
+        this.keepAlive = keepAlive;
+    }
+
+    /** The same request addressed to {@code path}. */
+    HttpRequest withPath(String path) {
+        return new HttpRequest(method, path, query, headers, body, keepAlive);
+    }
+
+    String bodyUtf8() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads one request from a blocking stream.
+     *
+     * @return null if the stream ended before a request started
+     */
+    static HttpRequest read(InputStream in) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+        while (true) {
+            HttpRequest req = parse(buf.duplicate().flip());
+            if (req != null) return req;
+            if (!buf.hasRemaining()) buf = grow(buf);
+            int n = in.read(buf.array(), buf.position(), buf.remaining());
+            if (n < 0) {
+                if (buf.position() == 0) return null;
+                throw new IOException("connection closed mid-request");
+            }
+            buf.position(buf.position() + n);
+        }
+    }
+
+    /** Doubles a buffer in write mode, keeping its content. */
+    static ByteBuffer grow(ByteBuffer buf) throws IOException {
+        if (buf.capacity() >= MAX_HEAD_BYTES + MAX_BODY_BYTES) throw new IOException("request too large");
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(buf.capacity() * 2, MAX_HEAD_BYTES + MAX_BODY_BYTES));
+        bigger.put(buf.flip());
+        return bigger;
+    }
+
+    /**
+     * Parses the request starting at the buffer's position.
+     *
+     * @return the request, with the position moved past it, or null (position unchanged)
+     *         if the buffer does not hold all of it yet
+     * @throws IOException if the bytes are not a valid request
+     */
+    static HttpRequest parse(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        int limit = buf.limit();
+        int headEnd = indexOfHeadEnd(buf, start, limit);
+        if (headEnd < 0) {
+            if (limit - start > MAX_HEAD_BYTES) throw new IOException("request head too long");
+            return null;
+        }
+
+        // Request line: METHOD SP target [SP version]
+        int lineEnd = indexOfCrlf(buf, start, headEnd);
+        int sp1 = indexOf(buf, (byte) ' ', start, lineEnd);
+        if (sp1 <= start) throw new IOException("bad request line");
+        int sp2 = indexOf(buf, (byte) ' ', sp1 + 1, lineEnd);
+        if (sp2 < 0) sp2 = lineEnd;
+        String method = ascii(buf, start, sp1, false);
+        int q = indexOf(buf, (byte) '?', sp1 + 1, sp2);
+        String path = ascii(buf, sp1 + 1, q < 0 ? sp2 : q, false);
+        Map<String, String> query = q < 0 ? Map.of() : parseQuery(ascii(buf, q + 1, sp2, false));
+        boolean http11 = sp2 < lineEnd && ascii(buf, sp2 + 1, lineEnd, false).trim().equals("HTTP/1.1");
+
+        Map<String, String> headers = new HashMap<>();
+        int pos = lineEnd + 2;
+        while (pos < headEnd) {
+            int eol = indexOfCrlf(buf, pos, headEnd);
+            int colon = indexOf(buf, (byte) ':', pos, eol);
+            if (colon > pos) {
+                headers.put(ascii(buf, pos, colon, true).trim(), ascii(buf, colon + 1, eol, false).trim());
+            }
+            pos = eol + 2;
+        }
+
+        int contentLength = 0;
+        String cl = headers.get("content-length");
+        if (cl != null) {
+            try {
+                contentLength = Integer.parseInt(cl);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad content-length " + cl);
+            }
+            if (contentLength < 0 || contentLength > MAX_BODY_BYTES) throw new IOException("bad content-length " + cl);
+        }
+        int bodyStart = headEnd + 4;
+        if (limit - bodyStart < contentLength) return null;
+
+        byte[] body = new byte[contentLength];
+        buf.get(bodyStart, body);
+        buf.position(bodyStart + contentLength);
+
+        String connection = headers.getOrDefault("connection", "");
+        boolean keepAlive = http11 ? !connection.equalsIgnoreCase("close") : connection.equalsIgnoreCase("keep-alive");
+        return new HttpRequest(method, path, query, headers, body, keepAlive);
+    }
+
+    private static int indexOfHeadEnd(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 3 < limit; i++) {
+            if (buf.get(i) == '\r' && buf.get(i + 1) == '\n' && buf.get(i + 2) == '\r' && buf.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Index of the next CRLF at or after {@code from}, or {@code end} if there is none before it. */
+    private static int indexOfCrlf(ByteBuffer buf, int from, int end) {
+        for (int i = from; i + 1 < end + 2; i++) {
+            if (buf.get(i) == '\r' && buf.get(i + 1) == '\n') return i;
+        }
+        return end;
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    private static String ascii(ByteBuffer buf, int from, int to, boolean lowerCase) {
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            char c = (char) (buf.get(from + i) & 0xff);
+            chars[i] = lowerCase && c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+        }
+        return new String(chars);
+    }
+
+    private static Map<String, String> parseQuery(String raw) {
+        Map<String, String> query = new HashMap<>();
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq);
+            String v = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+}
@@ -0,0 +1,61 @@
+package com.atlasdb.net;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.snapshot.Snapshot;
+import com.atlasdb.replication.StaleTermException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Leader side of InstallSnapshot: streams a snapshot file to a follower in chunks of
+ * {@code POST /install-snapshot?index=&offset=&done=} over the {@link PeerClient}'s pooled
+ * connections. Chunk bodies go from the page cache to the socket with
+ * {@link FileChannel#transferTo} instead of being copied through the heap.
+ * An elected leader adds its term, id and the term of the snapshot's last entry.
+ */
+public class HttpSnapshotInstaller {
+
+    public static final int CHUNK_BYTES = 1 << 20;
+
+    public static void install(String followerBaseUrl, Snapshot snapshot) {
+        install(followerBaseUrl, new ReplicationPacket(snapshot.getIndex(), List.of()), snapshot);
+    }
+
+    /**
+     * @param header the snapshot's index and, from an elected leader, the term fields
+     * @throws StaleTermException if the follower has seen a newer term
+     */
+    public static void install(String followerBaseUrl, ReplicationPacket header, Snapshot snapshot) {
+        String query = "index=" + snapshot.getIndex() + HttpReplicator.packetQuery(header).replace('?', '&');
+        try (FileChannel file = FileChannel.open(snapshot.getPath(), StandardOpenOption.READ)) {
+            long size = file.size();
+            long offset = 0;
+            do {
+                long len = Math.min(CHUNK_BYTES, size - offset);
+                boolean done = offset + len == size;
+                sendChunk(followerBaseUrl, query, file, offset, len, done);
+                offset += len;
+            } while (offset < size);
+        } catch (StaleTermException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("snapshot install failed to " + followerBaseUrl, e);
+        }
+    }
+
+    private static void sendChunk(String baseUrl, String query, FileChannel file, long offset, long len, boolean done)
+            throws IOException {
+        PeerClient.Response resp = PeerClient.shared().send("POST",
+                baseUrl + "/install-snapshot?" + query + "&offset=" + offset + "&done=" + done,
+                PeerClient.Body.of(file, offset, len));
+        if (resp.code == 409) {
+            HttpReplicator.checkStaleTerm(409, resp.bodyUtf8());
+        }
+        if (resp.code != 200) {
+            throw new IOException("install-snapshot chunk at offset " + offset + " rejected: " + resp.code + " " + resp.bodyUtf8());
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.atlasdb.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * HTTP/1.1 server on a single selector thread.
+ *
+ * The selector thread accepts connections, reads into pooled direct buffers and parses
+ * requests; handlers run on a fixed pool of workers, so the number of open connections is
+ * independent of the number of threads. Requests from other nodes (replication, votes,
+ * read index) run on a separate pool, sized by the cluster rather than by client load, so
+ * client requests that wait on the cluster, such as writes a follower relays to the leader,
+ * cannot starve the traffic they are waiting for.
+ *
+ * Connections stay open between requests unless the client asks otherwise, and a client
+ * may pipeline: requests parsed ahead are queued on their connection and handled one at a
+ * time, so responses leave in request order. A connection stops being read while
+ * {@link #MAX_PIPELINED} requests or responses are queued on it.
+ *
+ * Workers write a response straight to the socket when they can and only hand the
+ * connection back to the selector thread when the socket is full, the connection must be
+ * closed, or reading has to resume.
+ *
+ * A handler may leave its response open as a {@link ResponseStream}, fed by other threads
+ * after it returned; the connection serves no other request until the stream is closed, and
+ * costs no thread meanwhile.
+ */
+final class NioHttpServer {
+
+    /** Handles one request; everything written to {@code out} is sent as the response. */
+    interface Handler {
+        void handle(HttpRequest req, OutputStream out) throws IOException;
+    }
+
+    static final int MAX_PIPELINED = 32;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] BAD_REQUEST = (
+            "HTTP/1.1 400 Bad Request\r\n" +
+            "Content-Type: text/plain; charset=utf-8\r\n" +
+            "Content-Length: 11\r\n" +
+            "Connection: close\r\n" +
+            "\r\n" +
+            "bad request").getBytes(StandardCharsets.UTF_8);
+
+    private final int port;
+    private final Handler handler;
+    private final ExecutorService workers;
+    private final ExecutorService peerWorkers;
+    private final Predicate<HttpRequest> fromPeer;
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 1024);
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+
+    /** @param fromPeer tells requests sent by other nodes apart from client requests */
+    NioHttpServer(int port, int workerThreads, Predicate<HttpRequest> fromPeer, Handler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.fromPeer = fromPeer;
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "atlasdb-http-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        this.peerWorkers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "atlasdb-http-peer-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this::run, "atlasdb-selector-" + port);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (selector != null) selector.wakeup();
+        workers.shutdownNow();
+        peerWorkers.shutdownNow();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Connection ready;
+                while ((ready = this.ready.poll()) != null) {
+                    if (!ready.channel.isOpen()) continue;
+                    parseBuffered(ready);
+                    update(ready);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable()) onReadable(conn);
+                    if (key.isValid()) update(conn);
+                }
+            }
+        } catch (IOException e) {
+            if (running) e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection conn) close(conn);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection conn = new Connection(ch, buffers.acquire());
+            conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+        }
+    }
+
+    private void onReadable(Connection conn) {
+        try {
+            if (!conn.in.hasRemaining()) {
+                ByteBuffer bigger = HttpRequest.grow(conn.in);
+                buffers.release(conn.in);
+                conn.in = bigger;
+            }
+            int n = conn.channel.read(conn.in);
+            if (n < 0) {
+                // The client is done sending; answer what it sent, then close.
+                parseBuffered(conn);
+                synchronized (conn) {
+                    conn.closing = true;
+                    conn.eof = true;
+                }
+                return;
+            }
+        } catch (IOException e) {
+            close(conn);
+            return;
+        }
+        parseBuffered(conn);
+    }
+
+    /** Parses buffered requests while there is room for them. Selector thread only. */
+    private void parseBuffered(Connection conn) {
+        ByteBuffer in = conn.in;
+        if (in == null || in.position() == 0) return;
+        in.flip();
+        synchronized (conn) {
+            try {
+                while (!conn.closing && conn.pending.size() < MAX_PIPELINED) {
+                    HttpRequest req = HttpRequest.parse(in);
+                    if (req == null) break;
+                    conn.pending.add(req);
+                    if (!req.keepAlive) conn.closing = true;
+                }
+            } catch (IOException e) {
+                conn.closing = true;
+                conn.malformed = true;
+            }
+            dispatch(conn);
+        }
+        in.compact();
+        if (!in.isDirect() && in.position() <= buffers.bufferSize()) {
+            // A large body has been consumed; go back to a pooled buffer.
+            ByteBuffer pooled = buffers.acquire();
+            pooled.put(in.flip());
+            conn.in = pooled;
+        }
+    }
+
+    /** Starts a worker on the connection's queue if none is running. Guarded by conn. */
+    private void dispatch(Connection conn) {
+        if (conn.busy) return;
+        if (!conn.pending.isEmpty()) {
+            conn.busy = true;
+            ExecutorService pool = poolFor(conn.pending.peek());
+            try {
+                pool.execute(() -> serve(conn, pool));
+            } catch (RejectedExecutionException e) {
+                conn.busy = false; // shutting down
+            }
+        } else if (conn.malformed) {
+            conn.malformed = false;
+            queue(conn, ByteBuffer.wrap(BAD_REQUEST));
+        }
+    }
+
+    private ExecutorService poolFor(HttpRequest req) {
+        return fromPeer.test(req) ? peerWorkers : workers;
+    }
+
+    /** Handles a connection's queued requests in order, while they belong on {@code pool}. Worker thread. */
+    private void serve(Connection conn, ExecutorService pool) {
+        while (true) {
+            HttpRequest req;
+            synchronized (conn) {
+                req = conn.pending.peek();
+                if (req != null && poolFor(req) == pool) conn.pending.poll();
+                else req = null;
+                if (req == null) {
+                    conn.busy = false;
+                    dispatch(conn);
+                    break;
+                }
+            }
+
+            ResponseBuffer response = new ResponseBuffer(256, () -> new Stream(conn));
+            boolean keepAlive = req.keepAlive;
+            try {
+                handler.handle(req, response);
+            } catch (Exception e) {
+                keepAlive = false; // the response may be incomplete
+            }
+
+            boolean wakeSelector;
+            boolean streaming;
+            synchronized (conn) {
+                for (ByteBuffer buf : response.toBuffers()) queue(conn, buf);
+                streaming = response.stream() != null && ((Stream) response.stream()).attach();
+                if (!keepAlive) {
+                    conn.closing = true;
+                    conn.pending.clear();
+                }
+                try {
+                    flush(conn);
+                } catch (IOException e) {
+                    fail(conn);
+                }
+                wakeSelector = !conn.out.isEmpty() || conn.closing || conn.readPaused;
+            }
+            if (streaming) {
+                // Stays busy: the stream's close serves the next request.
+                wake(conn);
+                return;
+            }
+            if (wakeSelector) wake(conn);
+        }
+        wake(conn);
+    }
+
+    private void wake(Connection conn) {
+        ready.add(conn);
+        selector.wakeup();
+    }
+
+    /** Guarded by conn. */
+    private static void queue(Connection conn, ByteBuffer buf) {
+        conn.out.add(buf);
+        conn.outBytes += buf.remaining();
+    }
+
+    /** Writes queued responses until done or the socket is full. Guarded by conn. */
+    private static void flush(Connection conn) throws IOException {
+        while (!conn.out.isEmpty()) {
+            ByteBuffer buf = conn.out.peek();
+            conn.outBytes -= conn.channel.write(buf);
+            if (buf.hasRemaining()) return;
+            conn.out.poll();
+        }
+    }
+
+    /** The connection can no longer be written to. Guarded by conn. */
+    private static void fail(Connection conn) {
+        conn.closing = true;
+        conn.eof = true;
+        conn.pending.clear();
+        conn.out.clear();
+        conn.outBytes = 0;
+    }
+
+    /** Flushes, then closes the connection or sets its interest set. Selector thread only. */
+    private void update(Connection conn) {
+        if (!conn.key.isValid()) return;
+        Runnable drained = null;
+        synchronized (conn) {
+            try {
+                flush(conn);
+            } catch (IOException e) {
+                fail(conn);
+            }
+            Stream stream = conn.stream;
+            if (stream != null && conn.eof) {
+                stream.abort();
+                drained = stream.listener;
+            } else if (stream != null && conn.out.isEmpty()) {
+                drained = stream.listener;
+            }
+            if (conn.closing && !conn.busy && conn.pending.isEmpty() && conn.out.isEmpty()) {
+                close(conn);
+                return;
+            }
+            int ops = 0;
+            // A stream's backlog is bounded by its sender; reading on shows when its client leaves.
+            boolean room = conn.pending.size() < MAX_PIPELINED
+                    && (conn.stream != null || conn.out.size() < MAX_PIPELINED);
+            if (!conn.closing && room) ops |= SelectionKey.OP_READ;
+            if (!conn.out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            conn.readPaused = !conn.closing && !room;
+            conn.key.interestOps(ops);
+        }
+        if (drained != null) drained.run();
+    }
+
+    private void close(Connection conn) {
+        Runnable drained = null;
+        synchronized (conn) {
+            if (conn.stream != null) {
+                drained = conn.stream.listener;
+                conn.stream.abort();
+            }
+        }
+        if (drained != null) drained.run();
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {}
+        buffers.release(conn.in);
+        conn.in = null;
+    }
+
+    /** A response left open by its handler; see {@link ResponseStream}. */
+    private final class Stream implements ResponseStream {
+        private final Connection conn;
+        private final ArrayDeque<ByteBuffer> early = new ArrayDeque<>(); // sent before the handler returned
+        private long earlyBytes;
+        private boolean attached; // guarded by conn
+        private boolean closed;   // guarded by conn
+        private volatile Runnable listener = () -> {};
+
+        Stream(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * Queues what was sent so far behind the handler's output and takes the connection
+         * over. Worker thread, holding conn.
+         *
+         * @return false if the stream was already closed, so the response is complete
+         */
+        boolean attach() {
+            attached = true;
+            for (ByteBuffer buf : early) queue(conn, buf);
+            early.clear();
+            earlyBytes = 0;
+            if (closed) return false;
+            conn.stream = this;
+            return true;
+        }
+
+        /** The client went away. Guarded by conn. */
+        void abort() {
+            closed = true;
+            conn.stream = null;
+            conn.busy = false;
+            conn.closing = true;
+            conn.pending.clear();
+        }
+
+        @Override
+        public boolean send(ByteBuffer bytes) {
+            boolean wakeSelector;
+            synchronized (conn) {
+                if (closed) return false;
+                if (!attached) {
+                    early.add(bytes);
+                    earlyBytes += bytes.remaining();
+                    return true;
+                }
+                queue(conn, bytes);
+                try {
+                    flush(conn);
+                } catch (IOException e) {
+                    fail(conn);
+                }
+                wakeSelector = !conn.out.isEmpty() || conn.eof;
+            }
+            if (wakeSelector) wake(conn);
+            return true;
+        }
+
+        @Override
+        public long queuedBytes() {
+            synchronized (conn) {
+                return conn.outBytes + earlyBytes;
+            }
+        }
+
+        @Override
+        public void onDrained(Runnable listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (conn) {
+                return !closed;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (conn) {
+                if (closed) return;
+                closed = true;
+                if (!attached) return; // the worker finishes the response
+                conn.stream = null;
+                conn.busy = false;
+                dispatch(conn);
+            }
+            wake(conn);
+        }
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in; // in write mode; selector thread only
+
+        // guarded by this
+        final ArrayDeque<HttpRequest> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long outBytes;       // remaining bytes in out
+        Stream stream;       // the open response stream, if any
+        boolean busy;        // a worker is handling this connection's requests, or a stream is open
+        boolean closing;     // accept no more requests; close once everything is answered
+        boolean eof;         // the client closed its side, or writing to it failed
+        boolean malformed;   // answer 400 after the requests before the bad one
+        boolean readPaused;  // reading stopped because too much is queued
+
+        Connection(SocketChannel channel, ByteBuffer in) {
+            this.channel = channel;
+            this.in = in;
+        }
+    }
+}
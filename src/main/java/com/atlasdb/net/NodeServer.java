@@ -1,37 +1,112 @@
 package com.atlasdb.net;
 
 import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.ConditionFailedException;
+import com.atlasdb.KVStore;
+import com.atlasdb.KeyMovedException;
+import com.atlasdb.cache.HotKeyCache;
+import com.atlasdb.cluster.Rebalancer;
 import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.cluster.ShardRegistry;
+import com.atlasdb.log.Condition;
 import com.atlasdb.log.Operation;
+import com.atlasdb.log.WriteAheadLog;
+import com.atlasdb.replication.AckLevel;
+import com.atlasdb.replication.LogTailer;
+import com.atlasdb.replication.Membership;
+import com.atlasdb.replication.OutOfSyncException;
+import com.atlasdb.replication.ReadConsistency;
 import com.atlasdb.replication.Role;
+import com.atlasdb.replication.StaleTermException;
+import com.atlasdb.snapshot.Snapshot;
+import com.atlasdb.watch.ChangeFeed;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 
+/**
+ * The node's HTTP API. By default a {@link NioHttpServer} serves it over keep-alive
+ * connections with a fixed pool of handler threads; {@link ServerMode#BLOCKING} keeps the
+ * original thread-per-connection server that answers one request per connection.
+ */
 public class NodeServer {
 
-    private final AtlasDBEngine engine;
-    private final Role role;
+    public static final int DEFAULT_WORKERS = 64;
+    static final int DEFAULT_SCAN_LIMIT = 1000;
+    static final int MAX_SCAN_LIMIT = 10_000;
+    static final long MAX_TTL_SECONDS = 10L * 365 * 24 * 3600;
+    private static final int SCAN_CHUNK_BYTES = 16 * 1024;
+    /** Longest a {@code /log} request is held for new entries. */
+    static final long MAX_LOG_WAIT_MS = 10_000;
+    static final int SNAPSHOT_CHUNK_BYTES = 1 << 20;
+
+    private final ShardRegistry registry;
+    private final Rebalancer rebalancer;
     private final int port;
+    private final ServerMode mode;
+    private final int workers;
+    private volatile long maxReplicaLag; // 0: a read replica is healthy however far behind
 
     private volatile boolean running = false;
     private ServerSocket serverSocket;
+    private NioHttpServer nioServer;
     private final ExecutorService pool = Executors.newCachedThreadPool();
 
-    public NodeServer(AtlasDBEngine engine, Role role, int port) {
-        this.engine = engine;
-        this.role = role;
+    public NodeServer(AtlasDBEngine engine, int port) {
+        this(engine, port, ServerMode.NIO, DEFAULT_WORKERS);
+    }
+
+    /** @param workers handler threads in {@link ServerMode#NIO} mode */
+    public NodeServer(AtlasDBEngine engine, int port, ServerMode mode, int workers) {
+        this(List.of(engine), new ShardMap(1), port, mode, workers);
+    }
+
+    /** Serves one engine per shard of {@code shardMap}, in shard order. */
+    public NodeServer(List<AtlasDBEngine> shards, ShardMap shardMap, int port, ServerMode mode, int workers) {
+        this(ShardRegistry.of(shards, shardMap), port, mode, workers);
+    }
+
+    /** Serves the registry's shards, including those it adds later. */
+    public NodeServer(ShardRegistry registry, int port, ServerMode mode, int workers) {
+        this.registry = registry;
+        this.rebalancer = new Rebalancer(registry, this::ingest);
         this.port = port;
+        this.mode = mode;
+        this.workers = workers;
+    }
+
+    /** Transfer rate of rebalancing jobs started on this node; 0 for no limit. */
+    public void setRebalanceBytesPerSecond(long bytesPerSecond) {
+        rebalancer.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /** Committed entries a read replica may trail by before {@code /health} reports it lagging; 0 for no limit. */
+    public void setMaxReplicaLag(long entries) {
+        this.maxReplicaLag = entries;
     }
 
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
         running = true;
+        if (mode == ServerMode.NIO) {
+            nioServer = new NioHttpServer(port, workers, NodeServer::isPeerRequest, this::handle);
+            nioServer.start();
+            return;
+        }
+
+        serverSocket = new ServerSocket(port);
 
         Thread acceptThread = new Thread(() -> {
             while (running) {
@@ -50,6 +125,7 @@ public class NodeServer {
 
     public void stop() {
         running = false;
+        if (nioServer != null) nioServer.stop();
         try {
             if (serverSocket != null) serverSocket.close();
         } catch (IOException ignored) {}
@@ -63,68 +139,237 @@ public class NodeServer {
              InputStream in = client.getInputStream();
              OutputStream out = client.getOutputStream()) {
 
-            HttpRequest req = HttpRequest.parse(in);
-            if (req == null) {
-                write(out, 400, "bad request");
+            HttpRequest req;
+            try {
+                req = HttpRequest.read(in);
+            } catch (IOException e) {
+                write(null, out, 400, "bad request");
                 return;
             }
+            if (req == null) return;
 
-            route(req, out);
+            handle(req, out);
 
         } catch (Exception e) {
-            // best effort
-            try {
-                OutputStream out = client.getOutputStream();
-                write(out, 500, "internal error");
-            } catch (Exception ignored) {}
+            // client went away
         }
     }
 
+    /** Requests only other nodes send. */
+    private static boolean isPeerRequest(HttpRequest req) {
+        return switch (shardPath(req.path)) {
+            case "/replicate", "/install-snapshot", "/vote", "/read-index", "/ingest", "/log", "/snapshot" -> true;
+            default -> false;
+        };
+    }
+
+    private void handle(HttpRequest req, OutputStream out) throws IOException {
+        try {
+            route(req, out);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            write(req, out, 500, "internal error");
+        }
+    }
+
+    /** {@code path} without a leading {@code /shard/<n>}. */
+    private static String shardPath(String path) {
+        if (!path.startsWith("/shard/")) return path;
+        int end = path.indexOf('/', "/shard/".length());
+        return end < 0 ? "/" : path.substring(end);
+    }
+
+    /**
+     * Routes {@code /shard/<n>/...} to shard n's engine, which is how the engines of one
+     * shard reach each other. Other key requests go to the shard that owns the key; peer
+     * requests without a shard are for shard 0.
+     */
     private void route(HttpRequest req, OutputStream out) throws IOException {
+        AtlasDBEngine shard = null; // named by the path
+        if (req.path.startsWith("/shard/")) {
+            int end = req.path.indexOf('/', "/shard/".length());
+            String n = req.path.substring("/shard/".length(), end < 0 ? req.path.length() : end);
+            int index;
+            try {
+                index = Integer.parseInt(n);
+            } catch (NumberFormatException e) {
+                index = -1;
+            }
+            shard = registry.engine(index);
+            if (shard == null) {
+                write(req, out, 404, "no shard " + n);
+                return;
+            }
+            req = req.withPath(shardPath(req.path));
+        }
+        List<AtlasDBEngine> shards = registry.engines();
+        AtlasDBEngine engine = shard != null ? shard : shards.get(0);
         String path = req.path;
 
         if (path.equals("/health")) {
-            write(out, 200, "ok role=" + role.name());
+            List<AtlasDBEngine> named = shard != null ? List.of(shard) : shards;
+            if (engine.getRole() == Role.REPLICA) {
+                // Lets a load balancer take a replica that fell behind out of the read rotation.
+                long lag = named.stream().mapToLong(AtlasDBEngine::getLag).max().orElse(0);
+                boolean lagging = maxReplicaLag > 0 && lag > maxReplicaLag;
+                write(req, out, lagging ? 503 : 200, (lagging ? "lagging" : "ok") + " role=REPLICA lag=" + lag);
+            } else if (named.size() > 1) {
+                long led = shards.stream().filter(AtlasDBEngine::isLeader).count();
+                write(req, out, 200, "ok shards=" + shards.size() + " leading=" + led);
+            } else {
+                write(req, out, 200, "ok role=" + engine.getRole().name());
+            }
             return;
         }
 
         if (path.startsWith("/kv/")) {
-            handleKV(req, out);
+            handleKV(shard, req, out);
+            return;
+        }
+
+        if (path.equals("/kv")) {
+            handleScan(shard != null ? List.of(shard) : shards, req, out);
+            return;
+        }
+
+        if (path.equals("/batch")) {
+            handleBatch(shard, req, out, false);
+            return;
+        }
+
+        if (path.equals("/ingest")) {
+            handleBatch(engine, req, out, true);
+            return;
+        }
+
+        if (path.equals("/shards") || path.startsWith("/shards/")) {
+            handleShards(req, out);
+            return;
+        }
+
+        if (path.equals("/members") || path.startsWith("/members/")) {
+            handleMembers(shard, req, out);
             return;
         }
 
         if (path.equals("/replicate")) {
-            handleReplicate(req, out);
+            handleReplicate(engine, req, out);
+            return;
+        }
+
+        if (path.equals("/install-snapshot")) {
+            handleInstallSnapshot(engine, req, out);
+            return;
+        }
+
+        if (path.equals("/vote")) {
+            handleVote(engine, req, out);
+            return;
+        }
+
+        if (path.equals("/read-index")) {
+            handleReadIndex(engine, req, out);
+            return;
+        }
+
+        if (path.equals("/log")) {
+            handleLog(engine, req, out);
+            return;
+        }
+
+        if (path.equals("/snapshot")) {
+            handleSnapshot(engine, req, out);
+            return;
+        }
+
+        if (path.equals("/watch")) {
+            if (shard == null && shards.size() > 1) {
+                write(req, out, 400, "watch one shard: /shard/<n>/watch");
+                return;
+            }
+            handleWatch(engine, req, out);
             return;
         }
 
         if (path.startsWith("/metrics")) {
-            handleMetrics(req, out);
+            if (shard == null && shards.size() > 1) handleShardMetrics(req, out);
+            else handleMetrics(engine, req, out);
             return;
         }
 
-        write(out, 404, "not found");
+        write(req, out, 404, "not found");
     }
 
-    private void handleKV(HttpRequest req, OutputStream out) throws IOException {
+    /** @param engine the shard's engine, or null for the shard that owns the key */
+    private void handleKV(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
         // Routes:
-        // GET    /kv/<key>
-        // PUT    /kv/<key>   body=value
-        // DELETE /kv/<key>
+        // GET    /kv/<key>[?consistency=stale|bounded-staleness=<ms>ms|bounded-staleness=<entries>|linearizable]
+        // PUT    /kv/<key>[?ack=leader|quorum|all][&ttl=<seconds>]   body=value
+        // DELETE /kv/<key>[?ack=leader|quorum|all]
 
         String[] parts = req.path.split("/", -1); // ["", "kv", "<key>"]
         if (parts.length < 3 || parts[2].isBlank()) {
-            write(out, 400, "missing key. use /kv/<key>");
+            write(req, out, 400, "missing key. use /kv/<key>");
             return;
         }
         String key = parts[2];
+        if (KVStore.isReserved(key)) {
+            write(req, out, 400, "reserved key");
+            return;
+        }
+        boolean routed = engine == null;
+        if (routed) {
+            engine = registry.engineFor(key);
+            if (engine.isMoved(key)) {
+                // The key's partition moved; this node may not have the new map yet.
+                registry.refresh();
+                engine = registry.engineFor(key);
+            }
+        }
 
         String method = req.method.toUpperCase();
 
         if (method.equals("GET")) {
-            String val = engine.get(key);
-            if (val == null) write(out, 404, "");
-            else write(out, 200, val);
+            ReadConsistency consistency;
+            try {
+                consistency = ReadConsistency.parse(req.query.get("consistency"));
+            } catch (IllegalArgumentException e) {
+                write(req, out, 400, e.getMessage());
+                return;
+            }
+            ByteBuffer val;
+            try {
+                val = engine.getBytes(key, consistency);
+            } catch (IllegalStateException e) {
+                // No leader, leadership unconfirmed, or not caught up in time.
+                write(req, out, 503, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                write(req, out, 502, "read index failed");
+                return;
+            }
+            if (val == null) write(req, out, 404, "");
+            else write(req, out, 200, val);
+            return;
+        }
+
+        AckLevel ack;
+        long ttlSeconds = 0;
+        try {
+            ack = AckLevel.parse(req.query.get("ack"));
+            if (req.query.containsKey("ttl")) ttlSeconds = Long.parseLong(req.query.get("ttl"));
+        } catch (IllegalArgumentException e) {
+            write(req, out, 400, e.getMessage());
+            return;
+        }
+        if (req.query.containsKey("ttl") && (ttlSeconds <= 0 || ttlSeconds > MAX_TTL_SECONDS || !method.equals("PUT"))) {
+            write(req, out, 400, "ttl must be 1.." + MAX_TTL_SECONDS + " seconds, on a PUT");
+            return;
+        }
+
+        if (routed && engine.isMoved(key)) {
+            write(req, out, 503, "key moved; retry");
             return;
         }
 
@@ -132,51 +377,488 @@ public class NodeServer {
         if (!engine.isLeader()) {
             String leader = engine.getLeaderUrl();
             if (leader == null) {
-                write(out, 409, "no leader known");
+                write(req, out, 409, "no leader known");
                 return;
             }
 
-            String url = leader + "/kv/" + key;
+            String url = leader + "/kv/" + key + "?ack=" + ack.name().toLowerCase()
+                    + (ttlSeconds > 0 ? "&ttl=" + ttlSeconds : "");
             try {
+                // Relay the leader's answer as is, so an ack timeout still reads as 504.
                 String body = method.equals("PUT") ? req.bodyUtf8() : null;
-                String resp = HttpForwarder.forward(method, url, body);
-                write(out, 200, resp);
+                PeerClient.Response resp = HttpForwarder.send(method, url, body);
+                write(req, out, resp.code, resp.bodyUtf8());
             } catch (Exception e) {
-                write(out, 502, "forward failed");
+                write(req, out, 502, "forward failed");
             }
             return;
         }
 
-        if (method.equals("PUT")) {
-            String value = req.bodyUtf8();
-            engine.put(key, value);
-            write(out, 200, "ok");
+        try {
+            if (method.equals("PUT")) {
+                String value = req.bodyUtf8();
+                if (ttlSeconds > 0) engine.put(key, value, ttlSeconds * 1000, ack);
+                else engine.put(key, value, ack);
+                write(req, out, 200, "ok");
+                return;
+            }
+
+            if (method.equals("DELETE")) {
+                engine.delete(key, ack);
+                write(req, out, 200, "ok");
+                return;
+            }
+        } catch (KeyMovedException e) {
+            write(req, out, 503, "key moved; retry");
+            return;
+        } catch (IllegalStateException e) {
+            // Applied on the leader but not acknowledged at the requested level in time.
+            write(req, out, 504, e.getMessage());
+            return;
+        }
+
+        write(req, out, 405, "method not allowed");
+    }
+
+    private void handleScan(List<AtlasDBEngine> engines, HttpRequest req, OutputStream out) throws IOException {
+        // GET /kv?start=&end=&prefix=&limit=&cursor=[&consistency=...]
+        // Streams one PUT|<key>|<value> line per entry, in key order, from start (inclusive)
+        // to end (exclusive). A full page ends with CURSOR|<lastKey>; passing that key back as
+        // cursor= continues after it. Over several shards, each is scanned for a page of the
+        // keys the shard map gives it, and the pages are merged.
+        if (!req.method.equalsIgnoreCase("GET")) {
+            write(req, out, 405, "GET required");
+            return;
+        }
+        ReadConsistency consistency;
+        int limit;
+        try {
+            consistency = ReadConsistency.parse(req.query.get("consistency"));
+            limit = req.query.containsKey("limit") ? Integer.parseInt(req.query.get("limit")) : DEFAULT_SCAN_LIMIT;
+        } catch (IllegalArgumentException e) {
+            write(req, out, 400, e.getMessage());
+            return;
+        }
+        if (limit <= 0 || limit > MAX_SCAN_LIMIT) {
+            write(req, out, 400, "limit must be 1.." + MAX_SCAN_LIMIT);
+            return;
+        }
+        String cursor = req.query.get("cursor");
+        String from = cursor != null ? cursor : req.query.get("start");
+
+        // Entries go out as they are visited; the status line waits for the consistency check.
+        ScanResponse body = new ScanResponse(req, out);
+        int n;
+        try {
+            n = engines.size() == 1
+                    ? engines.get(0).scan(from, cursor == null, req.query.get("end"), req.query.get("prefix"), limit,
+                            consistency, body::entry)
+                    : scanShards(engines, registry.map(), from, cursor == null, req.query.get("end"),
+                            req.query.get("prefix"), limit, consistency, body::entry);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UnsupportedOperationException e) {
+            write(req, out, 400, e.getMessage() + " (-Datlasdb.store=ordered)");
+            return;
+        } catch (IllegalStateException e) {
+            write(req, out, 503, e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            write(req, out, 502, "read index failed");
+            return;
+        }
+        body.finish(n == limit);
+    }
+
+    /**
+     * Scans every shard for up to {@code limit} entries it owns by {@code map} and passes on
+     * the first {@code limit} in key order. Entries of partitions that are moving in or have
+     * not been cleaned up after moving out are skipped.
+     */
+    private static int scanShards(List<AtlasDBEngine> engines, ShardMap map, String from, boolean fromInclusive,
+                                  String to, String prefix, int limit, ReadConsistency consistency,
+                                  BiConsumer<String, String> sink) {
+        TreeMap<String, String> merged = new TreeMap<>();
+        for (int k = 0; k < engines.size(); k++) {
+            int shard = k;
+            int[] owned = {0};
+            String[] last = {null};
+            String start = from;
+            boolean inclusive = fromInclusive;
+            int n;
+            do {
+                n = engines.get(k).scan(start, inclusive, to, prefix, limit, consistency, (key, value) -> {
+                    last[0] = key;
+                    if (map.shardOf(key) != shard) return;
+                    merged.put(key, value);
+                    owned[0]++;
+                });
+                start = last[0];
+                inclusive = false;
+            } while (n == limit && owned[0] < limit);
+        }
+        int n = 0;
+        for (Map.Entry<String, String> e : merged.entrySet()) {
+            if (n == limit) break;
+            sink.accept(e.getKey(), e.getValue());
+            n++;
+        }
+        return n;
+    }
+
+    /** A scan's chunked response, started by its first entry. */
+    private final class ScanResponse {
+        private final HttpRequest req;
+        private final OutputStream out;
+        private ChunkedOutputStream chunks;
+        private String lastKey;
+
+        ScanResponse(HttpRequest req, OutputStream out) {
+            this.req = req;
+            this.out = out;
+        }
+
+        void entry(String key, String value) {
+            try {
+                line(Operation.put(key, value).toWalLine());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lastKey = key;
+        }
+
+        void finish(boolean more) throws IOException {
+            if (more) line("CURSOR|" + Operation.escape(lastKey));
+            start();
+            chunks.close();
+        }
+
+        private void line(String line) throws IOException {
+            start();
+            chunks.write(line.getBytes(StandardCharsets.UTF_8));
+            chunks.write('\n');
+        }
+
+        private void start() throws IOException {
+            if (chunks != null) return;
+            boolean keepAlive = mode == ServerMode.NIO && req.keepAlive;
+            String headers =
+                    "HTTP/1.1 200 OK\r\n" +
+                    "Content-Type: text/plain; charset=utf-8\r\n" +
+                    "Transfer-Encoding: chunked\r\n" +
+                    "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                    "\r\n";
+            out.write(headers.getBytes(StandardCharsets.UTF_8));
+            chunks = new ChunkedOutputStream(out, SCAN_CHUNK_BYTES);
+        }
+    }
+
+    /**
+     * @param engine the shard's engine, or null for the shard that owns the batch's keys
+     * @param ingest whether this is data moved in from another shard ({@link AtlasDBEngine#ingest})
+     */
+    private void handleBatch(AtlasDBEngine engine, HttpRequest req, OutputStream out, boolean ingest) throws IOException {
+        // POST /batch[?ack=leader|quorum|all], one line per entry:
+        //   PUT|<key>|<value>   DEL|<key>   IF|<key>|<value>   IFABSENT|<key>
+        // Keys and values are escaped like WAL lines. Written as one entry only if every IF holds.
+        // All keys must belong to one shard.
+        // POST /shard/<n>/ingest takes the same lines plus EXP|<key>|<expiresAt>, reserved keys
+        // included; only rebalancing sends it.
+        if (!req.method.equalsIgnoreCase("POST")) {
+            write(req, out, 405, "POST required");
+            return;
+        }
+        AckLevel ack;
+        try {
+            ack = AckLevel.parse(req.query.get("ack"));
+        } catch (IllegalArgumentException e) {
+            write(req, out, 400, e.getMessage());
+            return;
+        }
+
+        ArrayList<Operation> ops = new ArrayList<>();
+        ArrayList<Condition> conditions = new ArrayList<>();
+        for (String line : req.bodyUtf8().split("\n")) {
+            if (line.isBlank()) continue;
+            Condition c = Condition.fromLine(line);
+            if (c != null && (ingest || !KVStore.isReserved(c.getKey()))) {
+                conditions.add(c);
+                continue;
+            }
+            Operation op = c == null ? Operation.fromWalLine(line) : null;
+            boolean allowed = op != null && (ingest
+                    ? op.getType() != Operation.Type.TERM && op.getType() != Operation.Type.BATCH
+                    : (op.getType() == Operation.Type.PUT || op.getType() == Operation.Type.DELETE)
+                            && !KVStore.isReserved(op.getKey()));
+            if (!allowed) {
+                write(req, out, 400, "invalid batch line: " + line.trim());
+                return;
+            }
+            ops.add(op);
+        }
+        if (ops.isEmpty()) {
+            write(req, out, 400, "empty batch");
+            return;
+        }
+
+        if (engine == null) {
+            ShardMap map = registry.map();
+            Set<Integer> owners = new HashSet<>();
+            for (Operation op : ops) owners.add(map.shardOf(op.getKey()));
+            for (Condition c : conditions) owners.add(map.shardOf(c.getKey()));
+            if (owners.size() > 1) {
+                write(req, out, 400, "batch keys span shards " + owners);
+                return;
+            }
+            engine = registry.engine(owners.iterator().next());
+        }
+
+        if (!engine.isLeader()) {
+            String leader = engine.getLeaderUrl();
+            if (leader == null) {
+                write(req, out, 409, "no leader known");
+                return;
+            }
+            String url = leader + (ingest ? "/ingest" : "/batch")
+                    + (req.query.containsKey("ack") ? "?ack=" + ack.name().toLowerCase() : "");
+            try {
+                // Relay the leader's answer as is, so a failed condition still reads as 409.
+                PeerClient.Response resp = HttpForwarder.send("POST", url, req.bodyUtf8());
+                write(req, out, resp.code, resp.bodyUtf8());
+            } catch (Exception e) {
+                write(req, out, 502, "forward failed");
+            }
+            return;
+        }
+
+        try {
+            if (ingest) engine.ingest(ops, conditions, ack);
+            else engine.batch(ops, conditions, ack);
+        } catch (ConditionFailedException e) {
+            write(req, out, 409, e.getMessage());
+            return;
+        } catch (KeyMovedException e) {
+            write(req, out, 503, "key moved; retry");
+            return;
+        } catch (IllegalStateException e) {
+            write(req, out, 504, e.getMessage());
             return;
         }
+        write(req, out, 200, "ok " + ops.size());
+    }
 
-        if (method.equals("DELETE")) {
-            engine.delete(key);
-            write(out, 200, "ok");
+    /**
+     * Writes for rebalancing: straight into the shard's engine if it leads here, otherwise
+     * through its leader's {@code /ingest}, acknowledged by a quorum either way.
+     */
+    private void ingest(int shard, List<Operation> ops, List<Condition> conditions) {
+        AtlasDBEngine engine = registry.engine(shard);
+        if (engine == null) throw new IllegalStateException("no shard " + shard);
+        if (engine.isLeader()) {
+            engine.ingest(ops, conditions, AckLevel.QUORUM);
+            return;
+        }
+        String leader = engine.getLeaderUrl();
+        if (leader == null) throw new IllegalStateException("no leader known for shard " + shard);
+        StringBuilder body = new StringBuilder();
+        for (Condition c : conditions) body.append(c.toLine()).append('\n');
+        for (Operation op : ops) body.append(op.toWalLine()).append('\n');
+        PeerClient.Response resp;
+        try {
+            resp = HttpForwarder.send("POST", leader + "/ingest?ack=quorum", body.toString());
+        } catch (IOException e) {
+            throw new RuntimeException("ingest into shard " + shard + " failed", e);
+        }
+        if (resp.code != 200) throw new IllegalStateException("shard " + shard + ": " + resp.bodyUtf8());
+    }
+
+    private void handleShards(HttpRequest req, OutputStream out) throws IOException {
+        // GET  /shards                              map version, partitions of each shard, last job
+        // POST /shards/split?shard=<n>[&into=<m>]   half of shard n's partitions to m, or to a new shard
+        // POST /shards/merge?shard=<n>&into=<m>     all of shard n's partitions to m
+        // POST /shards/move?shard=<n>[&into=<m>]    all of shard n's partitions to m, or to a new shard
+        // A job runs on the leader of shard n; other nodes pass the request on. 200 once started.
+        if (req.path.equals("/shards")) {
+            write(req, out, 200, rebalancer.status());
+            return;
+        }
+        if (!req.method.equalsIgnoreCase("POST")) {
+            write(req, out, 405, "POST required");
+            return;
+        }
+        int from, into;
+        try {
+            from = Integer.parseInt(req.query.get("shard"));
+            into = req.query.containsKey("into") ? Integer.parseInt(req.query.get("into")) : -1;
+        } catch (NumberFormatException e) {
+            write(req, out, 400, "shard= and into= must be shard numbers");
+            return;
+        }
+        AtlasDBEngine source = registry.engine(from);
+        if (source == null) {
+            write(req, out, 404, "no shard " + from);
+            return;
+        }
+        if (!source.isLeader()) {
+            String leader = source.getLeaderUrl();
+            if (leader == null) {
+                write(req, out, 409, "no leader known");
+                return;
+            }
+            String url = leader + req.path + "?shard=" + from + (into >= 0 ? "&into=" + into : "");
+            try {
+                PeerClient.Response resp = HttpForwarder.send("POST", url, "");
+                write(req, out, resp.code, resp.bodyUtf8());
+            } catch (Exception e) {
+                write(req, out, 502, "forward failed");
+            }
             return;
         }
+        try {
+            String started = switch (req.path) {
+                case "/shards/split" -> rebalancer.split(from, into);
+                case "/shards/merge" -> rebalancer.merge(from, into);
+                case "/shards/move" -> rebalancer.move(from, into);
+                default -> null;
+            };
+            if (started == null) write(req, out, 404, "not found");
+            else write(req, out, 200, started);
+        } catch (IllegalArgumentException e) {
+            write(req, out, 400, e.getMessage());
+        } catch (IllegalStateException e) {
+            write(req, out, 409, e.getMessage());
+        }
+    }
 
-        write(out, 405, "method not allowed");
+    /** @param named the shard named by the path, or null for the one in {@code shard=}, or all of them */
+    private void handleMembers(AtlasDBEngine named, HttpRequest req, OutputStream out) throws IOException {
+        // GET  /members                          voters and learners of every shard's group
+        // POST /members/add?node=<url>           adds the node at base URL <url> as a learner
+        // POST /members/promote?node=<url>       makes learner <url> a voter once it has caught up
+        // POST /members/remove?node=<url>        removes voter or learner <url>
+        // Changes apply to every shard's group, or only to shard=<k>; each is made by the
+        // group's leader, and other nodes pass it on. 200 once a quorum holds the change.
+        List<AtlasDBEngine> engines = registry.engines();
+        List<Integer> shards = new ArrayList<>();
+        try {
+            if (named != null) shards.add(engines.indexOf(named));
+            else if (req.query.containsKey("shard")) shards.add(Integer.parseInt(req.query.get("shard")));
+            else for (int k = 0; k < engines.size(); k++) shards.add(k);
+        } catch (NumberFormatException e) {
+            write(req, out, 400, "shard= must be a shard number");
+            return;
+        }
+        for (int k : shards) {
+            if (registry.engine(k) == null) {
+                write(req, out, 404, "no shard " + k);
+                return;
+            }
+        }
+        boolean one = engines.size() == 1;
+        if (req.path.equals("/members")) {
+            StringBuilder body = new StringBuilder();
+            for (int k : shards) {
+                Membership m = registry.engine(k).getMembers();
+                String at = one ? "" : "[" + k + "]";
+                body.append("voters").append(at).append('=').append(String.join(",", m.voters())).append('\n')
+                    .append("learners").append(at).append('=').append(String.join(",", m.learners())).append('\n');
+            }
+            write(req, out, 200, body.toString());
+            return;
+        }
+        if (!req.method.equalsIgnoreCase("POST")) {
+            write(req, out, 405, "POST required");
+            return;
+        }
+        String action = req.path.substring("/members/".length());
+        String node = req.query.get("node");
+        if (node == null || node.isEmpty()) {
+            write(req, out, 400, "node= required");
+            return;
+        }
+        if (!action.equals("add") && !action.equals("promote") && !action.equals("remove")) {
+            write(req, out, 404, "not found");
+            return;
+        }
+        // The first failure decides the status; every shard is still tried.
+        int code = 200;
+        StringBuilder body = new StringBuilder();
+        for (int k : shards) {
+            AtlasDBEngine engine = registry.engine(k);
+            int shardCode;
+            String result;
+            if (!engine.isLeader()) {
+                String leader = engine.getLeaderUrl();
+                if (leader == null) {
+                    shardCode = 409;
+                    result = "no leader known";
+                } else {
+                    // The leader's base URL; shard= names the group there.
+                    String suffix = "/shard/" + k;
+                    String base = leader.endsWith(suffix) ? leader.substring(0, leader.length() - suffix.length()) : leader;
+                    try {
+                        PeerClient.Response resp = HttpForwarder.send("POST", base + req.path + "?node="
+                                + URLEncoder.encode(node, StandardCharsets.UTF_8) + "&shard=" + k, "");
+                        shardCode = resp.code;
+                        result = resp.bodyUtf8().strip();
+                    } catch (Exception e) {
+                        shardCode = 502;
+                        result = "forward failed";
+                    }
+                }
+            } else {
+                String member = registry.map().url(node, k);
+                try {
+                    Membership m = switch (action) {
+                        case "add" -> engine.addLearner(member);
+                        case "promote" -> engine.promote(member);
+                        default -> engine.removeMember(member);
+                    };
+                    shardCode = 200;
+                    result = m.toString();
+                } catch (IllegalArgumentException e) {
+                    shardCode = 400;
+                    result = e.getMessage();
+                } catch (IllegalStateException e) {
+                    shardCode = 409;
+                    result = e.getMessage();
+                } catch (RuntimeException e) {
+                    shardCode = 503;
+                    result = "change not acknowledged: " + e.getMessage();
+                }
+            }
+            if (code == 200) code = shardCode;
+            body.append(one ? "" : "shard " + k + ": ").append(result).append('\n');
+        }
+        write(req, out, code, body.toString());
     }
 
-    private void handleReplicate(HttpRequest req, OutputStream out) throws IOException {
+    private void handleReplicate(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
         // Followers accept replication packets via POST body:
         // fromIndex\n
         // opLine\n
         // opLine\n
         // ...
+        // An elected leader adds ?term=&leader=&prevTerm=&commit=
 
         if (!req.method.equalsIgnoreCase("POST")) {
-            write(out, 405, "POST required");
+            write(req, out, 405, "POST required");
             return;
         }
 
-        if (engine.isLeader()) {
-            write(out, 409, "leader does not accept replication");
+        long term, prevTerm, commit;
+        try {
+            term = Long.parseLong(req.query.getOrDefault("term", "0"));
+            prevTerm = Long.parseLong(req.query.getOrDefault("prevTerm", "0"));
+            commit = Long.parseLong(req.query.getOrDefault("commit", "0"));
+        } catch (NumberFormatException e) {
+            write(req, out, 400, "invalid term, prevTerm or commit");
+            return;
+        }
+
+        // A deposed leader still has to hear about the newer term.
+        if (term == 0 && engine.isLeader()) {
+            write(req, out, 409, "leader does not accept replication");
             return;
         }
 
@@ -184,15 +866,15 @@ public class NodeServer {
         String[] lines = body.split("\n");
 
         if (lines.length < 1) {
-            write(out, 400, "invalid replication payload");
+            write(req, out, 400, "invalid replication payload");
             return;
         }
 
-        int fromIndex;
+        long fromIndex;
         try {
-            fromIndex = Integer.parseInt(lines[0].trim());
+            fromIndex = Long.parseLong(lines[0].trim());
         } catch (Exception e) {
-            write(out, 400, "invalid fromIndex");
+            write(req, out, 400, "invalid fromIndex");
             return;
         }
 
@@ -204,126 +886,464 @@ public class NodeServer {
             if (op != null) ops.add(op);
         }
 
-        engine.receiveReplication(new ReplicationPacket(fromIndex, List.copyOf(ops)));
-        write(out, 200, "ok");
+        try {
+            // Acknowledged once durable; applying to the store happens behind it.
+            WriteAheadLog.await(engine.receiveReplicationAsync(new ReplicationPacket(fromIndex, List.copyOf(ops),
+                    term, req.query.get("leader"), prevTerm, commit)));
+        } catch (StaleTermException e) {
+            write(req, out, 409, HttpReplicator.STALE_TERM_PREFIX + e.getTerm());
+            return;
+        } catch (OutOfSyncException e) {
+            // Tells the leader where to resume from.
+            write(req, out, 409, "expected fromIndex=" + e.getExpectedIndex());
+            return;
+        } catch (IllegalStateException e) {
+            write(req, out, 409, e.getMessage());
+            return;
+        }
+        write(req, out, 200, "ok");
     }
 
-    private void handleMetrics(HttpRequest req, OutputStream out) throws IOException {
-        String body =
-                "role=" + role.name() + "\n" +
-                "lastApplied=" + engine.getLastAppliedIndex() + "\n" +
-                "commitIndex=" + engine.getCommitIndex() + "\n";
+    private void handleReadIndex(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        // GET /read-index -> 200 <index>, or 409 if this node is not a confirmed leader
+        try {
+            write(req, out, 200, String.valueOf(engine.readIndex()));
+        } catch (IllegalStateException e) {
+            write(req, out, 409, e.getMessage());
+        }
+    }
+
+    private void handleVote(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        // POST /vote?term=<term>&candidate=<url>&lastIndex=<index>&lastTerm=<term>
+        // 200 granted|denied, or 409 stale term=<currentTerm>
+
+        if (!req.method.equalsIgnoreCase("POST")) {
+            write(req, out, 405, "POST required");
+            return;
+        }
 
-        write(out, 200, body);
+        long term, lastIndex, lastTerm;
+        String candidate = req.query.get("candidate");
+        try {
+            term = Long.parseLong(req.query.get("term"));
+            lastIndex = Long.parseLong(req.query.get("lastIndex"));
+            lastTerm = Long.parseLong(req.query.get("lastTerm"));
+        } catch (Exception e) {
+            write(req, out, 400, "invalid vote request");
+            return;
+        }
+        if (candidate == null || candidate.isBlank()) {
+            write(req, out, 400, "missing candidate");
+            return;
+        }
+
+        try {
+            boolean granted = engine.handleVote(term, candidate, lastIndex, lastTerm);
+            write(req, out, 200, granted ? "granted" : "denied");
+        } catch (StaleTermException e) {
+            write(req, out, 409, HttpReplicator.STALE_TERM_PREFIX + e.getTerm());
+        } catch (IllegalStateException e) {
+            write(req, out, 409, e.getMessage());
+        }
     }
 
-    private static void write(OutputStream out, int code, String body) throws IOException {
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    private void handleLog(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        // GET /log?from=<n>[&max=<entries>][&waitMs=<ms>]   committed entries after the first n
+        // 200: "<n> <commitIndex> <leader>" (self, a URL or -), then one WAL line per entry;
+        //      waits up to waitMs for an entry when there is none yet
+        // 409 snapshot index=<i>: the entries were compacted into the snapshot at i
+        long from, waitMs;
+        int max;
+        try {
+            from = Long.parseLong(req.query.getOrDefault("from", ""));
+            max = Integer.parseInt(req.query.getOrDefault("max", String.valueOf(LogTailer.MAX_BATCH_ENTRIES)));
+            waitMs = Long.parseLong(req.query.getOrDefault("waitMs", "0"));
+        } catch (NumberFormatException e) {
+            write(req, out, 400, "invalid from, max or waitMs");
+            return;
+        }
+        if (from < 0 || max < 1 || max > LogTailer.MAX_BATCH_ENTRIES || waitMs < 0 || waitMs > MAX_LOG_WAIT_MS) {
+            write(req, out, 400, "from must be >= 0, max 1.." + LogTailer.MAX_BATCH_ENTRIES
+                    + " and waitMs 0.." + MAX_LOG_WAIT_MS);
+            return;
+        }
+        List<Operation> ops;
+        try {
+            ops = engine.readCommitted(from, max, waitMs);
+        } catch (IllegalStateException e) {
+            Snapshot snapshot = engine.getLatestSnapshot();
+            if (snapshot == null) write(req, out, 503, e.getMessage());
+            else write(req, out, 409, "snapshot index=" + snapshot.getIndex());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write(req, out, 503, "interrupted");
+            return;
+        }
+        // Read after the entries, so the commit index covers them.
+        String leader = engine.isLeader() ? "self" : Objects.toString(engine.getLeaderUrl(), "-");
+        StringBuilder body = new StringBuilder().append(from).append(' ')
+                .append(engine.getLeaderCommitIndex()).append(' ').append(leader).append('\n');
+        for (Operation op : ops) body.append(op.toWalLine()).append('\n');
+        write(req, out, 200, body.toString());
+    }
 
-        String status = switch (code) {
-            case 200 -> "OK";
-            case 400 -> "Bad Request";
-            case 404 -> "Not Found";
-            case 405 -> "Method Not Allowed";
-            case 409 -> "Conflict";
-            case 502 -> "Bad Gateway";
-            default -> "Internal Server Error";
-        };
+    private void handleSnapshot(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        // GET /snapshot?index=<i>&offset=<bytes>   up to SNAPSHOT_CHUNK_BYTES of the snapshot file
+        // at i; a shorter chunk is the last. 404 if this node no longer keeps that snapshot.
+        long index, offset;
+        try {
+            index = Long.parseLong(req.query.getOrDefault("index", ""));
+            offset = Long.parseLong(req.query.getOrDefault("offset", "0"));
+        } catch (NumberFormatException e) {
+            write(req, out, 400, "invalid index or offset");
+            return;
+        }
+        Snapshot snapshot = engine.getSnapshot(index);
+        if (snapshot == null) {
+            write(req, out, 404, "no snapshot at " + index);
+            return;
+        }
+        ByteBuffer chunk;
+        try (FileChannel ch = FileChannel.open(snapshot.getPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (offset < 0 || offset > size) {
+                write(req, out, 400, "offset outside the snapshot's " + size + " bytes");
+                return;
+            }
+            chunk = ByteBuffer.allocate((int) Math.min(SNAPSHOT_CHUNK_BYTES, size - offset));
+            while (chunk.hasRemaining() && ch.read(chunk, offset + chunk.position()) >= 0) {
+                // until the chunk is full
+            }
+        } catch (NoSuchFileException e) {
+            write(req, out, 404, "no snapshot at " + index);
+            return;
+        }
+        write(req, out, 200, chunk.flip());
+    }
 
+    private void handleWatch(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        // GET /watch[?fromIndex=<i>][&prefix=<p>][&format=lines|sse]
+        // Streams committed changes to keys starting with prefix, from log index i on, or from
+        // the next commit; the response does not end. lines: "<index> <WAL line>" per change,
+        // "#" heartbeats. sse (also chosen by Accept: text/event-stream): one event per log
+        // index, its id the index, so a reconnect with Last-Event-ID resumes after it.
+        // 409 if the log before fromIndex was compacted: resume from a later index.
+        if (!req.method.equalsIgnoreCase("GET")) {
+            write(req, out, 405, "GET required");
+            return;
+        }
+        ChangeFeed.Format format;
+        long fromIndex;
+        try {
+            String f = req.query.get("format");
+            boolean eventStream = req.headers.getOrDefault("accept", "").contains("text/event-stream");
+            format = f == null && eventStream ? ChangeFeed.Format.SSE : ChangeFeed.Format.parse(f);
+            String lastEventId = req.headers.get("last-event-id");
+            if (req.query.containsKey("fromIndex")) fromIndex = Long.parseLong(req.query.get("fromIndex"));
+            else fromIndex = lastEventId != null ? Long.parseLong(lastEventId) + 1 : 0;
+        } catch (IllegalArgumentException e) {
+            write(req, out, 400, e.getMessage());
+            return;
+        }
+        if (fromIndex < 0) {
+            write(req, out, 400, "fromIndex must be >= 0");
+            return;
+        }
+        if (fromIndex > 0 && fromIndex - 1 < engine.getLogStartIndex()) {
+            write(req, out, 409, "log before index " + (engine.getLogStartIndex() + 1) + " was compacted");
+            return;
+        }
+
+        boolean keepAlive = mode == ServerMode.NIO && req.keepAlive;
         String headers =
-                "HTTP/1.1 " + code + " " + status + "\r\n" +
-                "Content-Type: text/plain; charset=utf-8\r\n" +
-                "Content-Length: " + bytes.length + "\r\n" +
-                "Connection: close\r\n" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: " + (format == ChangeFeed.Format.SSE ? "text/event-stream" : "text/plain; charset=utf-8") + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
                 "\r\n";
-
         out.write(headers.getBytes(StandardCharsets.UTF_8));
-        out.write(bytes);
+        if (out instanceof ResponseBuffer response) {
+            // The stream goes on from the NIO server's threads once this returns.
+            engine.getChangeFeed().watch(fromIndex, req.query.getOrDefault("prefix", ""), format,
+                    new ChunkedSink(response.startStream()));
+            return;
+        }
         out.flush();
+        BlockingStream stream = new BlockingStream(out);
+        engine.getChangeFeed().watch(fromIndex, req.query.getOrDefault("prefix", ""), format, new ChunkedSink(stream));
+        stream.awaitClosed();
     }
 
-    // ---------------- minimal HTTP request parser ----------------
+    /** A watch's response body, each send one chunk of chunked transfer coding. */
+    private static final class ChunkedSink implements ChangeFeed.Sink {
+        private final ResponseStream stream;
 
-    private static final class HttpRequest {
-        final String method;
-        final String path;
-        final Map<String, String> headers;
-        final byte[] body;
+        ChunkedSink(ResponseStream stream) {
+            this.stream = stream;
+        }
 
-        private HttpRequest(String method, String path, Map<String, String> headers, byte[] body) {
-            this.method = method;
-            this.path = path;
-            this.headers = headers;
-            this.body = body;
+        @Override
+        public boolean send(ByteBuffer bytes) {
+            byte[] size = (Integer.toHexString(bytes.remaining()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer chunk = ByteBuffer.allocate(size.length + bytes.remaining() + 2);
+            chunk.put(size).put(bytes).put((byte) '\r').put((byte) '\n');
+            return stream.send(chunk.flip());
         }
 
-        String bodyUtf8() {
-            return new String(body, StandardCharsets.UTF_8);
+        @Override
+        public long queuedBytes() {
+            return stream.queuedBytes();
         }
 
-        static HttpRequest parse(InputStream in) throws IOException {
-            BufferedInputStream bin = new BufferedInputStream(in);
+        @Override
+        public void onDrained(Runnable listener) {
+            stream.onDrained(listener);
+        }
 
-            String requestLine = readLine(bin);
-            if (requestLine == null || requestLine.isBlank()) return null;
+        @Override
+        public boolean isOpen() {
+            return stream.isOpen();
+        }
 
-            String[] rl = requestLine.split(" ");
-            if (rl.length < 2) return null;
+        @Override
+        public void close() {
+            stream.send(ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+            stream.close();
+        }
+    }
 
-            String method = rl[0].trim();
-            String fullPath = rl[1].trim();
-            String path = fullPath.split("\\?", 2)[0]; // ignore query
+    /**
+     * A watch on the blocking server, which holds the connection's thread until it ends.
+     * Sends write to the socket directly, so a slow client holds up its own watch only.
+     */
+    private static final class BlockingStream implements ResponseStream {
+        private final OutputStream out;
+        private Runnable listener = () -> {}; // guarded by this
+        private boolean closed;               // guarded by this
 
-            Map<String, String> headers = new HashMap<>();
-            String line;
-            while ((line = readLine(bin)) != null) {
-                if (line.isEmpty()) break; // end headers
-                int idx = line.indexOf(':');
-                if (idx <= 0) continue;
-                String k = line.substring(0, idx).trim().toLowerCase();
-                String v = line.substring(idx + 1).trim();
-                headers.put(k, v);
-            }
+        BlockingStream(OutputStream out) {
+            this.out = out;
+        }
 
-            int contentLen = 0;
-            if (headers.containsKey("content-length")) {
+        @Override
+        public boolean send(ByteBuffer bytes) {
+            Runnable gone;
+            synchronized (this) {
+                if (closed) return false;
                 try {
-                    contentLen = Integer.parseInt(headers.get("content-length"));
-                } catch (Exception ignored) {}
+                    out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                    out.flush();
+                    return true;
+                } catch (IOException e) {
+                    closed = true;
+                    notifyAll();
+                    gone = listener;
+                }
             }
+            gone.run();
+            return false;
+        }
+
+        @Override
+        public long queuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void onDrained(Runnable listener) {
+            this.listener = listener;
+        }
 
-            byte[] body = new byte[0];
-            if (contentLen > 0) {
-                body = bin.readNBytes(contentLen);
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized void awaitClosed() {
+            try {
+                while (!closed) wait();
+            } catch (InterruptedException e) {
+                closed = true;
+                Thread.currentThread().interrupt();
             }
+        }
+    }
+
+    private void handleInstallSnapshot(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        // POST /install-snapshot?index=<lastIncludedIndex>&offset=<byteOffset>&done=<true|false>
+        //                       [&term=&leader=&prevTerm=<term of lastIncludedIndex>&commit=]
+        // body = raw snapshot file bytes starting at offset
 
-            return new HttpRequest(method, path, headers, body);
+        if (!req.method.equalsIgnoreCase("POST")) {
+            write(req, out, 405, "POST required");
+            return;
         }
 
-        private static String readLine(BufferedInputStream bin) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int prev = -1;
-            while (true) {
-                int b = bin.read();
-                if (b == -1) break;
+        long index, offset, term, prevTerm, commit;
+        try {
+            index = Long.parseLong(req.query.get("index"));
+            offset = Long.parseLong(req.query.get("offset"));
+            term = Long.parseLong(req.query.getOrDefault("term", "0"));
+            prevTerm = Long.parseLong(req.query.getOrDefault("prevTerm", "0"));
+            commit = Long.parseLong(req.query.getOrDefault("commit", "0"));
+        } catch (Exception e) {
+            write(req, out, 400, "invalid index or offset");
+            return;
+        }
+        if (index <= 0 || offset < 0) {
+            write(req, out, 400, "invalid index or offset");
+            return;
+        }
+        boolean done = Boolean.parseBoolean(req.query.get("done"));
+        ReplicationPacket header = new ReplicationPacket(index, List.of(), term, req.query.get("leader"), prevTerm, commit);
 
-                if (prev == '\r' && b == '\n') {
-                    byte[] arr = baos.toByteArray();
-                    int len = arr.length;
-                    if (len > 0 && arr[len - 1] == '\r') {
-                        return new String(arr, 0, len - 1, StandardCharsets.ISO_8859_1);
-                    }
-                    return new String(arr, StandardCharsets.ISO_8859_1);
-                }
+        try {
+            // Every chunk counts as leader contact, so a long transfer does not trigger an election.
+            engine.checkLeaderTerm(header);
+        } catch (StaleTermException e) {
+            write(req, out, 409, HttpReplicator.STALE_TERM_PREFIX + e.getTerm());
+            return;
+        }
+        if (engine.isLeader()) {
+            write(req, out, 409, "leader does not accept snapshots");
+            return;
+        }
 
-                baos.write(b);
-                prev = b;
+        Path file = engine.snapshotIncomingFile(index);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // The first chunk restarts the transfer; later chunks must continue it exactly.
+            if (offset == 0) ch.truncate(0);
+            if (ch.size() != offset) {
+                write(req, out, 409, "expected offset=" + ch.size());
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(req.body);
+            while (buf.hasRemaining()) ch.write(buf, offset + buf.position());
+            if (done) ch.force(true);
+        }
 
-                if (baos.size() > 64 * 1024) throw new IOException("header line too long");
+        if (done) {
+            try {
+                engine.installSnapshot(header);
+            } catch (StaleTermException e) {
+                write(req, out, 409, HttpReplicator.STALE_TERM_PREFIX + e.getTerm());
+                return;
+            } catch (IllegalStateException e) {
+                write(req, out, 409, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                write(req, out, 400, "snapshot rejected: " + e.getMessage());
+                return;
             }
+        }
+        write(req, out, 200, "ok");
+    }
+
+    private void handleMetrics(AtlasDBEngine engine, HttpRequest req, OutputStream out) throws IOException {
+        String body =
+                "role=" + engine.getRole().name() + "\n" +
+                "term=" + engine.getCurrentTerm() + "\n" +
+                "leader=" + (engine.isLeader() ? "self" : Objects.toString(engine.getLeaderUrl(), "")) + "\n" +
+                "lastApplied=" + engine.getLastAppliedIndex() + "\n" +
+                "durableIndex=" + engine.getDurableIndex() + "\n" +
+                "applyLag=" + Math.max(0, engine.getDurableIndex() - engine.getLastAppliedIndex()) + "\n" +
+                "commitIndex=" + engine.getCommitIndex() + "\n" +
+                "lag=" + engine.getLag() + "\n" +
+                "snapshotIndex=" + engine.getSnapshotIndex() + "\n" +
+                "persistedIndex=" + engine.getPersistedIndex() + "\n" +
+                "expiringKeys=" + engine.getExpiringKeys() + "\n" +
+                "voters=" + engine.getMembers().voters().size() + "\n" +
+                "learners=" + engine.getMembers().learners().size() + "\n" +
+                "watchers=" + engine.getWatchers() + "\n";
+        HotKeyCache cache = engine.getReadCache();
+        if (cache != null) {
+            body += "cacheHits=" + cache.hits() + "\n" +
+                    "cacheMisses=" + cache.misses() + "\n" +
+                    "cacheEvictions=" + cache.evictions() + "\n" +
+                    "cacheEntries=" + cache.entries() + "\n" +
+                    "cacheBytes=" + cache.bytes() + "\n";
+        }
+        if (engine.getUpstream() != null) body += "upstream=" + engine.getUpstream() + "\n";
+        StringBuilder followers = new StringBuilder();
+        engine.getReplicationStatus().forEach((url, match) ->
+                followers.append("matchIndex[").append(url).append("]=").append(match).append("\n"));
+        body += followers;
+
+        write(req, out, 200, body);
+    }
+
+    /** Per-shard summary; {@code /shard/<n>/metrics} has the details of one shard. */
+    private void handleShardMetrics(HttpRequest req, OutputStream out) throws IOException {
+        List<AtlasDBEngine> shards = registry.engines();
+        StringBuilder body = new StringBuilder("shards=" + shards.size() + "\n"
+                + "shardMapVersion=" + registry.map().version() + "\n");
+        for (int i = 0; i < shards.size(); i++) {
+            AtlasDBEngine engine = shards.get(i);
+            body.append("role[").append(i).append("]=").append(engine.getRole().name()).append("\n")
+                .append("leader[").append(i).append("]=")
+                .append(engine.isLeader() ? "self" : Objects.toString(engine.getLeaderUrl(), "")).append("\n")
+                .append("lastApplied[").append(i).append("]=").append(engine.getLastAppliedIndex()).append("\n")
+                .append("commitIndex[").append(i).append("]=").append(engine.getCommitIndex()).append("\n")
+                .append("lag[").append(i).append("]=").append(engine.getLag()).append("\n")
+                .append("partitions[").append(i).append("]=").append(registry.map().partitionsOf(i).cardinality()).append("\n");
+        }
+        write(req, out, 200, body.toString());
+    }
+
+    /** Writes a complete response; the connection stays open only if both sides want it. */
+    private void write(HttpRequest req, OutputStream out, int code, String body) throws IOException {
+        write(req, out, code, ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Writes a complete response with {@code body} as it is. The NIO server queues the body
+     * buffer itself behind the headers, so a value from an off-heap store goes from the
+     * arena to the socket without an intermediate copy.
+     */
+    private void write(HttpRequest req, OutputStream out, int code, ByteBuffer body) throws IOException {
+        boolean keepAlive = mode == ServerMode.NIO && req != null && req.keepAlive;
 
-            if (baos.size() == 0) return null;
-            return new String(baos.toByteArray(), StandardCharsets.ISO_8859_1);
+        String status = switch (code) {
+            case 200 -> "OK";
+            case 400 -> "Bad Request";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            default -> "Internal Server Error";
+        };
+
+        String headers =
+                "HTTP/1.1 " + code + " " + status + "\r\n" +
+                "Content-Type: text/plain; charset=utf-8\r\n" +
+                "Content-Length: " + body.remaining() + "\r\n" +
+                "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                "\r\n";
+
+        out.write(headers.getBytes(StandardCharsets.UTF_8));
+        if (out instanceof ResponseBuffer response) {
+            response.append(body);
+        } else if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(body.remaining(), 8192)];
+            ByteBuffer src = body.duplicate();
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
         }
+        out.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,391 @@
+package com.atlasdb.net;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP/1.1 client for node-to-node calls, with a pool of persistent connections per peer.
+ *
+ * Calls to a peer are queued and carried out over at most {@code maxConnectionsPerPeer}
+ * keep-alive connections, one call at a time per connection; a connection that finished a
+ * call takes the next queued one. Any number of calls can therefore be outstanding while
+ * the peer sees only a handful of sockets, and no thread waits per outstanding call.
+ * Connecting and every read are bounded by timeouts, so an unresponsive peer fails calls
+ * instead of holding their callers forever.
+ *
+ * A call that fails on a pooled connection before any response arrived is retried once on
+ * a new connection, since the peer may have closed the idle one; every endpoint used
+ * between nodes tolerates such a repeat.
+ */
+public final class PeerClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30_000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_PEER = 8;
+    static final long IDLE_TIMEOUT_MS = 30_000;
+
+    private static volatile PeerClient shared = new PeerClient(
+            DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_CONNECTIONS_PER_PEER);
+    private static volatile PeerClient forwarding = new PeerClient(
+            DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_CONNECTIONS_PER_PEER);
+
+    /** The client for replication, snapshot, vote and read-index calls. */
+    public static PeerClient shared() {
+        return shared;
+    }
+
+    /**
+     * The client for client writes a follower relays to the leader. It has its own
+     * connections so that writes waiting for their acknowledgement never hold up elections
+     * or replication queued to the same peer.
+     */
+    public static PeerClient forwarding() {
+        return forwarding;
+    }
+
+    /** Replaces both clients. */
+    public static void configure(int connectTimeoutMs, int readTimeoutMs, int maxConnectionsPerPeer) {
+        shared = new PeerClient(connectTimeoutMs, readTimeoutMs, maxConnectionsPerPeer);
+        forwarding = new PeerClient(connectTimeoutMs, readTimeoutMs, maxConnectionsPerPeer);
+    }
+
+    /** A response; the body is read completely. */
+    public static final class Response {
+        public final int code;
+        public final byte[] body;
+
+        Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public String bodyUtf8() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** A request body of known length, written directly to the connection. */
+    public interface Body {
+        long length();
+
+        void writeTo(SocketChannel out) throws IOException;
+
+        static Body of(byte[] bytes) {
+            return new BytesBody(bytes);
+        }
+
+        /** {@code length} bytes of {@code file} from {@code offset}, sent with {@link FileChannel#transferTo}. */
+        static Body of(FileChannel file, long offset, long length) {
+            return new Body() {
+                @Override
+                public long length() {
+                    return length;
+                }
+
+                @Override
+                public void writeTo(SocketChannel out) throws IOException {
+                    long sent = 0;
+                    while (sent < length) {
+                        long n = file.transferTo(offset + sent, length - sent, out);
+                        if (n <= 0 && file.size() < offset + length) throw new IOException("file shrank while sending");
+                        sent += n;
+                    }
+                }
+            };
+        }
+    }
+
+    private static final class BytesBody implements Body {
+        final byte[] bytes;
+
+        BytesBody(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+
+        @Override
+        public void writeTo(SocketChannel out) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) out.write(buf);
+        }
+    }
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int maxConnectionsPerPeer;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ExecutorService drivers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "atlasdb-peer-client");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PeerClient(int connectTimeoutMs, int readTimeoutMs, int maxConnectionsPerPeer) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+    }
+
+    /** Blocking {@link #sendAsync(String, String, Body, int)} with the default read timeout. */
+    public Response send(String method, String url, Body body) throws IOException {
+        return send(method, url, body, readTimeoutMs);
+    }
+
+    public Response send(String method, String url, Body body, int readTimeoutMs) throws IOException {
+        try {
+            return sendAsync(method, url, body, readTimeoutMs).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for " + url, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof RuntimeException re) throw re;
+            throw new IOException(url + " failed", cause);
+        }
+    }
+
+    public CompletableFuture<Response> sendAsync(String method, String url, Body body) {
+        return sendAsync(method, url, body, readTimeoutMs);
+    }
+
+    /**
+     * Queues a call on the peer {@code url} points at.
+     *
+     * @param body            null for no body
+     * @param readTimeoutMs   longest wait for each read of the response
+     * @return completes with the response, whatever its status code, or exceptionally with
+     *         the {@link IOException} that ended the call
+     */
+    public CompletableFuture<Response> sendAsync(String method, String url, Body body, int readTimeoutMs) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            result.completeExceptionally(new IOException("bad url " + url, e));
+            return result;
+        }
+        String host = uri.getHost();
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        String target = (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath())
+                + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        Peer peer = peers.computeIfAbsent(host + ":" + port, k -> new Peer(host, port));
+
+        Call call = new Call(method, target, body, readTimeoutMs, result);
+        boolean startDriver;
+        synchronized (peer) {
+            peer.queue.add(call);
+            startDriver = peer.drivers < maxConnectionsPerPeer;
+            if (startDriver) peer.drivers++;
+        }
+        if (startDriver) drivers.execute(() -> drive(peer));
+        return result;
+    }
+
+    /** Carries out queued calls on one connection until the queue is empty. */
+    private void drive(Peer peer) {
+        Connection conn = null;
+        while (true) {
+            Call call;
+            synchronized (peer) {
+                call = peer.queue.poll();
+                if (call == null) {
+                    peer.drivers--;
+                    if (conn != null) peer.idle.push(conn);
+                    return;
+                }
+                if (conn == null) conn = peer.takeIdle();
+            }
+            try {
+                if (conn == null) conn = connect(peer);
+                Response response;
+                try {
+                    response = conn.exchange(call);
+                } catch (IOException e) {
+                    if (!conn.reused || conn.responseStarted) throw e;
+                    conn.close(); // stale pooled connection: one retry on a fresh one
+                    conn = connect(peer);
+                    response = conn.exchange(call);
+                }
+                if (!conn.keepAlive) {
+                    conn.close();
+                    conn = null;
+                }
+                call.result.complete(response);
+            } catch (IOException | RuntimeException e) {
+                if (conn != null) conn.close();
+                conn = null;
+                call.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private Connection connect(Peer peer) throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            ch.socket().connect(new InetSocketAddress(peer.host, peer.port), connectTimeoutMs);
+        } catch (IOException e) {
+            ch.close();
+            throw new IOException("connect to " + peer.host + ":" + peer.port + " failed", e);
+        }
+        return new Connection(peer, ch);
+    }
+
+    private static final class Call {
+        final String method;
+        final String target;
+        final Body body;
+        final int readTimeoutMs;
+        final CompletableFuture<Response> result;
+
+        Call(String method, String target, Body body, int readTimeoutMs, CompletableFuture<Response> result) {
+            this.method = method;
+            this.target = target;
+            this.body = body;
+            this.readTimeoutMs = readTimeoutMs;
+            this.result = result;
+        }
+    }
+
+    private static final class Peer {
+        final String host;
+        final int port;
+        // guarded by this
+        final ArrayDeque<Call> queue = new ArrayDeque<>();
+        final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        int drivers;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /** Most recently used idle connection, dropping expired ones. Guarded by this. */
+        Connection takeIdle() {
+            long now = System.currentTimeMillis();
+            Connection conn;
+            while ((conn = idle.poll()) != null) {
+                if (now - conn.lastUsed < IDLE_TIMEOUT_MS) return conn;
+                conn.close();
+            }
+            return null;
+        }
+    }
+
+    private static final class Connection {
+        final Peer peer;
+        final SocketChannel channel;
+        final InputStream in;
+        long lastUsed;
+        boolean reused;           // served an earlier call
+        boolean responseStarted;  // current call got response bytes
+        boolean keepAlive = true;
+
+        Connection(Peer peer, SocketChannel channel) throws IOException {
+            this.peer = peer;
+            this.channel = channel;
+            this.in = new BufferedInputStream(channel.socket().getInputStream(), 16 * 1024);
+        }
+
+        Response exchange(Call call) throws IOException {
+            responseStarted = false;
+            long length = call.body == null ? 0 : call.body.length();
+            String head =
+                    call.method + " " + call.target + " HTTP/1.1\r\n" +
+                    "Host: " + peer.host + ":" + peer.port + "\r\n" +
+                    "Content-Length: " + length + "\r\n" +
+                    "\r\n";
+            ByteBuffer headBytes = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+            if (call.body instanceof BytesBody bytes) {
+                ByteBuffer[] both = {headBytes, ByteBuffer.wrap(bytes.bytes)};
+                while (both[0].hasRemaining() || both[1].hasRemaining()) channel.write(both);
+            } else {
+                while (headBytes.hasRemaining()) channel.write(headBytes);
+                if (call.body != null) call.body.writeTo(channel);
+            }
+
+            channel.socket().setSoTimeout(call.readTimeoutMs);
+            String status = readLine();
+            if (status == null) throw new IOException("connection closed by " + peer.host + ":" + peer.port);
+            responseStarted = true;
+            String[] parts = status.split(" ", 3);
+            int code;
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch (RuntimeException e) {
+                throw new IOException("bad status line: " + status);
+            }
+
+            long contentLength = -1;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("content-length")) contentLength = Long.parseLong(value);
+                else if (name.equals("connection")) keepAlive = !value.equalsIgnoreCase("close");
+            }
+            if (line == null) throw new IOException("connection closed in response headers");
+            if (parts[0].equals("HTTP/1.0")) keepAlive = false;
+
+            byte[] body;
+            if (contentLength >= 0) {
+                body = in.readNBytes((int) contentLength);
+                if (body.length < contentLength) throw new IOException("connection closed in response body");
+            } else {
+                body = in.readAllBytes(); // delimited by the peer closing
+                keepAlive = false;
+            }
+            reused = true;
+            lastUsed = System.currentTimeMillis();
+            return new Response(code, body);
+        }
+
+        /** @return the next CRLF-terminated line, or null at end of stream before any byte */
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') {
+                    int len = sb.length();
+                    if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                    return sb.toString();
+                }
+                sb.append((char) b);
+                if (sb.length() > 64 * 1024) throw new IOException("response line too long");
+            }
+            if (sb.length() == 0) return null;
+            throw new IOException("connection closed mid-line");
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.atlasdb.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Response stream of the NIO server. Bytes written to it are gathered as usual, while an
+ * {@link #append appended} buffer is queued for the socket as it is, without a copy. A
+ * handler can also {@link #startStream turn the rest of the response into a stream} that
+ * outlives it.
+ */
+final class ResponseBuffer extends OutputStream {
+
+    private final ByteArrayOutputStream pending;
+    private final List<ByteBuffer> buffers = new ArrayList<>(2);
+    private final Supplier<ResponseStream> streams;
+    private ResponseStream stream;
+
+    ResponseBuffer(int initialSize, Supplier<ResponseStream> streams) {
+        this.pending = new ByteArrayOutputStream(initialSize);
+        this.streams = streams;
+    }
+
+    /** The rest of the response, sent after what was written here so far. */
+    ResponseStream startStream() {
+        if (stream == null) stream = streams.get();
+        return stream;
+    }
+
+    /** The stream the handler started, or null. */
+    ResponseStream stream() {
+        return stream;
+    }
+
+    @Override
+    public void write(int b) {
+        pending.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        pending.write(b, off, len);
+    }
+
+    /** Queues the remaining bytes of {@code buf}, which must not change until they are sent. */
+    void append(ByteBuffer buf) {
+        drain();
+        buffers.add(buf.slice());
+    }
+
+    /** Everything written so far, in order. */
+    List<ByteBuffer> toBuffers() {
+        drain();
+        return buffers;
+    }
+
+    private void drain() {
+        if (pending.size() == 0) return;
+        buffers.add(ByteBuffer.wrap(pending.toByteArray()));
+        pending.reset();
+    }
+}
@@ -0,0 +1,30 @@
+package com.atlasdb.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a response that goes on after its handler returned, such as a watch. Any
+ * thread may send, and nothing waits for the client: bytes are queued and the sender is
+ * told when the client has taken them. The connection serves its next request once the
+ * stream is closed.
+ */
+interface ResponseStream {
+
+    /**
+     * Queues {@code bytes}, which must not change afterwards.
+     *
+     * @return false if the client is gone or the stream was closed
+     */
+    boolean send(ByteBuffer bytes);
+
+    /** Bytes sent but not taken by the client yet. */
+    long queuedBytes();
+
+    /** Runs {@code listener} whenever the queue has drained, and once when the client goes away. */
+    void onDrained(Runnable listener);
+
+    boolean isOpen();
+
+    /** Ends the response; what was sent before still goes out. */
+    void close();
+}
@@ -0,0 +1,24 @@
+package com.atlasdb.net;
+
+import java.util.Locale;
+
+/**
+ * How {@link NodeServer} handles connections.
+ */
+public enum ServerMode {
+
+    /** one selector thread multiplexes every connection; keep-alive and pipelining; a fixed worker pool runs handlers. */
+    NIO,
+
+    /** one thread per connection, one request per connection. */
+    BLOCKING;
+
+    public static ServerMode parse(String s) {
+        if (s == null || s.isBlank()) return NIO;
+        try {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown server mode: " + s + " (nio|blocking)");
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.atlasdb.replication;
+
+import java.util.Locale;
+
+/**
+ * How many copies of a write must be durable before the client gets its answer.
+ */
+public enum AckLevel {
+
+    /** the leader's own WAL (current behaviour, lowest latency). */
+    LEADER,
+
+    /** a majority of the cluster, leader included; the write is committed. */
+    QUORUM,
+
+    /** the leader and every follower. */
+    ALL;
+
+    public static AckLevel parse(String s) {
+        if (s == null || s.isBlank()) return LEADER;
+        try {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown ack level: " + s + " (leader|quorum|all)");
+        }
+    }
+}
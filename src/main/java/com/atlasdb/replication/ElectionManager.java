@@ -0,0 +1,287 @@
+package com.atlasdb.replication;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raft leader election for one node.
+ *
+ * A follower that hears nothing from a leader for a randomized election timeout becomes a
+ * candidate: it moves to the next term, votes for itself and asks every peer for a vote.
+ * A majority makes it leader. Any message carrying a newer term turns the node back into a
+ * follower of that term. The current term and the vote cast in it are persisted in the
+ * {@link TermStore} before they are acted on, so a restarted node never votes twice.
+ *
+ * A node that heard from a leader less than the minimum election timeout ago refuses to
+ * vote, and does not adopt the candidate's term. Together with followers restarting their
+ * timeout only on leader contact, this lets a leader that a majority answered within that
+ * time serve reads on a lease.
+ *
+ * Role changes are reported to the {@link Node}, always outside this object's lock. They
+ * can arrive late and out of order; the node must ignore a change for an older term.
+ *
+ * The peers are the other voters of the group's current {@link Membership}; a node that
+ * is not a voter itself (a learner) never stands for election.
+ *
+ * Election timeouts of every manager in the process are checked by one shared ticker
+ * thread every {@link #TICK_MS}, and campaigns and vote requests run on a shared pool, so
+ * a node hosting many replication groups does not run a timer thread per group.
+ */
+public class ElectionManager {
+
+    public static final long DEFAULT_MIN_TIMEOUT_MS = 300;
+    public static final long DEFAULT_MAX_TIMEOUT_MS = 600;
+    /** Leader heartbeat interval; well below the election timeout so one lost packet is harmless. */
+    public static final long DEFAULT_HEARTBEAT_MS = 75;
+    /** How often election timeouts are checked; a timeout may fire this much late. */
+    static final long TICK_MS = 10;
+
+    private static final Set<ElectionManager> RUNNING = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "atlasdb-vote");
+        t.setDaemon(true);
+        return t;
+    });
+    private static ScheduledExecutorService ticker; // guarded by RUNNING
+
+    /** The replicated node an election manager drives. */
+    public interface Node {
+        /** Index of the last entry in the local log. */
+        long lastLogIndex();
+
+        /** Term of the last entry in the local log. */
+        long lastLogTerm();
+
+        void becomeLeader(long term);
+
+        /** @param leaderId the leader of {@code term}, or null while it is unknown */
+        void becomeFollower(long term, String leaderId);
+    }
+
+    private final String self;
+    private final TermStore terms;
+    private final ReplicationTransport transport;
+    private final Node node;
+    private final long minTimeoutMs;
+    private final long maxTimeoutMs;
+
+    // guarded by this
+    private List<String> peers;
+    private boolean voting = true;
+    private Role role = Role.FOLLOWER;
+    private String leaderId;
+    private long deadline;
+    private long leaderContactNanos;
+    private int votes;
+    private boolean running;
+
+    public ElectionManager(String self, List<String> peers, TermStore terms, ReplicationTransport transport,
+                           Node node, long minTimeoutMs, long maxTimeoutMs) {
+        this.self = self;
+        this.peers = List.copyOf(peers);
+        this.terms = terms;
+        this.transport = transport;
+        this.node = node;
+        this.minTimeoutMs = minTimeoutMs;
+        this.maxTimeoutMs = maxTimeoutMs;
+    }
+
+    public void start() {
+        synchronized (this) {
+            running = true;
+            resetDeadline();
+        }
+        synchronized (RUNNING) {
+            RUNNING.add(this);
+            if (ticker == null) {
+                ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "atlasdb-election");
+                    t.setDaemon(true);
+                    return t;
+                });
+                ticker.scheduleWithFixedDelay(ElectionManager::tickAll, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+        }
+        RUNNING.remove(this);
+    }
+
+    /**
+     * Adopts a new membership: {@code peers} are the other voters, and {@code voting} says
+     * whether this node is a voter itself. A node that just became a voter waits a full
+     * election timeout before it may stand.
+     */
+    public synchronized void setPeers(List<String> peers, boolean voting) {
+        this.peers = List.copyOf(peers);
+        if (voting && !this.voting) resetDeadline();
+        this.voting = voting;
+    }
+
+    public synchronized Role getRole() {
+        return role;
+    }
+
+    /** @return the current leader, this node included, or null while none is known */
+    public synchronized String getLeaderId() {
+        return leaderId;
+    }
+
+    public long getCurrentTerm() {
+        return terms.getCurrentTerm();
+    }
+
+    /**
+     * A leader contacted this node. Resets the election timeout unless the leader's term is
+     * stale, and adopts its term.
+     *
+     * @return false if {@code term} is older than the current term and must be rejected
+     */
+    public boolean onLeaderContact(long term, String leader) {
+        boolean changed;
+        synchronized (this) {
+            long current = terms.getCurrentTerm();
+            if (term < current) return false;
+            if (term > current) terms.setTermAndVote(term, null);
+            changed = term > current || role != Role.FOLLOWER || !leader.equals(leaderId);
+            role = Role.FOLLOWER;
+            leaderId = leader;
+            leaderContactNanos = System.nanoTime();
+            resetDeadline();
+        }
+        if (changed) node.becomeFollower(term, leader);
+        return true;
+    }
+
+    /** A peer reported {@code term}; steps down if it is newer than ours. */
+    public void observeTerm(long term) {
+        synchronized (this) {
+            if (term <= terms.getCurrentTerm()) return;
+            terms.setTermAndVote(term, null);
+            role = Role.FOLLOWER;
+            leaderId = null;
+            resetDeadline();
+        }
+        node.becomeFollower(term, null);
+    }
+
+    /**
+     * RequestVote: grants the vote if this node has not voted for someone else in
+     * {@code term}, the candidate's log is at least as up to date as the local one and no
+     * leader was heard from within the minimum election timeout.
+     *
+     * @throws StaleTermException if {@code term} is older than the current term
+     */
+    public boolean handleVote(long term, String candidate, long lastLogIndex, long lastLogTerm) {
+        boolean newTerm = false;
+        boolean granted;
+        synchronized (this) {
+            long current = terms.getCurrentTerm();
+            if (term < current) throw new StaleTermException(current);
+            if (leaderId != null && (role == Role.LEADER
+                    || System.nanoTime() - leaderContactNanos < TimeUnit.MILLISECONDS.toNanos(minTimeoutMs))) {
+                return false; // a leader is alive, and may be serving reads on a lease
+            }
+            if (term > current) {
+                terms.setTermAndVote(term, null);
+                role = Role.FOLLOWER;
+                leaderId = null;
+                newTerm = true;
+            }
+            String voted = terms.getVotedFor();
+            long myLastTerm = node.lastLogTerm();
+            boolean upToDate = lastLogTerm > myLastTerm
+                    || (lastLogTerm == myLastTerm && lastLogIndex >= node.lastLogIndex());
+            granted = (voted == null || voted.equals(candidate)) && upToDate;
+            if (granted) {
+                terms.setTermAndVote(term, candidate);
+                resetDeadline();
+            }
+        }
+        if (newTerm) node.becomeFollower(term, null);
+        return granted;
+    }
+
+    private static void tickAll() {
+        for (ElectionManager m : RUNNING) {
+            try {
+                m.tick();
+            } catch (RuntimeException e) {
+                System.err.println("election tick of " + m.self + " failed: " + e);
+            }
+        }
+    }
+
+    /** Ticker thread: becomes a candidate once the election timeout has passed. */
+    private void tick() {
+        long term;
+        synchronized (this) {
+            if (!running || !voting || role == Role.LEADER || System.currentTimeMillis() < deadline) return;
+            term = terms.getCurrentTerm() + 1;
+            terms.setTermAndVote(term, self);
+            role = Role.CANDIDATE;
+            leaderId = null;
+            votes = 0;
+            resetDeadline(); // split vote: try again with a new term
+        }
+        WORKERS.execute(() -> campaign(term));
+    }
+
+    private void campaign(long term) {
+        node.becomeFollower(term, null);
+        voteGranted(term); // our own
+        long lastIndex = node.lastLogIndex();
+        long lastTerm = node.lastLogTerm();
+        List<String> voters;
+        synchronized (this) {
+            voters = peers;
+        }
+        for (String peer : voters) {
+            WORKERS.execute(() -> requestVote(peer, term, lastIndex, lastTerm));
+        }
+    }
+
+    private void requestVote(String peer, long term, long lastIndex, long lastTerm) {
+        boolean granted;
+        try {
+            granted = transport.requestVote(peer, term, self, lastIndex, lastTerm);
+        } catch (StaleTermException e) {
+            observeTerm(e.getTerm());
+            return;
+        } catch (Exception e) {
+            return; // unreachable peer; the next election round asks again
+        }
+        if (granted) voteGranted(term);
+    }
+
+    private void voteGranted(long term) {
+        synchronized (this) {
+            if (!running || role != Role.CANDIDATE || term != terms.getCurrentTerm()) return;
+            votes++;
+            if (!isMajority(votes)) return;
+            role = Role.LEADER;
+            leaderId = self;
+        }
+        node.becomeLeader(term);
+    }
+
+    /** Guarded by this. */
+    private boolean isMajority(int count) {
+        return count > (peers.size() + 1) / 2;
+    }
+
+    /** Guarded by this. */
+    private void resetDeadline() {
+        deadline = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(minTimeoutMs, maxTimeoutMs + 1);
+    }
+}
@@ -0,0 +1,279 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.log.Operation;
+import com.atlasdb.snapshot.Snapshot;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+
+/**
+ * Ships the leader's log to one follower from a dedicated thread.
+ *
+ * Everything appended since the last send goes out as one packet, and up to {@code window}
+ * packets are in flight at once ({@code nextIndex} runs ahead of the acknowledged
+ * {@code matchIndex}). A rejected or failed packet stops the pipeline: once the packets in
+ * flight have drained, sending restarts from the position the follower reported, or from
+ * {@code matchIndex} after an error, with exponential backoff between failed attempts. A
+ * follower that needs entries the leader has compacted gets the latest snapshot.
+ *
+ * The send time of the newest packet the follower answered is kept as proof that it still
+ * accepted this leader then; leader leases and ReadIndex rounds are built on it.
+ */
+public class FollowerReplicator {
+
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MAX_BATCH_ENTRIES = 1024;
+    public static final long DEFAULT_HEARTBEAT_MS = 1000;
+    static final long MIN_BACKOFF_MS = 10;
+    static final long MAX_BACKOFF_MS = 2000;
+    /** {@link #getContactSentNanos()} of a follower that never answered. */
+    public static final long NO_CONTACT = Long.MIN_VALUE;
+
+    private final String follower;
+    private final ReplicationSource source;
+    private final ReplicationTransport transport;
+    private final int window;
+    private final long heartbeatMs;
+    private final long term;
+    private final String leaderId;
+    private final Runnable onProgress;
+    private final LongConsumer onHigherTerm;
+    private final ExecutorService senders;
+    private final Thread thread;
+
+    // guarded by this
+    private long nextIndex;
+    private long matchIndex;
+    private int inFlight;
+    private long resyncIndex = -1;      // >= 0: restart from here once nothing is in flight
+    private long retryAt;               // no sends before this time (backoff)
+    private long backoffMs;
+    private long lastSendAt;
+    private long contactSentNanos = NO_CONTACT; // System.nanoTime() at which the newest answered packet went out
+    private boolean heartbeatRequested;
+    private boolean running = true;
+
+    /**
+     * @param term            the leader's term, stamped on every packet (0 without elections)
+     * @param onProgress      called, outside any lock, whenever {@code matchIndex} grows or
+     *                        the follower answers a newer packet
+     * @param onHigherTerm    called when the follower reports a newer term; the sender stops
+     */
+    public FollowerReplicator(String follower, ReplicationSource source, ReplicationTransport transport,
+                              int window, long heartbeatMs, long term, String leaderId,
+                              Runnable onProgress, LongConsumer onHigherTerm) {
+        this.follower = follower;
+        this.source = source;
+        this.transport = transport;
+        this.window = window;
+        this.heartbeatMs = heartbeatMs;
+        this.term = term;
+        this.leaderId = leaderId;
+        this.onProgress = onProgress;
+        this.onHigherTerm = onHigherTerm;
+        // Optimistic start: the first (empty) packet probes where the follower actually is.
+        this.nextIndex = source.size();
+        this.senders = Executors.newFixedThreadPool(window, r -> {
+            Thread t = new Thread(r, "atlasdb-repl-send-" + follower);
+            t.setDaemon(true);
+            return t;
+        });
+        this.thread = new Thread(this::run, "atlasdb-repl-" + follower);
+        this.thread.setDaemon(true);
+    }
+
+    public String getFollower() {
+        return follower;
+    }
+
+    public synchronized long getNextIndex() {
+        return nextIndex;
+    }
+
+    /** Number of entries the follower is known to hold. */
+    public synchronized long getMatchIndex() {
+        return matchIndex;
+    }
+
+    /** {@link System#nanoTime()} at which the newest packet the follower answered was sent, or {@link #NO_CONTACT}. */
+    public synchronized long getContactSentNanos() {
+        return contactSentNanos;
+    }
+
+    /** Sends a packet as soon as the window allows, even if the follower is up to date. */
+    public synchronized void requestHeartbeat() {
+        heartbeatRequested = true;
+        notifyAll();
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Called after the leader appends; wakes the sender if it is idle. */
+    public synchronized void wake() {
+        notifyAll();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        senders.shutdownNow();
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long from;
+                boolean probe;
+                long sentAt;
+                synchronized (this) {
+                    long waitMs;
+                    while (running && (waitMs = waitBeforeSend()) > 0) {
+                        wait(waitMs);
+                    }
+                    if (!running) return;
+                    if (resyncIndex >= 0) {
+                        nextIndex = resyncIndex;
+                        resyncIndex = -1;
+                    }
+                    from = nextIndex;
+                    probe = from >= source.size();
+                    if (from < source.startIndex() && inFlight > 0) {
+                        resyncIndex = from; // let the packets in flight settle before installing
+                        continue;
+                    }
+                    heartbeatRequested = false;
+                    sentAt = System.nanoTime();
+                }
+
+                if (from < source.startIndex()) {
+                    installSnapshot(sentAt);
+                    continue;
+                }
+                List<Operation> batch = List.of();
+                if (!probe) {
+                    try {
+                        batch = source.read(from, MAX_BATCH_ENTRIES);
+                    } catch (IllegalStateException e) {
+                        continue; // compacted in the meantime; the next round installs a snapshot
+                    }
+                }
+                ReplicationPacket packet = new ReplicationPacket(from, batch,
+                        term, leaderId, source.termAt(from), source.commitIndex());
+                synchronized (this) {
+                    nextIndex = from + batch.size();
+                    inFlight++;
+                    lastSendAt = System.currentTimeMillis();
+                }
+                CompletableFuture<Long> reply;
+                try {
+                    reply = transport.replicateAsync(follower, packet, senders);
+                } catch (RuntimeException e) {
+                    reply = CompletableFuture.failedFuture(e); // stopping
+                }
+                reply.whenComplete((position, error) -> onReply(packet, sentAt, position, error));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /** @return 0 if a packet can go out now, otherwise how long to wait (guarded by this) */
+    private long waitBeforeSend() {
+        long now = System.currentTimeMillis();
+        if (now < retryAt) return retryAt - now;
+        if (resyncIndex >= 0) return inFlight == 0 ? 0 : heartbeatMs;
+        if (inFlight >= window) return heartbeatMs;
+        if (nextIndex < source.size() || heartbeatRequested) return 0;
+        if (inFlight > 0) return heartbeatMs;
+        // Idle: an empty packet now and then keeps checking that the follower is in step.
+        // Rounds fall on multiples of the interval, so the heartbeats of every replication
+        // group on the node go out together and the transport can coalesce them.
+        long next = (lastSendAt / heartbeatMs + 1) * heartbeatMs;
+        return now >= next ? 0 : next - now;
+    }
+
+    private void onReply(ReplicationPacket packet, long sentAt, Long position, Throwable error) {
+        long end = packet.getFromIndexInclusive() + packet.getOps().size();
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        if (error instanceof StaleTermException e) {
+            synchronized (this) {
+                inFlight--;
+            }
+            steppedDown(e);
+            return;
+        }
+        if (error != null) {
+            synchronized (this) {
+                inFlight--;
+                backOff("replication to " + follower + " failed", error);
+            }
+            return;
+        }
+        boolean progressed;
+        synchronized (this) {
+            inFlight--;
+            progressed = contactSentNanos == NO_CONTACT || sentAt - contactSentNanos > 0;
+            if (progressed) contactSentNanos = sentAt;
+            if (position == end) {
+                progressed |= end > matchIndex;
+                matchIndex = Math.max(matchIndex, end);
+                backoffMs = 0;
+            } else if (resyncIndex < 0 || position < resyncIndex) {
+                // Follower is elsewhere: drain and continue from where it is.
+                resyncIndex = position;
+            }
+            notifyAll();
+        }
+        if (progressed) onProgress.run();
+    }
+
+    private void installSnapshot(long sentAt) {
+        Snapshot snapshot = source.latestSnapshot();
+        try {
+            ReplicationPacket header = new ReplicationPacket(snapshot.getIndex(), List.of(),
+                    term, leaderId, source.termAt(snapshot.getIndex()), source.commitIndex());
+            transport.installSnapshot(follower, header, snapshot);
+        } catch (StaleTermException e) {
+            steppedDown(e);
+            return;
+        } catch (Exception e) {
+            backOff("snapshot install on " + follower + " failed", e);
+            return;
+        }
+        synchronized (this) {
+            matchIndex = Math.max(matchIndex, snapshot.getIndex());
+            nextIndex = snapshot.getIndex();
+            backoffMs = 0;
+            lastSendAt = System.currentTimeMillis();
+            if (contactSentNanos == NO_CONTACT || sentAt - contactSentNanos > 0) contactSentNanos = sentAt;
+        }
+        onProgress.run();
+    }
+
+    private void steppedDown(StaleTermException e) {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        onHigherTerm.accept(e.getTerm());
+    }
+
+    private synchronized void backOff(String what, Throwable e) {
+        if (!running) return;
+        if (backoffMs == 0) System.err.println(what + ": " + e);
+        backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        retryAt = System.currentTimeMillis() + backoffMs;
+        resyncIndex = resyncIndex < 0 ? matchIndex : Math.min(resyncIndex, matchIndex);
+        notifyAll();
+    }
+}
@@ -0,0 +1,142 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.log.WriteAheadLog;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps a read replica's log level with the committed log of an upstream node, the leader
+ * or any other node (so replicas can cascade), from a dedicated thread.
+ *
+ * The replica asks for everything committed after its log, up to {@link #MAX_BATCH_ENTRIES}
+ * entries per request, and the upstream holds a request until it has something to send.
+ * One batch is written while the next is requested. An upstream that compacted the entries
+ * sends its latest snapshot instead; one that fails is replaced by the next in the list,
+ * with exponential backoff once all of them failed in turn.
+ *
+ * Nothing flows back: the group does not know its replicas, so they are never waited for.
+ */
+public class LogTailer {
+
+    public static final int MAX_BATCH_ENTRIES = 8192;
+    /** How long an upstream holds a request for entries that are not committed yet. */
+    public static final long WAIT_MS = 1000;
+    static final long MIN_BACKOFF_MS = 10;
+    static final long MAX_BACKOFF_MS = 2000;
+
+    /** Where a replica reads the committed log from. */
+    public interface Upstream {
+        /**
+         * Up to {@code max} committed entries after the first {@code fromIndex}, waiting up
+         * to {@code waitMs} for one. The packet is not from an elected leader (term 0); it
+         * carries the upstream's commit index and the leader it knows of, if any.
+         *
+         * @throws OutOfSyncException carrying the index of the upstream's latest snapshot,
+         *         if the entries were compacted into it
+         */
+        ReplicationPacket pull(String url, long fromIndex, int max, long waitMs) throws Exception;
+
+        /** Downloads the upstream's snapshot at {@code index} to {@code target}. */
+        void fetchSnapshot(String url, long index, Path target) throws Exception;
+    }
+
+    /** The replica's side; implemented by the engine. */
+    public interface Replica {
+        long lastLogIndex();
+
+        /** Logs and applies a packet that continues the log; completes once it is durable. */
+        CompletableFuture<Void> append(ReplicationPacket packet);
+
+        Path snapshotFile(long index);
+
+        void installSnapshot(long index);
+    }
+
+    private final List<String> upstreams;
+    private final Upstream upstream;
+    private final Replica replica;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile String current;
+    private volatile long snapshotsInstalled;
+
+    public LogTailer(List<String> upstreams, Upstream upstream, Replica replica) {
+        if (upstreams.isEmpty()) throw new IllegalArgumentException("no upstream to tail");
+        this.upstreams = List.copyOf(upstreams);
+        this.upstream = upstream;
+        this.replica = replica;
+        this.current = this.upstreams.get(0);
+        this.thread = new Thread(this::run, "atlasdb-log-tailer");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The upstream currently tailed. */
+    public String getUpstream() {
+        return current;
+    }
+
+    public long getSnapshotsInstalled() {
+        return snapshotsInstalled;
+    }
+
+    private void run() {
+        int next = 0;
+        int failures = 0;
+        long backoffMs = MIN_BACKOFF_MS;
+        CompletableFuture<Void> writing = CompletableFuture.completedFuture(null);
+        while (running) {
+            String url = upstreams.get(next);
+            current = url;
+            try {
+                ReplicationPacket packet;
+                try {
+                    packet = upstream.pull(url, replica.lastLogIndex(), MAX_BATCH_ENTRIES, WAIT_MS);
+                } catch (OutOfSyncException e) {
+                    WriteAheadLog.await(writing);
+                    long index = e.getExpectedIndex();
+                    upstream.fetchSnapshot(url, index, replica.snapshotFile(index));
+                    replica.installSnapshot(index);
+                    snapshotsInstalled++;
+                    continue;
+                }
+                // One batch is fsynced while the next is pulled, no more.
+                WriteAheadLog.await(writing);
+                writing = replica.append(packet);
+                failures = 0;
+                backoffMs = MIN_BACKOFF_MS;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!running) return;
+                writing = CompletableFuture.completedFuture(null);
+                System.err.println("Tailing " + url + " failed: " + e.getMessage());
+                next = (next + 1) % upstreams.size();
+                if (++failures < upstreams.size()) continue;
+                failures = 0;
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.atlasdb.replication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The members of one replication group: voters, whose acknowledgements commit entries and
+ * who elect the leader, and learners, which receive the log like any follower but count
+ * for neither. A group changes its membership one node at a time, by a log entry
+ * ({@link com.atlasdb.AtlasDBEngine#MEMBERS_KEY}), so the majorities of consecutive
+ * memberships always overlap. A node joins as a learner and is promoted to voter once it
+ * has caught up.
+ *
+ * An elected group lists every node, the leader included; a statically configured leader
+ * lists only its followers.
+ */
+public final class Membership {
+
+    private final List<String> voters;
+    private final List<String> learners;
+
+    public Membership(List<String> voters, List<String> learners) {
+        this.voters = List.copyOf(voters);
+        this.learners = List.copyOf(learners);
+    }
+
+    /** All of {@code self} (if not null) and {@code peers} as voters. */
+    public static Membership of(String self, List<String> peers) {
+        List<String> voters = new ArrayList<>();
+        if (self != null) voters.add(self);
+        for (String peer : peers) {
+            if (!voters.contains(peer)) voters.add(peer);
+        }
+        return new Membership(voters, List.of());
+    }
+
+    public List<String> voters() {
+        return voters;
+    }
+
+    public List<String> learners() {
+        return learners;
+    }
+
+    public boolean isVoter(String node) {
+        return voters.contains(node);
+    }
+
+    public boolean contains(String node) {
+        return voters.contains(node) || learners.contains(node);
+    }
+
+    /** {@code nodes} without {@code self}. */
+    public static List<String> others(List<String> nodes, String self) {
+        List<String> others = new ArrayList<>(nodes);
+        others.remove(self);
+        return others;
+    }
+
+    /** This membership with {@code node} added as a learner. */
+    public Membership withLearner(String node) {
+        if (contains(node)) throw new IllegalArgumentException(node + " is already a member");
+        List<String> next = new ArrayList<>(learners);
+        next.add(node);
+        return new Membership(voters, next);
+    }
+
+    /** This membership with learner {@code node} made a voter. */
+    public Membership promoted(String node) {
+        if (!learners.contains(node)) throw new IllegalArgumentException(node + " is not a learner");
+        List<String> nextVoters = new ArrayList<>(voters);
+        nextVoters.add(node);
+        return new Membership(nextVoters, others(learners, node));
+    }
+
+    /** This membership without {@code node}. */
+    public Membership without(String node) {
+        if (!contains(node)) throw new IllegalArgumentException(node + " is not a member");
+        if (voters.size() == 1 && voters.contains(node)) throw new IllegalArgumentException("cannot remove the last voter");
+        return new Membership(others(voters, node), others(learners, node));
+    }
+
+    /** Text form: {@code <voters>;<learners>}, each a comma-separated list of URLs. */
+    public String encode() {
+        return String.join(",", voters) + ";" + String.join(",", learners);
+    }
+
+    /** @throws IllegalArgumentException if {@code text} is not a membership from {@link #encode} */
+    public static Membership decode(String text) {
+        String[] parts = text.split(";", -1);
+        if (parts.length != 2) throw new IllegalArgumentException("invalid membership: " + text);
+        return new Membership(list(parts[0]), list(parts[1]));
+    }
+
+    private static List<String> list(String text) {
+        return text.isEmpty() ? List.of() : Arrays.asList(text.split(","));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Membership m && voters.equals(m.voters) && learners.equals(m.learners);
+    }
+
+    @Override
+    public int hashCode() {
+        return voters.hashCode() * 31 + learners.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "voters=" + voters + " learners=" + learners;
+    }
+}
@@ -0,0 +1,21 @@
+package com.atlasdb.replication;
+
+/**
+ * A follower rejected a packet that does not continue its log; the leader should resend
+ * from {@link #getExpectedIndex()}.
+ */
+public class OutOfSyncException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long expectedIndex;
+
+    public OutOfSyncException(long expectedIndex, long fromIndex) {
+        super("Out of sync: expected fromIndex=" + expectedIndex + " but got " + fromIndex);
+        this.expectedIndex = expectedIndex;
+    }
+
+    public long getExpectedIndex() {
+        return expectedIndex;
+    }
+}
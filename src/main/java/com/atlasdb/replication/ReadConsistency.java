@@ -0,0 +1,82 @@
+package com.atlasdb.replication;
+
+import java.util.Locale;
+
+/**
+ * How fresh a read must be.
+ *
+ * <ul>
+ *   <li>{@code stale}: whatever the node serving it has applied (default)</li>
+ *   <li>{@code bounded-staleness=<n>ms}: state that matched everything the leader had
+ *       committed at most n ms ago</li>
+ *   <li>{@code bounded-staleness=<n>}: state at most n entries behind the leader's commit index</li>
+ *   <li>{@code linearizable}: reflects every write acknowledged before the read started</li>
+ * </ul>
+ */
+public final class ReadConsistency {
+
+    public enum Level { STALE, BOUNDED_STALENESS, LINEARIZABLE }
+
+    public static final ReadConsistency STALE = new ReadConsistency(Level.STALE, -1, -1);
+    public static final ReadConsistency LINEARIZABLE = new ReadConsistency(Level.LINEARIZABLE, -1, -1);
+
+    private static final String BOUNDED_PREFIX = "bounded-staleness=";
+
+    private final Level level;
+    private final long maxLagMillis;   // -1 if bounded by entries
+    private final long maxLagEntries;  // -1 if bounded by time
+
+    private ReadConsistency(Level level, long maxLagMillis, long maxLagEntries) {
+        this.level = level;
+        this.maxLagMillis = maxLagMillis;
+        this.maxLagEntries = maxLagEntries;
+    }
+
+    public static ReadConsistency boundedMillis(long maxLagMillis) {
+        return new ReadConsistency(Level.BOUNDED_STALENESS, maxLagMillis, -1);
+    }
+
+    public static ReadConsistency boundedEntries(long maxLagEntries) {
+        return new ReadConsistency(Level.BOUNDED_STALENESS, -1, maxLagEntries);
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /** @return the allowed age in milliseconds, or -1 if the bound is in entries */
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    /** @return the allowed lag in entries, or -1 if the bound is in time */
+    public long getMaxLagEntries() {
+        return maxLagEntries;
+    }
+
+    public static ReadConsistency parse(String s) {
+        if (s == null || s.isBlank()) return STALE;
+        String v = s.trim().toLowerCase(Locale.ROOT);
+        if (v.equals("stale")) return STALE;
+        if (v.equals("linearizable")) return LINEARIZABLE;
+        if (v.startsWith(BOUNDED_PREFIX)) {
+            String bound = v.substring(BOUNDED_PREFIX.length());
+            try {
+                long n = Long.parseLong(bound.endsWith("ms") ? bound.substring(0, bound.length() - 2) : bound);
+                if (n >= 0) return bound.endsWith("ms") ? boundedMillis(n) : boundedEntries(n);
+            } catch (NumberFormatException ignored) {
+                // reported below
+            }
+        }
+        throw new IllegalArgumentException("unknown read consistency: " + s
+                + " (stale|bounded-staleness=<ms>ms|bounded-staleness=<entries>|linearizable)");
+    }
+
+    @Override
+    public String toString() {
+        if (level == Level.BOUNDED_STALENESS) {
+            return BOUNDED_PREFIX + (maxLagMillis >= 0 ? maxLagMillis + "ms" : String.valueOf(maxLagEntries));
+        }
+        return level.name().toLowerCase(Locale.ROOT);
+    }
+}
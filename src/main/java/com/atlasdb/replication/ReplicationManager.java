@@ -1,26 +1,57 @@
 package com.atlasdb.replication;
 
-import com.atlasdb.net.HttpForwarder;
+import com.atlasdb.net.HttpReplicationTransport;
 import com.atlasdb.log.Operation;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 public class ReplicationManager {
 
-    private Role role;
+    private volatile Role role;
     private final List<Operation> replicationLog = new ArrayList<>();
-    private final List<String> followers;
+    private long baseIndex = 0; // entries that precede replicationLog (recovered from disk)
+    private volatile List<String> followers; // voters other than this node
+    private volatile List<String> learners = List.of();
+    private final ReplicationTransport transport;
+    private final List<FollowerReplicator> senders = new CopyOnWriteArrayList<>();
+    // How the senders of the current leadership are started; guarded by this
+    private boolean shipping;
+    private ReplicationSource source;
+    private long term;
+    private String leaderId;
+    private long heartbeatMs;
+    private LongConsumer onHigherTerm;
+
+    // Acknowledgement tracking (leader). Each write has its own index, so one waiter per key.
+    private long localDurableIndex;                 // guarded by this
+    private volatile long quorumIndex;
+    private volatile long allIndex;
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> quorumWaiters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> allWaiters = new ConcurrentSkipListMap<>();
+    private LongConsumer commitListener = index -> {};
+    private final Object contactLock = new Object(); // notified whenever a follower answers
 
     // Leader constructor
     public ReplicationManager(Role role, List<String> followers) {
+        this(role, followers, new HttpReplicationTransport());
+    }
+
+    public ReplicationManager(Role role, List<String> followers, ReplicationTransport transport) {
         this.role = role;
-        this.followers = followers;
+        this.followers = List.copyOf(followers);
+        this.transport = transport;
     }
 
-    // Follower constructor
+    // Follower constructor; the transport only asks the leader for read indexes
     public ReplicationManager(Role role) {
-        this.role = role;
-        this.followers = List.of();
+        this(role, List.of(), new HttpReplicationTransport());
     }
 
     public boolean isLeader() {
@@ -31,46 +62,306 @@ public class ReplicationManager {
         return role;
     }
 
+    /** The voters other than this node. */
+    public List<String> getPeers() {
+        return followers;
+    }
+
+    public List<String> getLearners() {
+        return learners;
+    }
+
+    /**
+     * Replaces the members other than this node. A leader starts shipping the log to new
+     * members at once and stops shipping it to removed ones; only {@code followers} count
+     * towards acknowledgements.
+     */
+    public void setMembers(List<String> followers, List<String> learners) {
+        List<FollowerReplicator> stopping = new ArrayList<>();
+        synchronized (this) {
+            this.followers = List.copyOf(followers);
+            this.learners = List.copyOf(learners);
+            if (shipping) {
+                for (FollowerReplicator sender : senders) {
+                    String member = sender.getFollower();
+                    if (!followers.contains(member) && !learners.contains(member)) stopping.add(sender);
+                }
+                senders.removeAll(stopping);
+                for (String member : this.followers) startSender(member);
+                for (String member : this.learners) startSender(member);
+            }
+        }
+        // outside the lock, as in stopSenders
+        for (FollowerReplicator sender : stopping) sender.stop();
+        if (isLeader()) recomputeAcks();
+    }
+
+    public ReplicationTransport getTransport() {
+        return transport;
+    }
+
     public void becomeLeader() {
         role = Role.LEADER;
     }
 
+    /** Stops shipping entries and fails every write still waiting for follower acks. */
     public void becomeFollower() {
         role = Role.FOLLOWER;
+        stopSenders();
+        IllegalStateException lost = new IllegalStateException("leadership lost before the write was acknowledged");
+        failWaiters(quorumWaiters, lost);
+        failWaiters(allWaiters, lost);
+        synchronized (contactLock) {
+            contactLock.notifyAll();
+        }
     }
 
-    /** Leader appends to replication log */
-    public void append(Operation op) {
-        if (!isLeader()) return;
-        if (role == Role.LEADER) {
-            replicateToFollowers(op);
+    /** Senders for a statically configured leader: no terms, relaxed heartbeats. */
+    public void startSenders(ReplicationSource source, LongConsumer commitListener) {
+        startSenders(source, commitListener, 0, null, FollowerReplicator.DEFAULT_HEARTBEAT_MS, term -> {});
+    }
+
+    /**
+     * Starts one background sender per follower; they read the log through {@code source}.
+     * {@code commitListener} hears every advance of the quorum commit index, and
+     * {@code onHigherTerm} hears a follower reporting a newer term than {@code term}.
+     */
+    public void startSenders(ReplicationSource source, LongConsumer commitListener, long term, String leaderId,
+                             long heartbeatMs, LongConsumer onHigherTerm) {
+        synchronized (this) {
+            if (!isLeader() || shipping) return;
+            this.commitListener = commitListener;
+            this.localDurableIndex = source.size(); // recovered from the WAL
+            // Acks counted under an earlier leadership may refer to entries since replaced.
+            this.quorumIndex = 0;
+            this.allIndex = 0;
+            this.shipping = true;
+            this.source = source;
+            this.term = term;
+            this.leaderId = leaderId;
+            this.heartbeatMs = heartbeatMs;
+            this.onHigherTerm = onHigherTerm;
+            for (String f : followers) startSender(f);
+            for (String l : learners) startSender(l);
+        }
+        recomputeAcks();
+    }
+
+    /** Starts shipping the log to {@code member} unless a sender already does. Caller holds this. */
+    private void startSender(String member) {
+        for (FollowerReplicator sender : senders) {
+            if (sender.getFollower().equals(member)) return;
+        }
+        FollowerReplicator sender = new FollowerReplicator(member, source, transport,
+                FollowerReplicator.DEFAULT_WINDOW, heartbeatMs, term, leaderId,
+                this::senderProgress, onHigherTerm);
+        senders.add(sender);
+        sender.start();
+    }
+
+    public void stopSenders() {
+        List<FollowerReplicator> stopping;
+        synchronized (this) {
+            stopping = List.copyOf(senders);
+            senders.clear();
+            shipping = false;
+        }
+        // outside the lock: a sender may be waiting on it to read the log size
+        for (FollowerReplicator sender : stopping) sender.stop();
+    }
+
+    /** The leader's own WAL has acknowledged every entry up to {@code index}. */
+    public void localDurable(long index) {
+        synchronized (this) {
+            if (index <= localDurableIndex) return;
+            localDurableIndex = index;
+        }
+        recomputeAcks();
+    }
+
+    /** Highest index stored by a majority of the voters, leader included. */
+    public long getQuorumIndex() {
+        return quorumIndex;
+    }
+
+    /**
+     * Completes once entry {@code index} is stored at the given level. Callers that give up
+     * waiting should {@link #cancelAck cancel} so the waiter does not linger.
+     */
+    public CompletableFuture<Void> awaitAck(long index, AckLevel level) {
+        if (level == AckLevel.LEADER) return CompletableFuture.completedFuture(null);
+        ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters = level == AckLevel.QUORUM ? quorumWaiters : allWaiters;
+        CompletableFuture<Void> ack = waiters.computeIfAbsent(index, i -> new CompletableFuture<>());
+        // The index may have been reached before we registered.
+        release(waiters, level == AckLevel.QUORUM ? quorumIndex : allIndex);
+        return ack;
+    }
+
+    public void cancelAck(long index, AckLevel level) {
+        if (level == AckLevel.QUORUM) quorumWaiters.remove(index);
+        else if (level == AckLevel.ALL) allWaiters.remove(index);
+    }
+
+    /**
+     * {@link System#nanoTime()} at which a majority of the cluster (this node included) last
+     * accepted this node as leader: the send time of the newest packet a majority of
+     * followers has answered, or {@link FollowerReplicator#NO_CONTACT}.
+     */
+    public long getQuorumContactNanos() {
+        List<String> voters = followers;
+        // Sorted by age rather than by time stamp, which may wrap around.
+        // Voters without a running sender count as never heard from; learners do not count.
+        long[] ages = new long[voters.size() + 1];
+        Arrays.fill(ages, Long.MAX_VALUE);
+        ages[0] = 0; // ourselves
+        long now = System.nanoTime();
+        for (FollowerReplicator sender : senders) {
+            int i = voters.indexOf(sender.getFollower());
+            long sentAt = sender.getContactSentNanos();
+            if (i >= 0 && sentAt != FollowerReplicator.NO_CONTACT) ages[i + 1] = now - sentAt;
+        }
+        Arrays.sort(ages);
+        long age = ages[ages.length / 2];
+        return age == Long.MAX_VALUE ? FollowerReplicator.NO_CONTACT : now - age;
+    }
+
+    /**
+     * Confirms that this node is still the leader: at once if a majority answered a packet
+     * sent within the last {@code leaseMillis}, otherwise after a heartbeat round that a
+     * majority answers within {@code timeoutMillis}.
+     *
+     * @return false if leadership could not be confirmed
+     */
+    public boolean confirmLeadership(long leaseMillis, long timeoutMillis) {
+        long start = System.nanoTime();
+        if (!isLeader()) return false;
+        long contact = getQuorumContactNanos();
+        if (contact != FollowerReplicator.NO_CONTACT && start - contact < TimeUnit.MILLISECONDS.toNanos(leaseMillis)) {
+            return true;
+        }
+        for (FollowerReplicator sender : senders) sender.requestHeartbeat();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (contactLock) {
+            // Only packets sent after we started count.
+            while (isLeader() && ((contact = getQuorumContactNanos()) == FollowerReplicator.NO_CONTACT
+                    || contact - start < 0)) {
+                long waitNanos = deadline - System.nanoTime();
+                if (waitNanos <= 0) return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(contactLock, waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return isLeader();
+    }
+
+    private void senderProgress() {
+        recomputeAcks();
+        synchronized (contactLock) {
+            contactLock.notifyAll();
+        }
+    }
+
+    private void recomputeAcks() {
+        long quorum, all;
+        boolean committed;
+        // Read the followers before taking our lock: senders lock themselves, then us.
+        // Learners are not counted; voters without a running sender count as holding nothing.
+        List<String> voters = followers;
+        long[] matches = new long[voters.size() + 1];
+        for (FollowerReplicator sender : senders) {
+            int i = voters.indexOf(sender.getFollower());
+            if (i >= 0) matches[i + 1] = sender.getMatchIndex();
+        }
+        synchronized (this) {
+            matches[0] = localDurableIndex;
+            Arrays.sort(matches);
+            int majority = matches.length / 2 + 1;
+            quorum = Math.max(quorumIndex, matches[matches.length - majority]);
+            all = Math.max(allIndex, matches[0]);
+            committed = quorum > quorumIndex;
+            quorumIndex = quorum;
+            allIndex = all;
+        }
+        // Commit first, so a released writer already sees its entry as committed.
+        if (committed) commitListener.accept(quorum);
+        release(quorumWaiters, quorum);
+        release(allWaiters, all);
+    }
+
+    private static void failWaiters(ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters, Throwable cause) {
+        Map.Entry<Long, CompletableFuture<Void>> e;
+        while ((e = waiters.pollFirstEntry()) != null) {
+            e.getValue().completeExceptionally(cause);
         }
-        replicationLog.add(op);
     }
 
-    private void replicateToFollowers(Operation op) {
-        for (String f : followers) {
-            try {
-                HttpForwarder.forward(
-                        "POST",
-                        f + "/replicate",
-                        op.toWalLine()
-                );
-            } catch (Exception ignored) {}
+    private static void release(ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters, long upTo) {
+        Map.Entry<Long, CompletableFuture<Void>> e;
+        while ((e = waiters.firstEntry()) != null && e.getKey() <= upTo) {
+            if (waiters.remove(e.getKey(), e.getValue())) e.getValue().complete(null);
         }
     }
 
+    public List<FollowerReplicator> getSenders() {
+        return List.copyOf(senders);
+    }
+
+    /** Leader appends to replication log; the senders pick it up asynchronously. */
+    public void append(Operation op) {
+        if (!isLeader()) return;
+        synchronized (this) {
+            replicationLog.add(op);
+        }
+        for (FollowerReplicator sender : senders) sender.wake();
+    }
+
     public List<Operation> getReplicationLog() {
         return replicationLog;
     }
 
-    public List<Operation> getFromIndex(int indexInclusive) {
+    /**
+     * Entries from the given 0-based position onwards. Positions before {@link #getBaseIndex()}
+     * are not held in memory and must be read from the WAL.
+     */
+    public List<Operation> getFromIndex(long indexInclusive) {
+        return getFromIndex(indexInclusive, Integer.MAX_VALUE);
+    }
+
+    public synchronized List<Operation> getFromIndex(long indexInclusive, int maxEntries) {
         if (indexInclusive < 0) indexInclusive = 0;
-        if (indexInclusive >= replicationLog.size()) return List.of();
-        return new ArrayList<>(replicationLog.subList(indexInclusive, replicationLog.size()));
+        if (indexInclusive < baseIndex) {
+            throw new IllegalStateException("index " + indexInclusive + " precedes in-memory log at " + baseIndex);
+        }
+        int from = (int) (indexInclusive - baseIndex);
+        if (from >= replicationLog.size()) return List.of();
+        int to = (int) Math.min(replicationLog.size(), (long) from + maxEntries);
+        return new ArrayList<>(replicationLog.subList(from, to));
+    }
+
+    /** Number of log entries before the first one held in memory. */
+    public synchronized long getBaseIndex() {
+        return baseIndex;
+    }
+
+    /** Drops the in-memory log; the next appended entry gets position {@code baseIndex}. */
+    public synchronized void resetLog(long baseIndex) {
+        replicationLog.clear();
+        this.baseIndex = baseIndex;
+    }
+
+    /** Drops in-memory entries at positions below {@code upToIndex}, e.g. once a snapshot covers them. */
+    public synchronized void compact(long upToIndex) {
+        if (upToIndex <= baseIndex) return;
+        int n = (int) Math.min(upToIndex - baseIndex, replicationLog.size());
+        replicationLog.subList(0, n).clear();
+        baseIndex += n;
     }
 
-    public int size() {
-        return replicationLog.size();
+    public synchronized long size() {
+        return baseIndex + replicationLog.size();
     }
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.log.Operation;
+import com.atlasdb.snapshot.Snapshot;
+
+import java.util.List;
+
+/** The leader's log as seen by the per-follower senders. Positions are 0-based. */
+public interface ReplicationSource {
+
+    /** Number of entries in the log. */
+    long size();
+
+    /** Oldest position that {@link #read} can still serve; older entries only exist in a snapshot. */
+    long startIndex();
+
+    List<Operation> read(long fromPosition, int maxEntries);
+
+    /** Term that wrote the entry at 1-based {@code index} (0 for index 0). */
+    long termAt(long index);
+
+    long commitIndex();
+
+    Snapshot latestSnapshot();
+}
@@ -0,0 +1,56 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.snapshot.Snapshot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * How a node reaches its peers. Calls block until the peer has answered and may run
+ * concurrently for the same peer. A peer that has seen a newer term answers with
+ * {@link StaleTermException}.
+ */
+public interface ReplicationTransport {
+
+    /**
+     * Ships a packet (possibly empty, as a probe or heartbeat).
+     *
+     * @return the follower's log position afterwards: {@code fromIndex + ops.size()} if it
+     *         accepted the packet, otherwise the position it expected the packet to start at
+     */
+    long replicate(String follower, ReplicationPacket packet) throws Exception;
+
+    /**
+     * {@link #replicate} without blocking the caller. The default runs it on {@code executor};
+     * a transport with asynchronous I/O completes the future itself.
+     */
+    default CompletableFuture<Long> replicateAsync(String follower, ReplicationPacket packet, Executor executor) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                result.complete(replicate(follower, packet));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Replaces the follower's state with {@code snapshot}. {@code header} carries the
+     * snapshot's index as {@code fromIndexInclusive} and its term as {@code prevLogTerm}.
+     */
+    void installSnapshot(String follower, ReplicationPacket header, Snapshot snapshot) throws Exception;
+
+    /** RequestVote: @return whether {@code peer} votes for {@code candidate} in {@code term} */
+    boolean requestVote(String peer, long term, String candidate, long lastLogIndex, long lastLogTerm) throws Exception;
+
+    /**
+     * ReadIndex: asks {@code leader} to confirm its leadership.
+     *
+     * @return the log index a linearizable read must wait for
+     * @throws IllegalStateException if {@code leader} is not (or no longer) the leader
+     */
+    long readIndex(String leader) throws Exception;
+}
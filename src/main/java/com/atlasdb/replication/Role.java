@@ -2,5 +2,8 @@ package com.atlasdb.replication;
 
 public enum Role {
     LEADER,
-    FOLLOWER
-}
\ No newline at end of file
+    FOLLOWER,
+    CANDIDATE,
+    /** Read replica: tails the committed log, and neither votes nor acknowledges writes. */
+    REPLICA
+}
@@ -0,0 +1,21 @@
+package com.atlasdb.replication;
+
+/**
+ * A peer refused a request because it has already seen a newer term; the sender must
+ * step down to follower in that term.
+ */
+public class StaleTermException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long term;
+
+    public StaleTermException(long term) {
+        super("stale term, current term is " + term);
+        this.term = term;
+    }
+
+    public long getTerm() {
+        return term;
+    }
+}
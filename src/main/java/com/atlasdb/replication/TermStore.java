@@ -0,0 +1,138 @@
+package com.atlasdb.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Election state that must survive a restart: the current term, who this node voted for in
+ * it, and the term history, i.e. the first log index written in each term. The history
+ * answers "which term wrote entry i" for the log-matching check, even for entries that
+ * were compacted into a snapshot.
+ *
+ * <pre>
+ * term=&lt;currentTerm&gt;
+ * votedFor=&lt;nodeUrl or empty&gt;
+ * epoch=&lt;term&gt; &lt;firstIndex&gt;      (one line per term, ascending)
+ * </pre>
+ *
+ * Every change is written to a temp file, fsynced and renamed over the old one.
+ */
+public class TermStore {
+
+    private final Path file;
+    private long currentTerm;
+    private String votedFor;
+    private final TreeMap<Long, Long> epochs = new TreeMap<>(); // firstIndex -> term
+
+    public TermStore(Path file) {
+        this.file = file;
+        load();
+    }
+
+    public synchronized long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    /** @return the node voted for in the current term, or null */
+    public synchronized String getVotedFor() {
+        return votedFor;
+    }
+
+    /** Moves to {@code term} (never backwards) and records the vote cast in it. */
+    public synchronized void setTermAndVote(long term, String votedFor) {
+        if (term < currentTerm) {
+            throw new IllegalStateException("term " + term + " is behind current term " + currentTerm);
+        }
+        this.currentTerm = term;
+        this.votedFor = votedFor;
+        persist();
+    }
+
+    /** Term of the entry at 1-based {@code index}; 0 for index 0 and for entries before any recorded term. */
+    public synchronized long termAt(long index) {
+        if (index <= 0) return 0;
+        Map.Entry<Long, Long> e = epochs.floorEntry(index);
+        return e == null ? 0 : e.getValue();
+    }
+
+    /** First index written in the term that wrote {@code index} (1 if unknown). */
+    public synchronized long termStartIndex(long index) {
+        Map.Entry<Long, Long> e = epochs.floorEntry(index);
+        return e == null ? 1 : e.getKey();
+    }
+
+    /** Records that entries from {@code firstIndex} on were written in {@code term}. */
+    public synchronized void startTerm(long term, long firstIndex) {
+        Map.Entry<Long, Long> last = epochs.lastEntry();
+        if (last != null && last.getValue() >= term) return;
+        epochs.tailMap(firstIndex, true).clear();
+        epochs.put(firstIndex, term);
+        persist();
+    }
+
+    /** Forgets terms for entries after {@code lastKept}, after the log was truncated there. */
+    public synchronized void truncateAfter(long lastKept) {
+        if (epochs.tailMap(lastKept, false).isEmpty()) return;
+        epochs.tailMap(lastKept, false).clear();
+        persist();
+    }
+
+    /** Replaces the history with a single term covering every entry so far, after a snapshot install. */
+    public synchronized void resetTo(long term) {
+        epochs.clear();
+        if (term > 0) epochs.put(1L, term);
+        persist();
+    }
+
+    private void load() {
+        if (!Files.exists(file)) return;
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int eq = line.indexOf('=');
+                if (eq < 0) continue;
+                String k = line.substring(0, eq);
+                String v = line.substring(eq + 1).trim();
+                switch (k) {
+                    case "term" -> currentTerm = Long.parseLong(v);
+                    case "votedFor" -> votedFor = v.isEmpty() ? null : v;
+                    case "epoch" -> {
+                        String[] parts = v.split(" ");
+                        epochs.put(Long.parseLong(parts[1]), Long.parseLong(parts[0]));
+                    }
+                    default -> { }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("term state load failed: " + file, e);
+        }
+    }
+
+    private void persist() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("term=").append(currentTerm).append('\n');
+        sb.append("votedFor=").append(votedFor == null ? "" : votedFor).append('\n');
+        for (Map.Entry<Long, Long> e : epochs.entrySet()) {
+            sb.append("epoch=").append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ch.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+                ch.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("term state write failed: " + file, e);
+        }
+    }
+}
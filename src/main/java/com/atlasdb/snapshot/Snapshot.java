@@ -0,0 +1,26 @@
+package com.atlasdb.snapshot;
+
+import java.nio.file.Path;
+
+/**
+ * A snapshot file on disk: the full key/value state after applying log index {@code index}.
+ */
+public final class Snapshot {
+
+    private final long index;
+    private final Path path;
+
+    public Snapshot(long index, Path path) {
+        this.index = index;
+        this.path = path;
+    }
+
+    /** Last log index included in the snapshot. */
+    public long getIndex() {
+        return index;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+}
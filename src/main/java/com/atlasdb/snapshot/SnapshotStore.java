@@ -0,0 +1,235 @@
+package com.atlasdb.snapshot;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Directory of snapshot files named {@code snapshot-<lastIncludedIndex>.snap}.
+ *
+ * <pre>
+ * "ATLASDB_SNAP_V1\n"
+ * int64  lastIncludedIndex
+ * repeated: byte 1, int32 keyLength, key, int32 valueLength, value   (UTF-8)
+ * byte 0
+ * int32  crc32c of everything above
+ * </pre>
+ *
+ * Files are written under a temporary name and renamed into place once fsynced, so a
+ * snapshot that is listed is always complete.
+ */
+public class SnapshotStore {
+
+    private static final byte[] MAGIC = "ATLASDB_SNAP_V1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+
+    public SnapshotStore(Path dir) {
+        this.dir = dir;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /** Complete snapshots, newest first. */
+    public List<Snapshot> list() {
+        if (!Files.isDirectory(dir)) return List.of();
+        List<Snapshot> out = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                long index = parseIndex(f.getFileName().toString());
+                if (index >= 0) out.add(new Snapshot(index, f));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("snapshot listing failed", e);
+        }
+        out.sort(Comparator.comparingLong(Snapshot::getIndex).reversed());
+        return out;
+    }
+
+    /** @return the newest snapshot, or null if there is none */
+    public Snapshot latest() {
+        List<Snapshot> all = list();
+        return all.isEmpty() ? null : all.get(0);
+    }
+
+    /**
+     * Writes a snapshot of the entries produced by {@code source} and publishes it atomically.
+     */
+    public Snapshot write(long index, Consumer<BiConsumer<String, String>> source) throws IOException {
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(fileName(index) + TMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 64 * 1024), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.write(MAGIC);
+            out.writeLong(index);
+            try {
+                source.accept((k, v) -> {
+                    try {
+                        out.writeByte(1);
+                        writeString(out, k);
+                        writeString(out, v);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeByte(0);
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        return moveIntoPlace(index, tmp);
+    }
+
+    private Snapshot moveIntoPlace(long index, Path tmp) throws IOException {
+        Path target = dir.resolve(fileName(index));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+        return new Snapshot(index, target);
+    }
+
+    /** Where a snapshot received from the leader is assembled before {@link #publishIncoming}. */
+    public Path incomingFile(long index) throws IOException {
+        Files.createDirectories(dir);
+        return dir.resolve(fileName(index) + ".incoming" + TMP_SUFFIX);
+    }
+
+    /**
+     * Streams a fully received snapshot to {@code sink}, checking its index and checksum on
+     * the way, then moves it into place. On failure the incoming file is deleted and the
+     * caller must discard whatever the sink already received.
+     */
+    public Snapshot publishIncoming(long index, BiConsumer<String, String> sink) throws IOException {
+        Path tmp = incomingFile(index);
+        try {
+            long stored = read(tmp, sink);
+            if (stored != index) {
+                throw new IOException("snapshot " + tmp + " holds index " + stored + ", expected " + index);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return moveIntoPlace(index, tmp);
+    }
+
+    /** Drops a received snapshot that turned out not to be needed. */
+    public void discardIncoming(long index) {
+        try {
+            Files.deleteIfExists(incomingFile(index));
+        } catch (IOException e) {
+            System.err.println("could not delete incoming snapshot " + index + ": " + e);
+        }
+    }
+
+    /**
+     * Streams every entry of a snapshot to {@code sink}. The checksum is only known at the
+     * end, so on failure the caller must discard whatever it already received.
+     *
+     * @return the snapshot's last included index
+     */
+    public long load(Snapshot snapshot, BiConsumer<String, String> sink) throws IOException {
+        return read(snapshot.getPath(), sink);
+    }
+
+    /** Deletes all but the {@code keep} newest snapshots. */
+    public void retain(int keep) {
+        List<Snapshot> all = list();
+        for (int i = keep; i < all.size(); i++) {
+            try {
+                Files.deleteIfExists(all.get(i).getPath());
+            } catch (IOException e) {
+                System.err.println("could not delete old snapshot " + all.get(i).getPath() + ": " + e);
+            }
+        }
+    }
+
+    /** Removes temp files left behind by a crash mid-write. Only safe while nothing is being written. */
+    public void cleanTempFiles() {
+        if (!Files.isDirectory(dir)) return;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                String name = f.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(TMP_SUFFIX)) Files.deleteIfExists(f);
+            }
+        } catch (IOException e) {
+            System.err.println("snapshot cleanup in " + dir + " failed: " + e);
+        }
+    }
+
+    public static String fileName(long index) {
+        return String.format("%s%020d%s", PREFIX, index, SUFFIX);
+    }
+
+    private static long parseIndex(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long read(Path file, BiConsumer<String, String> sink) throws IOException {
+        try (InputStream raw = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(raw, 64 * 1024), new CRC32C());
+            DataInputStream in = new DataInputStream(checked);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a snapshot: " + file);
+            long index = in.readLong();
+            while (true) {
+                byte tag = in.readByte();
+                if (tag == 0) break;
+                if (tag != 1) throw new IOException("corrupt snapshot " + file + ": tag " + tag);
+                sink.accept(readString(in), readString(in));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) throw new IOException("snapshot checksum mismatch: " + file);
+            return index;
+        } catch (EOFException e) {
+            throw new IOException("truncated snapshot " + file, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > (64 << 20)) throw new IOException("corrupt snapshot string length " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void syncDir() {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {
+            // not supported on every platform
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.atlasdb.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over String keys, about 1% false positives at the default 10 bits per key.
+ * Probes use double hashing over one 64-bit hash of the key's UTF-8 bytes.
+ */
+final class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final int hashes;
+
+    BloomFilter(long expectedKeys) {
+        long nbits = Math.max(64, expectedKeys * BITS_PER_KEY);
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (nbits + 63) / 64)];
+        this.hashes = Math.max(1, (int) Math.round(BITS_PER_KEY * 0.69)); // ln 2 * bits per key
+    }
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    void add(String key) {
+        long h = hash(key);
+        long nbits = (long) bits.length * 64;
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % nbits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long h = hash(key);
+        long nbits = (long) bits.length * 64;
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % nbits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    int serializedSize() {
+        return 8 + bits.length * 8;
+    }
+
+    void writeTo(ByteBuffer out) {
+        out.putInt(hashes);
+        out.putInt(bits.length);
+        for (long word : bits) out.putLong(word);
+    }
+
+    static BloomFilter readFrom(ByteBuffer in) {
+        int hashes = in.getInt();
+        long[] bits = new long[in.getInt()];
+        for (int i = 0; i < bits.length; i++) bits[i] = in.getLong();
+        return new BloomFilter(bits, hashes);
+    }
+
+    /** FNV-1a over the UTF-8 bytes, finished with a 64-bit mix so both halves are usable. */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,542 @@
+package com.atlasdb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Log-structured merge tree on disk, so the data set is bounded by disk rather than heap.
+ *
+ * Writes go to an in-memory memtable; a deletion is stored as a tombstone. {@link #flush}
+ * freezes the memtable, and writing the flush turns every frozen memtable into one
+ * immutable {@link SSTable} and records it, with the log index it covers, in the MANIFEST
+ * (replaced atomically). A lookup checks the memtables, then the tables newest first,
+ * skipping a table whose bloom filter rules the key out. Scans merge all of them.
+ *
+ * A background thread compacts the newest tables once there are
+ * {@value #COMPACTION_TRIGGER} of similar size, merging them into one; a merge that
+ * reaches the oldest table also drops tombstones. Tables are only deleted when no reader
+ * still uses them.
+ */
+public class LsmEngine implements StorageEngine {
+
+    public static final long DEFAULT_MEMTABLE_BYTES = 64L << 20;
+    static final int COMPACTION_TRIGGER = 4;
+    /** A table joins a compaction if it is at most this many times the size of the newer ones. */
+    private static final int COMPACTION_RATIO = 2;
+    private static final long ENTRY_OVERHEAD = 64;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String MANIFEST_HEADER = "atlasdb-lsm 1";
+
+    /** Marks a deleted key in memtables and tables; compared by identity. */
+    static final String TOMBSTONE = new String("<deleted>");
+
+    private final Path dir;
+    private final long memtableBytes;
+
+    private volatile Memtable active = new Memtable();
+    // Newest first. Frozen memtables are added before the active one is replaced and
+    // removed only after their table is installed, so a reader going active, frozen,
+    // tables always finds every entry.
+    private volatile List<Memtable> frozen = List.of();
+    private volatile Version current;
+    private volatile long persisted;
+    private final Object manifestLock = new Object(); // changes to frozen, current, persisted
+    private final Object flushLock = new Object();    // one flush at a time
+    private long nextSeq = 1;                         // guarded by manifestLock
+    private long generation;                          // bumped by clear(); guarded by manifestLock
+
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atlasdb-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LsmEngine(Path dir) {
+        this(dir, DEFAULT_MEMTABLE_BYTES);
+    }
+
+    /** Opens the store in {@code dir}, creating it if needed. */
+    public LsmEngine(Path dir, long memtableBytes) {
+        this.dir = dir;
+        this.memtableBytes = memtableBytes;
+        List<SSTable> tables = new ArrayList<>();
+        try {
+            Files.createDirectories(dir);
+            Path manifest = dir.resolve(MANIFEST);
+            Set<String> live = new HashSet<>();
+            if (Files.exists(manifest)) {
+                List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+                if (lines.isEmpty() || !lines.get(0).equals(MANIFEST_HEADER)) {
+                    throw new IOException("not an LSM manifest: " + manifest);
+                }
+                for (String line : lines.subList(1, lines.size())) {
+                    String[] parts = line.split(" ", 2);
+                    switch (parts[0]) {
+                        case "persisted" -> persisted = Long.parseLong(parts[1]);
+                        case "next" -> nextSeq = Long.parseLong(parts[1]);
+                        case "table" -> {
+                            tables.add(SSTable.open(dir.resolve(parts[1])));
+                            live.add(parts[1]);
+                        }
+                        default -> throw new IOException("bad manifest line in " + manifest + ": " + line);
+                    }
+                }
+            }
+            // Tables from a flush or compaction that crashed before reaching the manifest.
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    String name = f.getFileName().toString();
+                    if (name.endsWith(".tmp") || (name.endsWith(SSTable.SUFFIX) && !live.contains(name))) {
+                        Files.deleteIfExists(f);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (SSTable t : tables) {
+                t.ref();
+                t.unref();
+            }
+            throw new RuntimeException("open of LSM store " + dir + " failed", e);
+        }
+        this.current = new Version(tables);
+        maybeCompact();
+    }
+
+    @Override
+    public String get(String key) {
+        String v = active.map.get(key);
+        if (v == null) {
+            for (Memtable m : frozen) {
+                v = m.map.get(key);
+                if (v != null) break;
+            }
+        }
+        if (v == null) {
+            Version version = acquire();
+            try {
+                for (SSTable t : version.tables) {
+                    v = t.get(key);
+                    if (v != null) break;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("read of " + key + " failed", e);
+            } finally {
+                version.release();
+            }
+        }
+        return v == TOMBSTONE ? null : v;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        active.put(key, value);
+    }
+
+    @Override
+    public void delete(String key) {
+        active.put(key, TOMBSTONE);
+    }
+
+    @Override
+    public int scan(String from, boolean fromInclusive, String to, String prefix, int limit,
+                    BiConsumer<String, String> sink) {
+        // Same order as get(): memtables before tables, so a flush in between is not missed.
+        Memtable mem = active;
+        List<Memtable> mems = frozen;
+        Version version = acquire();
+        try {
+            Iterator<Map.Entry<String, String>> it = merged(mem, mems, version, from);
+            int n = 0;
+            while (n < limit && it.hasNext()) {
+                Map.Entry<String, String> e = it.next();
+                String key = e.getKey();
+                if (!fromInclusive && key.equals(from)) continue;
+                if (to != null && key.compareTo(to) >= 0) break;
+                if (prefix != null && !key.startsWith(prefix)) break; // past the prefix
+                if (e.getValue() == TOMBSTONE) continue;
+                sink.accept(key, e.getValue());
+                n++;
+            }
+            return n;
+        } finally {
+            version.release();
+        }
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return true;
+    }
+
+    /** Counts live entries, which walks the whole store. */
+    @Override
+    public int size() {
+        int[] n = {0};
+        scan(null, true, null, null, Integer.MAX_VALUE, (k, v) -> n[0]++);
+        return n[0];
+    }
+
+    @Override
+    public void clear() {
+        synchronized (flushLock) {
+            Version old;
+            synchronized (manifestLock) {
+                generation++;
+                active = new Memtable();
+                frozen = List.of();
+                try {
+                    writeManifest(0, List.of());
+                } catch (IOException e) {
+                    throw new RuntimeException("clear of LSM store " + dir + " failed", e);
+                }
+                persisted = 0;
+                old = current;
+                current = new Version(List.of());
+            }
+            for (SSTable t : old.tables) t.markObsolete();
+            old.release();
+        }
+    }
+
+    /**
+     * Freezes the active memtable; the view reads it, the older frozen memtables and the
+     * tables of the current version, none of which change any more.
+     */
+    @Override
+    public View openView() {
+        List<Memtable> mems;
+        synchronized (manifestLock) {
+            rotate();
+            mems = frozen;
+        }
+        Version version = acquire();
+        AtomicBoolean closed = new AtomicBoolean();
+        return new View() {
+            @Override
+            public void forEach(BiConsumer<String, String> sink) {
+                Iterator<Map.Entry<String, String>> it = merged(null, mems, version, null);
+                while (it.hasNext()) {
+                    Map.Entry<String, String> e = it.next();
+                    if (e.getValue() != TOMBSTONE) sink.accept(e.getKey(), e.getValue());
+                }
+            }
+
+            @Override
+            public void close() {
+                if (closed.compareAndSet(false, true)) version.release();
+            }
+        };
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public long persistedIndex() {
+        return persisted;
+    }
+
+    @Override
+    public boolean needsFlush() {
+        return active.bytes.get() >= memtableBytes;
+    }
+
+    @Override
+    public Flush flush(long index) {
+        List<Memtable> toFlush;
+        long gen;
+        synchronized (manifestLock) {
+            rotate();
+            toFlush = frozen;
+            gen = generation;
+        }
+        return () -> writeFlush(toFlush, index, gen);
+    }
+
+    @Override
+    public void discardUnpersisted() {
+        synchronized (flushLock) {
+            synchronized (manifestLock) {
+                active = new Memtable();
+                frozen = List.of();
+            }
+        }
+    }
+
+    /** Stops compaction and closes the tables. Unflushed entries are lost; the WAL still has them. */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (manifestLock) {
+            current.release();
+        }
+    }
+
+    /** Number of tables in the current version. */
+    public int tableCount() {
+        return current.tables.size();
+    }
+
+    // Caller holds manifestLock and no mutation runs concurrently.
+    private void rotate() {
+        Memtable full = active;
+        if (full.map.isEmpty()) return;
+        List<Memtable> next = new ArrayList<>(frozen.size() + 1);
+        next.add(full);
+        next.addAll(frozen);
+        frozen = List.copyOf(next);
+        active = new Memtable();
+    }
+
+    private void writeFlush(List<Memtable> toFlush, long index, long gen) throws IOException {
+        synchronized (flushLock) {
+            SSTable table = null;
+            if (!toFlush.isEmpty()) {
+                long seq;
+                boolean bottom;
+                synchronized (manifestLock) {
+                    if (gen != generation) return; // cleared meanwhile
+                    seq = nextSeq++;
+                    bottom = current.tables.isEmpty();
+                }
+                long expected = 0;
+                List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+                for (Memtable m : toFlush) {
+                    sources.add(m.iterator(null));
+                    expected += m.map.size();
+                }
+                table = SSTable.write(dir.resolve(tableName(seq)), new MergingIterator(sources), expected, bottom);
+                if (table.entries() == 0) {
+                    discard(table);
+                    table = null;
+                }
+            }
+            Version old;
+            synchronized (manifestLock) {
+                if (gen != generation) {
+                    if (table != null) discard(table);
+                    return;
+                }
+                List<SSTable> tables = new ArrayList<>(current.tables.size() + 1);
+                if (table != null) tables.add(table);
+                tables.addAll(current.tables);
+                long newPersisted = Math.max(persisted, index);
+                try {
+                    writeManifest(newPersisted, tables);
+                } catch (IOException e) {
+                    if (table != null) discard(table);
+                    throw e;
+                }
+                old = current;
+                current = new Version(tables);
+                persisted = newPersisted;
+                List<Memtable> remaining = new ArrayList<>(frozen);
+                remaining.removeIf(m -> toFlush.stream().anyMatch(f -> f == m));
+                frozen = List.copyOf(remaining);
+            }
+            old.release();
+        }
+        maybeCompact();
+    }
+
+    private void maybeCompact() {
+        if (current.tables.size() < COMPACTION_TRIGGER || !compactionPending.compareAndSet(false, true)) return;
+        try {
+            compactor.execute(() -> {
+                boolean compacted = false;
+                try {
+                    compacted = compact();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("compaction in " + dir + " failed: " + e);
+                } finally {
+                    compactionPending.set(false);
+                }
+                if (compacted) maybeCompact();
+            });
+        } catch (RejectedExecutionException e) {
+            compactionPending.set(false); // closed
+        }
+    }
+
+    /**
+     * Merges the newest run of tables whose sizes are within {@link #COMPACTION_RATIO} of the
+     * tables newer than them, if the run is at least {@value #COMPACTION_TRIGGER} long.
+     *
+     * @return whether a compaction was done
+     */
+    private boolean compact() throws IOException {
+        Version version = acquire();
+        SSTable merged;
+        List<SSTable> inputs;
+        long gen;
+        try {
+            List<SSTable> tables = version.tables;
+            int run = 0;
+            long sum = 0;
+            while (run < tables.size() && (run == 0 || tables.get(run).sizeBytes() <= COMPACTION_RATIO * sum)) {
+                sum += tables.get(run).sizeBytes();
+                run++;
+            }
+            if (run < COMPACTION_TRIGGER) return false;
+            inputs = List.copyOf(tables.subList(0, run));
+            boolean bottom = run == tables.size();
+            long seq;
+            synchronized (manifestLock) {
+                seq = nextSeq++;
+                gen = generation;
+            }
+            List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+            long expected = 0;
+            for (SSTable t : inputs) {
+                sources.add(t.iterator(null));
+                expected += t.entries();
+            }
+            merged = SSTable.write(dir.resolve(tableName(seq)), new MergingIterator(sources), expected, bottom);
+        } finally {
+            version.release();
+        }
+
+        Version old;
+        synchronized (manifestLock) {
+            List<SSTable> now = current.tables;
+            int at = now.indexOf(inputs.get(0));
+            if (gen != generation || at < 0 || at + inputs.size() > now.size()
+                    || !now.subList(at, at + inputs.size()).equals(inputs)) {
+                discard(merged);
+                return false;
+            }
+            List<SSTable> tables = new ArrayList<>(now.subList(0, at));
+            if (merged.entries() > 0) tables.add(merged);
+            tables.addAll(now.subList(at + inputs.size(), now.size()));
+            try {
+                writeManifest(persisted, tables);
+            } catch (IOException e) {
+                discard(merged);
+                throw e;
+            }
+            old = current;
+            current = new Version(tables);
+        }
+        if (merged.entries() == 0) discard(merged);
+        for (SSTable t : inputs) t.markObsolete();
+        old.release();
+        return true;
+    }
+
+    private Version acquire() {
+        while (true) {
+            Version v = current;
+            if (v.tryRef()) return v;
+        }
+    }
+
+    /** Newest-wins merge of the given sources from {@code from} on, tombstones included. */
+    private static Iterator<Map.Entry<String, String>> merged(Memtable active, List<Memtable> frozen,
+                                                              Version version, String from) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        if (active != null) sources.add(active.iterator(from));
+        for (Memtable m : frozen) sources.add(m.iterator(from));
+        for (SSTable t : version.tables) sources.add(t.iterator(from));
+        return new MergingIterator(sources);
+    }
+
+    // Caller holds manifestLock.
+    private void writeManifest(long persistedIndex, List<SSTable> tables) throws IOException {
+        StringBuilder sb = new StringBuilder(MANIFEST_HEADER).append('\n');
+        sb.append("persisted ").append(persistedIndex).append('\n');
+        sb.append("next ").append(nextSeq).append('\n');
+        for (SSTable t : tables) sb.append("table ").append(t.path().getFileName()).append('\n');
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException ignored) {
+            // not supported on every platform
+        }
+    }
+
+    private static void discard(SSTable table) {
+        table.markObsolete();
+        table.ref();
+        table.unref();
+    }
+
+    private static String tableName(long seq) {
+        return String.format("%020d%s", seq, SSTable.SUFFIX);
+    }
+
+    /** Sorted in-memory buffer of recent writes. */
+    private static final class Memtable {
+        final ConcurrentSkipListMap<String, String> map = new ConcurrentSkipListMap<>();
+        final AtomicLong bytes = new AtomicLong();
+
+        void put(String key, String value) {
+            map.put(key, value);
+            bytes.addAndGet(ENTRY_OVERHEAD + 2L * (key.length() + value.length()));
+        }
+
+        Iterator<Map.Entry<String, String>> iterator(String from) {
+            return (from == null ? map : map.tailMap(from, true)).entrySet().iterator();
+        }
+    }
+
+    /** An immutable list of tables, newest first, and the readers using it. */
+    private static final class Version {
+        final List<SSTable> tables;
+        private final AtomicInteger refs = new AtomicInteger(1); // the engine's own reference
+
+        Version(List<SSTable> tables) {
+            this.tables = List.copyOf(tables);
+            for (SSTable t : this.tables) t.ref();
+        }
+
+        boolean tryRef() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                for (SSTable t : tables) t.unref();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.atlasdb.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps every entry on the heap: a concurrent skip list when ordered, a concurrent hash
+ * map otherwise. Nothing survives a restart; the node rebuilds it from its snapshot and WAL.
+ */
+public class MemoryEngine implements StorageEngine {
+
+    private static final Object ABSENT = new Object();
+
+    private final ConcurrentMap<String, String> store;
+    private final ConcurrentNavigableMap<String, String> ordered; // null when unordered
+    private volatile PreImageView activeView;
+
+    public MemoryEngine(boolean ordered) {
+        if (ordered) {
+            this.ordered = new ConcurrentSkipListMap<>();
+            this.store = this.ordered;
+        } else {
+            this.store = new ConcurrentHashMap<>();
+            this.ordered = null;
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        PreImageView view = activeView;
+        if (view == null) {
+            store.put(key, value);
+            return;
+        }
+        store.compute(key, (k, old) -> {
+            view.preserve(k, old);
+            return value;
+        });
+    }
+
+    @Override
+    public void delete(String key) {
+        PreImageView view = activeView;
+        if (view == null) {
+            store.remove(key);
+            return;
+        }
+        store.computeIfPresent(key, (k, old) -> {
+            view.preserve(k, old);
+            return null;
+        });
+    }
+
+    @Override
+    public int scan(String from, boolean fromInclusive, String to, String prefix, int limit,
+                    BiConsumer<String, String> sink) {
+        if (ordered == null) throw new UnsupportedOperationException("range scans need an ordered store");
+        ConcurrentNavigableMap<String, String> range = from == null ? ordered : ordered.tailMap(from, fromInclusive);
+        if (to != null) range = range.headMap(to, false);
+
+        int n = 0;
+        for (Map.Entry<String, String> e : range.entrySet()) {
+            if (n >= limit) break;
+            if (prefix != null && !e.getKey().startsWith(prefix)) break; // past the prefix
+            sink.accept(e.getKey(), e.getValue());
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return ordered != null;
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void clear() {
+        store.clear();
+    }
+
+    /**
+     * Freezes the contents without copying them: while the view is open, the first write to
+     * each key saves its previous value.
+     */
+    @Override
+    public View openView() {
+        if (activeView != null) throw new IllegalStateException("snapshot already in progress");
+        PreImageView view = new PreImageView();
+        activeView = view;
+        return view;
+    }
+
+    private final class PreImageView implements View {
+
+        private final ConcurrentHashMap<String, Object> preImages = new ConcurrentHashMap<>();
+
+        private void preserve(String key, String old) {
+            preImages.putIfAbsent(key, old == null ? ABSENT : old);
+        }
+
+        /** A key may be visited twice with the same value if it is overwritten during the walk. */
+        @Override
+        public void forEach(BiConsumer<String, String> sink) {
+            // The iterator captures each value before we consult preImages; a value written
+            // after the snapshot point always has its pre-image recorded first, so it's skipped.
+            for (Map.Entry<String, String> e : store.entrySet()) {
+                String value = e.getValue();
+                if (!preImages.containsKey(e.getKey())) sink.accept(e.getKey(), value);
+            }
+            for (Map.Entry<String, Object> e : preImages.entrySet()) {
+                if (e.getValue() != ABSENT) sink.accept(e.getKey(), (String) e.getValue());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (activeView == this) activeView = null;
+        }
+    }
+}
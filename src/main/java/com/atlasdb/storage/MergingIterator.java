@@ -0,0 +1,65 @@
+package com.atlasdb.storage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted sources into one sorted stream with one entry per key. Sources are given
+ * newest first; when several hold a key, the newest one's entry wins, deletions included.
+ */
+final class MergingIterator implements Iterator<Map.Entry<String, String>> {
+
+    private static final class Head {
+        final Iterator<Map.Entry<String, String>> source;
+        final int age; // 0 = newest
+        Map.Entry<String, String> entry;
+
+        Head(Iterator<Map.Entry<String, String>> source, int age) {
+            this.source = source;
+            this.age = age;
+        }
+    }
+
+    private final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> {
+        int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+        return cmp != 0 ? cmp : Integer.compare(a.age, b.age);
+    });
+
+    MergingIterator(List<Iterator<Map.Entry<String, String>>> newestFirst) {
+        for (int i = 0; i < newestFirst.size(); i++) {
+            Head h = new Head(newestFirst.get(i), i);
+            if (h.source.hasNext()) {
+                h.entry = h.source.next();
+                heads.add(h);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+        Head first = heads.poll();
+        if (first == null) throw new NoSuchElementException();
+        Map.Entry<String, String> winner = first.entry;
+        refill(first);
+        // Older versions of the same key are shadowed.
+        while (!heads.isEmpty() && heads.peek().entry.getKey().equals(winner.getKey())) {
+            refill(heads.poll());
+        }
+        return winner;
+    }
+
+    private void refill(Head h) {
+        if (h.source.hasNext()) {
+            h.entry = h.source.next();
+            heads.add(h);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.atlasdb.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps keys and values as UTF-8 bytes in off-heap arenas, so the heap only holds a
+ * primitive index and the GC has no per-entry objects to trace.
+ *
+ * Entries are appended to direct buffers of {@code chunkBytes} as {@code [int keyLen]
+ * [int valueLen][key][value]} and never modified in place. The index is an open-addressing
+ * hash table (linear probing, backward-shift deletion) of {@code long} arena addresses with
+ * the key hashes alongside. Overwritten and deleted entries leave garbage behind; once it
+ * outweighs the live entries, the live ones are copied to fresh chunks.
+ *
+ * Writes are serialized. Reads take no lock: they probe optimistically and retry under the
+ * read lock if a write moved things meanwhile. Since entries are immutable,
+ * {@link #getBytes} hands out a view of the arena itself that stays valid after the call.
+ * There is no key order, so no scans.
+ */
+public class OffHeapEngine implements StorageEngine {
+
+    public static final int DEFAULT_CHUNK_BYTES = 64 << 20;
+    private static final int HEADER = 8;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private final int chunkBytes;
+    private final StampedLock lock = new StampedLock();
+    // Replaced or changed only under the write lock; readers validate what they read.
+    private volatile long[] slots;      // 0 = empty, else (chunk + 1) << 32 | offset
+    private volatile int[] hashes;      // hash of the key in the same slot
+    private volatile ByteBuffer[] chunks;
+    private int count;
+    private long liveBytes;
+    private long deadBytes;
+
+    public OffHeapEngine() {
+        this(DEFAULT_CHUNK_BYTES);
+    }
+
+    public OffHeapEngine(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+        reset();
+    }
+
+    private void reset() {
+        slots = new long[INITIAL_CAPACITY];
+        hashes = new int[INITIAL_CAPACITY];
+        chunks = new ByteBuffer[0];
+        count = 0;
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    @Override
+    public String get(String key) {
+        ByteBuffer value = getBytes(key);
+        return value == null ? null : StandardCharsets.UTF_8.decode(value).toString();
+    }
+
+    /** A read-only view of the value's bytes in the arena, or null. */
+    @Override
+    public ByteBuffer getBytes(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int h = hash(k);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                ByteBuffer value = find(k, h);
+                if (lock.validate(stamp)) return value;
+            } catch (RuntimeException e) {
+                // Read a half-moved index; retry under the lock.
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(k, h);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private ByteBuffer find(byte[] k, int h) {
+        ByteBuffer[] arena = chunks;
+        long[] t = slots;
+        int[] hs = hashes;
+        int mask = t.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            long s = t[i];
+            if (s == 0) return null;
+            if (hs[i] == h && keyEquals(arena, s, k)) {
+                ByteBuffer chunk = arena[chunkOf(s)];
+                int off = offsetOf(s);
+                int keyLen = chunk.getInt(off);
+                int valueLen = chunk.getInt(off + 4);
+                return chunk.slice(off + HEADER + keyLen, valueLen).asReadOnlyBuffer();
+            }
+        }
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        int h = hash(k);
+        long stamp = lock.writeLock();
+        try {
+            long address = append(k, v);
+            liveBytes += HEADER + k.length + v.length;
+            long[] t = slots;
+            int mask = t.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                long s = t[i];
+                if (s == 0) {
+                    hashes[i] = h;
+                    t[i] = address;
+                    if (++count > t.length * MAX_LOAD) resize(t.length * 2);
+                    break;
+                }
+                if (hashes[i] == h && keyEquals(chunks, s, k)) {
+                    release(s);
+                    t[i] = address;
+                    break;
+                }
+            }
+            maybeCompactArena();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int h = hash(k);
+        long stamp = lock.writeLock();
+        try {
+            long[] t = slots;
+            int[] hs = hashes;
+            int mask = t.length - 1;
+            int i = h & mask;
+            while (true) {
+                long s = t[i];
+                if (s == 0) return;
+                if (hs[i] == h && keyEquals(chunks, s, k)) {
+                    release(s);
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            // Backward shift: pull later entries of the probe run into the hole so lookups
+            // never stop early at it.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (t[j] == 0) break;
+                int home = hs[j] & mask;
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    t[i] = t[j];
+                    hs[i] = hs[j];
+                    i = j;
+                }
+            }
+            t[i] = 0;
+            count--;
+            maybeCompactArena();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int scan(String from, boolean fromInclusive, String to, String prefix, int limit,
+                    BiConsumer<String, String> sink) {
+        throw new UnsupportedOperationException("range scans need an ordered store");
+    }
+
+    @Override
+    public boolean isOrdered() {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            reset();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the index, which is all it takes: the entries it points to are never changed,
+     * and the chunks stay reachable from the view even if the arena is compacted.
+     */
+    @Override
+    public View openView() {
+        long[] t;
+        ByteBuffer[] arena;
+        long stamp = lock.readLock();
+        try {
+            t = slots.clone();
+            arena = chunks;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return new View() {
+            @Override
+            public void forEach(BiConsumer<String, String> sink) {
+                for (long s : t) {
+                    if (s == 0) continue;
+                    ByteBuffer chunk = arena[chunkOf(s)];
+                    int off = offsetOf(s);
+                    int keyLen = chunk.getInt(off);
+                    int valueLen = chunk.getInt(off + 4);
+                    sink.accept(decode(chunk, off + HEADER, keyLen), decode(chunk, off + HEADER + keyLen, valueLen));
+                }
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    /** Bytes held in the arenas, live or not. */
+    public long arenaBytes() {
+        long stamp = lock.readLock();
+        try {
+            return liveBytes + deadBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // ---- under the write lock ----
+
+    private long append(byte[] k, byte[] v) {
+        int size = HEADER + k.length + v.length;
+        ByteBuffer[] arena = chunks;
+        ByteBuffer tail = arena.length == 0 ? null : arena[arena.length - 1];
+        if (tail == null || tail.remaining() < size) {
+            tail = ByteBuffer.allocateDirect(Math.max(chunkBytes, size));
+            arena = Arrays.copyOf(arena, arena.length + 1);
+            arena[arena.length - 1] = tail;
+            chunks = arena;
+        }
+        int off = tail.position();
+        tail.putInt(k.length).putInt(v.length).put(k).put(v);
+        return address(arena.length - 1, off);
+    }
+
+    private void release(long s) {
+        ByteBuffer chunk = chunks[chunkOf(s)];
+        int off = offsetOf(s);
+        long size = HEADER + chunk.getInt(off) + chunk.getInt(off + 4);
+        liveBytes -= size;
+        deadBytes += size;
+    }
+
+    private void resize(int capacity) {
+        long[] t = slots;
+        int[] hs = hashes;
+        long[] nt = new long[capacity];
+        int[] nhs = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < t.length; i++) {
+            if (t[i] == 0) continue;
+            int j = hs[i] & mask;
+            while (nt[j] != 0) j = (j + 1) & mask;
+            nt[j] = t[i];
+            nhs[j] = hs[i];
+        }
+        hashes = nhs;
+        slots = nt;
+    }
+
+    /** Copies the live entries to fresh chunks once garbage outweighs them. */
+    private void maybeCompactArena() {
+        if (deadBytes < chunkBytes || deadBytes < liveBytes) return;
+        ByteBuffer[] old = chunks;
+        List<ByteBuffer> arena = new ArrayList<>();
+        ByteBuffer tail = null;
+        long[] t = slots;
+        for (int i = 0; i < t.length; i++) {
+            if (t[i] == 0) continue;
+            ByteBuffer chunk = old[chunkOf(t[i])];
+            int off = offsetOf(t[i]);
+            int size = HEADER + chunk.getInt(off) + chunk.getInt(off + 4);
+            if (tail == null || tail.remaining() < size) {
+                tail = ByteBuffer.allocateDirect(Math.max(chunkBytes, size));
+                arena.add(tail);
+            }
+            int newOff = tail.position();
+            tail.put(chunk.slice(off, size));
+            t[i] = address(arena.size() - 1, newOff);
+        }
+        chunks = arena.toArray(new ByteBuffer[0]);
+        deadBytes = 0;
+    }
+
+    // ---- helpers ----
+
+    private static boolean keyEquals(ByteBuffer[] arena, long s, byte[] k) {
+        ByteBuffer chunk = arena[chunkOf(s)];
+        int off = offsetOf(s);
+        if (chunk.getInt(off) != k.length) return false;
+        return chunk.slice(off + HEADER, k.length).mismatch(ByteBuffer.wrap(k)) < 0;
+    }
+
+    private static String decode(ByteBuffer chunk, int off, int len) {
+        return StandardCharsets.UTF_8.decode(chunk.slice(off, len)).toString();
+    }
+
+    private static long address(int chunk, int offset) {
+        return ((long) (chunk + 1) << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int chunkOf(long s) {
+        return (int) (s >>> 32) - 1;
+    }
+
+    private static int offsetOf(long s) {
+        return (int) s;
+    }
+
+    /** FNV-1a finished with a murmur3 mix, so the low bits used for the slot are well spread. */
+    private static int hash(byte[] k) {
+        int h = 0x811c9dc5;
+        for (byte b : k) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,358 @@
+package com.atlasdb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+/**
+ * Immutable sorted file of entries, written once by a flush or a compaction.
+ *
+ * Layout: data blocks of about {@link #BLOCK_BYTES}, each {@code [int length][int crc32c]}
+ * followed by its entries ({@code varint keyLen, key, flag, varint valueLen, value}; a
+ * deletion has flag 1 and no value); then the block index (first key, offset and length
+ * of every block), the bloom filter, and a fixed footer locating both. The index and the
+ * filter stay in memory; a lookup that passes the filter reads exactly one block.
+ *
+ * Tables are reference counted by the {@link LsmEngine} versions that list them. The file
+ * is closed when the last reference goes, and deleted too once a compaction replaced it.
+ */
+final class SSTable {
+
+    static final String SUFFIX = ".sst";
+    static final int BLOCK_BYTES = 4096;
+    private static final long MAGIC = 0x41544c5353543031L; // "ATLSST01"
+    private static final int FOOTER_BYTES = 8 + 4 + 8 + 4 + 8 + 4 + 8;
+    private static final byte PUT = 0;
+    private static final byte DELETE = 1;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final String[] firstKeys;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final BloomFilter bloom;
+    private final long entries;
+    private final long sizeBytes;
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean obsolete;
+
+    private SSTable(Path path, FileChannel channel, String[] firstKeys, long[] offsets, int[] lengths,
+                    BloomFilter bloom, long entries, long sizeBytes) {
+        this.path = path;
+        this.channel = channel;
+        this.firstKeys = firstKeys;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.bloom = bloom;
+        this.entries = entries;
+        this.sizeBytes = sizeBytes;
+    }
+
+    /**
+     * Writes {@code sorted} (ascending keys, at most one entry per key, deletions as
+     * {@link LsmEngine#TOMBSTONE}) to {@code path} and opens it. The file only appears under
+     * its name once complete and synced.
+     *
+     * @param expectedKeys     upper bound on the number of entries, to size the bloom filter
+     * @param dropTombstones   leave deletions out, when no older table can hold the key
+     */
+    static SSTable write(Path path, Iterator<Map.Entry<String, String>> sorted, long expectedKeys,
+                         boolean dropTombstones) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        List<String> firstKeys = new ArrayList<>();
+        List<long[]> blocks = new ArrayList<>();
+        BloomFilter bloom = new BloomFilter(expectedKeys);
+        long count = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 256);
+            String blockFirst = null;
+            while (sorted.hasNext()) {
+                Map.Entry<String, String> e = sorted.next();
+                boolean deleted = e.getValue() == LsmEngine.TOMBSTONE;
+                if (deleted && dropTombstones) continue;
+                if (blockFirst == null) blockFirst = e.getKey();
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                writeVarint(block, key.length);
+                block.write(key);
+                if (deleted) {
+                    block.write(DELETE);
+                } else {
+                    byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);
+                    block.write(PUT);
+                    writeVarint(block, value.length);
+                    block.write(value);
+                }
+                bloom.add(e.getKey());
+                count++;
+                if (block.size() >= BLOCK_BYTES) {
+                    firstKeys.add(blockFirst);
+                    blocks.add(new long[]{position, block.size() + 8});
+                    position += writeBlock(out, position, block);
+                    blockFirst = null;
+                }
+            }
+            if (block.size() > 0) {
+                firstKeys.add(blockFirst);
+                blocks.add(new long[]{position, block.size() + 8});
+                position += writeBlock(out, position, block);
+            }
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            ByteBuffer entry = ByteBuffer.allocate(12);
+            for (int i = 0; i < blocks.size(); i++) {
+                byte[] key = firstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                writeVarint(index, key.length);
+                index.write(key);
+                entry.clear();
+                entry.putLong(blocks.get(i)[0]).putInt((int) blocks.get(i)[1]);
+                index.write(entry.array());
+            }
+            ByteBuffer meta = ByteBuffer.allocate(4 + index.size() + bloom.serializedSize());
+            meta.putInt(blocks.size()).put(index.toByteArray());
+            bloom.writeTo(meta);
+            meta.flip();
+            CRC32C crc = new CRC32C();
+            crc.update(meta.duplicate());
+            long indexOffset = position;
+            int indexLength = 4 + index.size();
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+            footer.putLong(indexOffset).putInt(indexLength)
+                    .putLong(indexOffset + indexLength).putInt(bloom.serializedSize())
+                    .putLong(count).putInt((int) crc.getValue()).putLong(MAGIC).flip();
+            position += writeFully(out, position, meta);
+            writeFully(out, position, footer);
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    private static int writeBlock(FileChannel out, long position, ByteArrayOutputStream block) throws IOException {
+        byte[] payload = block.toByteArray();
+        block.reset();
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+        buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return writeFully(out, position, buf);
+    }
+
+    private static int writeFully(FileChannel out, long position, ByteBuffer buf) throws IOException {
+        int n = buf.remaining();
+        while (buf.hasRemaining()) position += out.write(buf, position);
+        return n;
+    }
+
+    /** Opens a complete table, loading its index and bloom filter. */
+    static SSTable open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < FOOTER_BYTES) throw new IOException("sstable " + path + " is truncated");
+            ByteBuffer footer = readFully(ch, size - FOOTER_BYTES, FOOTER_BYTES);
+            long indexOffset = footer.getLong();
+            int indexLength = footer.getInt();
+            footer.getLong(); // bloom offset: right after the index
+            int bloomLength = footer.getInt();
+            long entries = footer.getLong();
+            int metaCrc = footer.getInt();
+            if (footer.getLong() != MAGIC) throw new IOException("not an sstable: " + path);
+
+            ByteBuffer meta = readFully(ch, indexOffset, indexLength + bloomLength);
+            CRC32C crc = new CRC32C();
+            crc.update(meta.duplicate());
+            if ((int) crc.getValue() != metaCrc) throw new IOException("sstable " + path + " has a corrupt index");
+            int blocks = meta.getInt();
+            String[] firstKeys = new String[blocks];
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = readString(meta);
+                offsets[i] = meta.getLong();
+                lengths[i] = meta.getInt();
+            }
+            BloomFilter bloom = BloomFilter.readFrom(meta);
+            return new SSTable(path, ch, firstKeys, offsets, lengths, bloom, entries, size);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /** The value stored for {@code key}, {@link LsmEngine#TOMBSTONE} if deleted here, or null. */
+    String get(String key) throws IOException {
+        if (!bloom.mightContain(key)) return null;
+        int b = floorBlock(key);
+        if (b < 0) return null;
+        ByteBuffer block = readBlock(b);
+        while (block.hasRemaining()) {
+            int cmp = readString(block).compareTo(key);
+            String value = readValue(block);
+            if (cmp == 0) return value;
+            if (cmp > 0) return null;
+        }
+        return null;
+    }
+
+    /** Entries with keys at or after {@code from} (all if null), in order, including deletions. */
+    Iterator<Map.Entry<String, String>> iterator(String from) {
+        return new Cursor(from);
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    long sizeBytes() {
+        return sizeBytes;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    void ref() {
+        refs.incrementAndGet();
+    }
+
+    void unref() {
+        if (refs.decrementAndGet() > 0) return;
+        try {
+            channel.close();
+            if (obsolete) Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("could not release sstable " + path + ": " + e);
+        }
+    }
+
+    /** Deletes the file once no version lists it any more. */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /** Last block whose first key is at or before {@code key}, or -1. */
+    private int floorBlock(String key) {
+        int lo = 0, hi = firstKeys.length - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstKeys[mid].compareTo(key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private ByteBuffer readBlock(int b) throws IOException {
+        ByteBuffer buf = readFully(channel, offsets[b], lengths[b]);
+        int length = buf.getInt();
+        int stored = buf.getInt();
+        if (length != lengths[b] - 8) throw new IOException("sstable " + path + " block " + b + " has a bad length");
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate());
+        if ((int) crc.getValue() != stored) throw new IOException("sstable " + path + " block " + b + " is corrupt");
+        return buf;
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) throw new IOException("unexpected end of sstable");
+        }
+        return buf.flip();
+    }
+
+    private static String readValue(ByteBuffer in) {
+        return in.get() == DELETE ? LsmEngine.TOMBSTONE : readString(in);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = readVarint(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            v |= (b & 0x7f) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    /** Walks the blocks from the one holding {@code from}, decoding one block at a time. */
+    private final class Cursor implements Iterator<Map.Entry<String, String>> {
+
+        private int nextBlock;
+        private ByteBuffer block;
+        private Map.Entry<String, String> next;
+
+        Cursor(String from) {
+            nextBlock = from == null ? 0 : Math.max(0, floorBlock(from));
+            advance();
+            while (from != null && next != null && next.getKey().compareTo(from) < 0) advance();
+        }
+
+        private void advance() {
+            try {
+                while (block == null || !block.hasRemaining()) {
+                    if (nextBlock >= firstKeys.length) {
+                        next = null;
+                        return;
+                    }
+                    block = readBlock(nextBlock++);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("read of " + path + " failed", e);
+            }
+            String key = readString(block);
+            next = new AbstractMap.SimpleImmutableEntry<>(key, readValue(block));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) throw new NoSuchElementException();
+            Map.Entry<String, String> e = next;
+            advance();
+            return e;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.atlasdb.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Where {@link com.atlasdb.KVStore} keeps its entries. Point operations and scans may run
+ * concurrently with each other; {@link #openView} and {@link #flush} must not run
+ * concurrently with mutations.
+ */
+public interface StorageEngine extends Closeable {
+
+    String get(String key);
+
+    /**
+     * The value's UTF-8 bytes, or null. Engines that keep values as bytes return them
+     * without decoding; the buffer must not be written to.
+     */
+    default ByteBuffer getBytes(String key) {
+        String value = get(key);
+        return value == null ? null : ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void put(String key, String value);
+
+    void delete(String key);
+
+    /**
+     * Visits, in key order, up to {@code limit} live entries in {@code [from, to)} whose
+     * keys start with {@code prefix}; see {@link com.atlasdb.KVStore#scan}. {@code from}
+     * is already moved up to the prefix.
+     *
+     * @throws UnsupportedOperationException if the engine does not keep keys in order
+     */
+    int scan(String from, boolean fromInclusive, String to, String prefix, int limit, BiConsumer<String, String> sink);
+
+    boolean isOrdered();
+
+    int size();
+
+    /** Removes every entry, including persisted ones. */
+    void clear();
+
+    /** Freezes the current contents for a snapshot. */
+    View openView();
+
+    /** Point-in-time contents, valid until closed. */
+    interface View extends Closeable {
+
+        void forEach(BiConsumer<String, String> sink);
+
+        @Override
+        void close();
+    }
+
+    /** Whether entries survive a restart; in-memory engines start empty. */
+    default boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * Log index the persisted entries are consistent with: every entry up to it is on disk.
+     * Entries after it may be partly on disk too; replaying them again is harmless, as
+     * every key ends up with the value of its last write.
+     */
+    default long persistedIndex() {
+        return 0;
+    }
+
+    /** Whether enough unpersisted entries have piled up that {@link #flush} is due. */
+    default boolean needsFlush() {
+        return false;
+    }
+
+    /**
+     * Persists every entry written so far and records {@code index} as the
+     * {@link #persistedIndex()}, once the returned flush is written.
+     */
+    default Flush flush(long index) {
+        return () -> {};
+    }
+
+    /** Second half of {@link #flush}, which may run while writes continue. */
+    interface Flush {
+        void write() throws IOException;
+    }
+
+    /** Drops entries that were not persisted yet, going back to the state after the last flush. */
+    default void discardUnpersisted() {
+        clear();
+    }
+
+    @Override
+    default void close() {}
+}
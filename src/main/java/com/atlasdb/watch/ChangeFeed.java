@@ -0,0 +1,342 @@
+package com.atlasdb.watch;
+
+import com.atlasdb.KVStore;
+import com.atlasdb.log.Operation;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams one group's committed changes to any number of watchers.
+ *
+ * While anyone watches, a reader thread tails the committed log and keeps the newest
+ * {@link #CAPACITY} entries in a ring, each decoded and encoded once. Watchers are served
+ * from the ring, so a thousand of them cost one log read; a watcher that starts further
+ * back, or falls behind the ring, reads the log itself until it is back in range. Nothing
+ * waits for a slow watcher: it is sent more only once its client took most of what it was
+ * sent, and every watcher resumes from any index still in the log.
+ *
+ * Changes are client writes: TERM entries and reserved keys are left out, and a BATCH is
+ * one change with several parts.
+ */
+public final class ChangeFeed {
+
+    public static final int CAPACITY = 65_536;
+    static final int READ_BATCH = 4096;
+    static final long WAIT_MS = 1000;
+    static final long HEARTBEAT_MS = 10_000;
+    /** Bytes a watcher's client may have outstanding before it is sent more. */
+    static final long HIGH_WATER_BYTES = 1 << 20;
+    static final int SEND_BYTES = 64 * 1024;
+
+    /** The group's committed log. */
+    public interface Source {
+        /**
+         * Up to {@code max} committed entries after {@code afterIndex}, waiting up to
+         * {@code waitMs} for one.
+         *
+         * @throws IllegalStateException if they were compacted into a snapshot
+         */
+        List<Operation> readCommitted(long afterIndex, int max, long waitMs) throws InterruptedException;
+
+        long commitIndex();
+    }
+
+    /** A watcher's client. Sending must not block. */
+    public interface Sink {
+        /** @return false once the client is gone */
+        boolean send(ByteBuffer bytes);
+
+        /** Bytes sent but not taken by the client yet. */
+        long queuedBytes();
+
+        /** Runs {@code listener} when the client has taken what was sent, or went away. */
+        void onDrained(Runnable listener);
+
+        boolean isOpen();
+
+        void close();
+    }
+
+    /** How changes are written. */
+    public enum Format {
+        /** A {@code <index> <WAL line>} line per part, {@code #} lines for heartbeats and errors. */
+        LINES,
+        /** Server-sent events: one event per change, its index as the id, a data line per part. */
+        SSE;
+
+        public static Format parse(String s) {
+            if (s == null || s.isBlank()) return LINES;
+            return switch (s.toLowerCase()) {
+                case "lines" -> LINES;
+                case "sse" -> SSE;
+                default -> throw new IllegalArgumentException("unknown watch format: " + s);
+            };
+        }
+
+        void append(Change change, String prefix, ByteArrayOutputStream out) {
+            boolean any = false;
+            for (int i = 0; i < change.keys.length; i++) {
+                if (!change.keys[i].startsWith(prefix)) continue;
+                if (this == LINES) {
+                    out.writeBytes(change.indexBytes);
+                    out.write(' ');
+                } else {
+                    if (!any) {
+                        out.writeBytes(ascii("id: "));
+                        out.writeBytes(change.indexBytes);
+                        out.write('\n');
+                    }
+                    out.writeBytes(ascii("data: "));
+                }
+                out.writeBytes(change.lines[i]);
+                out.write('\n');
+                any = true;
+            }
+            if (any && this == SSE) out.write('\n');
+        }
+
+        byte[] heartbeat() {
+            return ascii(this == LINES ? "#\n" : ":\n\n");
+        }
+
+        byte[] error(String message) {
+            return (this == LINES ? "# error " + message + "\n" : "event: error\ndata: " + message + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /** A committed entry, encoded for watchers. */
+    static final class Change {
+        final long index;
+        final byte[] indexBytes;
+        final String[] keys;  // of the parts watchers may see
+        final byte[][] lines; // their WAL lines
+
+        Change(long index, Operation op) {
+            this.index = index;
+            this.indexBytes = ascii(Long.toString(index));
+            List<Operation> parts = new ArrayList<>();
+            if (op.getType() == Operation.Type.BATCH) {
+                parts.addAll(op.getOps());
+            } else if (op.getType() != Operation.Type.TERM) {
+                parts.add(op);
+            }
+            parts.removeIf(part -> KVStore.isReserved(KVStore.ownerKey(part.getKey())));
+            this.keys = new String[parts.size()];
+            this.lines = new byte[parts.size()][];
+            for (int i = 0; i < parts.size(); i++) {
+                keys[i] = parts.get(i).getKey();
+                lines[i] = parts.get(i).toWalLine().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static final class Watcher {
+        final String prefix;
+        final Format format;
+        final Sink sink;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        long next;        // next log index to send; guarded by this
+        long lastSentAt;  // guarded by this
+
+        Watcher(long next, String prefix, Format format, Sink sink) {
+            this.next = next;
+            this.prefix = prefix;
+            this.format = format;
+            this.sink = sink;
+            this.lastSentAt = System.currentTimeMillis();
+        }
+    }
+
+    private final Source source;
+    private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong logReads = new AtomicLong();
+    private final ExecutorService pumps = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "atlasdb-watch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // guarded by this
+    private final Change[] ring = new Change[CAPACITY];
+    private long first = 1; // the ring holds changes [first, end)
+    private long end = 1;
+    private Thread reader;
+    private boolean closed;
+
+    public ChangeFeed(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Streams committed changes to keys starting with {@code prefix} to {@code sink}, from
+     * log index {@code fromIndex}, or from the next commit if it is 0.
+     */
+    public void watch(long fromIndex, String prefix, Format format, Sink sink) {
+        Watcher w;
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("closed");
+            if (reader == null) {
+                first = end = source.commitIndex() + 1;
+                reader = new Thread(this::read, "atlasdb-watch-reader");
+                reader.setDaemon(true);
+                reader.start();
+            }
+            w = new Watcher(fromIndex > 0 ? fromIndex : end, prefix, format, sink);
+            watchers.add(w);
+        }
+        sink.onDrained(() -> schedule(w));
+        schedule(w);
+    }
+
+    public int watchers() {
+        return watchers.size();
+    }
+
+    /** Log reads made for watchers, shared or not. */
+    public long logReads() {
+        return logReads.get();
+    }
+
+    /** Ends every watch. */
+    public void close() {
+        Thread r;
+        synchronized (this) {
+            closed = true;
+            r = reader;
+        }
+        if (r != null) r.interrupt();
+        for (Watcher w : watchers) end(w, null);
+        pumps.shutdown();
+    }
+
+    /** Reader thread: appends newly committed entries to the ring while anyone watches. */
+    private void read() {
+        while (true) {
+            long from;
+            synchronized (this) {
+                if (closed || watchers.isEmpty()) {
+                    reader = null;
+                    return;
+                }
+                from = end;
+            }
+            List<Operation> ops;
+            try {
+                ops = source.readCommitted(from - 1, READ_BATCH, WAIT_MS);
+                logReads.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IllegalStateException e) {
+                // This node installed a snapshot past the ring; watchers behind it find out on their own reads.
+                synchronized (this) {
+                    first = end = Math.max(end, source.commitIndex() + 1);
+                }
+                ops = List.of();
+            }
+            if (!ops.isEmpty()) {
+                synchronized (this) {
+                    for (Operation op : ops) {
+                        ring[(int) (end % CAPACITY)] = new Change(end, op);
+                        end++;
+                    }
+                    first = Math.max(first, end - CAPACITY);
+                }
+            }
+            // Also runs when idle, for heartbeats.
+            for (Watcher w : watchers) schedule(w);
+        }
+    }
+
+    private void schedule(Watcher w) {
+        if (!w.scheduled.compareAndSet(false, true)) return;
+        try {
+            pumps.execute(() -> {
+                w.scheduled.set(false);
+                pump(w);
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    /** Sends {@code w} what it has not seen, while its client keeps up. */
+    private void pump(Watcher w) {
+        synchronized (w) {
+            while (true) {
+                if (!w.sink.isOpen()) {
+                    watchers.remove(w);
+                    return;
+                }
+                if (w.sink.queuedBytes() > HIGH_WATER_BYTES) return; // resumed once drained
+                List<Change> changes;
+                try {
+                    changes = changesFrom(w.next);
+                } catch (IllegalStateException e) {
+                    end(w, "index " + w.next + " was compacted; resume from a later index");
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (changes.isEmpty()) {
+                    if (now - w.lastSentAt >= HEARTBEAT_MS) {
+                        w.sink.send(ByteBuffer.wrap(w.format.heartbeat()));
+                        w.lastSentAt = now;
+                    }
+                    return;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (Change c : changes) {
+                    w.format.append(c, w.prefix, out);
+                    w.next = c.index + 1;
+                    if (out.size() >= SEND_BYTES) break;
+                }
+                if (out.size() > 0) {
+                    if (!w.sink.send(ByteBuffer.wrap(out.toByteArray()))) continue;
+                    w.lastSentAt = now;
+                }
+            }
+        }
+    }
+
+    /** Changes from log index {@code next} on: from the ring, or read from the log if it is behind. */
+    private List<Change> changesFrom(long next) throws InterruptedException {
+        synchronized (this) {
+            if (next >= end) return List.of();
+            if (next >= first) {
+                int n = (int) Math.min(end - next, READ_BATCH);
+                List<Change> changes = new ArrayList<>(n);
+                for (long i = next; i < next + n; i++) changes.add(ring[(int) (i % CAPACITY)]);
+                return changes;
+            }
+        }
+        List<Operation> ops = source.readCommitted(next - 1, READ_BATCH, 0);
+        logReads.incrementAndGet();
+        List<Change> changes = new ArrayList<>(ops.size());
+        for (int i = 0; i < ops.size(); i++) changes.add(new Change(next + i, ops.get(i)));
+        return changes;
+    }
+
+    private void end(Watcher w, String error) {
+        if (error != null) w.sink.send(ByteBuffer.wrap(w.format.error(error)));
+        w.sink.close();
+        watchers.remove(w);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
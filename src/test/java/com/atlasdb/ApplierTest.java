@@ -0,0 +1,49 @@
+package com.atlasdb;
+
+import com.atlasdb.log.Operation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ApplierTest {
+
+    @Test
+    void parallelApplyKeepsPerKeyOrder() {
+        List<Operation> ops = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String key = "k" + (i % 50);
+            ops.add(i % 7 == 0 ? Operation.delete(key) : Operation.put(key, "v" + i));
+        }
+        ops.add(Operation.termStart(2));
+
+        KVStore sequential = new KVStore();
+        for (Operation op : ops) Applier.apply(op, sequential);
+
+        Applier applier = new Applier(4);
+        KVStore parallel = new KVStore();
+        applier.applyAll(ops, parallel);
+        applier.shutdown();
+
+        assertEquals(sequential.size(), parallel.size());
+        for (int k = 0; k < 50; k++) {
+            assertEquals(sequential.get("k" + k), parallel.get("k" + k));
+        }
+    }
+
+    @Test
+    void drainWaitsForSubmittedBatches() {
+        Applier applier = new Applier(2);
+        List<Integer> seen = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            applier.submit(() -> seen.add(n));
+        }
+        applier.drain();
+        applier.shutdown();
+        assertEquals(100, seen.size());
+        for (int i = 0; i < 100; i++) assertEquals(i, seen.get(i));
+    }
+}
@@ -2,6 +2,11 @@ package com.atlasdb;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class KVStoreTest {
@@ -37,6 +42,80 @@ public class KVStoreTest {
     void size() {
         kv.put("a","1");
         kv.put("b","2");
-        assertEquals(2, kv.size());
+    }
+
+    @Test
+    void snapshotViewIgnoresLaterWrites() {
+        kv.put("a","1");
+        kv.put("b","2");
+
+        KVStore.SnapshotView view = kv.beginSnapshot();
+        kv.put("a","changed");
+        kv.delete("b");
+        kv.put("c","new");
+
+        Map<String, String> seen = new HashMap<>();
+        view.forEach(seen::put);
+        kv.endSnapshot(view);
+
+        assertEquals(Map.of("a","1","b","2"), seen);
+        assertEquals("changed", kv.get("a"));
+        assertNull(kv.get("b"));
+    }
+
+    private List<String> scan(String from, boolean fromInclusive, String to, String prefix, int limit) {
+        List<String> keys = new ArrayList<>();
+        int n = kv.scan(from, fromInclusive, to, prefix, limit, (k, v) -> keys.add(k));
+        assertEquals(keys.size(), n);
+        return keys;
+    }
+
+    @Test
+    void scanHonoursBoundsAndLimit() {
+        for (String k : List.of("a", "b", "c", "d", "e")) kv.put(k, k.toUpperCase());
+
+        assertEquals(List.of("a", "b", "c", "d", "e"), scan(null, true, null, null, 100));
+        assertEquals(List.of("b", "c", "d"), scan("b", true, "e", null, 100));
+        assertEquals(List.of("c", "d"), scan("b", false, "e", null, 100));
+        assertEquals(List.of("b", "c"), scan("b", true, null, null, 2));
+        assertEquals(List.of("c", "d", "e"), scan("bb", false, null, null, 100), "from need not be a key");
+        assertEquals(List.of(), scan("d", true, "d", null, 100));
+        assertEquals(List.of(), scan("e", true, "b", null, 100));
+
+        Map<String, String> seen = new HashMap<>();
+        kv.scan("e", true, null, null, 100, seen::put);
+        assertEquals(Map.of("e", "E"), seen);
+    }
+
+    @Test
+    void scanStartsAtThePrefixWhenFromIsBeforeIt() {
+        for (String k : List.of("a", "user:1", "user:2", "user:3", "userx", "z")) kv.put(k, "v");
+
+        assertEquals(List.of("user:1", "user:2", "user:3"), scan(null, true, null, "user:", 100));
+        assertEquals(List.of("user:1", "user:2", "user:3"), scan("a", false, null, "user:", 100));
+        assertEquals(List.of("user:2", "user:3"), scan("user:1", false, null, "user:", 100));
+        assertEquals(List.of("user:1"), scan("a", true, "user:2", "user:", 100));
+        assertEquals(List.of(), scan("z", true, null, "user:", 100), "from after the prefix");
+    }
+
+    @Test
+    void scanSkipsReservedAndExpiryEntries() {
+        kv.put("a", "1");
+        kv.put(KVStore.expiryKey("a"), String.valueOf(System.currentTimeMillis() + 60_000));
+        kv.put(KVStore.RESERVED + "members", "x;");
+        kv.put("b", "2");
+
+        assertTrue(KVStore.isReserved(KVStore.expiryKey("a")));
+        assertEquals(List.of("a", "b"), scan(null, true, null, null, 100));
+        assertEquals(List.of("a", "b"), scan(String.valueOf(KVStore.RESERVED), true, null, null, 100));
+        assertEquals(List.of("a", "b"), scan("", true, null, "", 100));
+    }
+
+    @Test
+    void hashStoreHasNoScans() {
+        KVStore hash = new KVStore(StoreType.HASH);
+        hash.put("a", "1");
+        assertFalse(hash.isOrdered());
+        assertThrows(UnsupportedOperationException.class, () -> hash.scan(null, true, null, null, 10, (k, v) -> { }));
     }
 }
@@ -2,10 +2,15 @@ package com.atlasdb;
 
 import com.atlasdb.cluster.ClusterSimulator;
 import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.log.Condition;
+import com.atlasdb.log.Operation;
+import com.atlasdb.replication.AckLevel;
 import org.junit.jupiter.api.*;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.BitSet;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -82,4 +87,122 @@ public class ReplicationIntegrationTest {
 
         assertTrue(ex.getMessage().contains("Out of sync"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void restartedLeaderServesOlderEntriesFromWal() {
+        String wal = p("leader3.wal");
+        AtlasDBEngine before = new AtlasDBEngine(wal, List.of());
+        before.put("a", "1");
+        before.put("b", "2");
+        before.close();
+
+        AtlasDBEngine leader = new AtlasDBEngine(wal, List.of());
+        leader.put("c", "3");
+        assertEquals(3, leader.getLastAppliedIndex());
+
+        AtlasDBEngine follower = new AtlasDBEngine(p("follower3.wal"), "http://leader");
+        ClusterSimulator cluster = new ClusterSimulator(leader);
+        cluster.addFollower(follower);
+        cluster.replicateOnce();
+        cluster.replicateOnce();
+
+        assertEquals("1", follower.get("a"));
+        assertEquals("3", follower.get("c"));
+        assertEquals(3, follower.getLastAppliedIndex());
+    }
+
+    @Test
+    void conditionalBatchIsOneEntryAndReplicatesWhole() {
+        String wal = p("leader4.wal");
+        AtlasDBEngine leader = new AtlasDBEngine(wal, List.of());
+        leader.put("balance", "10");
+
+        leader.batch(List.of(Operation.put("balance", "7"), Operation.put("spent", "3"), Operation.delete("hold")),
+                List.of(Condition.equalTo("balance", "10"), Condition.absent("spent")), AckLevel.LEADER);
+        assertEquals(2, leader.getLastAppliedIndex());
+
+        assertThrows(ConditionFailedException.class, () -> leader.batch(List.of(Operation.put("balance", "0")),
+                List.of(Condition.equalTo("balance", "10")), AckLevel.LEADER));
+        assertEquals("7", leader.get("balance"));
+        assertEquals(2, leader.getLastAppliedIndex());
+
+        AtlasDBEngine follower = new AtlasDBEngine(p("follower4.wal"), "http://leader");
+        ClusterSimulator cluster = new ClusterSimulator(leader);
+        cluster.addFollower(follower);
+        cluster.replicateOnce();
+        assertEquals("7", follower.get("balance"));
+        assertEquals("3", follower.get("spent"));
+        assertEquals(2, follower.getLastAppliedIndex());
+
+        leader.close();
+        AtlasDBEngine restarted = new AtlasDBEngine(wal, List.of());
+        assertEquals("7", restarted.get("balance"));
+        assertEquals("3", restarted.get("spent"));
+    }
+
+    @Test
+    void expiredKeysAreRemovedByReplicatedExpireEntries() throws Exception {
+        String wal = p("leader5.wal");
+        AtlasDBEngine leader = new AtlasDBEngine(wal, List.of());
+        AtlasDBEngine follower = new AtlasDBEngine(p("follower5.wal"), "http://leader");
+        ClusterSimulator cluster = new ClusterSimulator(leader);
+        cluster.addFollower(follower);
+
+        leader.put("session", "s1", 200, AckLevel.LEADER);
+        leader.put("renewed", "r1", 200, AckLevel.LEADER);
+        leader.put("renewed", "r2"); // written again without a TTL: no longer expires
+        leader.put("later", "l1", 60_000, AckLevel.LEADER);
+        cluster.replicateOnce();
+        assertEquals("s1", follower.get("session"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (leader.get("session") != null && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        assertNull(leader.get("session"));
+        // Only the leader expires keys; the follower waits for the EXPIRE entry.
+        Thread.sleep(300);
+        assertEquals("s1", follower.get("session"));
+        cluster.replicateOnce();
+        assertNull(follower.get("session"));
+        assertEquals("r2", follower.get("renewed"));
+        assertEquals("l1", follower.get("later"));
+        assertEquals(leader.getLastLogIndex(), follower.getLastAppliedIndex());
+
+        leader.close();
+        AtlasDBEngine restarted = new AtlasDBEngine(wal, List.of());
+        assertNull(restarted.get("session"));
+        assertEquals("l1", restarted.get("later"));
+        assertEquals(1, restarted.getExpiringKeys());
+    }
+
+    @Test
+    void movedPartitionsRefuseWritesOnEveryReplica() {
+        ShardMap map = new ShardMap(4);
+        AtlasDBEngine leader = new AtlasDBEngine(p("leader6.wal"), List.of());
+        AtlasDBEngine follower = new AtlasDBEngine(p("follower6.wal"), "http://leader");
+        leader.setPartitioner(map::partitionOf);
+        follower.setPartitioner(map::partitionOf);
+        ClusterSimulator cluster = new ClusterSimulator(leader);
+        cluster.addFollower(follower);
+
+        String moving = "user:1", staying = null;
+        for (int i = 2; staying == null; i++) {
+            if (map.partitionOf("user:" + i) != map.partitionOf(moving)) staying = "user:" + i;
+        }
+        BitSet moved = new BitSet();
+        moved.set(map.partitionOf(moving));
+        leader.ingest(List.of(Operation.put(AtlasDBEngine.MOVED_KEY, ShardMap.encodePartitions(moved))),
+                List.of(Condition.absent(AtlasDBEngine.MOVED_KEY)), AckLevel.LEADER);
+
+        assertThrows(KeyMovedException.class, () -> leader.put(moving, "v"));
+        assertThrows(KeyMovedException.class, () -> leader.put(moving, "v", 60_000, AckLevel.LEADER));
+        leader.put(staying, "v");
+        // Moving data in or out is not refused.
+        leader.ingest(List.of(Operation.put(moving, "copied")), List.of(), AckLevel.LEADER);
+        assertEquals("copied", leader.get(moving));
+
+        cluster.replicateOnce();
+        assertTrue(follower.isMoved(moving));
+        assertTrue(follower.isMoved(KVStore.expiryKey(moving)));
+        assertFalse(follower.isMoved(staying));
+    }
+}
@@ -0,0 +1,59 @@
+package com.atlasdb;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+
+    @Test
+    void keysBecomeDueAtMostOneTickAfterTheirDeadline() {
+        long start = 1_000_000;
+        long tick = 10;
+        TimingWheel wheel = new TimingWheel(tick, start);
+        Random random = new Random(3);
+        long[] deadlines = new long[5000];
+        for (int k = 0; k < deadlines.length; k++) {
+            // Spread over several wheel levels: up to about 12 days of 10 ms ticks.
+            deadlines[k] = start + 1 + (long) (Math.pow(random.nextDouble(), 4) * 1_000_000_000L);
+            wheel.schedule("k" + k, deadlines[k]);
+        }
+        wheel.cancel("k0");
+
+        // Small steps check the firing time closely, large ones cross many slots at once.
+        for (long now = start; now <= start + 1_000_000_000L;
+             now += 1 + random.nextInt(random.nextBoolean() ? 100 : 50_000_000)) {
+            wheel.advance(now);
+            Map<String, Long> due = wheel.due(Integer.MAX_VALUE);
+            for (int k = 1; k < deadlines.length; k++) {
+                boolean isDue = due.containsKey("k" + k);
+                if (isDue) assertTrue(deadlines[k] <= now, "k" + k + " due early at " + now);
+                if (deadlines[k] <= now - tick) assertTrue(isDue, "k" + k + " not due at " + now);
+            }
+        }
+        assertFalse(wheel.due(Integer.MAX_VALUE).containsKey("k0"));
+        assertEquals(deadlines.length - 1, wheel.size());
+        wheel.advance(start + 1 + 1_000_000_000L);
+        assertEquals(deadlines.length - 1, wheel.due(Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    void rescheduledAndCancelledKeysLeaveTheDueList() {
+        TimingWheel wheel = new TimingWheel(100, 0);
+        wheel.schedule("a", 150);
+        wheel.schedule("b", 150);
+        wheel.advance(250);
+        assertEquals(Map.of("a", 150L, "b", 150L), wheel.due(10));
+
+        wheel.schedule("a", 1000);
+        wheel.cancel("b");
+        assertTrue(wheel.due(10).isEmpty());
+        wheel.advance(999);
+        assertTrue(wheel.due(10).isEmpty());
+        wheel.advance(1000);
+        assertEquals(Map.of("a", 1000L), wheel.due(10));
+    }
+}
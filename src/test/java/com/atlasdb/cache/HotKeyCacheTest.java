@@ -0,0 +1,56 @@
+package com.atlasdb.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotKeyCacheTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Reads {@code key} through the cache the way the engine does. */
+    private static void read(HotKeyCache cache, String key) {
+        if (cache.get(key) == null) cache.fill(key, bytes("value of " + key), 0, cache.generation());
+    }
+
+    @Test
+    void hotKeysSurviveAScanOfOneOffKeys() {
+        HotKeyCache cache = new HotKeyCache(64 * 1024);
+        for (int round = 0; round < 20; round++) {
+            for (int k = 0; k < 100; k++) read(cache, "hot" + k);
+        }
+        for (int k = 0; k < 20_000; k++) read(cache, "cold" + k);
+
+        long hitsBefore = cache.hits();
+        for (int k = 0; k < 100; k++) read(cache, "hot" + k);
+        assertTrue(cache.hits() - hitsBefore >= 90, "hot set was flushed out");
+        assertTrue(cache.bytes() <= 64 * 1024);
+        assertTrue(cache.evictions() > 0);
+    }
+
+    @Test
+    void fillReadBeforeANewerWriteIsDropped() {
+        HotKeyCache cache = new HotKeyCache(1 << 20);
+        cache.fill("k", bytes("v1"), 5, cache.generation());
+        assertArrayEquals(bytes("v1"), cache.get("k"));
+
+        cache.invalidate("k", 6);
+        assertNull(cache.get("k"));
+        // A reader that read the store at index 5 may have seen the old value.
+        cache.fill("k", bytes("v1"), 5, cache.generation());
+        assertNull(cache.get("k"));
+        cache.fill("k", bytes("v2"), 6, cache.generation());
+        assertArrayEquals(bytes("v2"), cache.get("k"));
+
+        long generation = cache.generation();
+        cache.clear();
+        cache.fill("gone", null, 6, generation);
+        assertNull(cache.get("gone"));
+        cache.fill("gone", null, 0, cache.generation());
+        assertSame(HotKeyCache.ABSENT, cache.get("gone"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.atlasdb.cluster;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.KeyMovedException;
+import com.atlasdb.replication.AckLevel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RebalancerTest {
+
+    @Test
+    void mergeMovesEveryKeyWhileWritesContinue() throws Exception {
+        Path dir = Files.createTempDirectory("atlasdb-rebalance-");
+        AtlasDBEngine s0 = new AtlasDBEngine(dir.resolve("s0").toString(), List.of());
+        AtlasDBEngine s1 = new AtlasDBEngine(dir.resolve("s1").toString(), List.of());
+        ShardRegistry registry = ShardRegistry.of(List.of(s0, s1), new ShardMap(2));
+        Rebalancer rebalancer = new Rebalancer(registry,
+                (shard, ops, conditions) -> registry.engine(shard).ingest(ops, conditions, AckLevel.LEADER));
+        rebalancer.setBytesPerSecond(1 << 20);
+
+        for (int i = 0; i < 2000; i++) registry.engineFor("k" + i).put("k" + i, "v0");
+        s1.put("ttl", "t", 60_000, AckLevel.LEADER);
+
+        ConcurrentHashMap<String, String> written = new ConcurrentHashMap<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int round = 1; !stop.get(); round++) {
+                for (int i = 0; i < 2000; i += 7) {
+                    String key = "k" + i, value = "v" + round;
+                    while (true) {
+                        try {
+                            registry.engineFor(key).put(key, value);
+                            written.put(key, value);
+                            break;
+                        } catch (KeyMovedException e) {
+                            Thread.onSpinWait(); // fenced until the new map is out
+                        }
+                    }
+                }
+            }
+        });
+        writer.start();
+
+        assertTrue(rebalancer.merge(1, 0).startsWith("started"));
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!rebalancer.status().contains("state=done") && System.currentTimeMillis() < deadline) {
+            assertFalse(rebalancer.status().contains("state=failed"), rebalancer.status());
+            Thread.sleep(20);
+        }
+        stop.set(true);
+        writer.join();
+
+        assertTrue(rebalancer.status().contains("state=done"), rebalancer.status());
+        assertEquals(1, registry.map().version());
+        assertTrue(registry.map().partitionsOf(1).isEmpty());
+        for (int i = 0; i < 2000; i++) {
+            String key = "k" + i;
+            assertEquals(written.getOrDefault(key, "v0"), s0.get(key), key);
+            assertNull(s1.get(key), key);
+        }
+        assertEquals("t", s0.get("ttl"));
+        assertEquals(1, s0.getExpiringKeys());
+        assertEquals(0, s1.getExpiringKeys());
+    }
+}
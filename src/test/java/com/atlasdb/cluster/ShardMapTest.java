@@ -0,0 +1,55 @@
+package com.atlasdb.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardMapTest {
+
+    @Test
+    void keysSpreadEvenlyAndStayPut() {
+        ShardMap map = new ShardMap(8);
+        int[] counts = new int[8];
+        for (int i = 0; i < 80_000; i++) counts[map.shardOf("user:" + i)]++;
+        for (int c : counts) assertTrue(c > 7_000 && c < 13_000, "uneven shard: " + c);
+
+        ShardMap again = new ShardMap(8);
+        for (int i = 0; i < 1000; i++) assertEquals(map.shardOf("k" + i), again.shardOf("k" + i));
+    }
+
+    @Test
+    void shardUrlsRoundTrip() {
+        ShardMap map = new ShardMap(4);
+        assertEquals("http://a:8080/shard/3", map.url("http://a:8080", 3));
+        assertEquals(3, ShardMap.shardOfUrl(map.url("http://a:8080", 3)));
+        assertEquals(0, ShardMap.shardOfUrl("http://a:8080"));
+        assertEquals("http://a:8080", new ShardMap(1).url("http://a:8080", 0));
+    }
+
+    @Test
+    void movedPartitionsChangeOwnerAndSurviveEncoding() {
+        ShardMap map = new ShardMap(2);
+        BitSet half = map.partitionsOf(1);
+        ShardMap split = map.withShard().withOwner(half, 2);
+        assertEquals(3, split.size());
+        assertEquals(2, split.version());
+        assertTrue(split.partitionsOf(1).isEmpty());
+        for (int i = 0; i < 1000; i++) {
+            String key = "k" + i;
+            assertEquals(map.shardOf(key) == 1 ? 2 : 0, split.shardOf(key));
+            assertEquals(map.partitionOf(key), split.partitionOf(key));
+        }
+
+        ShardMap decoded = ShardMap.decode(split.encode());
+        assertEquals(split.encode(), decoded.encode());
+        for (int i = 0; i < 1000; i++) assertEquals(split.shardOf("k" + i), decoded.shardOf("k" + i));
+        assertEquals(half, ShardMap.decodePartitions(ShardMap.encodePartitions(half)));
+
+        // A cluster started with one shard keeps its base URL for shard 0 after a split.
+        ShardMap grown = new ShardMap(1).withShard();
+        assertEquals("http://a:8080", grown.url("http://a:8080", 0));
+        assertEquals("http://a:8080/shard/1", grown.url("http://a:8080", 1));
+    }
+}
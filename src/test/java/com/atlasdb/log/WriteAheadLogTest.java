@@ -0,0 +1,202 @@
+package com.atlasdb.log;
+
+import org.junit.jupiter.api.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-wal-test-");
+    }
+
+    private String p(String name) {
+        return tempDir.resolve(name).toString();
+    }
+
+    @Test
+    void concurrentAppendsAreAllDurableAndReadable() throws Exception {
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            String path = p(policy.name().toLowerCase() + ".wal");
+            WriteAheadLog wal = new WriteAheadLog(path, policy, 2);
+
+            AtomicInteger ackedBeforeSync = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int id = t;
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        long syncsBefore = wal.syncs();
+                        wal.append(Operation.put("k" + id + "-" + i, "v" + i));
+                        // The batch holding this record was queued after syncsBefore, so it was forced since.
+                        if (wal.syncs() == syncsBefore) ackedBeforeSync.incrementAndGet();
+                    }
+                }));
+            }
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+            if (policy.syncsBeforeAck()) {
+                assertEquals(0, ackedBeforeSync.get(), policy.name());
+                assertEquals(wal.batches(), wal.syncs(), policy + ": one fsync per batch");
+                assertTrue(wal.batches() < 400, policy + ": " + wal.batches() + " batches for 400 appends");
+            }
+            if (policy == FsyncPolicy.NONE) assertEquals(0, wal.syncs());
+            wal.close();
+
+            List<Operation> ops = new WriteAheadLog(path).readAll();
+            Set<String> keys = new HashSet<>();
+            for (Operation op : ops) keys.add(op.getKey());
+            assertEquals(400, ops.size(), policy.name());
+            assertEquals(400, keys.size(), policy.name());
+        }
+    }
+
+    @Test
+    void interruptedWriterFailsQueuedAppends() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(p("interrupted.wal"), FsyncPolicy.GROUP, 60_000);
+        CompletableFuture<Void> queued = wal.appendAsync(Operation.put("a", "1"));
+        Thread writer = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("atlasdb-wal-writer-interrupted.wal"))
+                .findFirst().orElseThrow();
+
+        // The writer holds the batch open for the sync window; interrupt it meanwhile.
+        writer.interrupt();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertThrows(IllegalStateException.class, () -> wal.appendAsync(Operation.put("b", "2")));
+        wal.close();
+    }
+
+    @Test
+    void logsSharingAWriterKeepTheirOwnRecords() throws Exception {
+        SharedWalWriter writer = new SharedWalWriter(FsyncPolicy.GROUP, 2);
+        List<WriteAheadLog> wals = new ArrayList<>();
+        for (int g = 0; g < 4; g++) wals.add(new WriteAheadLog(p("group-" + g), writer, WriteAheadLog.DEFAULT_SEGMENT_BYTES));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int g = 0; g < 4; g++) {
+            WriteAheadLog wal = wals.get(g);
+            int id = g;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100; i++) wal.append(Operation.put("g" + id + "-" + i, "v" + i));
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        wals.get(3).truncateAfter(60);
+        for (WriteAheadLog wal : wals) wal.close();
+
+        for (int g = 0; g < 4; g++) {
+            List<Operation> ops = new WriteAheadLog(p("group-" + g)).readAll();
+            assertEquals(g == 3 ? 60 : 100, ops.size());
+            for (Operation op : ops) assertTrue(op.getKey().startsWith("g" + g + "-"));
+        }
+    }
+
+    @Test
+    void appendAfterCloseIsRejected() {
+        WriteAheadLog wal = new WriteAheadLog(p("closed.wal"));
+        wal.append(Operation.put("a", "1"));
+        wal.close();
+        assertThrows(IllegalStateException.class, () -> wal.append(Operation.put("b", "2")));
+    }
+
+    @Test
+    void legacyV1FileIsMigratedIntoSegments() throws Exception {
+        Path path = tempDir.resolve("legacy.wal");
+        Files.writeString(path, "ATLASDB_WAL_V1\nPUT|a|1\nPUT|b|x\\py\nDEL|a\n", StandardCharsets.UTF_8);
+
+        List<Operation> ops = new WriteAheadLog(path.toString()).readAll();
+        assertEquals(3, ops.size());
+        assertEquals("x|y", ops.get(1).getValue());
+        assertEquals(Operation.Type.DELETE, ops.get(2).getType());
+
+        assertTrue(Files.isDirectory(path));
+        byte[] head = Files.readAllBytes(path.resolve("wal-00000000000000000001.log"));
+        assertTrue(new String(head, StandardCharsets.ISO_8859_1).startsWith("ATLASDB_WAL_V2"));
+
+        WriteAheadLog wal = new WriteAheadLog(path.toString());
+        assertEquals(3, wal.replay(op -> {}));
+        wal.append(Operation.put("c", "3"));
+        wal.close();
+        assertEquals(4, new WriteAheadLog(path.toString()).readAll().size());
+    }
+
+    @Test
+    void tornTailIsTruncatedNotRotated() throws Exception {
+        String path = p("torn.wal");
+        WriteAheadLog wal = new WriteAheadLog(path);
+        wal.append(Operation.put("a", "1"));
+        wal.append(Operation.put("b", "2"));
+        wal.close();
+
+        Path segment = Path.of(path, "wal-00000000000000000001.log");
+        long goodSize = Files.size(segment);
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // half of a third record: length prefix promises more bytes than exist
+            ch.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2, 3}), goodSize);
+        }
+
+        WriteAheadLog reopened = new WriteAheadLog(path);
+        List<Operation> ops = new ArrayList<>();
+        reopened.replay(ops::add);
+        assertEquals(2, ops.size());
+        assertEquals(goodSize, Files.size(segment));
+
+        reopened.append(Operation.put("c", "3"));
+        reopened.close();
+        assertEquals(3, new WriteAheadLog(path).readAll().size());
+    }
+
+    @Test
+    void segmentsRollAndReadsSeekToAnyIndex() {
+        String path = p("segmented");
+        WriteAheadLog wal = new WriteAheadLog(path, FsyncPolicy.NONE, 0, 16 * 1024);
+        String pad = "x".repeat(100);
+        for (int i = 1; i <= 1000; i++) {
+            wal.append(Operation.put("k" + i, pad));
+        }
+        assertTrue(wal.segmentCount() > 1);
+        assertEquals(1000, wal.lastIndex());
+
+        List<Operation> mid = wal.read(777, 3);
+        assertEquals(List.of("k777", "k778", "k779"), mid.stream().map(Operation::getKey).toList());
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(path, FsyncPolicy.NONE, 0, 16 * 1024);
+        List<String> tail = new ArrayList<>();
+        assertEquals(6, reopened.replayFrom(995, op -> tail.add(op.getKey())));
+        assertEquals("k995", tail.get(0));
+        assertEquals(1000, reopened.lastIndex());
+
+        int segments = reopened.segmentCount();
+        assertTrue(reopened.truncatePrefix(900) > 0);
+        assertTrue(reopened.segmentCount() < segments);
+        assertTrue(reopened.firstIndex() <= 901);
+        assertThrows(IllegalStateException.class, () -> reopened.read(1, 1));
+
+        reopened.append(Operation.put("k1001", pad));
+        assertEquals("k1001", reopened.read(1001, 10).get(0).getKey());
+        reopened.close();
+    }
+}
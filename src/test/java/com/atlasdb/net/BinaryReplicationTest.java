@@ -0,0 +1,136 @@
+package com.atlasdb.net;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.cluster.ShardMap;
+import com.atlasdb.log.Operation;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryReplicationTest {
+
+    @Test
+    void appendFrameRoundTrips() {
+        List<Operation> ops = List.of(Operation.put("k", "v"), Operation.delete("k"));
+        ReplicationPacket packet = new ReplicationPacket(7, ops, 3, "http://leader:8080", 2, 6);
+
+        ByteBuffer[] frame = BinaryReplication.encodeAppend(packet, 5);
+        int length = 0;
+        for (ByteBuffer b : frame) length += b.remaining();
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer b : frame) joined.put(b.duplicate());
+        joined.flip();
+        assertEquals(length - 4, joined.getInt());
+        assertEquals(5, BinaryReplication.shardOf(joined));
+
+        ReplicationPacket decoded = BinaryReplication.decodeAppend(joined);
+        assertEquals(7, decoded.getFromIndexInclusive());
+        assertEquals(3, decoded.getTerm());
+        assertEquals("http://leader:8080", decoded.getLeaderId());
+        assertEquals(2, decoded.getPrevLogTerm());
+        assertEquals(6, decoded.getLeaderCommit());
+        assertEquals(ops.size(), decoded.getRecords().size());
+        assertEquals(ops.get(0).toWalLine(), decoded.getOps().get(0).toWalLine());
+        assertEquals(ops.get(1).toWalLine(), decoded.getOps().get(1).toWalLine());
+    }
+
+    @Test
+    void corruptRecordIsRejected() {
+        ReplicationPacket packet = new ReplicationPacket(0, List.of(Operation.put("k", "v")));
+        ByteBuffer[] frame = BinaryReplication.encodeAppend(packet, 0);
+        ByteBuffer record = frame[1];
+        record.put(record.limit() - 1, (byte) (record.get(record.limit() - 1) ^ 1));
+
+        ByteBuffer joined = ByteBuffer.allocate(frame[0].remaining() + record.remaining());
+        joined.put(frame[0]).put(record).flip();
+        joined.getInt();
+        assertThrows(IllegalArgumentException.class, () -> BinaryReplication.decodeAppend(joined));
+    }
+
+    @Test
+    void pipelinedPacketsReachFollower() throws Exception {
+        Path dir = Files.createTempDirectory("atlasdb-binrepl-");
+        int httpPort;
+        try (ServerSocket s = new ServerSocket(0)) {
+            httpPort = s.getLocalPort();
+        }
+        int offset;
+        try (ServerSocket s = new ServerSocket(0)) {
+            offset = s.getLocalPort() - httpPort;
+        }
+
+        AtlasDBEngine follower = new AtlasDBEngine(dir.resolve("f.wal").toString(), "http://leader");
+        BinaryReplicationServer server = new BinaryReplicationServer(follower, httpPort + offset);
+        server.start();
+        try {
+            BinaryReplicationTransport transport = new BinaryReplicationTransport(offset);
+            String url = "http://localhost:" + httpPort;
+
+            List<CompletableFuture<Long>> acks = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                acks.add(transport.replicateAsync(url,
+                        new ReplicationPacket(i, List.of(Operation.put("k" + i, "v" + i))), Runnable::run));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i + 1, acks.get(i).join());
+            }
+            assertEquals("v19", follower.get("k19"));
+
+            // A gap is answered with the position the follower expects.
+            assertEquals(20, transport.replicate(url, new ReplicationPacket(25, List.of(Operation.put("x", "y")))));
+        } finally {
+            server.stop();
+            follower.close();
+        }
+    }
+
+    @Test
+    void heartbeatsOfShardsShareAConnection() throws Exception {
+        Path dir = Files.createTempDirectory("atlasdb-binrepl-");
+        int httpPort;
+        try (ServerSocket s = new ServerSocket(0)) {
+            httpPort = s.getLocalPort();
+        }
+        int offset;
+        try (ServerSocket s = new ServerSocket(0)) {
+            offset = s.getLocalPort() - httpPort;
+        }
+
+        List<AtlasDBEngine> shards = new ArrayList<>();
+        for (int k = 0; k < 3; k++) shards.add(new AtlasDBEngine(dir.resolve("s" + k).toString(), "http://leader"));
+        BinaryReplicationServer server = new BinaryReplicationServer(shards, httpPort + offset);
+        server.start();
+        try {
+            BinaryReplicationTransport transport = new BinaryReplicationTransport(offset);
+            ShardMap map = new ShardMap(3);
+            String node = "http://localhost:" + httpPort;
+            assertEquals(2, transport.replicate(map.url(node, 1),
+                    new ReplicationPacket(0, List.of(Operation.put("a", "1"), Operation.put("b", "2")))));
+
+            List<CompletableFuture<Long>> acks = new ArrayList<>();
+            for (int round = 0; round < 50; round++) {
+                for (int k = 0; k < 3; k++) {
+                    long from = k == 1 ? 2 : 0;
+                    acks.add(transport.replicateAsync(map.url(node, k), new ReplicationPacket(from, List.of()), Runnable::run));
+                }
+            }
+            for (int i = 0; i < acks.size(); i++) {
+                assertEquals(i % 3 == 1 ? 2 : 0, acks.get(i).join());
+            }
+            // Out of step: answered with the follower's position, as for a lone packet.
+            assertEquals(0, transport.replicate(map.url(node, 2), new ReplicationPacket(5, List.of())));
+        } finally {
+            server.stop();
+            for (AtlasDBEngine e : shards) e.close();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.atlasdb.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedOutputStreamTest {
+
+    @Test
+    void writesAreFramedInChunksOfAtMostChunkSize() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 16);
+        chunks.write("hello ".getBytes(StandardCharsets.US_ASCII));
+        chunks.write("0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII));
+        chunks.write('!');
+        chunks.close();
+
+        assertEquals("10\r\nhello 0123456789\r\nb\r\nabcdefghij!\r\n0\r\n\r\n",
+                out.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void flushSendsAPartialChunkAndCloseOnlyEndsTheBody() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out, 1024);
+        chunks.write("abc".getBytes(StandardCharsets.US_ASCII));
+        chunks.flush();
+        assertEquals("3\r\nabc\r\n", out.toString(StandardCharsets.US_ASCII));
+        chunks.flush(); // nothing buffered: no empty chunk, which would end the body
+        chunks.close();
+        chunks.close();
+        assertEquals("3\r\nabc\r\n0\r\n\r\n", out.toString(StandardCharsets.US_ASCII));
+
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new ChunkedOutputStream(empty, 1024).close();
+        assertEquals("0\r\n\r\n", empty.toString(StandardCharsets.US_ASCII));
+    }
+}
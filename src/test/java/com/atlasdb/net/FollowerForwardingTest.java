@@ -0,0 +1,84 @@
+package com.atlasdb.net;
+
+import com.atlasdb.AtlasDBEngine;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FollowerForwardingTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-forward-test-");
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String[] request(String method, String url, String body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int code = conn.getResponseCode();
+        try (InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            String text = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return new String[] {String.valueOf(code), text};
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    void followerRelaysTheLeadersStatus() throws Exception {
+        // The leader's only follower never answers, so no write reaches a quorum.
+        int leaderPort = freePort();
+        AtlasDBEngine leader = new AtlasDBEngine(tempDir.resolve("leader.wal").toString(),
+                List.of("http://localhost:" + freePort()));
+        leader.setAckTimeoutMillis(200);
+        AtlasDBEngine follower = new AtlasDBEngine(tempDir.resolve("follower.wal").toString(),
+                "http://localhost:" + leaderPort);
+        int followerPort = freePort();
+        NodeServer leaderServer = new NodeServer(leader, leaderPort);
+        NodeServer followerServer = new NodeServer(follower, followerPort);
+        leaderServer.start();
+        followerServer.start();
+        try {
+            String base = "http://localhost:" + followerPort + "/kv/";
+            assertArrayEquals(new String[] {"200", "ok"}, request("PUT", base + "a?ack=leader", "1"));
+            assertEquals("1", leader.get("a"));
+
+            // Logged on the leader but not acknowledged in time: 504, not a failed forward.
+            String[] quorum = request("PUT", base + "b?ack=quorum", "2");
+            assertEquals("504", quorum[0], quorum[1]);
+            assertEquals("2", leader.get("b"));
+            assertEquals("504", request("DELETE", base + "a?ack=all", null)[0]);
+            assertNull(leader.get("a"));
+        } finally {
+            followerServer.stop();
+            leaderServer.stop();
+            follower.close();
+            leader.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.atlasdb.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRequestTest {
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parsesPipelinedRequestsOneAtATime() throws IOException {
+        ByteBuffer buf = bytes(
+                "PUT /kv/a?ack=quorum HTTP/1.1\r\nContent-Length: 3\r\n\r\none" +
+                "GET /kv/a HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        HttpRequest put = HttpRequest.parse(buf);
+        assertEquals("PUT", put.method);
+        assertEquals("/kv/a", put.path);
+        assertEquals("quorum", put.query.get("ack"));
+        assertEquals("one", put.bodyUtf8());
+        assertTrue(put.keepAlive);
+
+        HttpRequest get = HttpRequest.parse(buf);
+        assertEquals("GET", get.method);
+        assertFalse(get.keepAlive);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void incompleteRequestLeavesBufferUntouched() throws IOException {
+        ByteBuffer buf = bytes("PUT /kv/a HTTP/1.1\r\nContent-Length: 10\r\n\r\nshort");
+        assertNull(HttpRequest.parse(buf));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    void http10ClosesUnlessAskedToKeepAlive() throws IOException {
+        assertFalse(HttpRequest.parse(bytes("GET /health HTTP/1.0\r\n\r\n")).keepAlive);
+        assertTrue(HttpRequest.parse(bytes("GET /health HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n")).keepAlive);
+    }
+
+    @Test
+    void rejectsBadContentLength() {
+        assertThrows(IOException.class, () -> HttpRequest.parse(bytes("PUT /kv/a HTTP/1.1\r\nContent-Length: x\r\n\r\n")));
+    }
+}
@@ -0,0 +1,59 @@
+package com.atlasdb.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerClientTest {
+
+    @Test
+    void reusesConnectionForSequentialCalls() throws Exception {
+        AtomicInteger accepted = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread t = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    accepted.incrementAndGet();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                    OutputStream out = s.getOutputStream();
+                    for (int i = 0; i < 3; i++) {
+                        String line;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) { }
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n" + i).getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    }
+                } catch (Exception ignored) {}
+            });
+            t.setDaemon(true);
+            t.start();
+
+            PeerClient client = new PeerClient(1000, 2000, 1);
+            String url = "http://localhost:" + server.getLocalPort() + "/health";
+            for (int i = 0; i < 3; i++) {
+                PeerClient.Response resp = client.send("GET", url, null);
+                assertEquals(200, resp.code);
+                assertEquals(String.valueOf(i), resp.bodyUtf8());
+            }
+            assertEquals(1, accepted.get());
+        }
+    }
+
+    @Test
+    void unresponsivePeerTimesOut() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerClient client = new PeerClient(1000, 200, 1);
+            long start = System.nanoTime();
+            assertThrows(SocketTimeoutException.class,
+                    () -> client.send("GET", "http://localhost:" + server.getLocalPort() + "/read-index", null));
+            assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.atlasdb.net;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.KVStore;
+import com.atlasdb.StoreType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScanEndpointTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-scan-test-");
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /** Status code and body of a GET; the client undoes the chunked transfer coding. */
+    private static String[] get(String url) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        int code = conn.getResponseCode();
+        try (InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            String body = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            if (code == 200) assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+            return new String[] {String.valueOf(code), body};
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    void cursorPagesThroughTheWholeRange() throws Exception {
+        AtlasDBEngine engine = new AtlasDBEngine(tempDir.resolve("node.wal").toString(), List.of());
+        for (int i = 0; i < 250; i++) engine.put(String.format("k%03d", i), "v" + i);
+        engine.put("k|pipe", "p"); // the cursor must survive escaping
+        engine.put("other", "o");
+        int port = freePort();
+        NodeServer server = new NodeServer(engine, port);
+        server.start();
+        try {
+            String base = "http://localhost:" + port + "/kv?prefix=k&limit=100";
+            List<String> keys = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            do {
+                String[] resp = get(base + (cursor == null ? "" : "&cursor=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8)));
+                assertEquals("200", resp[0], resp[1]);
+                pages++;
+                cursor = null;
+                for (String line : resp[1].split("\n")) {
+                    if (line.startsWith("CURSOR|")) {
+                        cursor = line.substring("CURSOR|".length()).replace("\\p", "|");
+                    } else {
+                        String[] parts = line.split("\\|");
+                        assertEquals("PUT", parts[0]);
+                        keys.add(parts[1].replace("\\p", "|"));
+                    }
+                }
+            } while (cursor != null);
+
+            assertEquals(3, pages);
+            assertEquals(251, keys.size());
+            assertEquals("k000", keys.get(0));
+            assertEquals("k|pipe", keys.get(250));
+            assertEquals(keys.stream().sorted().toList(), keys);
+
+            String[] bounded = get("http://localhost:" + port + "/kv?start=k010&end=k013");
+            assertEquals("PUT|k010|v10\nPUT|k011|v11\nPUT|k012|v12\n", bounded[1]);
+            String[] exactPage = get("http://localhost:" + port + "/kv?start=k010&end=k013&limit=3");
+            assertEquals("PUT|k010|v10\nPUT|k011|v11\nPUT|k012|v12\nCURSOR|k012\n", exactPage[1]);
+            assertEquals("200", get("http://localhost:" + port + "/kv?start=zzz")[0], "an empty page");
+
+            for (String limit : List.of("0", "-1", "10001", "ten")) {
+                assertEquals("400", get("http://localhost:" + port + "/kv?limit=" + limit)[0], limit);
+            }
+            assertEquals("200", get("http://localhost:" + port + "/kv?limit=10000")[0]);
+        } finally {
+            server.stop();
+            engine.close();
+        }
+    }
+
+    @Test
+    void hashStoreRejectsScans() throws Exception {
+        KVStore.setDefaultType(StoreType.HASH);
+        AtlasDBEngine engine;
+        try {
+            engine = new AtlasDBEngine(tempDir.resolve("hash.wal").toString(), List.of());
+        } finally {
+            KVStore.setDefaultType(StoreType.ORDERED);
+        }
+        engine.put("a", "1");
+        int port = freePort();
+        NodeServer server = new NodeServer(engine, port);
+        server.start();
+        try {
+            String[] resp = get("http://localhost:" + port + "/kv");
+            assertEquals("400", resp[0]);
+            assertTrue(resp[1].trim().endsWith(" (-Datlasdb.store=ordered)"), resp[1]);
+        } finally {
+            server.stop();
+            engine.close();
+        }
+    }
+}
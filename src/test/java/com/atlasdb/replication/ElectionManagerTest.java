@@ -0,0 +1,128 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.log.FsyncPolicy;
+import com.atlasdb.log.WriteAheadLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ElectionManagerTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-election-test-");
+    }
+
+    private WriteAheadLog wal(String name) {
+        return new WriteAheadLog(tempDir.resolve(name).toString(), FsyncPolicy.NONE, 0, 4096);
+    }
+
+    /** A node whose log ends at a fixed entry, and which records the roles it is given. */
+    private static final class StubNode implements ElectionManager.Node {
+        final long lastIndex;
+        final long lastTerm;
+        volatile long followerTerm;
+
+        StubNode(long lastIndex, long lastTerm) {
+            this.lastIndex = lastIndex;
+            this.lastTerm = lastTerm;
+        }
+
+        @Override public long lastLogIndex() { return lastIndex; }
+        @Override public long lastLogTerm() { return lastTerm; }
+        @Override public void becomeLeader(long term) { fail("no campaign without start()"); }
+        @Override public void becomeFollower(long term, String leaderId) { followerTerm = term; }
+    }
+
+    private ElectionManager manager(StubNode node, long minTimeoutMs) {
+        TermStore terms = new TermStore(tempDir.resolve("raft.state"));
+        return new ElectionManager("self", List.of("a", "b"), terms, new FlakyTransport(), node,
+                minTimeoutMs, minTimeoutMs * 2);
+    }
+
+    @Test
+    void votesGoOnlyToCandidatesWithLogsAtLeastAsUpToDate() {
+        StubNode node = new StubNode(10, 2);
+        ElectionManager election = manager(node, ElectionManager.DEFAULT_MIN_TIMEOUT_MS);
+
+        assertFalse(election.handleVote(3, "a", 100, 1), "older last term, however long");
+        assertEquals(3, election.getCurrentTerm());
+        assertEquals(3, node.followerTerm);
+        assertFalse(election.handleVote(4, "a", 9, 2), "same last term, shorter log");
+        assertTrue(election.handleVote(5, "a", 10, 2));
+        assertFalse(election.handleVote(5, "b", 11, 2), "one vote per term");
+        assertTrue(election.handleVote(5, "a", 10, 2), "a repeated request gets the same answer");
+        assertTrue(election.handleVote(6, "b", 1, 3), "a newer last term wins over length");
+        assertThrows(StaleTermException.class, () -> election.handleVote(5, "a", 100, 9));
+    }
+
+    @Test
+    void votesAreRefusedWhileTheLeaderMayHoldALease() throws Exception {
+        ElectionManager election = manager(new StubNode(0, 0), 100);
+        assertTrue(election.onLeaderContact(2, "a"));
+        assertEquals("a", election.getLeaderId());
+
+        assertFalse(election.handleVote(3, "b", 0, 0));
+        assertEquals(2, election.getCurrentTerm(), "a refused vote does not move the term");
+        assertFalse(election.onLeaderContact(1, "b"), "stale leader");
+
+        Thread.sleep(150); // past the minimum election timeout without hearing from the leader
+        assertTrue(election.handleVote(3, "b", 0, 0));
+        assertEquals(3, election.getCurrentTerm());
+        assertNull(election.getLeaderId());
+    }
+
+    @Test
+    void followersElectNewLeaderWhenLeaderFails() throws Exception {
+        FlakyTransport transport = new FlakyTransport();
+        List<String> names = List.of("n1", "n2", "n3");
+        for (String name : names) {
+            List<String> peers = names.stream().filter(n -> !n.equals(name)).toList();
+            transport.nodes.put(name, new AtlasDBEngine(wal(name), name, peers, transport));
+        }
+        awaitTrue(() -> transport.leaders().size() == 1);
+        String first = transport.leaders().get(0);
+        AtlasDBEngine oldLeader = transport.nodes.get(first);
+        for (int i = 0; i < 100; i++) oldLeader.put("k" + i, "v" + i, AckLevel.QUORUM);
+
+        transport.down.add(first);
+        long failedAt = System.currentTimeMillis();
+        awaitTrue(() -> transport.leaders().stream().anyMatch(n -> !n.equals(first)));
+        long failoverMs = System.currentTimeMillis() - failedAt;
+        assertTrue(failoverMs < 5_000, "failover took " + failoverMs + " ms");
+
+        String second = transport.leaders().stream().filter(n -> !n.equals(first)).findFirst().orElseThrow();
+        AtlasDBEngine newLeader = transport.nodes.get(second);
+        assertTrue(newLeader.getCurrentTerm() > oldLeader.getCurrentTerm());
+        for (int i = 0; i < 100; i++) assertEquals("v" + i, newLeader.get("k" + i), "committed writes survive");
+        newLeader.put("k0", "new", AckLevel.QUORUM);
+        for (String name : names) {
+            if (!name.equals(first) && !name.equals(second)) {
+                assertEquals(second, transport.nodes.get(name).getLeaderUrl());
+            }
+        }
+
+        // The old leader rejoins, hears the newer term and catches up as a follower.
+        transport.down.remove(first);
+        awaitTrue(() -> !oldLeader.isLeader() && "new".equals(oldLeader.get("k0")));
+        assertEquals(second, oldLeader.getLeaderUrl());
+        for (AtlasDBEngine n : transport.nodes.values()) n.close();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
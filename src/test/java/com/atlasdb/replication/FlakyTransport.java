@@ -0,0 +1,76 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.snapshot.Snapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Delivers packets in-process, with jitter so pipelined packets overtake each other, and some failures. */
+final class FlakyTransport implements ReplicationTransport {
+    final Map<String, AtlasDBEngine> nodes = new ConcurrentHashMap<>();
+    final AtomicInteger snapshotsInstalled = new AtomicInteger();
+    final Set<String> down = ConcurrentHashMap.newKeySet();
+    volatile int failurePercent;
+
+    @Override
+    public long replicate(String follower, ReplicationPacket packet) throws Exception {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        Thread.sleep(rnd.nextInt(3));
+        if (cutOff(follower, packet.getLeaderId()) || rnd.nextInt(100) < failurePercent) {
+            throw new IOException("request lost");
+        }
+        AtlasDBEngine node = nodes.get(follower);
+        try {
+            node.receiveReplication(packet);
+        } catch (OutOfSyncException e) {
+            return e.getExpectedIndex();
+        }
+        if (rnd.nextInt(100) < failurePercent) throw new IOException("response lost");
+        return packet.getFromIndexInclusive() + packet.getOps().size();
+    }
+
+    @Override
+    public void installSnapshot(String follower, ReplicationPacket header, Snapshot snapshot) throws Exception {
+        if (cutOff(follower, header.getLeaderId())) throw new IOException("request lost");
+        AtlasDBEngine node = nodes.get(follower);
+        Files.copy(snapshot.getPath(), node.snapshotIncomingFile(snapshot.getIndex()), StandardCopyOption.REPLACE_EXISTING);
+        node.installSnapshot(header);
+        snapshotsInstalled.incrementAndGet();
+    }
+
+    @Override
+    public boolean requestVote(String peer, long term, String candidate, long lastLogIndex, long lastLogTerm)
+            throws Exception {
+        if (cutOff(peer, candidate)) throw new IOException("request lost");
+        return nodes.get(peer).handleVote(term, candidate, lastLogIndex, lastLogTerm);
+    }
+
+    @Override
+    public long readIndex(String leader) throws Exception {
+        if (down.contains(leader)) throw new IOException("request lost");
+        return nodes.get(leader).readIndex();
+    }
+
+    /** A node that is down neither receives nor sends. */
+    private boolean cutOff(String to, String from) {
+        return down.contains(to) || (from != null && down.contains(from));
+    }
+
+    /** Names of the nodes that think they lead, sorted. */
+    List<String> leaders() {
+        return nodes.entrySet().stream()
+                .filter(e -> e.getValue().isLeader())
+                .map(Map.Entry::getKey)
+                .sorted()
+                .toList();
+    }
+}
@@ -0,0 +1,102 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.log.FsyncPolicy;
+import com.atlasdb.log.WriteAheadLog;
+import org.junit.jupiter.api.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FollowerReplicatorTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-repl-test-");
+    }
+
+    private WriteAheadLog wal(String name) {
+        return new WriteAheadLog(tempDir.resolve(name).toString(), FsyncPolicy.NONE, 0, 4096);
+    }
+
+    @Test
+    void pipelinedSendersConvergeDespiteFailures() throws Exception {
+        FlakyTransport transport = new FlakyTransport();
+        transport.failurePercent = 10;
+        transport.nodes.put("f1", new AtlasDBEngine(wal("f1"), "http://leader"));
+        transport.nodes.put("f2", new AtlasDBEngine(wal("f2"), "http://leader"));
+        AtlasDBEngine leader = new AtlasDBEngine(wal("leader"), List.of("f1", "f2"), transport);
+
+        for (int i = 0; i < 2000; i++) leader.put("k" + (i % 300), "v" + i);
+        transport.failurePercent = 0;
+
+        awaitTrue(() -> transport.nodes.values().stream().allMatch(n -> n.getLastAppliedIndex() == 2000));
+        for (AtlasDBEngine f : transport.nodes.values()) {
+            assertEquals("v1999", f.get("k" + (1999 % 300)));
+            assertEquals("v1700", f.get("k" + (1700 % 300)));
+        }
+        awaitTrue(() -> leader.getReplicationStatus().values().stream().allMatch(m -> m == 2000));
+        leader.close();
+    }
+
+    @Test
+    void followerBehindCompactedLogGetsSnapshot() throws Exception {
+        AtlasDBEngine seed = new AtlasDBEngine(wal("leader"), List.of());
+        seed.setSnapshotInterval(0);
+        for (int i = 0; i < 500; i++) seed.put("k" + i, "v" + i);
+        seed.takeSnapshot();
+        seed.put("k0", "after");
+        seed.close();
+
+        FlakyTransport transport = new FlakyTransport();
+        transport.nodes.put("f1", new AtlasDBEngine(wal("f1"), "http://leader"));
+        AtlasDBEngine leader = new AtlasDBEngine(wal("leader"), List.of("f1"), transport);
+        leader.put("k1", "later");
+
+        AtlasDBEngine f1 = transport.nodes.get("f1");
+        awaitTrue(() -> f1.getLastAppliedIndex() == 502);
+        assertEquals(1, transport.snapshotsInstalled.get());
+        assertEquals("after", f1.get("k0"));
+        assertEquals("later", f1.get("k1"));
+        assertEquals("v499", f1.get("k499"));
+        leader.close();
+    }
+
+    @Test
+    void ackLevelsWaitForEnoughFollowers() throws Exception {
+        FlakyTransport transport = new FlakyTransport();
+        transport.nodes.put("f1", new AtlasDBEngine(wal("f1"), "http://leader"));
+        transport.nodes.put("f2", new AtlasDBEngine(wal("f2"), "http://leader"));
+        transport.down.add("f2");
+        AtlasDBEngine leader = new AtlasDBEngine(wal("leader"), List.of("f1", "f2"), transport);
+        leader.setAckTimeoutMillis(300);
+
+        leader.put("a", "1", AckLevel.QUORUM);
+        assertEquals("1", transport.nodes.get("f1").get("a"), "quorum ack means f1 holds it");
+        assertTrue(leader.getCommitIndex() >= 1);
+
+        assertThrows(IllegalStateException.class, () -> leader.put("b", "2", AckLevel.ALL));
+        assertEquals("2", leader.get("b"), "a timed-out write is still applied on the leader");
+
+        transport.down.remove("f2");
+        leader.setAckTimeoutMillis(10_000); // f2's sender may still be backing off
+        leader.put("c", "3", AckLevel.ALL);
+        assertEquals("3", transport.nodes.get("f2").get("c"));
+        assertEquals(3, leader.getCommitIndex());
+        leader.close();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.cluster.ReplicationPacket;
+import com.atlasdb.log.FsyncPolicy;
+import com.atlasdb.log.Operation;
+import com.atlasdb.log.WriteAheadLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogTailerTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-tailer-test-");
+    }
+
+    private WriteAheadLog wal(String name) {
+        return new WriteAheadLog(tempDir.resolve(name).toString(), FsyncPolicy.NONE, 0, 4096);
+    }
+
+    /** Serves read replicas from the in-process engines, as {@code GET /log} and {@code GET /snapshot} do. */
+    private static final class LocalUpstream implements LogTailer.Upstream {
+        final Map<String, AtlasDBEngine> nodes = new ConcurrentHashMap<>();
+        final java.util.Set<String> down = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public ReplicationPacket pull(String url, long fromIndex, int max, long waitMs) throws Exception {
+            if (down.contains(url)) throw new java.io.IOException("request lost");
+            AtlasDBEngine node = nodes.get(url);
+            List<Operation> ops;
+            try {
+                ops = node.readCommitted(fromIndex, max, waitMs);
+            } catch (IllegalStateException e) {
+                throw new OutOfSyncException(node.getLatestSnapshot().getIndex(), fromIndex);
+            }
+            return new ReplicationPacket(fromIndex, ops, 0, node.isLeader() ? url : node.getLeaderUrl(), 0,
+                    node.getLeaderCommitIndex());
+        }
+
+        @Override
+        public void fetchSnapshot(String url, long index, Path target) throws Exception {
+            Files.copy(nodes.get(url).getSnapshot(index).getPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Test
+    void replicasTailCommittedLogWithoutHoldingUpWrites() throws Exception {
+        AtlasDBEngine seed = new AtlasDBEngine(wal("leader"), List.of());
+        seed.setSnapshotInterval(0);
+        for (int i = 0; i < 500; i++) seed.put("k" + i, "v" + i);
+        seed.takeSnapshot();
+        seed.close();
+
+        FlakyTransport transport = new FlakyTransport();
+        transport.nodes.put("f1", new AtlasDBEngine(wal("f1"), "http://leader"));
+        AtlasDBEngine leader = new AtlasDBEngine(wal("leader"), List.of("f1"), transport);
+        AtlasDBEngine f1 = transport.nodes.get("f1");
+        leader.put("a", "1", AckLevel.ALL);
+
+        // f1 starts from a snapshot, so r1 needs one too; r2 tails r1, or f1 while r1 is unreachable.
+        LocalUpstream upstream = new LocalUpstream();
+        upstream.nodes.put("f1", f1);
+        AtlasDBEngine r1 = new AtlasDBEngine(wal("r1"), List.of("f1"), upstream);
+        upstream.nodes.put("r1", r1);
+        AtlasDBEngine r2 = new AtlasDBEngine(wal("r2"), List.of("r1", "f1"), upstream);
+        assertEquals(Role.REPLICA, r2.getRole());
+        awaitTrue(() -> r2.getLastAppliedIndex() == 501);
+        assertEquals("1", r2.get("a"));
+        assertEquals("v499", r2.get("k499"));
+        assertEquals("http://leader", r2.getLeaderUrl());
+        assertThrows(IllegalStateException.class, () -> r2.put("b", "2"));
+
+        upstream.down.add("r1");
+        for (int i = 0; i < 300; i++) leader.put("b" + i, "v" + i, AckLevel.ALL); // replicas are no one's followers
+        assertEquals(List.of("f1"), List.copyOf(leader.getReplicationStatus().keySet()));
+        awaitTrue(() -> r2.getLastAppliedIndex() == 801 && r2.getLag() == 0);
+        assertEquals("f1", r2.getUpstream());
+        assertEquals("v299", r2.get("b299"));
+        awaitTrue(() -> r1.getLastAppliedIndex() == 801);
+
+        for (AtlasDBEngine n : List.of(r2, r1, leader, f1)) n.close();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
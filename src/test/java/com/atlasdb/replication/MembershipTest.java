@@ -0,0 +1,131 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.log.FsyncPolicy;
+import com.atlasdb.log.WriteAheadLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MembershipTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-membership-test-");
+    }
+
+    private WriteAheadLog wal(String name) {
+        return new WriteAheadLog(tempDir.resolve(name).toString(), FsyncPolicy.NONE, 0, 4096);
+    }
+
+    @Test
+    void encodeAndDecodeRoundTrip() {
+        Membership members = new Membership(List.of("http://a", "http://b"), List.of("http://c"));
+        assertEquals("http://a,http://b;http://c", members.encode());
+        assertEquals(members, Membership.decode(members.encode()));
+
+        Membership votersOnly = Membership.of("http://a", List.of("http://b", "http://a"));
+        assertEquals("http://a,http://b;", votersOnly.encode());
+        assertEquals(votersOnly, Membership.decode("http://a,http://b;"));
+        assertEquals(List.of(), Membership.decode(";").voters());
+
+        assertThrows(IllegalArgumentException.class, () -> Membership.decode("http://a,http://b"));
+        assertThrows(IllegalArgumentException.class, () -> Membership.decode("a;b;c"));
+    }
+
+    @Test
+    void membershipChangesOneNodeAtATime() {
+        Membership members = Membership.of("a", List.of("b"));
+        assertThrows(IllegalArgumentException.class, () -> members.withLearner("b"));
+        assertThrows(IllegalArgumentException.class, () -> members.promoted("b"));
+
+        Membership withC = members.withLearner("c");
+        assertEquals(List.of("c"), withC.learners());
+        assertTrue(withC.contains("c"));
+        assertFalse(withC.isVoter("c"));
+        assertThrows(IllegalArgumentException.class, () -> withC.withLearner("c"));
+
+        Membership promoted = withC.promoted("c");
+        assertEquals(List.of("a", "b", "c"), promoted.voters());
+        assertEquals(List.of(), promoted.learners());
+        assertTrue(promoted.isVoter("c"));
+
+        assertEquals(new Membership(List.of("a", "b"), List.of()), withC.without("c"));
+        assertEquals(new Membership(List.of("a", "c"), List.of()), promoted.without("b"));
+        assertThrows(IllegalArgumentException.class, () -> promoted.without("d"));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Membership(List.of("a"), List.of("b")).without("a"));
+        assertEquals(new Membership(List.of("a"), List.of()),
+                new Membership(List.of("a"), List.of("b")).without("b"));
+    }
+
+    @Test
+    void learnerCatchesUpBySnapshotAndVotesOncePromoted() throws Exception {
+        FlakyTransport transport = new FlakyTransport();
+        List<String> names = List.of("n1", "n2", "n3");
+        for (String name : names) {
+            List<String> peers = names.stream().filter(n -> !n.equals(name)).toList();
+            AtlasDBEngine node = new AtlasDBEngine(wal(name), name, peers, transport);
+            node.setSnapshotInterval(0);
+            transport.nodes.put(name, node);
+        }
+        awaitTrue(() -> transport.leaders().size() == 1);
+        String leaderName = transport.leaders().get(0);
+        AtlasDBEngine leader = transport.nodes.get(leaderName);
+        for (int i = 0; i < 500; i++) leader.put("k" + i, "v" + i, AckLevel.QUORUM);
+        leader.takeSnapshot();
+
+        AtlasDBEngine n4 = new AtlasDBEngine(wal("n4"), "n4", new Membership(names, List.of("n4")), transport,
+                ElectionManager.DEFAULT_MIN_TIMEOUT_MS, ElectionManager.DEFAULT_MAX_TIMEOUT_MS);
+        transport.nodes.put("n4", n4);
+        assertThrows(IllegalArgumentException.class, () -> leader.promote("n4"));
+        leader.addLearner("n4");
+        awaitTrue(() -> "v499".equals(n4.get("k499")) && transport.snapshotsInstalled.get() == 1);
+        assertEquals(List.of("n4"), n4.getMembers().learners());
+
+        // A learner's acknowledgement does not make a quorum. The cut stays well below the
+        // election timeout, so the voters keep their leader.
+        List<String> others = names.stream().filter(n -> !n.equals(leaderName)).toList();
+        transport.down.addAll(others);
+        leader.setAckTimeoutMillis(100);
+        assertThrows(IllegalStateException.class, () -> leader.put("x", "1", AckLevel.QUORUM));
+        transport.down.removeAll(others);
+
+        // The voters may have elected a new leader meanwhile.
+        awaitTrue(() -> transport.leaders().size() == 1);
+        AtlasDBEngine current = transport.nodes.get(transport.leaders().get(0));
+        current.setAckTimeoutMillis(10_000);
+        current.put("x", "2", AckLevel.QUORUM);
+        assertEquals(List.of("n1", "n2", "n3", "n4"), current.promote("n4").voters().stream().sorted().toList());
+        String currentName = transport.leaders().get(0);
+        String removed = names.stream().filter(n -> !n.equals(currentName)).findFirst().orElseThrow();
+        String remaining = names.stream().filter(n -> !n.equals(currentName) && !n.equals(removed)).findFirst().orElseThrow();
+        Membership three = current.removeMember(removed);
+        transport.down.add(removed); // shut down once removed
+        awaitTrue(() -> three.equals(n4.getMembers()) && three.equals(transport.nodes.get(remaining).getMembers()));
+
+        // The promoted node now counts: without the old leader, it and the remaining voter elect one of them.
+        transport.down.add(currentName);
+        awaitTrue(() -> transport.leaders().stream().anyMatch(n -> n.equals("n4") || n.equals(remaining)));
+        String next = transport.leaders().stream().filter(n -> n.equals("n4") || n.equals(remaining)).findFirst().orElseThrow();
+        transport.nodes.get(next).put("y", "1", AckLevel.QUORUM);
+        assertEquals("2", n4.get("x"));
+        for (AtlasDBEngine n : transport.nodes.values()) n.close();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
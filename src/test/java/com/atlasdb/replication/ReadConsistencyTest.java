@@ -0,0 +1,94 @@
+package com.atlasdb.replication;
+
+import com.atlasdb.AtlasDBEngine;
+import com.atlasdb.log.FsyncPolicy;
+import com.atlasdb.log.WriteAheadLog;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadConsistencyTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        tempDir = Files.createTempDirectory("atlasdb-read-test-");
+    }
+
+    private WriteAheadLog wal(String name) {
+        return new WriteAheadLog(tempDir.resolve(name).toString(), FsyncPolicy.NONE, 0, 4096);
+    }
+
+    @Test
+    void linearizableReadsOnFollowersSeeEveryAcknowledgedWrite() throws Exception {
+        FlakyTransport transport = new FlakyTransport();
+        List<String> names = List.of("n1", "n2", "n3");
+        for (String name : names) {
+            List<String> peers = names.stream().filter(n -> !n.equals(name)).toList();
+            AtlasDBEngine node = new AtlasDBEngine(wal(name), name, peers, transport);
+            node.setAckTimeoutMillis(1000);
+            transport.nodes.put(name, node);
+        }
+        awaitTrue(() -> transport.leaders().size() == 1);
+        String leaderName = transport.leaders().get(0);
+        AtlasDBEngine leader = transport.nodes.get(leaderName);
+        AtlasDBEngine follower = transport.nodes.get(names.stream().filter(n -> !n.equals(leaderName)).findFirst().orElseThrow());
+        awaitTrue(() -> leaderName.equals(follower.getLeaderUrl()));
+
+        for (int i = 0; i < 50; i++) {
+            leader.put("k", "v" + i); // leader ack only: the follower may not hold it yet
+            assertEquals("v" + i, follower.get("k", ReadConsistency.LINEARIZABLE));
+        }
+        assertEquals("v49", leader.get("k", ReadConsistency.LINEARIZABLE));
+        assertEquals("v49", follower.get("k", ReadConsistency.boundedMillis(10_000)));
+
+        // Cut off from the majority, the leader stops confirming reads once its lease runs out.
+        transport.down.add(leaderName);
+        Thread.sleep(ElectionManager.DEFAULT_MIN_TIMEOUT_MS);
+        assertThrows(IllegalStateException.class, () -> leader.get("k", ReadConsistency.LINEARIZABLE));
+        assertEquals("v49", leader.get("k", ReadConsistency.STALE));
+        for (AtlasDBEngine n : transport.nodes.values()) n.close();
+    }
+
+    @Test
+    void linearizableReadsNeverSeeUncommittedWrites() throws Exception {
+        FlakyTransport transport = new FlakyTransport();
+        transport.nodes.put("f1", new AtlasDBEngine(wal("f1"), "http://leader"));
+        transport.nodes.put("f2", new AtlasDBEngine(wal("f2"), "http://leader"));
+        transport.down.addAll(List.of("f1", "f2"));
+        AtlasDBEngine leader = new AtlasDBEngine(wal("leader"), List.of("f1", "f2"), transport);
+        leader.setAckTimeoutMillis(200);
+
+        // Only the leader's own ack: applied there, but a new leader could still discard it.
+        leader.put("k", "v");
+        assertEquals("v", leader.get("k", ReadConsistency.STALE));
+        assertThrows(IllegalStateException.class, () -> leader.get("k", ReadConsistency.LINEARIZABLE));
+        assertThrows(IllegalStateException.class, () -> leader.scan(null, true, null, null, 10,
+                ReadConsistency.LINEARIZABLE, (key, value) -> fail("uncommitted entry " + key)));
+        assertEquals(0, leader.getCommitIndex());
+
+        // Once a majority holds the write it is committed, and served.
+        transport.down.remove("f1");
+        leader.setAckTimeoutMillis(10_000); // f1's sender may still be backing off
+        assertEquals("v", leader.get("k", ReadConsistency.LINEARIZABLE));
+        AtlasDBEngine f1 = transport.nodes.get("f1");
+        awaitTrue(() -> f1.getCommitIndex() == 1);
+        for (AtlasDBEngine n : transport.nodes.values()) n.close();
+        leader.close();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.atlasdb.replication;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TermStoreTest {
+
+    @Test
+    void termVoteAndHistorySurviveReopen() throws Exception {
+        Path file = Files.createTempDirectory("atlasdb-terms-test-").resolve("raft.state");
+        TermStore terms = new TermStore(file);
+        assertEquals(0, terms.getCurrentTerm());
+        assertNull(terms.getVotedFor());
+
+        terms.setTermAndVote(3, "http://a");
+        terms.startTerm(1, 1);
+        terms.startTerm(3, 40);
+        terms.startTerm(2, 50); // older than the last recorded term: ignored
+
+        TermStore reopened = new TermStore(file);
+        assertEquals(3, reopened.getCurrentTerm());
+        assertEquals("http://a", reopened.getVotedFor());
+        assertEquals(0, reopened.termAt(0));
+        assertEquals(1, reopened.termAt(39));
+        assertEquals(3, reopened.termAt(40));
+        assertEquals(3, reopened.termAt(1000));
+        assertEquals(40, reopened.termStartIndex(45));
+        assertEquals(1, reopened.termStartIndex(39));
+        assertThrows(IllegalStateException.class, () -> reopened.setTermAndVote(2, null));
+
+        reopened.truncateAfter(39);
+        reopened.setTermAndVote(4, null);
+        TermStore again = new TermStore(file);
+        assertEquals(4, again.getCurrentTerm());
+        assertNull(again.getVotedFor());
+        assertEquals(1, again.termAt(40));
+
+        again.resetTo(4);
+        assertEquals(4, new TermStore(file).termAt(1));
+    }
+}
@@ -0,0 +1,102 @@
+package com.atlasdb.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LsmEngineTest {
+
+    private Path dir;
+
+    @BeforeEach
+    void setup() throws Exception {
+        dir = Files.createTempDirectory("atlasdb-lsm-test-");
+    }
+
+    @Test
+    void flushedEntriesSurviveReopen() throws Exception {
+        LsmEngine lsm = new LsmEngine(dir, 1 << 20);
+        for (int i = 0; i < 2000; i++) lsm.put(String.format("k%05d", i), "v" + i);
+        lsm.delete("k00007");
+        lsm.flush(42).write();
+        lsm.put("unflushed", "x");
+        assertEquals("v5", lsm.get("k00005"));
+        assertNull(lsm.get("k00007"));
+        lsm.close();
+
+        LsmEngine reopened = new LsmEngine(dir, 1 << 20);
+        assertEquals(42, reopened.persistedIndex());
+        assertEquals("v1999", reopened.get("k01999"));
+        assertNull(reopened.get("k00007"));
+        assertNull(reopened.get("unflushed"), "the WAL holds what was not flushed");
+        assertNull(reopened.get("absent"));
+        assertEquals(1999, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    void scanMergesMemtableAndTables() throws Exception {
+        LsmEngine lsm = new LsmEngine(dir, 1 << 20);
+        lsm.put("a1", "old");
+        lsm.put("a2", "old");
+        lsm.put("a3", "old");
+        lsm.flush(1).write();
+        lsm.put("a2", "new");
+        lsm.delete("a3");
+        lsm.put("a4", "new");
+
+        List<String> seen = new ArrayList<>();
+        lsm.scan("a1", false, null, "a", 10, (k, v) -> seen.add(k + "=" + v));
+        assertEquals(List.of("a2=new", "a4=new"), seen);
+        lsm.close();
+    }
+
+    @Test
+    void compactionMergesTablesAndDropsTombstones() throws Exception {
+        LsmEngine lsm = new LsmEngine(dir, 1 << 20);
+        for (int round = 0; round < LsmEngine.COMPACTION_TRIGGER; round++) {
+            for (int i = 0; i < 500; i++) lsm.put("k" + i, "r" + round);
+            if (round == LsmEngine.COMPACTION_TRIGGER - 1) lsm.delete("k3");
+            lsm.flush(round + 1).write();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lsm.tableCount() > 1 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(1, lsm.tableCount());
+        assertEquals("r3", lsm.get("k0"));
+        assertEquals(499, lsm.size());
+        lsm.close();
+
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.filter(f -> f.toString().endsWith(SSTable.SUFFIX)).count(), "merged tables are deleted");
+        }
+        LsmEngine reopened = new LsmEngine(dir, 1 << 20);
+        assertEquals(4, reopened.persistedIndex());
+        assertNull(reopened.get("k3"));
+        assertEquals("r3", reopened.get("k499"));
+        reopened.close();
+    }
+
+    @Test
+    void viewIsUnaffectedByLaterWrites() throws Exception {
+        LsmEngine lsm = new LsmEngine(dir, 1 << 20);
+        lsm.put("a", "1");
+        lsm.flush(1).write();
+        lsm.put("b", "2");
+        StorageEngine.View view = lsm.openView();
+        lsm.put("a", "changed");
+        lsm.delete("b");
+        lsm.flush(2).write();
+
+        List<String> seen = new ArrayList<>();
+        view.forEach((k, v) -> seen.add(k + "=" + v));
+        view.close();
+        assertEquals(List.of("a=1", "b=2"), seen);
+        lsm.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.atlasdb.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapEngineTest {
+
+    @Test
+    void matchesHashMapUnderRandomWrites() {
+        OffHeapEngine offHeap = new OffHeapEngine(64 * 1024);
+        Map<String, String> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 50_000; i++) {
+            String key = "k" + random.nextInt(5000);
+            if (random.nextInt(4) == 0) {
+                offHeap.delete(key);
+                expected.remove(key);
+            } else {
+                String value = "v" + i + "-ü";
+                offHeap.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        assertEquals(expected.size(), offHeap.size());
+        for (int k = 0; k < 5000; k++) {
+            assertEquals(expected.get("k" + k), offHeap.get("k" + k));
+        }
+        // Overwrites and deletes were compacted away along the way.
+        assertTrue(offHeap.arenaBytes() < 2 * 64 * 1024 + 2 * expected.size() * 32L);
+    }
+
+    @Test
+    void returnedBytesSurviveLaterWrites() {
+        OffHeapEngine offHeap = new OffHeapEngine(1024);
+        offHeap.put("k", "first");
+        ByteBuffer bytes = offHeap.getBytes("k");
+        for (int i = 0; i < 1000; i++) offHeap.put("k", "value " + i);
+        offHeap.delete("k");
+
+        assertEquals("first", StandardCharsets.UTF_8.decode(bytes).toString());
+        assertTrue(bytes.isReadOnly());
+        assertNull(offHeap.getBytes("k"));
+    }
+
+    @Test
+    void viewIsUnaffectedByLaterWrites() {
+        OffHeapEngine offHeap = new OffHeapEngine(1024);
+        offHeap.put("a", "1");
+        offHeap.put("b", "2");
+        StorageEngine.View view = offHeap.openView();
+        offHeap.put("a", "changed");
+        offHeap.delete("b");
+        offHeap.put("c", "3");
+
+        Map<String, String> seen = new HashMap<>();
+        view.forEach(seen::put);
+        view.close();
+        assertEquals(Map.of("a", "1", "b", "2"), seen);
+    }
+}
@@ -0,0 +1,146 @@
+package com.atlasdb.watch;
+
+import com.atlasdb.log.Operation;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChangeFeedTest {
+
+    /** A committed log in memory; entries before {@code start} are compacted. */
+    private static final class MemoryLog implements ChangeFeed.Source {
+        private final List<Operation> ops = new ArrayList<>();
+        private long start;
+
+        synchronized void append(Operation op) {
+            ops.add(op);
+            notifyAll();
+        }
+
+        synchronized void compact(long upTo) {
+            start = upTo;
+        }
+
+        @Override
+        public synchronized List<Operation> readCommitted(long afterIndex, int max, long waitMs)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + waitMs;
+            while (ops.size() <= afterIndex && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            if (afterIndex < start) throw new IllegalStateException("compacted");
+            if (ops.size() <= afterIndex) return List.of();
+            return List.copyOf(ops.subList((int) afterIndex, (int) Math.min(ops.size(), afterIndex + max)));
+        }
+
+        @Override
+        public synchronized long commitIndex() {
+            return ops.size();
+        }
+    }
+
+    private static final class MemorySink implements ChangeFeed.Sink {
+        private final StringBuilder text = new StringBuilder();
+        private boolean open = true;
+
+        @Override
+        public synchronized boolean send(ByteBuffer bytes) {
+            if (!open) return false;
+            text.append(StandardCharsets.UTF_8.decode(bytes));
+            return true;
+        }
+
+        @Override
+        public long queuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void onDrained(Runnable listener) {
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            open = false;
+        }
+
+        synchronized String text() {
+            return text.toString();
+        }
+    }
+
+    @Test
+    void watchersShareOneLogRead() throws Exception {
+        MemoryLog log = new MemoryLog();
+        ChangeFeed feed = new ChangeFeed(log);
+        try {
+            List<MemorySink> sinks = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                MemorySink sink = new MemorySink();
+                feed.watch(0, "", ChangeFeed.Format.LINES, sink);
+                sinks.add(sink);
+            }
+            for (int i = 1; i <= 50; i++) log.append(Operation.put("k" + i, "v" + i));
+
+            for (MemorySink sink : sinks) {
+                awaitTrue(() -> sink.text().contains("50 PUT|k50|v50\n"));
+                assertTrue(sink.text().startsWith("1 PUT|k1|v1\n"));
+            }
+            assertEquals(1000, feed.watchers());
+            // Reading the log for each watcher would take at least a thousand reads.
+            assertTrue(feed.logReads() < 100, "log reads: " + feed.logReads());
+        } finally {
+            feed.close();
+        }
+    }
+
+    @Test
+    void watchResumesFromAnIndexAndFiltersByPrefix() throws Exception {
+        MemoryLog log = new MemoryLog();
+        log.append(Operation.put("user:1", "a"));
+        log.append(Operation.termStart(2));
+        log.append(Operation.put("order:1", "b"));
+        log.append(Operation.batch(List.of(Operation.put("user:2", "c"), Operation.delete("order:1"))));
+        ChangeFeed feed = new ChangeFeed(log);
+        try {
+            MemorySink lines = new MemorySink();
+            feed.watch(2, "user:", ChangeFeed.Format.LINES, lines);
+            MemorySink sse = new MemorySink();
+            feed.watch(1, "order:", ChangeFeed.Format.SSE, sse);
+            log.append(Operation.put("user:3", "d"));
+
+            awaitTrue(() -> lines.text().contains("5 PUT|user:3|d\n"));
+            assertEquals("4 PUT|user:2|c\n5 PUT|user:3|d\n", lines.text());
+            awaitTrue(() -> sse.text().contains("id: 4\n"));
+            assertEquals("id: 3\ndata: PUT|order:1|b\n\nid: 4\ndata: DEL|order:1\n\n", sse.text());
+
+            // Entries that were compacted away cannot be replayed.
+            log.compact(3);
+            MemorySink late = new MemorySink();
+            feed.watch(2, "", ChangeFeed.Format.LINES, late);
+            awaitTrue(() -> !late.isOpen());
+            assertTrue(late.text().startsWith("# error index 2 was compacted"), late.text());
+        } finally {
+            feed.close();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("timed out");
+            Thread.sleep(5);
+        }
+    }
+}